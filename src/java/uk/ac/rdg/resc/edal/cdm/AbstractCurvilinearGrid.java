@@ -28,17 +28,21 @@
 
 package uk.ac.rdg.resc.edal.cdm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.opengis.coverage.grid.GridEnvelope;
+import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.AbstractHorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.GridCoordinatesImpl;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.GridEnvelopeImpl;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.geometry.impl.LonLatPositionImpl;
 import uk.ac.rdg.resc.edal.util.Utils;
 
 /**
@@ -80,6 +84,92 @@ abstract class AbstractCurvilinearGrid extends AbstractHorizontalGrid
         return Utils.getBoundingBox(this.curvGrid.getBoundingBox());
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>This implementation uses
+     * {@link #findNearestGridPoints(uk.ac.rdg.resc.edal.coverage.domain.Domain, int[], int[])}.</p>
+     */
+    @Override
+    public List<GridCoordinates> findNearestGridPoints(Domain<HorizontalPosition> domain)
+    {
+        int size = (int)domain.size();
+        int[] iIndices = new int[size];
+        int[] jIndices = new int[size];
+        this.findNearestGridPoints(domain, iIndices, jIndices);
+        List<GridCoordinates> gridCoords = new ArrayList<GridCoordinates>(size);
+        for (int k = 0; k < size; k++)
+        {
+            gridCoords.add(iIndices[k] < 0 ? null
+                : new GridCoordinatesImpl(iIndices[k], jIndices[k]));
+        }
+        return Collections.unmodifiableList(gridCoords);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>Neighbouring positions in the domain (e.g. consecutive pixels in a
+     * row of an image) are usually in the same or neighbouring grid cells.
+     * This implementation therefore starts the search for each position from
+     * the cell found for the previous position (or, at the start of each
+     * row of a grid, for the first position in the previous row) and walks
+     * across the grid towards the position, creating no objects.  If this
+     * does not lead to a cell that contains the position,
+     * {@link #findNearestGridPoint(uk.ac.rdg.resc.edal.geometry.HorizontalPosition)}
+     * is used.</p>
+     */
+    @Override
+    public void findNearestGridPoints(Domain<HorizontalPosition> domain,
+            int[] iIndices, int[] jIndices)
+    {
+        checkIndexArrays(domain, iIndices, jIndices);
+        double[] points = Utils.transformDomainCoordinates(domain, this.getCoordinateReferenceSystem());
+        int numPoints = points.length / 2;
+        int rowLength = domain instanceof HorizontalGrid
+            ? ((HorizontalGrid)domain).getGridExtent().getSpan(0)
+            : numPoints;
+        int ni = this.curvGrid.getNi();
+        double[] corners = new double[8];
+        // The cell from which we start the search for the next position
+        int startIndex = -1;
+        // The cell reached by the search for the first position in the
+        // current row
+        int rowStartIndex = -1;
+        for (int k = 0; k < numPoints; k++)
+        {
+            if (rowLength > 0 && k % rowLength == 0 && rowStartIndex >= 0)
+            {
+                startIndex = rowStartIndex;
+                rowStartIndex = -1;
+            }
+            double lon = Utils.constrainLongitude180(points[2 * k]);
+            double lat = points[2 * k + 1];
+            int cellIndex = -1;
+            if (startIndex >= 0 && !Double.isNaN(lon) && !Double.isNaN(lat))
+            {
+                int nearbyIndex = this.curvGrid.findNearbyCell(startIndex % ni,
+                    startIndex / ni, lon, lat);
+                cellIndex = this.curvGrid.findContainingCell(nearbyIndex, lon, lat, corners);
+                // Start the next search from here, even if the point isn't
+                // in the grid
+                startIndex = nearbyIndex;
+            }
+            if (cellIndex >= 0)
+            {
+                iIndices[k] = cellIndex % ni;
+                jIndices[k] = cellIndex / ni;
+            }
+            else
+            {
+                GridCoordinates coords = this.findNearestGridPoint(
+                    new LonLatPositionImpl(lon, lat));
+                iIndices[k] = coords == null ? -1 : coords.getCoordinateValue(0);
+                jIndices[k] = coords == null ? -1 : coords.getCoordinateValue(1);
+                if (coords != null) startIndex = jIndices[k] * ni + iIndices[k];
+            }
+            if (rowStartIndex < 0) rowStartIndex = startIndex;
+        }
+    }
+
     /**
      * {@inheritDoc}
      * <p>This implementation uses {@link #findNearestGridPoint(uk.ac.rdg.resc.edal.position.HorizontalPosition)}
@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.edal.cdm;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -83,6 +84,7 @@ import uk.ac.rdg.resc.edal.time.NoLeapChronology;
 import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
 import uk.ac.rdg.resc.edal.time.TimeUtils;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
 
 /**
  * Contains static helper methods for reading data and metadata from NetCDF files,
@@ -109,13 +111,43 @@ public final class CdmUtils
     /** Enforce non-instantiability */
     private CdmUtils() { throw new AssertionError(); }
 
+    /**
+     * Sets the directory in which the look-up tables for curvilinear grids are
+     * saved, so that they can be read back rather than being generated each
+     * time the server starts.  The directory will be created if it doesn't
+     * exist.  If this is not called, look-up tables are not saved.
+     * @throws IOException if the directory could not be created
+     */
+    public static void setLookUpTableDirectory(File dir) throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("Could not create directory " + dir);
+        }
+        LookUpTableGrid.setLutDirectory(dir);
+    }
+
     /**
      * Reads metadata from each gridded variable in the given GridDataset,
      * returning a collection of CoverageMetadata objects, one object for each
-     * variable in the dataset.
+     * variable in the dataset.  Curvilinear grids are indexed using
+     * {@link CurvilinearIndex#DEFAULT look-up tables}.
      */
     public static Collection<CoverageMetadata> readCoverageMetadata(GridDataset gd)
             throws IOException
+    {
+        return readCoverageMetadata(gd, CurvilinearIndex.DEFAULT);
+    }
+
+    /**
+     * Reads metadata from each gridded variable in the given GridDataset,
+     * returning a collection of CoverageMetadata objects, one object for each
+     * variable in the dataset.
+     * @param index specifies how the nearest grid points will be found in
+     * curvilinear grids
+     */
+    public static Collection<CoverageMetadata> readCoverageMetadata(GridDataset gd,
+            CurvilinearIndex index) throws IOException
     {
         if (gd == null) throw new NullPointerException("GridDataset can't be null");
 
@@ -128,7 +160,7 @@ public final class CdmUtils
         {
             GridCoordSystem coordSys = gridset.getGeoCoordSystem();
             
-            PartialCoverageMetadata temp = readCoverageMetadata(coordSys);
+            PartialCoverageMetadata temp = readCoverageMetadata(coordSys, index);
 
             // Create a CoverageMetadata object for each GridDatatype
             for (GridDatatype grid : gridset.getGrids())
@@ -147,7 +179,8 @@ public final class CdmUtils
     
     public static CoverageMetadata readCoverageMetadata(GridDatatype grid)
     {
-        PartialCoverageMetadata temp = readCoverageMetadata(grid.getCoordinateSystem());
+        PartialCoverageMetadata temp = readCoverageMetadata(grid.getCoordinateSystem(),
+            CurvilinearIndex.DEFAULT);
         return new CdmCoverageMetadata(
             grid, temp.bbox, temp.hGrid, temp.timesteps, temp.zAxis
         );
@@ -170,12 +203,13 @@ public final class CdmUtils
         }
     }
     
-    private static PartialCoverageMetadata readCoverageMetadata(GridCoordSystem coordSys)
+    private static PartialCoverageMetadata readCoverageMetadata(GridCoordSystem coordSys,
+            CurvilinearIndex index)
     {
         logger.debug("Creating coordinate system objects");
 
         // Create an object that will map lat-lon points to nearest grid points
-        HorizontalGrid horizGrid = CdmUtils.createHorizontalGrid(coordSys);
+        HorizontalGrid horizGrid = CdmUtils.createHorizontalGrid(coordSys, index);
 
         // Get the bounding box
         GeographicBoundingBox bbox = CdmUtils.getBbox(coordSys.getLatLonBoundingBox());
@@ -234,6 +268,18 @@ public final class CdmUtils
      * in spherical coordinates, not strict WGS84
      */
     public static HorizontalGrid createHorizontalGrid(GridCoordSystem coordSys)
+    {
+        return createHorizontalGrid(coordSys, CurvilinearIndex.DEFAULT);
+    }
+
+    /**
+     * Creates a two-dimensional referenceable grid from the given grid
+     * coordinate system, as {@link #createHorizontalGrid(GridCoordSystem)}.
+     * @param index specifies how the nearest grid points will be found if the
+     * coordinate system is curvilinear
+     */
+    public static HorizontalGrid createHorizontalGrid(GridCoordSystem coordSys,
+            CurvilinearIndex index)
     {
         CoordinateAxis xAxis = coordSys.getXHorizAxis();
         CoordinateAxis yAxis = coordSys.getYHorizAxis();
@@ -273,13 +319,14 @@ public final class CdmUtils
         }
         else if (xAxis instanceof CoordinateAxis2D && yAxis instanceof CoordinateAxis2D)
         {
-            // The axis must be 2D so we have to create look-up tables
+            // The axis must be 2D so we have to create an index of the
+            // grid points
             if (!isLatLon)
             {
                 throw new UnsupportedOperationException("Can't create a HorizontalGrid" +
                     " from 2D coordinate axes that are not longitude and latitude.");
             }
-            return LookUpTableGrid.generate(coordSys);
+            return index.createGrid(coordSys);
         }
         else
         {
@@ -502,6 +549,26 @@ public final class CdmUtils
             HorizontalGrid sourceGrid, int tIndex, List<Integer> zIndices,
             Domain<HorizontalPosition> targetDomain)
             throws IOException
+    {
+        return readVerticalSection(nc, varId, sourceGrid, tIndex, zIndices, targetDomain, -1);
+    }
+
+    /**
+     * Reads a set of points at a given time from the given version of the
+     * data at a number of elevations, as
+     * {@link #readVerticalSection(ucar.nc2.dataset.NetcdfDataset, java.lang.String, uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid, int, java.util.List, uk.ac.rdg.resc.edal.coverage.domain.Domain)}.
+     * 
+     * @param dataVersion
+     *            A number that identifies the version of the data (e.g. the
+     *            time at which the data were loaded), or a negative number if
+     *            this is not known.  Regions of missing values are only
+     *            remembered between reads (see {@link OccupancyMap}) if this
+     *            is known.
+     */
+    public static List<List<Float>> readVerticalSection(NetcdfDataset nc, String varId,
+            HorizontalGrid sourceGrid, int tIndex, List<Integer> zIndices,
+            Domain<HorizontalPosition> targetDomain, long dataVersion)
+            throws IOException
     {
         // TODO: will end up calling this method twice
         GridDatatype grid = getGridDatatype(nc, varId);
@@ -509,13 +576,23 @@ public final class CdmUtils
         PixelMap pixelMap = new PixelMap(sourceGrid, targetDomain);
         DataReadingStrategy strategy = getOptimumDataReadingStrategy(pixelMap, nc);
         
-        return readVerticalSection(nc, grid, tIndex, zIndices, pixelMap, strategy, (int)targetDomain.size());
+        return readVerticalSection(nc, grid, tIndex, zIndices, pixelMap, strategy,
+            (int)targetDomain.size(), dataVersion);
     }
     
     public static List<List<Float>> readVerticalSection(NetcdfDataset nc, GridDatatype grid,
             int tIndex, List<Integer> zIndices, PixelMap pixelMap, DataReadingStrategy strategy,
             int targetDomainSize)
             throws IOException
+    {
+        return readVerticalSection(nc, grid, tIndex, zIndices, pixelMap, strategy,
+            targetDomainSize, -1);
+    }
+
+    private static List<List<Float>> readVerticalSection(NetcdfDataset nc, GridDatatype grid,
+            int tIndex, List<Integer> zIndices, PixelMap pixelMap, DataReadingStrategy strategy,
+            int targetDomainSize, long dataVersion)
+            throws IOException
     {
         // Defend against null values
         if (zIndices == null) zIndices = Arrays.asList(-1);
@@ -523,7 +600,8 @@ public final class CdmUtils
         for (int zIndex : zIndices) {
             // It's very unlikely that the target domain will be bigger than
             // Integer.MAX_VALUE
-            data.add(readHorizontalPoints(nc, grid, tIndex, zIndex, pixelMap, strategy, targetDomainSize));
+            data.add(readHorizontalPoints(nc, grid, tIndex, zIndex, pixelMap, strategy,
+                targetDomainSize, dataVersion));
         }
         return data;
     }
@@ -563,9 +641,29 @@ public final class CdmUtils
             HorizontalGrid sourceGrid, int tIndex, int zIndex,
             Domain<HorizontalPosition> targetDomain)
             throws IOException
+    {
+        return readHorizontalPoints(nc, varId, sourceGrid, tIndex, zIndex, targetDomain, -1);
+    }
+
+    /**
+     * Reads a set of points at a given time and elevation from the given
+     * version of the data, as
+     * {@link #readHorizontalPoints(ucar.nc2.dataset.NetcdfDataset, java.lang.String, uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid, int, int, uk.ac.rdg.resc.edal.coverage.domain.Domain)}.
+     * 
+     * @param dataVersion
+     *            A number that identifies the version of the data (e.g. the
+     *            time at which the data were loaded), or a negative number if
+     *            this is not known.  Regions of missing values are only
+     *            remembered between reads (see {@link OccupancyMap}) if this
+     *            is known.
+     */
+    public static List<Float> readHorizontalPoints(NetcdfDataset nc, String varId,
+            HorizontalGrid sourceGrid, int tIndex, int zIndex,
+            Domain<HorizontalPosition> targetDomain, long dataVersion)
+            throws IOException
     {
         GridDatatype grid = getGridDatatype(nc, varId);
-        return readHorizontalPoints(nc, grid, sourceGrid, tIndex, zIndex, targetDomain);
+        return readHorizontalPoints(nc, grid, sourceGrid, tIndex, zIndex, targetDomain, dataVersion);
     }
 
     /**
@@ -602,6 +700,14 @@ public final class CdmUtils
             HorizontalGrid sourceGrid, int tIndex, int zIndex,
             Domain<HorizontalPosition> targetDomain)
             throws IOException
+    {
+        return readHorizontalPoints(nc, grid, sourceGrid, tIndex, zIndex, targetDomain, -1);
+    }
+
+    private static List<Float> readHorizontalPoints(NetcdfDataset nc, GridDatatype grid,
+            HorizontalGrid sourceGrid, int tIndex, int zIndex,
+            Domain<HorizontalPosition> targetDomain, long dataVersion)
+            throws IOException
     {
         // Create the mapping between the requested points in the target domain
         // and the nearest cells in the source grid
@@ -619,7 +725,9 @@ public final class CdmUtils
             return nullList((int)targetDomain.size());
         }
 
-        return readHorizontalPoints(nc, grid, tIndex, zIndex, pixelMap, (int)targetDomain.size());
+        DataReadingStrategy strategy = getOptimumDataReadingStrategy(pixelMap, nc);
+        return readHorizontalPoints(nc, grid, tIndex, zIndex, pixelMap, strategy,
+            (int)targetDomain.size(), dataVersion);
     }
 
     static List<Float> readHorizontalPoints(NetcdfDataset nc, GridDatatype grid,
@@ -636,13 +744,35 @@ public final class CdmUtils
             int targetDomainSize)
             throws IOException
     {
+        return readHorizontalPoints(nc, grid, tIndex, zIndex, pixelMap, strategy,
+            targetDomainSize, -1);
+    }
+
+    private static List<Float> readHorizontalPoints(NetcdfDataset nc, GridDatatype grid,
+            int tIndex, int zIndex, PixelMap pixelMap, DataReadingStrategy strategy,
+            int targetDomainSize, long dataVersion)
+            throws IOException
+    {
+        // Don't read the parts of the source data that we know contain only
+        // missing values
+        OccupancyMap occupancy = OccupancyMap.forSlice(nc, grid, tIndex, zIndex, dataVersion);
+        if (occupancy != null)
+        {
+            pixelMap = pixelMap.excludingEmptyRegions(occupancy.getSnapshot());
+            if (pixelMap.isEmpty())
+            {
+                logger.debug("All requested points are in regions of missing values");
+                return nullList(targetDomainSize);
+            }
+        }
+
         // Create an array of the right size to hold the data
         float[] data = new float[targetDomainSize];
         Arrays.fill(data, Float.NaN); // Will be represented as nulls in the returned List
 
         logger.debug("Reading data using strategy {}", strategy);
         long start = System.nanoTime();
-        int bytesRead = strategy.readData(tIndex, zIndex, grid, pixelMap, data);
+        int bytesRead = strategy.readData(tIndex, zIndex, grid, pixelMap, data, occupancy);
         long finish = System.nanoTime();
         logger.debug("{} bytes read in {} ms", bytesRead, (finish - start) / 1.e6);
 
@@ -673,19 +803,9 @@ public final class CdmUtils
      * Wraps a float array as an immutable List. NaNs in the passed array will
      * be returned as null values.
      */
-    private static List<Float> wrap(final float[] arr)
+    public static List<Float> wrap(float[] arr)
     {
-        return new AbstractList<Float>()
-        {
-            @Override
-            public Float get(int index) {
-                float val = arr[index];
-                return Float.isNaN(val) ? null : val;
-            }
-
-            @Override
-            public int size() { return arr.length; }
-        };
+        return new FloatArrayList(arr);
     }
 
     public static GridDatatype getGridDatatype(NetcdfDataset nc, String varId)
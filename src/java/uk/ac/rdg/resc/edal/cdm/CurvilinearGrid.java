@@ -32,6 +32,9 @@ import uk.ac.rdg.resc.edal.geometry.impl.LonLatPositionImpl;
 import uk.ac.rdg.resc.edal.geometry.LonLatPosition;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -96,6 +99,12 @@ public final class CurvilinearGrid
 
     private static final Set<Enhance> SCALE_MISSING = EnumSet.of(Enhance.ScaleMissing);
 
+    /**
+     * The maximum number of steps that {@link #findNearbyCell(int, int, double, double)}
+     * will take across the grid
+     */
+    private static final int MAX_WALK_STEPS = 32;
+
     /**
      * Creates a CurvilinearGrid from a GridCoordSystem.
      * @param coordSys The GridCoordSystem from which this CurvilinearGrid will
@@ -203,6 +212,24 @@ public final class CurvilinearGrid
         );
     }
 
+    /**
+     * Gets the longitude of the midpoint of the cell at indices i, j, without
+     * creating any objects.  This will be in the range [-180,180], or NaN.
+     */
+    public double getMidpointLongitude(int i, int j)
+    {
+        return this.longitudes[this.getIndex(i, j)];
+    }
+
+    /**
+     * Gets the latitude of the midpoint of the cell at indices i, j, without
+     * creating any objects.  This may be NaN.
+     */
+    public double getMidpointLatitude(int i, int j)
+    {
+        return this.latitudes[this.getIndex(i, j)];
+    }
+
     private int getIndex(int i, int j)
     {
         return j * this.ni + i;
@@ -223,6 +250,143 @@ public final class CurvilinearGrid
         return corners;
     }
 
+    /**
+     * Gets the coordinates of the four corners of the cell at indices i, j,
+     * as given by {@link Cell#getCorners()}, without creating any objects.
+     * This is used when working through all the cells of large grids.
+     * @param corners Array of eight values, which will be filled with the
+     * longitude and latitude of each corner in turn
+     */
+    void getCellCorners(int i, int j, double[] corners)
+    {
+        double centreLon = this.longitudes[this.getIndex(i, j)];
+        for (int c = 0; c < 4; c++)
+        {
+            int cornerI = c == 1 || c == 2 ? i + 1 : i;
+            int cornerJ = c >= 2 ? j + 1 : j;
+            double lon = Utils.constrainLongitude180(this.cornerLons.get(cornerJ, cornerI));
+            corners[2 * c] = harmonizeLongitudes(centreLon, lon);
+            corners[2 * c + 1] = this.cornerLats.get(cornerJ, cornerI);
+        }
+    }
+
+    /**
+     * Walks across the grid from the cell at indices i, j towards the given
+     * point, at each step moving to the neighbouring cell whose centre is
+     * closest to the point, until no neighbour is closer.  This creates no
+     * objects, so is efficient for finding the cells near a sequence of
+     * nearby points, starting each walk from the result of the previous one.
+     * @param lon The longitude of the point, in the range [-180,180]
+     * @param lat The latitude of the point
+     * @return the index ({@code j * ni + i}) of the cell at which the walk
+     * stopped.  This is usually, but not always, the cell whose centre is
+     * closest to the point.
+     */
+    int findNearbyCell(int i, int j, double lon, double lat)
+    {
+        for (int step = 0; step < MAX_WALK_STEPS; step++)
+        {
+            double shortestDistanceSq = this.findDistanceSq(i, j, lon, lat);
+            int nextI = i;
+            int nextJ = j;
+            for (int jj = Math.max(0, j - 1); jj <= Math.min(this.nj - 1, j + 1); jj++)
+            {
+                for (int ii = Math.max(0, i - 1); ii <= Math.min(this.ni - 1, i + 1); ii++)
+                {
+                    double distanceSq = this.findDistanceSq(ii, jj, lon, lat);
+                    if (distanceSq < shortestDistanceSq)
+                    {
+                        shortestDistanceSq = distanceSq;
+                        nextI = ii;
+                        nextJ = jj;
+                    }
+                }
+            }
+            if (nextI == i && nextJ == j) break;
+            i = nextI;
+            j = nextJ;
+        }
+        return this.getIndex(i, j);
+    }
+
+    /**
+     * Finds the cell that contains the given point, out of the cell with the
+     * given index and its neighbours, without creating any objects.
+     * @param cellIndex The index ({@code j * ni + i}) of a cell near the point,
+     * as returned by {@link #findNearbyCell(int, int, double, double)}
+     * @param lon The longitude of the point, in the range [-180,180]
+     * @param lat The latitude of the point
+     * @param corners Array of eight values, used as workspace
+     * @return the index of the cell that contains the point, or -1 if neither
+     * the cell nor its neighbours contain the point
+     */
+    int findContainingCell(int cellIndex, double lon, double lat, double[] corners)
+    {
+        int i = cellIndex % this.ni;
+        int j = cellIndex / this.ni;
+        if (this.cellContains(i, j, lon, lat, corners)) return cellIndex;
+        for (int jj = Math.max(0, j - 1); jj <= Math.min(this.nj - 1, j + 1); jj++)
+        {
+            for (int ii = Math.max(0, i - 1); ii <= Math.min(this.ni - 1, i + 1); ii++)
+            {
+                if ((ii != i || jj != j) && this.cellContains(ii, jj, lon, lat, corners))
+                {
+                    return this.getIndex(ii, jj);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the cell at indices i, j contains the given point,
+     * as {@link Cell#contains(uk.ac.rdg.resc.edal.geometry.LonLatPosition)},
+     * without creating any objects.
+     * @param lon The longitude of the point, in the range [-180,180]
+     * @param corners Array of eight values, used as workspace
+     */
+    private boolean cellContains(int i, int j, double lon, double lat, double[] corners)
+    {
+        double centreLon = this.longitudes[this.getIndex(i, j)];
+        if (lon - centreLon > 180.0) lon -= 360.0;
+        else if (centreLon - lon > 180.0) lon += 360.0;
+        this.getCellCorners(i, j, corners);
+        // Calculate the winding number of the cell boundary around the point
+        int winding = 0;
+        for (int c = 0; c < 4; c++)
+        {
+            double x1 = corners[2 * c];
+            double y1 = corners[2 * c + 1];
+            double x2 = corners[(2 * c + 2) % 8];
+            double y2 = corners[(2 * c + 3) % 8];
+            double side = (x2 - x1) * (lat - y1) - (lon - x1) * (y2 - y1);
+            if (y1 <= lat)
+            {
+                if (y2 > lat && side > 0.0) winding++;
+            }
+            else if (y2 <= lat && side < 0.0)
+            {
+                winding--;
+            }
+        }
+        return winding != 0;
+    }
+
+    /**
+     * Finds the square of the distance between the centre of the cell at
+     * indices i, j and the given point, taking the shortest way around the
+     * globe in longitude.  Returns NaN if the centre of the cell is not defined.
+     */
+    private double findDistanceSq(int i, int j, double lon, double lat)
+    {
+        int index = this.getIndex(i, j);
+        double dx = lon - this.longitudes[index];
+        if (dx > 180.0) dx -= 360.0;
+        else if (dx < -180.0) dx += 360.0;
+        double dy = lat - this.latitudes[index];
+        return dx * dx + dy * dy;
+    }
+
     /**
      * Gets the coordinates of the corner with the given indices <i>in the arrays
      * of corner coordinates</i> (not in the arrays of midpoints).
@@ -340,6 +504,38 @@ public final class CurvilinearGrid
         return this.latLonBbox;
     }
 
+    /**
+     * Returns a string that identifies the coordinates of this grid: two
+     * grids with the same fingerprint are equal (barring hash collisions).
+     * This is used to name files that hold information about the grid.
+     */
+    String getFingerprint()
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buf = ByteBuffer.allocate(4 * (2 + this.longitudes.length));
+            buf.putInt(this.ni).putInt(this.nj);
+            buf.asFloatBuffer().put(this.longitudes);
+            digest.update(buf.array());
+            buf.clear();
+            buf.putInt(this.ni).putInt(this.nj);
+            buf.asFloatBuffer().put(this.latitudes);
+            digest.update(buf.array());
+            StringBuilder fingerprint = new StringBuilder();
+            for (byte b : digest.digest())
+            {
+                fingerprint.append(String.format("%02x", b));
+            }
+            return fingerprint.toString();
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform must support SHA-1
+            throw new AssertionError(nsae);
+        }
+    }
+
     // TODO: could precompute this
     @Override public int hashCode()
     {
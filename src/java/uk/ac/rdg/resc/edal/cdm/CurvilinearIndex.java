@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ucar.nc2.dt.GridCoordSystem;
+
+/**
+ * <p>Specifies how the nearest grid points are found in curvilinear grids
+ * ({@literal i.e.} grids with two-dimensional latitude and longitude axes).
+ * Several types of index are available, each with different trade-offs
+ * between the time taken to build the index, the memory it occupies and the
+ * speed and accuracy of lookups:</p>
+ * <ul>
+ * <li>{@link Type#LUT}: a {@link LookUpTable look-up table} of the nearest
+ * grid point to each of a regular set of lon-lat points.  Lookups are very
+ * fast but the table can become very large for grids that cover a large area
+ * at high resolution.</li>
+ * <li>{@link Type#KDTREE}: a kd-tree of the centres of the grid cells, which
+ * occupies memory in proportion to the number of grid cells.</li>
+ * <li>{@link Type#RTREE} and {@link Type#PRTREE}: R-trees of the bounding
+ * rectangles of the grid cells.</li>
+ * <li>{@link Type#AUTO}: uses a look-up table if it will fit in the
+ * {@link #setMemoryBudget(long) memory budget}, otherwise a kd-tree.</li>
+ * </ul>
+ * <p>Instances of this class are immutable.</p>
+ *
+ * @author Jon Blower
+ */
+public final class CurvilinearIndex
+{
+    private static final Logger logger = LoggerFactory.getLogger(CurvilinearIndex.class);
+
+    /** The types of index that can be used with curvilinear grids */
+    public enum Type { LUT, KDTREE, RTREE, PRTREE, AUTO }
+
+    /**
+     * The default number of look-up table points per grid cell spacing:
+     * the resolution of the look-up table is this many times finer than that
+     * of the grid.
+     */
+    public static final double DEFAULT_LUT_RESOLUTION_MULTIPLIER = 3.0;
+
+    /**
+     * The default factor by which the search radius of the kd-tree is
+     * expanded when no grid points are found.
+     */
+    public static final double DEFAULT_KDTREE_EXPANSION_FACTOR = 3.5;
+
+    /** Uses look-up tables with the default resolution */
+    public static final CurvilinearIndex DEFAULT = new CurvilinearIndex(Type.LUT,
+        DEFAULT_LUT_RESOLUTION_MULTIPLIER, DEFAULT_KDTREE_EXPANSION_FACTOR);
+
+    /**
+     * The largest index along either axis that can be held in a look-up
+     * table (which stores indices as unsigned 16-bit integers, reserving one
+     * value for missing data)
+     */
+    private static final int MAX_LUT_INDEX = 65534;
+
+    /**
+     * The maximum size of a look-up table that will be generated in
+     * {@link Type#AUTO AUTO} mode, or a negative number to use a quarter of
+     * the maximum heap size.
+     */
+    private static volatile long memoryBudget = -1;
+
+    private final Type type;
+    private final double lutResolutionMultiplier;
+    private final double kdTreeExpansionFactor;
+
+    /**
+     * Creates a new CurvilinearIndex
+     * @param type The type of index to use
+     * @param lutResolutionMultiplier The resolution of look-up tables relative
+     * to the resolution of the grid: higher values give more accurate lookups
+     * but bigger tables.
+     * @param kdTreeExpansionFactor The factor by which the search radius of
+     * kd-trees is expanded when no grid points are found: must be greater
+     * than one.
+     * @throws IllegalArgumentException if either parameter is out of range
+     */
+    public CurvilinearIndex(Type type, double lutResolutionMultiplier,
+            double kdTreeExpansionFactor)
+    {
+        if (type == null) throw new NullPointerException("type");
+        if (!(lutResolutionMultiplier > 0.0))
+        {
+            throw new IllegalArgumentException("LUT resolution multiplier must be positive");
+        }
+        if (!(kdTreeExpansionFactor > 1.0))
+        {
+            throw new IllegalArgumentException("kd-tree expansion factor must be greater than 1");
+        }
+        this.type = type;
+        this.lutResolutionMultiplier = lutResolutionMultiplier;
+        this.kdTreeExpansionFactor = kdTreeExpansionFactor;
+    }
+
+    public Type getType()
+    {
+        return this.type;
+    }
+
+    public double getLutResolutionMultiplier()
+    {
+        return this.lutResolutionMultiplier;
+    }
+
+    public double getKdTreeExpansionFactor()
+    {
+        return this.kdTreeExpansionFactor;
+    }
+
+    /**
+     * Sets the maximum size in bytes of a look-up table that will be generated
+     * in {@link Type#AUTO AUTO} mode, or a negative number to use a quarter
+     * of the maximum heap size (the default).
+     */
+    public static void setMemoryBudget(long bytes)
+    {
+        memoryBudget = bytes;
+    }
+
+    private static long getMemoryBudget()
+    {
+        long budget = memoryBudget;
+        return budget < 0 ? Runtime.getRuntime().maxMemory() / 4 : budget;
+    }
+
+    /**
+     * Creates a grid that uses this index to find the nearest points in the
+     * given curvilinear coordinate system, which must have 2D longitude and
+     * latitude axes.
+     */
+    AbstractCurvilinearGrid createGrid(GridCoordSystem coordSys)
+    {
+        CurvilinearGrid curvGrid = new CurvilinearGrid(coordSys);
+        switch (this.chooseType(curvGrid))
+        {
+            case KDTREE:
+                return KdTreeGrid.generate(curvGrid, this.kdTreeExpansionFactor);
+            case RTREE:
+                return RTreeGrid.generate(coordSys);
+            case PRTREE:
+                return PRTreeGrid.generate(coordSys, PRTreeGrid.RTREE_BRANCH_FACTOR);
+            default:
+                return LookUpTableGrid.generate(curvGrid, this.lutResolutionMultiplier);
+        }
+    }
+
+    /**
+     * Returns the type of index to use for the given grid, choosing between
+     * a look-up table and a kd-tree if the type is {@link Type#AUTO AUTO}.
+     */
+    Type chooseType(CurvilinearGrid curvGrid)
+    {
+        if (this.type != Type.AUTO) return this.type;
+        if (curvGrid.getNi() > MAX_LUT_INDEX || curvGrid.getNj() > MAX_LUT_INDEX)
+        {
+            logger.debug("Grid is too large for a look-up table: using a kd-tree");
+            return Type.KDTREE;
+        }
+        long lutSize = LookUpTable.getSizeBytes(curvGrid,
+            LookUpTableGrid.getMinResolution(curvGrid, this.lutResolutionMultiplier));
+        long budget = getMemoryBudget();
+        if (lutSize > budget)
+        {
+            logger.debug("Look-up table would occupy {} bytes, more than the budget of {}: using a kd-tree",
+                lutSize, budget);
+            return Type.KDTREE;
+        }
+        return Type.LUT;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (LUT resolution multiplier %s, kd-tree expansion factor %s)",
+            this.type, this.lutResolutionMultiplier, this.kdTreeExpansionFactor);
+    }
+}
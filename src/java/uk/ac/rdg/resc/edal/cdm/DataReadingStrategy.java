@@ -115,8 +115,8 @@ public enum DataReadingStrategy
         
         @Override
         protected int populatePixelArray(float[] data,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
-            throws IOException
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            OccupancyMap occupancy) throws IOException
         {
             Iterator<PixelMapEntry> it = pixelMap.iterator();
             if (!it.hasNext()) return 0;
@@ -136,20 +136,20 @@ public enum DataReadingStrategy
                 {
                     // We have a new scanline.
                     // We read the data for the existing scanline first
-                    dataPointsRead += this.readScanline(data, var, ranges, scanline);
+                    dataPointsRead += this.readScanline(data, var, ranges, scanline, occupancy);
                     // Now we create a new scanline
                     scanline = new Scanline(pme);
                 }
             }
             
             // We must read the last scanline
-            dataPointsRead += this.readScanline(data, var, ranges, scanline);
+            dataPointsRead += this.readScanline(data, var, ranges, scanline, occupancy);
 
             return dataPointsRead;
         }
         
-        private int readScanline(float[] data, VariableDS var, RangesList ranges, Scanline scanline)
-                throws IOException
+        private int readScanline(float[] data, VariableDS var, RangesList ranges,
+                Scanline scanline, OccupancyMap occupancy) throws IOException
         {
             ranges.setYRange(scanline.jIndex, scanline.jIndex);
             int imin = scanline.pixelMapEntries.get(0).getSourceGridIIndex();
@@ -180,6 +180,11 @@ public enum DataReadingStrategy
                     }
                 }
             }
+
+            if (occupancy != null)
+            {
+                occupancy.learn(dataChunk, ranges, imin, imax, scanline.jIndex, scanline.jIndex);
+            }
             
             // Return the number of data points read
             return imax - imin + 1;
@@ -194,8 +199,8 @@ public enum DataReadingStrategy
     BOUNDING_BOX {
         @Override
         protected int populatePixelArray(float[] data,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
-            throws IOException
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            OccupancyMap occupancy) throws IOException
         {
             // Read the whole chunk of x-y data
             int imin = pixelMap.getMinIIndex();
@@ -227,6 +232,11 @@ public enum DataReadingStrategy
                 }
             }
 
+            if (occupancy != null)
+            {
+                occupancy.learn(dataChunk, ranges, imin, imax, jmin, jmax);
+            }
+
             // Return the number of data points read
             return (imax - imin + 1) * (jmax - jmin + 1);
         }
@@ -239,8 +249,8 @@ public enum DataReadingStrategy
     PIXEL_BY_PIXEL {
         @Override
         protected int populatePixelArray(float[] data,
-            PixelMap pixelMap, VariableDS var, RangesList ranges)
-            throws IOException
+            PixelMap pixelMap, VariableDS var, RangesList ranges,
+            OccupancyMap occupancy) throws IOException
         {
             int numDataPointsRead = 0;
             for (PixelMapEntry pme : pixelMap)
@@ -273,6 +283,18 @@ public enum DataReadingStrategy
      */
     public final int readData(int tIndex, int zIndex, GridDatatype grid, PixelMap pixelMap,
             float[] data) throws IOException
+    {
+        return this.readData(tIndex, zIndex, grid, pixelMap, data, null);
+    }
+
+    /**
+     * Reads data from the given GridDatatype, populating the passed-in array
+     * of floats, and records the regions of the source data that contain only
+     * missing values in the given {@link OccupancyMap} (which may be null).
+     * Returns the number of bytes actually read from the source data files.
+     */
+    final int readData(int tIndex, int zIndex, GridDatatype grid, PixelMap pixelMap,
+            float[] data, OccupancyMap occupancy) throws IOException
     {
         // Set the time and z ranges
         RangesList rangesList = new RangesList(grid);
@@ -281,7 +303,7 @@ public enum DataReadingStrategy
         
         // Now read the actual data from the source GridDatatype
         VariableDS var = grid.getVariable();
-        int dataPointsRead = this.populatePixelArray(data, pixelMap, var, rangesList);
+        int dataPointsRead = this.populatePixelArray(data, pixelMap, var, rangesList, occupancy);
 
         // Calculate the number of bytes that we read from the source data
         int bytesPerDataPoint = var.getDataType().getSize();
@@ -289,9 +311,11 @@ public enum DataReadingStrategy
     }
 
     /**
-     * Reads data from the given variable, populating the given data array
+     * Reads data from the given variable, populating the given data array.
+     * Strategies that read whole regions of the source data record the
+     * occupancy of these regions in the given OccupancyMap, if it is not null.
      * @return The number of data points actually read from the source data
      */
-    abstract int populatePixelArray(float[] data, PixelMap pixelMap, VariableDS var, RangesList ranges)
-        throws IOException;
+    abstract int populatePixelArray(float[] data, PixelMap pixelMap, VariableDS var,
+        RangesList ranges, OccupancyMap occupancy) throws IOException;
 }
@@ -52,7 +52,6 @@ import ucar.nc2.dt.GridCoordSystem;
 import ucar.nc2.dt.GridDatatype;
 import uk.ac.rdg.resc.edal.cdm.CurvilinearGrid.Cell;
 import uk.ac.rdg.resc.edal.cdm.kdtree.KDTree;
-import uk.ac.rdg.resc.edal.cdm.kdtree.Point;
 import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.GridCoordinatesImpl;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
@@ -82,6 +81,7 @@ final class KdTreeGrid extends AbstractCurvilinearGrid
             CollectionUtils.newHashMap();
 
     private final KDTree kdTree;
+    private double expansionFactor;
     private double max_distance;
     
     // Minimisation iterations: 0 = no searching, 1=search neighbours only, >1 = minimisation
@@ -92,8 +92,16 @@ final class KdTreeGrid extends AbstractCurvilinearGrid
      */
     public static KdTreeGrid generate(GridCoordSystem coordSys)
     {
-        CurvilinearGrid curvGrid = new CurvilinearGrid(coordSys);
+        return generate(new CurvilinearGrid(coordSys),
+            CurvilinearIndex.DEFAULT_KDTREE_EXPANSION_FACTOR);
+    }
 
+    /**
+     * Returns a KdTreeGrid for the given grid, whose search radius is
+     * multiplied by the given factor until grid points are found.
+     */
+    static KdTreeGrid generate(CurvilinearGrid curvGrid, double expansionFactor)
+    {
         synchronized(CACHE)
         {
             KdTreeGrid kdTreeGrid = CACHE.get(curvGrid);
@@ -107,10 +115,17 @@ final class KdTreeGrid extends AbstractCurvilinearGrid
                 long finish = System.nanoTime();
                 logger.debug("Generated new kdtree in {} seconds", (finish - start) / 1.e9);
                 // Create the Grid
-                kdTreeGrid = new KdTreeGrid(curvGrid, kdTree);
+                kdTreeGrid = new KdTreeGrid(curvGrid, kdTree, expansionFactor);
                 // Now put this in the cache
                 CACHE.put(curvGrid, kdTreeGrid);
             }
+            else if (kdTreeGrid.expansionFactor != expansionFactor)
+            {
+                // The tree can be shared between grids with different
+                // querying parameters
+                logger.debug("kdtree found in cache");
+                kdTreeGrid = new KdTreeGrid(curvGrid, kdTreeGrid.kdTree, expansionFactor);
+            }
             else
             {
                 logger.debug("kdree found in cache");
@@ -126,16 +141,18 @@ final class KdTreeGrid extends AbstractCurvilinearGrid
     }
 
     /** Private constructor to prevent direct instantiation */
-    private KdTreeGrid(CurvilinearGrid curvGrid, KDTree kdTree)
+    private KdTreeGrid(CurvilinearGrid curvGrid, KDTree kdTree, double expansionFactor)
     {
         // All points will be returned in WGS84 lon-lat
         super(curvGrid);
         this.kdTree = kdTree;
+        this.expansionFactor = expansionFactor;
         this.max_distance = Math.sqrt(curvGrid.getMeanCellArea());
     }
 
     void setQueryingParameters(double nominalMinimumResolution, double expansionFactor, double maxDistance, int minimisationIterations) {
         this.kdTree.setQueryParameters(expansionFactor, nominalMinimumResolution);
+        this.expansionFactor = expansionFactor;
         this.max_distance = maxDistance;
         this.max_minimisation_iterations = minimisationIterations;
     }
@@ -151,26 +168,14 @@ final class KdTreeGrid extends AbstractCurvilinearGrid
         double lon = lonLatPos.getLongitude();
         double lat = lonLatPos.getLatitude();
 
-        // Find a set of candidate nearest-neighbours from the kd-tree
-        List<Point> nns = this.kdTree.approxNearestNeighbour(lat, lon, this.max_distance);
+        // Find the approximate nearest neighbour from the kd-tree
+        int index = this.kdTree.approxNearestNeighbour(lat, lon, this.max_distance, this.expansionFactor);
+        if (index < 0) return null;
 
-        // Now find the real nearest neighbour
-        double shortestDistanceSq = Double.MAX_VALUE;
-        CurvilinearGrid.Cell closestCell = null;
         int number_points_horizontal = this.curvGrid.getNi();
-        for (Point nn : nns) {
-            int this_point_index = nn.getIndex();
-            int i = this_point_index % number_points_horizontal;
-            int j = this_point_index / number_points_horizontal;
-            CurvilinearGrid.Cell cell = this.curvGrid.getCell(i, j);
-            double distanceSq = cell.findDistanceSq(lonLatPos);
-            if (distanceSq < shortestDistanceSq) {
-                shortestDistanceSq = distanceSq;
-                closestCell = cell;
-            }
-        }
-
-        if (closestCell == null) return null;
+        CurvilinearGrid.Cell closestCell = this.curvGrid.getCell(
+                index % number_points_horizontal, index / number_points_horizontal);
+        double shortestDistanceSq = closestCell.findDistanceSq(lonLatPos);
 
         if (closestCell.contains(lonLatPos)) {
             return new GridCoordinatesImpl(closestCell.getI(), closestCell.getJ());
@@ -28,24 +28,35 @@
 
 package uk.ac.rdg.resc.edal.cdm;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.DirectColorModel;
-import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.ac.rdg.resc.edal.cdm.CurvilinearGrid.Cell;
 
 /**
  * An object that provides an approximate means for mapping from longitude-latitude
  * coordinates to i and j index coordinates in a curvilinear grid.
+ * <p>Look-up tables are expensive to generate, so they can be saved to a file
+ * and read back later.  Look-up tables that are read from a file are
+ * memory-mapped, so their contents are not held on the Java heap.</p>
  * @todo Some duplication of {@link HorizontalGrid}?  There's a difference in
  * how the "tick marks" along the axes are set up: see how the Regular1DCoordAxes
  * are created.
@@ -59,9 +70,9 @@ final class LookUpTable
     // lon-lat point in the LUT.  These are flattened from a 2D to a 1D array.
     // We store these as shorts to save disk space.  The LUT would need to be
     // extremely large before we would have to worry about overflows.
-    // Each array has the size nLon * nLat
-    private DataBuffer iIndices;
-    private DataBuffer jIndices;
+    // Each buffer has the size nLon * nLat
+    private ShortBuffer iIndices;
+    private ShortBuffer jIndices;
 
     private final int nLon;
     private final int nLat;
@@ -69,30 +80,46 @@ final class LookUpTable
     // Converts from lat-lon coordinates to index space in the LUT.
     private final AffineTransform transform = new AffineTransform();
 
-    /**
-     * A {@link DirectColorModel} that holds data as unsigned shorts, ignoring
-     * the red and alpha components.  (int value = green &lt;&lt; 8 | blue)
-     */
-    private static final ColorModel COLOR_MODEL = new DirectColorModel(
-        16,           // Store the data as unsigned shorts
-        0x00000000,
-        0x0000ff00,
-        0x000000ff,
-        0x00000000
-    );
-
     /** This value in the look-up table means "missing value" */
     private static final int MISSING_VALUE = 65535;
 
     /** This is the maximum index that can be stored in the LUT */
     private static final int MAX_INDEX = 65534;
 
+    /** Identifies a file containing a look-up table */
+    private static final int FILE_MAGIC = 0x4c555400; // "LUT\0"
+
     /**
-     * Creates an empty look-up table (with all indices set to -1).
+     * The version of the file format, which must be incremented whenever the
+     * format or the way in which the LUTs are generated changes
+     */
+    private static final int FILE_VERSION = 2;
+
+    /** The size of the header of a file (magic, version, nLon, nLat) */
+    private static final int FILE_HEADER_SIZE = 16;
+
+    /**
+     * Creates a look-up table for the given grid.
      * @param curvGrid The CurvilinearGrid which this LUT will approximate
      * @param minResolution The minimum resolution of the LUT in degrees
      */
     public LookUpTable(CurvilinearGrid curvGrid, double minResolution)
+    {
+        this(curvGrid, minResolution, null);
+    }
+
+    /**
+     * Creates a look-up table for the given grid, reading its contents from
+     * the given file if possible.  If the file doesn't exist or doesn't
+     * contain a valid look-up table, the contents are generated and written
+     * to the file.
+     * @param curvGrid The CurvilinearGrid which this LUT will approximate
+     * @param minResolution The minimum resolution of the LUT in degrees
+     * @param lutFile The file that holds the contents of the LUT, or null if
+     * the LUT is not to be saved.  This must be unique to the coordinates of
+     * the grid.
+     */
+    public LookUpTable(CurvilinearGrid curvGrid, double minResolution, File lutFile)
     {
         GeographicBoundingBox bbox = curvGrid.getBoundingBox();
         
@@ -120,80 +147,370 @@ final class LookUpTable
         this.transform.translate(-bbox.getWestBoundLongitude(), -bbox.getSouthBoundLatitude());
 
         // Populate the look-up tables
+        if (lutFile != null && this.readLuts(lutFile))
+        {
+            logger.debug("Read look-up table from {}", lutFile);
+            return;
+        }
         this.makeLuts(curvGrid);
+        if (lutFile != null)
+        {
+            try
+            {
+                this.writeLuts(lutFile);
+                logger.debug("Wrote look-up table to {}", lutFile);
+            }
+            catch (IOException ioe)
+            {
+                // The LUT will just have to be generated again next time
+                logger.warn("Could not write look-up table to " + lutFile, ioe);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes that would be occupied by a look-up table
+     * for the given grid at the given resolution, without creating the table.
+     */
+    static long getSizeBytes(CurvilinearGrid curvGrid, double minResolution)
+    {
+        GeographicBoundingBox bbox = curvGrid.getBoundingBox();
+        double lonDiff = bbox.getEastBoundLongitude() - bbox.getWestBoundLongitude();
+        double latDiff = bbox.getNorthBoundLatitude() - bbox.getSouthBoundLatitude();
+        // Two 16-bit indices per point
+        return 4L * (long)Math.ceil(lonDiff / minResolution)
+                  * (long)Math.ceil(latDiff / minResolution);
     }
 
     /**
-     * Generates the data for the look-up tables
+     * Reads the contents of the look-up tables from the given file by mapping
+     * it into memory.
+     * @return true if the file was read successfully, false if it doesn't
+     * exist or isn't a valid look-up table for this grid.
      */
-    private void makeLuts(CurvilinearGrid curvGrid)
+    private boolean readLuts(File lutFile)
     {
-        // Create BufferedImages on which we will paint the i and j indices of
-        // cells
-        BufferedImage iIm = this.createBufferedImage();
-        BufferedImage jIm = this.createBufferedImage();
-
-        // Get graphics contexts onto which we'll paint
-        Graphics2D ig2d = iIm.createGraphics();
-        Graphics2D jg2d = jIm.createGraphics();
-
-        // Apply a transform so that we can paint in lat-lon coordinates
-        ig2d.setTransform(this.transform);
-        jg2d.setTransform(this.transform);
-
-        // Populate the BufferedImages using the information from the curvilinear grid
-        // Iterate over all the cells in the grid, painting the i and j indices of the
-        // cell onto the BufferedImage
-        for (Cell cell : curvGrid.getCells())
-        {
-            // Get a Path representing the boundary of the cell
-            Path2D path = cell.getBoundaryPath();
-            // Paint the path onto the BufferedImages as polygons
-            // Use the i and j indices of the cell as the colours
-            if (cell.getI() > MAX_INDEX || cell.getJ() > MAX_INDEX)
+        if (!lutFile.isFile()) return false;
+        int numPoints = this.nLon * this.nLat;
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(lutFile, "r");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() != FILE_HEADER_SIZE + 4L * numPoints)
             {
-                // Very unlikely to happen!
-                throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
+                logger.warn("Look-up table {} has the wrong size", lutFile);
+                return false;
             }
-            ig2d.setPaint(new Color(cell.getI()));
-            jg2d.setPaint(new Color(cell.getJ()));
-            ig2d.fill(path);
-            jg2d.fill(path);
-
-            // We paint a second copy of the cell, shifted by 360 degrees, to handle
-            // the anti-meridian
-            double shiftLon = cell.getCentre().getLongitude() > 0.0
-                ? -360.0
-                : 360.0;
-            path.transform(AffineTransform.getTranslateInstance(shiftLon, 0.0));
-            ig2d.fill(path);
-            jg2d.fill(path);
+            // The mapping remains valid after the file is closed
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != FILE_MAGIC || buf.getInt() != FILE_VERSION ||
+                buf.getInt() != this.nLon || buf.getInt() != this.nLat)
+            {
+                logger.warn("Look-up table {} is not valid for this grid", lutFile);
+                return false;
+            }
+            ShortBuffer indices = buf.asShortBuffer();
+            indices.limit(numPoints);
+            this.iIndices = indices.slice();
+            indices.limit(2 * numPoints).position(numPoints);
+            this.jIndices = indices.slice();
+            return true;
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Could not read look-up table from " + lutFile, ioe);
+            return false;
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                try { raf.close(); } catch (IOException ioe) { /* ignore */ }
+            }
+        }
+    }
+
+    /**
+     * Writes the contents of the look-up tables to the given file.  The file
+     * is written under a temporary name and then renamed, so that other
+     * processes never see an incomplete file.
+     */
+    private void writeLuts(File lutFile) throws IOException
+    {
+        File tempFile = new File(lutFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tempFile), 65536));
+        try
+        {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(this.nLon);
+            out.writeInt(this.nLat);
+            for (ShortBuffer indices : new ShortBuffer[]{this.iIndices, this.jIndices})
+            {
+                for (int i = 0; i < indices.limit(); i++)
+                {
+                    out.writeShort(indices.get(i));
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        // Renaming fails on some platforms if the target exists
+        lutFile.delete();
+        if (!tempFile.renameTo(lutFile))
+        {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + lutFile);
+        }
+    }
+
+    /**
+     * Generates the data for the look-up tables.  The i and j indices of
+     * each cell are painted into the LUT as a polygon, with a second copy
+     * shifted by 360 degrees to handle the anti-meridian.  The LUT is divided
+     * into bands of rows, which are painted in parallel: each band paints the
+     * cells that overlap it, in the same order as the cells of the grid, so
+     * the result does not depend on the number of bands.
+     */
+    private void makeLuts(final CurvilinearGrid curvGrid)
+    {
+        if (curvGrid.getNi() - 1 > MAX_INDEX || curvGrid.getNj() - 1 > MAX_INDEX)
+        {
+            // Very unlikely to happen!
+            throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
+        }
+        final int numPoints = this.nLon * this.nLat;
+        final short[] iData = new short[numPoints];
+        final short[] jData = new short[numPoints];
+        Arrays.fill(iData, (short)MISSING_VALUE);
+        Arrays.fill(jData, (short)MISSING_VALUE);
+
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try
+        {
+            // First find the rows of the LUT that are covered by each cell, so
+            // that each band only needs to look at the cells that overlap it
+            final int numCells = curvGrid.size();
+            final int[] firstRows = new int[numCells];
+            final int[] lastRows = new int[numCells];
+            int chunkSize = (numCells + numThreads - 1) / numThreads;
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (int start = 0; start < numCells; start += chunkSize)
+            {
+                final int first = start;
+                final int last = Math.min(numCells, start + chunkSize);
+                tasks.add(new Callable<Object>() {
+                    @Override public Object call() {
+                        CellPainter painter = new CellPainter(curvGrid);
+                        for (int c = first; c < last; c++)
+                        {
+                            painter.setCell(c);
+                            firstRows[c] = painter.firstRow;
+                            lastRows[c] = painter.lastRow;
+                        }
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, tasks);
+
+            // Now paint the bands
+            int numBands = Math.min(this.nLat, numThreads * 4);
+            int rowsPerBand = (this.nLat + numBands - 1) / numBands;
+            tasks.clear();
+            for (int startRow = 0; startRow < this.nLat; startRow += rowsPerBand)
+            {
+                final int bandStart = startRow;
+                final int bandEnd = Math.min(this.nLat, startRow + rowsPerBand);
+                tasks.add(new Callable<Object>() {
+                    @Override public Object call() {
+                        CellPainter painter = new CellPainter(curvGrid);
+                        for (int c = 0; c < numCells; c++)
+                        {
+                            if (firstRows[c] < bandEnd && lastRows[c] > bandStart)
+                            {
+                                painter.setCell(c);
+                                painter.paint(iData, jData, bandStart, bandEnd);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            invokeAll(executor, tasks);
+        }
+        finally
+        {
+            executor.shutdown();
         }
 
-        // We only need to store the data buffers, not the whole BufferedImages
-        this.iIndices = iIm.getRaster().getDataBuffer();
-        this.jIndices = jIm.getRaster().getDataBuffer();
+        this.iIndices = ShortBuffer.wrap(iData);
+        this.jIndices = ShortBuffer.wrap(jData);
+    }
+
+    /**
+     * Runs the given tasks and waits for them to complete
+     */
+    private static void invokeAll(ExecutorService executor, List<Callable<Object>> tasks)
+    {
+        try
+        {
+            for (Future<Object> future : executor.invokeAll(tasks))
+            {
+                future.get();
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating look-up table", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            if (ee.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)ee.getCause();
+            }
+            throw new IllegalStateException(ee.getCause());
+        }
     }
 
     /**
-     * Creates and returns a new {@link BufferedImage} that stores pixel data
-     * as unsigned shorts.  Initializes all pixel values to {@link #MISSING_VALUE}.
-     * @return
+     * Paints cells of the grid into the look-up tables.  A point of the LUT
+     * is painted if it lies within the cell (points on the left and lower
+     * edges are included, points on the right and upper edges are not).
+     * Java2D adjusts the coordinates of the shapes that it fills, so this is
+     * more precise than painting the cells onto an image.  Each thread uses
+     * its own CellPainter.
      */
-    private BufferedImage createBufferedImage()
+    private final class CellPainter
     {
-        WritableRaster raster = COLOR_MODEL.createCompatibleWritableRaster(this.nLon, this.nLat);
-        BufferedImage im = new BufferedImage(COLOR_MODEL, raster, true, null);
-        for (int y = 0; y < im.getHeight(); y++)
+        private final CurvilinearGrid curvGrid;
+        private final double[] corners = new double[8];
+        /** The x and y coordinates of the corners in LUT index space */
+        private final double[] xs = new double[4];
+        private final double[] ys = new double[4];
+        /** Intersections of the edges of the cell with a row of the LUT */
+        private final double[] crossings = new double[4];
+        private final int[] directions = new int[4];
+
+        private int i;
+        private int j;
+        /** The shift to apply to x coordinates for the second copy of the cell */
+        private double shiftX;
+        /** The first row covered by the cell, and the row after the last row */
+        private int firstRow;
+        private int lastRow;
+
+        private CellPainter(CurvilinearGrid curvGrid)
+        {
+            this.curvGrid = curvGrid;
+        }
+
+        /**
+         * Sets the cell with the given index (with i varying fastest) and
+         * finds the rows that it covers.  Cells with missing corners cover
+         * no rows.
+         */
+        private void setCell(int index)
+        {
+            this.i = index % this.curvGrid.getNi();
+            this.j = index / this.curvGrid.getNi();
+            this.curvGrid.getCellCorners(this.i, this.j, this.corners);
+            LookUpTable.this.transform.transform(this.corners, 0, this.corners, 0, 4);
+            double minY = Double.POSITIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int c = 0; c < 4; c++)
+            {
+                this.xs[c] = this.corners[2 * c];
+                this.ys[c] = this.corners[2 * c + 1];
+                if (Double.isNaN(this.xs[c]) || Double.isNaN(this.ys[c]))
+                {
+                    this.firstRow = this.lastRow = 0;
+                    return;
+                }
+                minY = Math.min(minY, this.ys[c]);
+                maxY = Math.max(maxY, this.ys[c]);
+            }
+            // Rows whose coordinates lie in [minY, maxY)
+            this.firstRow = (int)Math.max(0, Math.ceil(minY));
+            this.lastRow = (int)Math.min(LookUpTable.this.nLat, Math.ceil(maxY));
+            double shiftLon = this.curvGrid.getMidpointLongitude(this.i, this.j) > 0.0
+                ? -360.0
+                : 360.0;
+            this.shiftX = shiftLon * LookUpTable.this.transform.getScaleX();
+        }
+
+        /**
+         * Paints the current cell, and its shifted copy, into the given rows
+         * of the look-up tables
+         */
+        private void paint(short[] iData, short[] jData, int startRow, int endRow)
+        {
+            int nLon = LookUpTable.this.nLon;
+            for (int row = Math.max(startRow, this.firstRow); row < Math.min(endRow, this.lastRow); row++)
+            {
+                int numCrossings = this.findCrossings(row);
+                // Fill the spans that are inside the cell, using the non-zero
+                // winding rule
+                int winding = 0;
+                for (int k = 0; k < numCrossings; k++)
+                {
+                    if (winding != 0)
+                    {
+                        for (int copy = 0; copy < 2; copy++)
+                        {
+                            double shift = copy == 0 ? 0.0 : this.shiftX;
+                            int x1 = (int)Math.max(0, Math.ceil(this.crossings[k - 1] + shift));
+                            int x2 = (int)Math.min(nLon, Math.ceil(this.crossings[k] + shift));
+                            if (x1 < x2)
+                            {
+                                Arrays.fill(iData, row * nLon + x1, row * nLon + x2, (short)this.i);
+                                Arrays.fill(jData, row * nLon + x1, row * nLon + x2, (short)this.j);
+                            }
+                        }
+                    }
+                    winding += this.directions[k];
+                }
+            }
+        }
+
+        /**
+         * Finds the x coordinates at which the edges of the cell cross the
+         * line with the given y coordinate, in ascending order
+         * @return the number of crossings
+         */
+        private int findCrossings(double y)
         {
-            for (int x = 0; x < im.getWidth(); x++)
+            int n = 0;
+            for (int c = 0; c < 4; c++)
             {
-                im.setRGB(x, y, MISSING_VALUE);
+                double x1 = this.xs[c], y1 = this.ys[c];
+                double x2 = this.xs[(c + 1) % 4], y2 = this.ys[(c + 1) % 4];
+                int direction;
+                if (y1 <= y && y < y2) direction = 1;
+                else if (y2 <= y && y < y1) direction = -1;
+                else continue;
+                double x = x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+                // Insertion sort
+                int k = n;
+                while (k > 0 && this.crossings[k - 1] > x)
+                {
+                    this.crossings[k] = this.crossings[k - 1];
+                    this.directions[k] = this.directions[k - 1];
+                    k--;
+                }
+                this.crossings[k] = x;
+                this.directions[k] = direction;
+                n++;
             }
+            return n;
         }
-        logger.debug("Created BufferedImage of size {},{}, data buffer type {}",
-            new Object[]{im.getWidth(), im.getHeight(), im.getRaster().getDataBuffer().getClass()});
-        return im;
     }
 
     /**
@@ -223,8 +540,8 @@ final class LookUpTable
         // Find the index within the LUT
         int index = iLon + (iLat * this.nLon);
         // Extract the i and j indices of the nearest grid point
-        int iIndex = this.iIndices.getElem(index);
-        int jIndex = this.jIndices.getElem(index);
+        int iIndex = this.iIndices.get(index) & 0xffff;
+        int jIndex = this.jIndices.get(index) & 0xffff;
 
         // Check for missing values
         if (iIndex == MISSING_VALUE || jIndex == MISSING_VALUE)
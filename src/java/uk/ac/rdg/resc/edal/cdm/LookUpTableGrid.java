@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.edal.cdm;
 
+import java.io.File;
 import java.util.HashSet;
 import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
@@ -68,31 +69,49 @@ final class LookUpTableGrid extends AbstractCurvilinearGrid
     private static final Map<CurvilinearGrid, LookUpTableGrid> CACHE =
             CollectionUtils.newHashMap();
 
+    /**
+     * The directory in which look-up tables are saved, so that they don't
+     * have to be generated again, or null if they are not to be saved
+     */
+    private static volatile File lutDirectory = null;
+
     private final LookUpTable lut;
+    private final double resolutionMultiplier;
 
     /**
      * The passed-in coordSys must have 2D horizontal coordinate axes.
      */
     public static LookUpTableGrid generate(GridCoordSystem coordSys)
     {
-        CurvilinearGrid curvGrid = new CurvilinearGrid(coordSys);
+        return generate(new CurvilinearGrid(coordSys),
+            CurvilinearIndex.DEFAULT_LUT_RESOLUTION_MULTIPLIER);
+    }
 
-        // We calculate the required resolution of the look-up tables.  We
-        // want this to be around 3 times the resolution of the grid.
-        double minLutResolution = Math.sqrt(curvGrid.getMeanCellArea()) / 3.0;
+    /**
+     * Returns a LookUpTableGrid for the given grid, whose look-up table has
+     * a resolution that is {@code resolutionMultiplier} times finer than that
+     * of the grid.
+     */
+    static LookUpTableGrid generate(CurvilinearGrid curvGrid, double resolutionMultiplier)
+    {
+        double minLutResolution = getMinResolution(curvGrid, resolutionMultiplier);
         logger.debug("minLutResolution = {}", minLutResolution);
 
         synchronized(CACHE)
         {
             LookUpTableGrid lutGrid = CACHE.get(curvGrid);
-            if (lutGrid == null)
+            if (lutGrid == null || lutGrid.resolutionMultiplier != resolutionMultiplier)
             {
                 logger.debug("Need to generate new look-up table");
-                // Create a look-up table for this coord sys
-                LookUpTable lut = new LookUpTable(curvGrid, minLutResolution);
+                // Create a look-up table for this coord sys, which will be
+                // read from disk if it has been generated before
+                File dir = lutDirectory;
+                File lutFile = dir == null ? null : new File(dir, "lut-" +
+                    curvGrid.getFingerprint() + "-" + resolutionMultiplier + ".dat");
+                LookUpTable lut = new LookUpTable(curvGrid, minLutResolution, lutFile);
                 logger.debug("Generated new look-up table");
                 // Create the LookUpTableGrid
-                lutGrid = new LookUpTableGrid(curvGrid, lut);
+                lutGrid = new LookUpTableGrid(curvGrid, lut, resolutionMultiplier);
                 // Now put this in the cache
                 CACHE.put(curvGrid, lutGrid);
             }
@@ -104,17 +123,37 @@ final class LookUpTableGrid extends AbstractCurvilinearGrid
         }
     }
 
+    /**
+     * Returns the resolution in degrees of the look-up table for the given
+     * grid.  By default we want this to be around 3 times the resolution of
+     * the grid.
+     */
+    static double getMinResolution(CurvilinearGrid curvGrid, double resolutionMultiplier)
+    {
+        return Math.sqrt(curvGrid.getMeanCellArea()) / resolutionMultiplier;
+    }
+
     public static void clearCache() {
         synchronized (CACHE) {
             CACHE.clear();
         }
     }
 
+    /**
+     * Sets the directory in which look-up tables are saved, or null if they
+     * are not to be saved.  The directory must exist.
+     */
+    static void setLutDirectory(File dir) {
+        lutDirectory = dir;
+    }
+
     /** Private constructor to prevent direct instantiation */
-    private LookUpTableGrid(CurvilinearGrid curvGrid, LookUpTable lut)
+    private LookUpTableGrid(CurvilinearGrid curvGrid, LookUpTable lut,
+            double resolutionMultiplier)
     {
         super(curvGrid);
         this.lut = lut;
+        this.resolutionMultiplier = resolutionMultiplier;
     }
 
     /**
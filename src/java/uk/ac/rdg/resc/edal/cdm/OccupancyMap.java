@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import ucar.ma2.Index;
+import ucar.nc2.Dimension;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridDatatype;
+
+/**
+ * <p>A coarse map of the regions of a horizontal slice of a variable
+ * (i.e. a single time and elevation) that contain only missing values.  The
+ * source grid is divided into square blocks of grid cells and each block is
+ * marked as empty or occupied as soon as all of its cells have been read by a
+ * {@link DataReadingStrategy}.  Subsequent reads can then skip the grid points
+ * that lie in empty blocks, which saves a lot of I/O for sparse data such as
+ * sea surface temperature (which is missing over land) or swath data.  If
+ * a request lies entirely within empty blocks no data are read at all.</p>
+ * <p>OccupancyMaps are built lazily as data are read, and a limited number
+ * are held in memory.  Each map belongs to a version of the data, identified
+ * by a number that changes whenever the data change (e.g. one derived from the
+ * size and last-modified time of a file, or the time at which a remote dataset
+ * was last reloaded), so a map is not used once the data have changed.  Maps are not used at all if the version of the data is not known,
+ * because an out-of-date map would cause real data to be dropped.  This class
+ * is thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+final class OccupancyMap
+{
+    private static final int MIN_BLOCK_SIZE = 16;
+    private static final int MAX_BLOCKS_PER_AXIS = 256;
+    private static final int MAX_MAPS = 1000;
+
+    /** Maps slice keys to OccupancyMaps, least-recently-used first */
+    private static final Map<String, OccupancyMap> MAPS =
+        new LinkedHashMap<String, OccupancyMap>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OccupancyMap> eldest)
+        {
+            return this.size() > MAX_MAPS;
+        }
+    };
+
+    private final int iSize;
+    private final int jSize;
+    private final int blockSize;
+    private final int numBlocksI;
+
+    /** Blocks whose occupancy is known */
+    private final BitSet known = new BitSet();
+    /** Blocks that contain at least one non-missing value */
+    private final BitSet occupied = new BitSet();
+    /** The rows that have been found to be empty in partially-read blocks */
+    private final Map<Integer, BitSet> emptyRows = new HashMap<Integer, BitSet>();
+    /** The latest snapshot of the empty blocks, or null if they have changed */
+    private Snapshot snapshot = null;
+
+    /**
+     * Returns the OccupancyMap for the given horizontal slice of the given
+     * variable, or null if the variable does not have x and y dimensions or
+     * if the version of the data is not known.
+     * @param dataVersion A number that identifies the version of the data,
+     * or a negative number if this is not known
+     */
+    static OccupancyMap forSlice(NetcdfDataset nc, GridDatatype grid, int tIndex,
+        int zIndex, long dataVersion)
+    {
+        if (dataVersion < 0) return null;
+        Dimension xDim = grid.getXDimension();
+        Dimension yDim = grid.getYDimension();
+        if (xDim == null || yDim == null) return null;
+        String key = nc.getLocation() + "#" + grid.getName() + "#" + tIndex + "#" + zIndex
+            + "#" + dataVersion;
+        synchronized (MAPS)
+        {
+            OccupancyMap occupancy = MAPS.get(key);
+            if (occupancy == null || occupancy.iSize != xDim.getLength() ||
+                occupancy.jSize != yDim.getLength())
+            {
+                occupancy = new OccupancyMap(xDim.getLength(), yDim.getLength());
+                MAPS.put(key, occupancy);
+            }
+            return occupancy;
+        }
+    }
+
+    OccupancyMap(int iSize, int jSize)
+    {
+        this.iSize = iSize;
+        this.jSize = jSize;
+        int maxSize = Math.max(iSize, jSize);
+        this.blockSize = Math.max(MIN_BLOCK_SIZE,
+            (maxSize + MAX_BLOCKS_PER_AXIS - 1) / MAX_BLOCKS_PER_AXIS);
+        this.numBlocksI = (iSize + this.blockSize - 1) / this.blockSize;
+    }
+
+    /**
+     * Returns a snapshot of the blocks that are currently known to be empty,
+     * which can be queried for many grid points without locking.
+     */
+    synchronized Snapshot getSnapshot()
+    {
+        if (this.snapshot == null)
+        {
+            BitSet emptyBlocks = (BitSet)this.known.clone();
+            emptyBlocks.andNot(this.occupied);
+            this.snapshot = new Snapshot(this.blockSize, this.numBlocksI, emptyBlocks);
+        }
+        return this.snapshot;
+    }
+
+    /**
+     * Examines the given chunk of data, which covers the given ranges of
+     * i and j indices, and records the occupancy of every block whose cells
+     * in the chunk's rows are all contained in the chunk.
+     */
+    void learn(DataChunk chunk, RangesList ranges, int imin, int imax, int jmin, int jmax)
+    {
+        Index index = chunk.getIndex();
+        index.set(new int[index.getRank()]);
+        int xAxisIndex = ranges.getXAxisIndex();
+        int yAxisIndex = ranges.getYAxisIndex();
+
+        // Find the blocks that lie entirely within the i range
+        int biFirst = (imin + this.blockSize - 1) / this.blockSize;
+        int biLast = imax == this.iSize - 1 ? this.numBlocksI - 1
+                                             : (imax + 1) / this.blockSize - 1;
+
+        for (int bj = jmin / this.blockSize; bj <= jmax / this.blockSize; bj++)
+        {
+            int rowMin = Math.max(jmin, bj * this.blockSize);
+            int rowMax = Math.min(jmax, this.getBlockEnd(bj, this.jSize));
+            for (int bi = biFirst; bi <= biLast; bi++)
+            {
+                if (this.isKnown(bi, bj)) continue;
+                int colMin = bi * this.blockSize;
+                int colMax = this.getBlockEnd(bi, this.iSize);
+                boolean empty = true;
+                for (int j = rowMin; empty && j <= rowMax; j++)
+                {
+                    index.setDim(yAxisIndex, j - jmin);
+                    for (int i = colMin; empty && i <= colMax; i++)
+                    {
+                        index.setDim(xAxisIndex, i - imin);
+                        if (!Float.isNaN(chunk.readFloatValue(index))) empty = false;
+                    }
+                }
+                if (empty) this.setRowsEmpty(bi, bj, rowMin, rowMax);
+                else this.setOccupied(bi, bj);
+            }
+        }
+    }
+
+    private synchronized boolean isKnown(int bi, int bj)
+    {
+        return this.known.get(this.getBlock(bi, bj));
+    }
+
+    private synchronized void setOccupied(int bi, int bj)
+    {
+        int block = this.getBlock(bi, bj);
+        if (this.known.get(block)) return;
+        this.known.set(block);
+        this.occupied.set(block);
+        this.emptyRows.remove(block);
+    }
+
+    /**
+     * Records that the given rows of the given block contain only missing
+     * values.  The block is known to be empty when all its rows are empty.
+     */
+    private synchronized void setRowsEmpty(int bi, int bj, int rowMin, int rowMax)
+    {
+        int block = this.getBlock(bi, bj);
+        if (this.known.get(block)) return;
+        int blockStart = bj * this.blockSize;
+        int numRows = this.getBlockEnd(bj, this.jSize) - blockStart + 1;
+        BitSet rows = this.emptyRows.get(block);
+        if (rows == null)
+        {
+            rows = new BitSet(numRows);
+            this.emptyRows.put(block, rows);
+        }
+        rows.set(rowMin - blockStart, rowMax - blockStart + 1);
+        if (rows.cardinality() == numRows)
+        {
+            this.known.set(block);
+            this.emptyRows.remove(block);
+            this.snapshot = null;
+        }
+    }
+
+    private int getBlock(int bi, int bj)
+    {
+        return bj * this.numBlocksI + bi;
+    }
+
+    /** Returns the last grid index in the given block */
+    private int getBlockEnd(int b, int size)
+    {
+        return Math.min(size, (b + 1) * this.blockSize) - 1;
+    }
+
+    /** The blocks of an OccupancyMap that were known to be empty at a given time */
+    static final class Snapshot
+    {
+        private final int blockSize;
+        private final int numBlocksI;
+        private final BitSet emptyBlocks;
+
+        private Snapshot(int blockSize, int numBlocksI, BitSet emptyBlocks)
+        {
+            this.blockSize = blockSize;
+            this.numBlocksI = numBlocksI;
+            this.emptyBlocks = emptyBlocks;
+        }
+
+        /** Returns true if any blocks are known to be empty */
+        boolean hasEmptyBlocks()
+        {
+            return !this.emptyBlocks.isEmpty();
+        }
+
+        /** Returns true if the given grid point is known to be in an empty block */
+        boolean isEmpty(int i, int j)
+        {
+            return this.emptyBlocks.get((j / this.blockSize) * this.numBlocksI
+                + i / this.blockSize);
+        }
+    }
+}
@@ -33,7 +33,6 @@ import java.util.Iterator;
 import java.util.List;
 import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
-import org.opengis.coverage.grid.GridCoordinates;
 import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -111,6 +110,9 @@ public final class PixelMap implements Iterable<PixelMap.PixelMapEntry>
     }
 
     private final int sourceGridISize;
+    /** The largest possible source and target grid indices */
+    private final long maxSourceGridIndex;
+    private final long maxTargetGridIndex;
 
     // These define the bounding box (in terms of axis indices) of the data
     // to extract from the source files
@@ -151,15 +153,15 @@ public final class PixelMap implements Iterable<PixelMap.PixelMapEntry>
             : targetDomain.size() / 10);
         
         // Choose storage for the mappings appropriate to the sizes of the domains
-        long maxSourceGridIndex = sourceGrid.size() - 1;
-        this.sourceGridIndices = chooseRArray(maxSourceGridIndex, chunkSize);
+        this.maxSourceGridIndex = sourceGrid.size() - 1;
+        this.sourceGridIndices = chooseRArray(this.maxSourceGridIndex, chunkSize);
         logger.debug("Source grid indices (max: {}) stored in a {}",
-                maxSourceGridIndex, this.sourceGridIndices.getClass());
+                this.maxSourceGridIndex, this.sourceGridIndices.getClass());
 
-        long maxTargetGridIndex = targetDomain.size() - 1;
-        this.targetGridIndices = chooseRArray(maxTargetGridIndex, chunkSize);
+        this.maxTargetGridIndex = targetDomain.size() - 1;
+        this.targetGridIndices = chooseRArray(this.maxTargetGridIndex, chunkSize);
         logger.debug("Target grid indices (max: {}) stored in a {}",
-                maxTargetGridIndex, this.targetGridIndices.getClass());
+                this.maxTargetGridIndex, this.targetGridIndices.getClass());
         // This is just a double-check: shouldn't happen
         if (this.targetGridIndices instanceof RLongArray) {
             throw new IllegalStateException("Can't store target grid indices as" +
@@ -199,6 +201,44 @@ public final class PixelMap implements Iterable<PixelMap.PixelMapEntry>
         logger.debug("Built pixel map in {} ms", System.currentTimeMillis() - start);
     }
 
+    /**
+     * Creates an empty PixelMap with the same source grid and target domain
+     * as the given PixelMap.
+     */
+    private PixelMap(PixelMap pixelMap)
+    {
+        this.sourceGridISize = pixelMap.sourceGridISize;
+        this.maxSourceGridIndex = pixelMap.maxSourceGridIndex;
+        this.maxTargetGridIndex = pixelMap.maxTargetGridIndex;
+        int chunkSize = Math.max(1, pixelMap.sourceGridIndices.size());
+        this.sourceGridIndices = chooseRArray(this.maxSourceGridIndex, chunkSize);
+        this.targetGridIndices = chooseRArray(this.maxTargetGridIndex, chunkSize);
+    }
+
+    /**
+     * Returns a PixelMap containing the entries of this PixelMap whose source
+     * grid points are not known to lie in regions of missing values, or this
+     * PixelMap itself if there are no such points.  The entries stay in
+     * the same order, so the new PixelMap does not need sorting.
+     */
+    PixelMap excludingEmptyRegions(OccupancyMap.Snapshot emptyRegions)
+    {
+        if (!emptyRegions.hasEmptyBlocks()) return this;
+        PixelMap subset = new PixelMap(this);
+        for (int k = 0; k < this.sourceGridIndices.size(); k++)
+        {
+            long sourceGridIndex = this.sourceGridIndices.getLong(k);
+            int i = (int)(sourceGridIndex % this.sourceGridISize);
+            int j = (int)(sourceGridIndex / this.sourceGridISize);
+            if (!emptyRegions.isEmpty(i, j))
+            {
+                subset.put(i, j, this.targetGridIndices.getInt(k));
+            }
+        }
+        return subset.sourceGridIndices.size() == this.sourceGridIndices.size()
+            ? this : subset;
+    }
+
     /**
      * Creates and returns a resizable array for holding values up to and including
      * maxElementValue.  For example, an unsigned short array may be used if
@@ -288,19 +328,15 @@ public final class PixelMap implements Iterable<PixelMap.PixelMapEntry>
             throws TransformException
     {
         logger.debug("Using generic method based on iterating over the domain");
-        int pixelIndex = 0;
         // Find the nearest grid coordinates to all the points in the domain
-        for (GridCoordinates gridCoords : sourceGrid.findNearestGridPoints(targetDomain))
+        int numPoints = (int)targetDomain.size();
+        int[] iIndices = new int[numPoints];
+        int[] jIndices = new int[numPoints];
+        sourceGrid.findNearestGridPoints(targetDomain, iIndices, jIndices);
+        for (int pixelIndex = 0; pixelIndex < numPoints; pixelIndex++)
         {
-            if (gridCoords != null)
-            {
-                this.put(
-                    gridCoords.getCoordinateValue(0),
-                    gridCoords.getCoordinateValue(1),
-                    pixelIndex
-                );
-            }
-            pixelIndex++;
+            // put() ignores points with no nearest grid point
+            this.put(iIndices[pixelIndex], jIndices[pixelIndex], pixelIndex);
         }
     }
 
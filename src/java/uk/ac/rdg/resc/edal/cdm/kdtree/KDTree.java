@@ -1,28 +1,54 @@
 package uk.ac.rdg.resc.edal.cdm.kdtree;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import uk.ac.rdg.resc.edal.cdm.CurvilinearGrid;
 
+/**
+ * A kd-tree of the centres of the cells of a {@link CurvilinearGrid}.
+ * <p>The tree is held in parallel arrays of primitives rather than in a tree of
+ * node objects.  The points are reordered so that each subtree occupies a
+ * contiguous range of the arrays: the range [first, last] is split at
+ * {@code middle = (first + last) / 2} into [first, middle] and
+ * [middle + 1, last].  The discriminator of this split is stored at index
+ * {@code middle} of the {@code discriminators} array (no two splits have the
+ * same middle), so the structure of the tree is implicit.  Ranges of a
+ * single element are leaves.</p>
+ * <p>Queries create no objects, so a built tree can be used by many threads
+ * at once.</p>
+ */
 public class KDTree {
 
+    /** Subtrees smaller than this are never built in parallel */
+    private static final int PARALLEL_BUILD_THRESHOLD = 65536;
+
+    private static final double SQUARE_ROOT_2 = Math.sqrt(2.0);
+
+    final CurvilinearGrid curvGrid;
     int num_elements;
-    Point[] source_data = null;
-    TreeNode[] tree = null;
     double nominal_minimum_resolution;
     double expansion_factor;
-    int approx_queries = 0, approx_results = 0, approx_iterations = 0;
-    CurvilinearGrid curvGrid;
-    private double square_root_2 = Math.sqrt(2.0);
+
+    // The coordinates of the points and their indices in the curvilinear
+    // grid (j * ni + i), in tree order
+    double[] latitudes = null;
+    double[] longitudes = null;
+    int[] indices = null;
+
+    // The discriminator of each split, and whether the split is on latitude
+    // (otherwise longitude), indexed by the middle of the split range
+    double[] discriminators = null;
+    boolean[] is_latitude = null;
 
     public KDTree(CurvilinearGrid curvGrid) {
         super();
         this.curvGrid = curvGrid;
         num_elements = curvGrid.size();
-        source_data = new Point[num_elements];
 
         expansion_factor = 3.5f;
     }
@@ -32,218 +58,252 @@ public class KDTree {
         nominal_minimum_resolution = nominalMinimumResolution;
     }
 
+    /** Returns the number of points in this tree */
+    public int size() {
+        return num_elements;
+    }
+
     public void buildTree() {
-        // Load data from files into source_data, and keep track of min/max
-        double min_lat = Float.POSITIVE_INFINITY, min_lon = Float.NEGATIVE_INFINITY;
-        double max_lat = Float.NEGATIVE_INFINITY, max_lon = Float.POSITIVE_INFINITY;
-        int source_counter = -1, destination_counter = 0;
-        for (CurvilinearGrid.Cell cell : this.curvGrid.getCells()) {
-            source_counter++;
-            double new_lat = cell.getCentre().getLatitude();
-            double new_lon = cell.getCentre().getLongitude();
-            if (Double.isNaN(new_lat) || Double.isNaN(new_lon)) {
-                continue;
+        // Load the centres of the cells, filtering out those that are NaN
+        int ni = this.curvGrid.getNi();
+        int nj = this.curvGrid.getNj();
+        latitudes = new double[ni * nj];
+        longitudes = new double[ni * nj];
+        indices = new int[ni * nj];
+        int destination_counter = 0;
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                double new_lat = this.curvGrid.getMidpointLatitude(i, j);
+                double new_lon = this.curvGrid.getMidpointLongitude(i, j);
+                if (Double.isNaN(new_lat) || Double.isNaN(new_lon)) {
+                    continue;
+                }
+                latitudes[destination_counter] = new_lat;
+                longitudes[destination_counter] = new_lon;
+                indices[destination_counter] = j * ni + i;
+                destination_counter++;
             }
-            min_lat = Math.min(min_lat, new_lat);
-            max_lat = Math.max(max_lat, new_lat);
-            min_lon = Math.min(min_lon, new_lon);
-            max_lon = Math.max(max_lon, new_lon);
-            source_data[destination_counter] = new Point(new_lat, new_lon, source_counter);
-            destination_counter++;
         }
-        num_elements = destination_counter; // Hack! If NaNs were filtered, take account of this
+        num_elements = destination_counter;
+        if (num_elements < latitudes.length) {
+            latitudes = copyOf(latitudes, num_elements);
+            longitudes = copyOf(longitudes, num_elements);
+            int[] new_indices = new int[num_elements];
+            System.arraycopy(indices, 0, new_indices, 0, num_elements);
+            indices = new_indices;
+        }
+        discriminators = new double[num_elements];
+        is_latitude = new boolean[num_elements];
 
         // Compute the nominal resolution
         nominal_minimum_resolution = 0.25f;// Math.sqrt(Math.min(max_lon - min_lon, max_lat - min_lat)) / 20.0f;
 
-        // Perform an initial sort of the source data by longitude (likely to be bigger for world data)
-        Comparator<Point> longitude_comp = new PointComparator(false);
-        Arrays.sort(source_data, 0, num_elements, longitude_comp);
-
-        // Calculate the number of elements needed in the tree
-        int num_leaf_elements = (int) Math.pow(2.0, Math.ceil(Math.log(num_elements)
-                / Math.log(2.0)));
-        int num_tree_elements = 2 * num_leaf_elements - 1;
-        //System.out.println(num_elements + " elements, " + num_leaf_elements
-        //        + " leaf, " + num_tree_elements + " total");
-        // Create the uninitialised tree with this number of elements
-        tree = new TreeNode[num_tree_elements];
-
-        // Recursively build this into a tree
-        recursiveBuildTree(0, num_elements - 1, 0, false);
-
-        // Clear the source data array - no longer needed
-        source_data = null;
+        if (num_elements == 0) return;
+        int num_threads = Runtime.getRuntime().availableProcessors();
+        if (num_threads == 1 || num_elements < PARALLEL_BUILD_THRESHOLD) {
+            recursiveBuildTree(0, num_elements - 1);
+        } else {
+            parallelBuildTree(num_threads);
+        }
     }
 
-    public void verifyChildren(int current_index) {
-        // Verify the correctness of the tree (call with current_index = 0)
-
-        // Reached a leaf node, no more checks can be made
-        if (tree[current_index] instanceof Point) return;
-
-        int left_child_index = 2 * current_index + 1;
-        int right_child_index = 2 * current_index + 2;
-
-        NonTerminalTreeNode myself = (NonTerminalTreeNode) tree[current_index];
-
-        // If child nodes are leaf nodes, check that the fall on the correct
-        // side of the current discriminator
-        // If the child nodes are non terminal tree nodes, then they can
-        // only be checked if the discriminators are of the same type
+    private static double[] copyOf(double[] array, int length) {
+        double[] copy = new double[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
 
-        if (tree[left_child_index] instanceof Point) {
-            Point left_child = (Point) tree[left_child_index];
-            if (myself.is_latitude) {
-                if (left_child.getLatitude() > myself.discriminator) {
-                    System.out.println("Error! Left child latitude greater than self");
-                }
-            } else {
-                if (left_child.getLongitude() > myself.discriminator) {
-                    System.out.println("Error! Left child longitude greater than self");
+    /**
+     * Builds the tree using the given number of threads.  The top levels of
+     * the tree are split level by level, with the splits of each level
+     * performed in parallel, until there are enough independent subtrees to
+     * keep all the threads busy.  The subtrees are then built in parallel.
+     */
+    private void parallelBuildTree(int num_threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(num_threads);
+        try {
+            List<int[]> ranges = new ArrayList<int[]>();
+            ranges.add(new int[] {0, num_elements - 1});
+            while (ranges.size() < 4 * num_threads) {
+                final List<int[]> new_ranges = new ArrayList<int[]>();
+                List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                for (final int[] range : ranges) {
+                    if (range[1] - range[0] < PARALLEL_BUILD_THRESHOLD) {
+                        new_ranges.add(range);
+                        continue;
+                    }
+                    final int middle = (range[0] + range[1]) >>> 1;
+                    new_ranges.add(new int[] {range[0], middle});
+                    new_ranges.add(new int[] {middle + 1, range[1]});
+                    tasks.add(new Callable<Object>() {
+                        @Override public Object call() {
+                            split(range[0], range[1]);
+                            return null;
+                        }
+                    });
                 }
+                if (tasks.isEmpty()) break;
+                invokeAll(executor, tasks);
+                ranges = new_ranges;
             }
-        } else {
-            NonTerminalTreeNode left_child = (NonTerminalTreeNode) tree[left_child_index];
-            if (!(myself.is_latitude ^ left_child.is_latitude)) {
-                if (left_child.discriminator > myself.discriminator) {
-                    System.out.println("Error! Compatible left child discriminator greater than self");
-                }
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (final int[] range : ranges) {
+                tasks.add(new Callable<Object>() {
+                    @Override public Object call() {
+                        recursiveBuildTree(range[0], range[1]);
+                        return null;
+                    }
+                });
             }
+            invokeAll(executor, tasks);
+        } finally {
+            executor.shutdown();
         }
+    }
 
-        if (tree[right_child_index] instanceof Point) {
-            Point right_child = (Point) tree[right_child_index];
-            if (myself.is_latitude) {
-                if (right_child.getLatitude() < myself.discriminator) {
-                    System.out.println("Error! Right child latitude lesser than self");
-                }
-            } else {
-                if (right_child.getLongitude() < myself.discriminator) {
-                    System.out.println("Error! Right child longitude lesser than self");
-                }
+    private static void invokeAll(ExecutorService executor, List<Callable<Object>> tasks) {
+        try {
+            for (Future<Object> future : executor.invokeAll(tasks)) {
+                future.get();
             }
-        } else {
-            NonTerminalTreeNode right_child = (NonTerminalTreeNode) tree[right_child_index];
-            if (!(myself.is_latitude ^ right_child.is_latitude)) {
-                if (right_child.discriminator < myself.discriminator) {
-                    System.out.println("Error! Compatible right child discriminator lesser than self");
-                }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building kd-tree", ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
             }
+            throw new IllegalStateException(ee.getCause());
         }
-
-        // Recurse
-        verifyChildren(left_child_index);
-        verifyChildren((right_child_index));
     }
 
-    private void recursiveBuildTree(int source_index_first, int source_index_last,
-            int tree_index_current, boolean sorted_by_latitude) {
-
-        if (source_index_first == source_index_last) {
-            // If the recursion has bottomed out and there is only one point of source data left,
-            // store it in the tree at the current index
-            tree[tree_index_current] = source_data[source_index_first];
-            return;
-        }
+    private void recursiveBuildTree(int source_index_first, int source_index_last) {
+        // If the recursion has bottomed out there is only one point left,
+        // which is a leaf of the tree
+        if (source_index_first >= source_index_last) return;
+        int middle = split(source_index_first, source_index_last);
+        recursiveBuildTree(source_index_first, middle);
+        recursiveBuildTree(middle + 1, source_index_last);
+    }
 
+    /**
+     * Splits the points in the given range (which must contain at least two
+     * points) into two halves along the axis (latitude or longitude) with the
+     * biggest range, storing the discriminator of the split.
+     * @return the index of the last point in the lower half
+     */
+    private int split(int source_index_first, int source_index_last) {
         // Determine whether latitude or longitude has the biggest range across
         // our current set of source data
-        // A discriminator node will then be inserted that splits this data into
-        // 2 (high and low)
-
-        // Determine whether we should be sorting by latitude or longitude
-        double lat_min = Float.POSITIVE_INFINITY;
-        double lat_max = Float.NEGATIVE_INFINITY;
-        double lon_min = Float.POSITIVE_INFINITY;
-        double lon_max = Float.NEGATIVE_INFINITY;
+        double lat_min = Double.POSITIVE_INFINITY;
+        double lat_max = Double.NEGATIVE_INFINITY;
+        double lon_min = Double.POSITIVE_INFINITY;
+        double lon_max = Double.NEGATIVE_INFINITY;
         for (int current_index = source_index_first; current_index <= source_index_last; current_index++) {
-            lat_min = Math.min(lat_min, source_data[current_index].getLatitude());
-            lat_max = Math.max(lat_max, source_data[current_index].getLatitude());
-            lon_min = Math.min(lon_min, source_data[current_index].getLongitude());
-            lon_max = Math.max(lon_max, source_data[current_index].getLongitude());
+            double lat = latitudes[current_index];
+            double lon = longitudes[current_index];
+            if (lat < lat_min) lat_min = lat;
+            if (lat > lat_max) lat_max = lat;
+            if (lon < lon_min) lon_min = lon;
+            if (lon > lon_max) lon_max = lon;
         }
-        boolean discriminate_on_latitude = (Math.abs(lat_max - lat_min) >= Math.abs(lon_max - lon_min));
-
-        // Determine if we need to sort - if discriminate_on_latitude and
-        // sorted_by_latitude have different values
-        if (discriminate_on_latitude ^ sorted_by_latitude) {
-            // Sort by the latitude or longitude as appropriate
-            Comparator<Point> comp = new PointComparator(discriminate_on_latitude);
-            Arrays.sort(source_data, source_index_first, source_index_last+1,
-                    comp);
+        boolean discriminate_on_latitude = (lat_max - lat_min >= lon_max - lon_min);
+        double[] values = discriminate_on_latitude ? latitudes : longitudes;
+
+        // Partially sort the points so that the lower half comes first
+        int middle = (source_index_first + source_index_last) >>> 1;
+        select(values, source_index_first, source_index_last, middle);
+
+        // The discriminator lies between the two halves
+        double min_right = Double.POSITIVE_INFINITY;
+        for (int current_index = middle + 1; current_index <= source_index_last; current_index++) {
+            if (values[current_index] < min_right) min_right = values[current_index];
         }
+        discriminators[middle] = (values[middle] + min_right) / 2.0;
+        is_latitude[middle] = discriminate_on_latitude;
+        return middle;
+    }
 
-        // Work out the median, and the indices of the values surrounding the
-        // median
-        int end_left, start_right;
-        double discriminator;
-        if (((source_index_last - source_index_first) % 2) != 0) {
-            // even number of elements
-            end_left = source_index_first
-                    + ((source_index_last - source_index_first - 1) / 2);
-            start_right = end_left + 1;
-            if (discriminate_on_latitude) {
-                discriminator = (source_data[end_left].getLatitude() + source_data[start_right].getLatitude()) / 2.0;
-            } else {
-                discriminator = (source_data[end_left].getLongitude() + source_data[start_right].getLongitude()) / 2.0;
+    /**
+     * Rearranges the points in the range [first, last] so that the point at
+     * index k has the value it would have if the range were sorted by the
+     * given values, with no greater value before it and no smaller value
+     * after it.  Uses quickselect with a three-way partition, so that
+     * there are no problems with many equal values.
+     */
+    private void select(double[] values, int first, int last, int k) {
+        while (last > first) {
+            double pivot = medianOfThree(values[first], values[(first + last) >>> 1], values[last]);
+            // Partition into [first, lt) < pivot, [lt, gt] == pivot, (gt, last] > pivot
+            int lt = first;
+            int gt = last;
+            int i = first;
+            while (i <= gt) {
+                double value = values[i];
+                if (value < pivot) {
+                    swap(lt++, i++);
+                } else if (value > pivot) {
+                    swap(i, gt--);
+                } else {
+                    i++;
+                }
             }
-        } else {
-            // odd number of elements
-            end_left = ((source_index_last - source_index_first) / 2)
-                    + source_index_first;
-            start_right = end_left + 1;
-            if (discriminate_on_latitude) {
-                discriminator = source_data[end_left].getLatitude();
+            if (k < lt) {
+                last = lt - 1;
+            } else if (k > gt) {
+                first = gt + 1;
             } else {
-                discriminator = source_data[end_left].getLongitude();
+                return;
             }
         }
+    }
 
-        // Store this information back into the tree to create the discriminator
-        // node
-        tree[tree_index_current] = new NonTerminalTreeNode(discriminator,
-                discriminate_on_latitude);
+    private static double medianOfThree(double a, double b, double c) {
+        if (a < b) {
+            return b < c ? b : (a < c ? c : a);
+        }
+        return a < c ? a : (b < c ? c : b);
+    }
 
-        // Recurse
-        recursiveBuildTree(source_index_first, end_left,
-                2 * tree_index_current + 1, discriminate_on_latitude);
-        recursiveBuildTree(start_right, source_index_last,
-                2 * tree_index_current + 2, discriminate_on_latitude);
+    private void swap(int i1, int i2) {
+        double lat = latitudes[i1];
+        latitudes[i1] = latitudes[i2];
+        latitudes[i2] = lat;
+        double lon = longitudes[i1];
+        longitudes[i1] = longitudes[i2];
+        longitudes[i2] = lon;
+        int index = indices[i1];
+        indices[i1] = indices[i2];
+        indices[i2] = index;
     }
 
-    public Point limitedNearestNeighbour(double latitude, double longitude, double max_distance) {
-        Point nearest_neighbour = null;
-        double best_distance = Float.POSITIVE_INFINITY;
-        for (Point candidate : approxNearestNeighbour(latitude, longitude, max_distance)) {
-            double current_distance_latitude = (latitude - candidate.getLatitude());
-            double current_distance_longitude = (longitude - candidate.getLongitude());
-            double current_distance = current_distance_latitude * current_distance_latitude + current_distance_longitude * current_distance_longitude;
-            if (current_distance < best_distance) {
-                nearest_neighbour = candidate;
-                best_distance = current_distance;
-            }
-        }
-        // Return best result
-        return nearest_neighbour;
+    /**
+     * Finds the nearest point to the given position by searching boxes of
+     * increasing size around the position, starting with the nominal minimum
+     * resolution and multiplying the size by the expansion factor, until
+     * the box contains a point or the maximum distance is reached.
+     * @return the index in the curvilinear grid (j * ni + i) of the nearest
+     * point, or -1 if there is no point within the maximum distance
+     */
+    public int approxNearestNeighbour(double latitude, double longitude, double max_distance) {
+        return approxNearestNeighbour(latitude, longitude, max_distance, expansion_factor);
     }
 
-    public List<Point> approxNearestNeighbour(double latitude, double longitude, double max_distance) {
-        approx_queries++;
-        double current_distance = nominal_minimum_resolution;
-        ArrayList<Point> results;
+    public int approxNearestNeighbour(double latitude, double longitude, double max_distance, double expansion_factor) {
+        if (num_elements == 0) return -1;
+        double current_distance = Math.min(nominal_minimum_resolution, max_distance);
         boolean break_next = false;
         while (current_distance <= max_distance) {
-            approx_iterations++;
-            results = rangeQuery(latitude - current_distance, latitude + current_distance, longitude - current_distance, longitude + current_distance);
-            if (results.size() > 0) {
+            if (anyInRange(latitude - current_distance, latitude + current_distance,
+                    longitude - current_distance, longitude + current_distance,
+                    0, num_elements - 1)) {
                 // Need to do one more check - if the point found is at the corner of the current box,
                 // there could be a closer point within that distance, so set the search distance to
                 // the distance to the current point
-                current_distance *= square_root_2;
-                results = rangeQuery(latitude - current_distance, latitude + current_distance, longitude - current_distance, longitude + current_distance);
-                approx_results += results.size();
-                return results;
+                current_distance *= SQUARE_ROOT_2;
+                int nearest = nearestRecurse(latitude, longitude, current_distance,
+                        0, num_elements - 1, -1);
+                return nearest < 0 ? -1 : indices[nearest];
             }
             if (break_next) {
                 break;
@@ -254,112 +314,136 @@ public class KDTree {
                 current_distance = max_distance;
             }
         }
-        // Reached max distance and no points found - return empty
-        return Collections.emptyList();
-    }
-
-    public void printApproxQueryStats() {
-        System.out.println("Computed nominal resolution " + nominal_minimum_resolution);
-        if (approx_queries > 0) {
-            System.out.println("Results per query " + (double) (approx_results / approx_queries));
-            System.out.println("Iterations per query " + (double) (approx_iterations / approx_queries));
-        } else {
-            System.out.println("No approximate queries made");
-        }
+        // Reached max distance and no points found
+        return -1;
     }
 
-    public void resetApproxQueryStats() {
-        approx_iterations = 0;
-        approx_results = 0;
-        approx_queries = 0;
+    /**
+     * Finds the nearest point to the given position.
+     * @return the index in the curvilinear grid (j * ni + i) of the nearest
+     * point, or -1 if the tree is empty
+     */
+    public int nearestNeighbour(double latitude, double longitude) {
+        if (num_elements == 0) return -1;
+        return indices[nearestRecurse(latitude, longitude, Double.POSITIVE_INFINITY,
+                0, num_elements - 1, -1)];
     }
 
-    private final static double squaredDistance(Point p, double latitude, double longitude) {
-        return Math.pow(p.getLatitude() - latitude, 2.0)
-                + Math.pow(p.getLongitude() - longitude, 2.0);
+    private double squaredDistance(int point, double latitude, double longitude) {
+        double dlat = latitudes[point] - latitude;
+        double dlon = longitudes[point] - longitude;
+        return dlat * dlat + dlon * dlon;
     }
 
-    public Point nearestNeighbour(double latitude, double longitude) {
-        return nearestNeighbourRecurse(latitude, longitude, 0);
-    }
-
-    private final Point nearestNeighbourRecurse(double latitude, double longitude, int current_index) {
-        if (tree[current_index] instanceof Point) {
-            // Terminal node reached - return it
-            return (Point) tree[current_index];
-        } else {
-            // Non-terminal
-            NonTerminalTreeNode node = (NonTerminalTreeNode) tree[current_index];
-            double pivot_target_distance;
-            if (node.is_latitude) {
-                pivot_target_distance = node.discriminator - latitude;
-            } else {
-                pivot_target_distance = node.discriminator - longitude;
+    /**
+     * Finds the nearest point to the given position in the given range of the
+     * tree, considering only points within the box of the given half-width
+     * around the position.
+     * @param best The nearest point that has been found so far, or -1
+     * @return the position in the arrays of the nearest point, or
+     * {@code best} if there is no nearer point in the range
+     */
+    private int nearestRecurse(double latitude, double longitude, double half_width,
+            int first, int last, int best) {
+        if (first == last) {
+            // Terminal node reached
+            if (Math.abs(latitudes[first] - latitude) <= half_width
+                    && Math.abs(longitudes[first] - longitude) <= half_width
+                    && (best < 0 || squaredDistance(first, latitude, longitude)
+                        < squaredDistance(best, latitude, longitude))) {
+                return first;
             }
-
-            // Search the 'near' branch
-            Point best;
-            if (pivot_target_distance > 0) {
-                best = nearestNeighbourRecurse(latitude, longitude, 2 * current_index + 1);
-            } else {
-                best = nearestNeighbourRecurse(latitude, longitude, 2 * current_index + 2);
+            return best;
+        }
+        int middle = (first + last) >>> 1;
+        double pivot_target_distance = discriminators[middle]
+                - (is_latitude[middle] ? latitude : longitude);
+        // Search the 'near' branch, then the 'away' branch only if it could
+        // contain a nearer point
+        if (pivot_target_distance >= 0) {
+            best = nearestRecurse(latitude, longitude, half_width, first, middle, best);
+            if (pivot_target_distance <= half_width && (best < 0 || squaredDistance(best, latitude, longitude)
+                    >= pivot_target_distance * pivot_target_distance)) {
+                best = nearestRecurse(latitude, longitude, half_width, middle + 1, last, best);
             }
-
-            // Only search the 'away' branch if the squared distance between the current best and the target is greater
-            // Than the squared distance between the target and the branch pivot
-            if (squaredDistance(best, latitude, longitude) > Math.pow(pivot_target_distance, 2.0)) {
-                Point potential_best;
-                // Search the 'away' branch
-                if (pivot_target_distance > 0) {
-                    potential_best = nearestNeighbourRecurse(latitude, longitude, 2 * (current_index + 1));
-                } else {
-                    potential_best = nearestNeighbourRecurse(latitude, longitude, (2 * (current_index + 1)) - 1);
-                }
-                if (squaredDistance(potential_best, latitude, longitude) < squaredDistance(best, latitude, longitude)) {
-                    return potential_best;
-                }
+        } else {
+            best = nearestRecurse(latitude, longitude, half_width, middle + 1, last, best);
+            if (-pivot_target_distance <= half_width && (best < 0 || squaredDistance(best, latitude, longitude)
+                    >= pivot_target_distance * pivot_target_distance)) {
+                best = nearestRecurse(latitude, longitude, half_width, first, middle, best);
             }
+        }
+        return best;
+    }
 
-            return best;
+    /** Returns true if there is a point in the given range of the tree within the given bounds */
+    private boolean anyInRange(double min_lat, double max_lat, double min_lon, double max_lon,
+            int first, int last) {
+        if (first == last) {
+            return latitudes[first] >= min_lat && latitudes[first] <= max_lat
+                    && longitudes[first] >= min_lon && longitudes[first] <= max_lon;
+        }
+        int middle = (first + last) >>> 1;
+        double discriminator = discriminators[middle];
+        boolean search_left, search_right;
+        if (is_latitude[middle]) {
+            search_left = (discriminator >= min_lat);
+            search_right = (discriminator <= max_lat);
+        } else {
+            search_left = (discriminator >= min_lon);
+            search_right = (discriminator <= max_lon);
         }
+        return (search_left && anyInRange(min_lat, max_lat, min_lon, max_lon, first, middle))
+                || (search_right && anyInRange(min_lat, max_lat, min_lon, max_lon, middle + 1, last));
     }
 
-    public ArrayList<Point> rangeQuery(double min_lat, double max_lat, double min_lon, double max_lon) {
-        ArrayList<Point> results = new ArrayList<Point>();
-        rangeQueryRecurse(min_lat, max_lat, min_lon, max_lon, results, 0);
-        return results;
+    /**
+     * Finds the points within the given bounds, writing their indices in the
+     * curvilinear grid (j * ni + i) into the given array.
+     * @param results Array that will hold the indices of the points found.
+     * If there are more points than will fit in the array, only the first
+     * {@code results.length} are written.
+     * @return the number of points found, which may be greater than the
+     * length of {@code results}
+     */
+    public int rangeQuery(double min_lat, double max_lat, double min_lon, double max_lon, int[] results) {
+        if (num_elements == 0) return 0;
+        return rangeQueryRecurse(min_lat, max_lat, min_lon, max_lon, results, 0, 0, num_elements - 1);
     }
 
-    private final void rangeQueryRecurse(double min_lat, double max_lat, double min_lon, double max_lon, ArrayList<Point> results, int tree_current_index) {
-        if (tree[tree_current_index] instanceof Point) {
+    private int rangeQueryRecurse(double min_lat, double max_lat, double min_lon, double max_lon,
+            int[] results, int num_results, int first, int last) {
+        if (first == last) {
             // Terminal - return this point if it's within bounds
-            Point terminal_point = (Point) tree[tree_current_index];
-            if (terminal_point.getLatitude() >= min_lat && terminal_point.getLatitude() <= max_lat
-                    && terminal_point.getLongitude() >= min_lon && terminal_point.getLongitude() <= max_lon) {
-                results.add(terminal_point);
+            if (latitudes[first] >= min_lat && latitudes[first] <= max_lat
+                    && longitudes[first] >= min_lon && longitudes[first] <= max_lon) {
+                if (num_results < results.length) {
+                    results[num_results] = indices[first];
+                }
+                num_results++;
             }
-            return;
+            return num_results;
+        }
+        // 3 cases - the discriminator in the non-terminal node can be less than search range, within it, or greater than it
+        // Less than: Search right of this node
+        // Within: Search left and right of this node
+        // Greater than: Search left of this node
+        int middle = (first + last) >>> 1;
+        double discriminator = discriminators[middle];
+        boolean search_left, search_right;
+        if (is_latitude[middle]) {
+            search_left = (discriminator >= min_lat);
+            search_right = (discriminator <= max_lat);
         } else {
-            // 3 cases - the discriminator in the non-terminal node can be less than search range, within it, or greater than it
-            // Less than: Search right of this node
-            // Within: Search left and right of this node
-            // Greater than: Search left of this node
-            boolean search_left, search_right;
-            NonTerminalTreeNode node = (NonTerminalTreeNode) tree[tree_current_index];
-            if (node.is_latitude) {
-                search_left = (node.discriminator >= min_lat);
-                search_right = (node.discriminator <= max_lat);
-            } else {
-                search_left = (node.discriminator >= min_lon);
-                search_right = (node.discriminator <= max_lon);
-            }
-
-            if (search_left) {
-                rangeQueryRecurse(min_lat, max_lat, min_lon, max_lon, results, (2 * (tree_current_index + 1)) - 1);
-            }
-            if (search_right) {
-                rangeQueryRecurse(min_lat, max_lat, min_lon, max_lon, results, (2 * (tree_current_index + 1)));
-            }
+            search_left = (discriminator >= min_lon);
+            search_right = (discriminator <= max_lon);
+        }
+        if (search_left) {
+            num_results = rangeQueryRecurse(min_lat, max_lat, min_lon, max_lon, results, num_results, first, middle);
+        }
+        if (search_right) {
+            num_results = rangeQueryRecurse(min_lat, max_lat, min_lon, max_lon, results, num_results, middle + 1, last);
         }
+        return num_results;
     }
 }
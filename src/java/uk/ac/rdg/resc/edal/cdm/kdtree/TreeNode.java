@@ -1,4 +0,0 @@
-package uk.ac.rdg.resc.edal.cdm.kdtree;
-
-public class TreeNode {
-}
@@ -87,6 +87,23 @@ public interface HorizontalGrid extends ReferenceableGrid<HorizontalPosition>
      */
     public List<GridCoordinates> findNearestGridPoints(Domain<HorizontalPosition> domain);
 
+    /**
+     * Finds the nearest grid points to each of the positions in the given
+     * domain, as {@link #findNearestGridPoints(uk.ac.rdg.resc.edal.coverage.domain.Domain)},
+     * but writes the i and j indices of the grid points into the given arrays
+     * instead of creating a GridCoordinates object for each point.  Positions
+     * that have no nearest grid point are given indices of -1.
+     * @param domain The positions for which we need the nearest grid points
+     * @param iIndices Array that will hold the i index of the grid point for
+     * each position in the domain, in order
+     * @param jIndices Array that will hold the j index of the grid point for
+     * each position in the domain, in order
+     * @throws IllegalArgumentException if either of the arrays is smaller than
+     * the domain
+     */
+    public void findNearestGridPoints(Domain<HorizontalPosition> domain,
+            int[] iIndices, int[] jIndices);
+
     /**
      * Gets the 2D bounding box of the grid in the grid's
      * {@link #getCoordinateReferenceSystem() coordinate reference system}.
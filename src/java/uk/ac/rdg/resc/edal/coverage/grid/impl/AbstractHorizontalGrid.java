@@ -126,6 +126,40 @@ public abstract class AbstractHorizontalGrid extends AbstractGrid implements Hor
         return Collections.unmodifiableList(gridCoords);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>This implementation simply calls
+     * {@link #findNearestGridPoint(uk.ac.rdg.resc.edal.position.HorizontalPosition)
+     * for each horizontal position within the domain.  Subclasses are encouraged
+     * to implement more efficient methods if possible.</p>
+     */
+    @Override
+    public void findNearestGridPoints(Domain<HorizontalPosition> domain,
+            int[] iIndices, int[] jIndices) {
+        checkIndexArrays(domain, iIndices, jIndices);
+        int index = 0;
+        for (HorizontalPosition pos : domain.getDomainObjects()) {
+            GridCoordinates coords = this.findNearestGridPoint(pos);
+            iIndices[index] = coords == null ? -1 : coords.getCoordinateValue(0);
+            jIndices[index] = coords == null ? -1 : coords.getCoordinateValue(1);
+            index++;
+        }
+    }
+
+    /**
+     * Checks that the given arrays are large enough to hold the indices of
+     * the grid points for each position in the given domain.
+     * @throws IllegalArgumentException if not
+     */
+    protected static void checkIndexArrays(Domain<HorizontalPosition> domain,
+            int[] iIndices, int[] jIndices) {
+        long size = domain.size();
+        if (iIndices.length < size || jIndices.length < size) {
+            throw new IllegalArgumentException("Arrays of grid indices must " +
+                "have at least " + size + " elements");
+        }
+    }
+
     /**
      * Returns an unmodifiable List of horizontal positions derived from the two axes.
      * The x axis is considered to vary fastest, so the first point in the list
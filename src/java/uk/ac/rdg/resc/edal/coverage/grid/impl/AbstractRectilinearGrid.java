@@ -114,6 +114,22 @@ public abstract class AbstractRectilinearGrid extends AbstractHorizontalGrid imp
         return Collections.unmodifiableList(gridCoords);
     }
 
+    @Override
+    public void findNearestGridPoints(Domain<HorizontalPosition> domain,
+            int[] iIndices, int[] jIndices) {
+        checkIndexArrays(domain, iIndices, jIndices);
+        double[] points = Utils.transformDomainCoordinates(domain, this.getCoordinateReferenceSystem());
+        ReferenceableAxis xAxis = this.getXAxis();
+        ReferenceableAxis yAxis = this.getYAxis();
+        for (int k = 0; k < points.length / 2; k++) {
+            int i = xAxis.getNearestCoordinateIndex(points[2 * k]);
+            int j = yAxis.getNearestCoordinateIndex(points[2 * k + 1]);
+            boolean found = i >= 0 && j >= 0;
+            iIndices[k] = found ? i : -1;
+            jIndices[k] = found ? j : -1;
+        }
+    }
+
     private GridCoordinates findNearestGridPoint(double x, double y) {
         int i = this.getXAxis().getNearestCoordinateIndex(x);
         int j = this.getYAxis().getNearestCoordinateIndex(y);
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * <p>An immutable List view of an array of floats, in which NaNs appear as
+ * null values.  This is how we usually hold arrays of data values: it takes a
+ * quarter of the memory of a list of Float objects.</p>
+ * <p>Code that processes large amounts of data (e.g. for rendering images)
+ * can use {@link #toFloatArray(java.util.List)} to work directly with the
+ * primitive array, avoiding the cost of boxing every value.</p>
+ *
+ * @author Jon Blower
+ */
+public final class FloatArrayList extends AbstractList<Float> implements RandomAccess
+{
+    private final float[] arr;
+
+    /**
+     * Creates a List that wraps the given array.  The array must not be
+     * modified after this List is created.
+     */
+    public FloatArrayList(float[] arr)
+    {
+        this.arr = arr;
+    }
+
+    @Override
+    public Float get(int index)
+    {
+        float val = this.arr[index];
+        return Float.isNaN(val) ? null : val;
+    }
+
+    @Override
+    public int size()
+    {
+        return this.arr.length;
+    }
+
+    /**
+     * Returns the values in the given List as an array of floats, in which
+     * null values are represented as NaNs.  If the List is a FloatArrayList
+     * this returns the wrapped array without copying, so the returned array
+     * must not be modified.
+     */
+    public static float[] toFloatArray(List<Float> list)
+    {
+        if (list instanceof FloatArrayList) return ((FloatArrayList)list).arr;
+        float[] arr = new float[list.size()];
+        int i = 0;
+        for (Float val : list)
+        {
+            arr[i++] = val == null ? Float.NaN : val.floatValue();
+        }
+        return arr;
+    }
+}
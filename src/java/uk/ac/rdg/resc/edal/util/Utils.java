@@ -156,18 +156,40 @@ public final class Utils {
     public static List<HorizontalPosition> transformDomain(Domain<HorizontalPosition> domain,
             CoordinateReferenceSystem targetCrs)
     {
-        logger.debug("Transforming {} points from {} to {}", new Object[]{
-            domain.getDomainObjects().size(),
-            domain.getCoordinateReferenceSystem().getName(),
-            targetCrs.getName()
-        });
-        
-        CoordinateReferenceSystem sourceCrs = domain.getCoordinateReferenceSystem();
+        double[] points = transformDomainCoordinates(domain, targetCrs);
+        // Create a new list of horizontal positions in the new CRS
+        List<HorizontalPosition> posList = CollectionUtils.newArrayList();
+        for (int i = 0; i < points.length; i += 2)
+        {
+            posList.add(new HorizontalPositionImpl(points[i], points[i+1], targetCrs));
+        }
+        return Collections.unmodifiableList(posList);
+    }
+
+    /**
+     * Transforms all the points in the given domain into the required
+     * coordinate reference system, returning the coordinates as an array of
+     * [x0, y0, x1, y1, ...] in the same order as the positions within the
+     * domain.  This avoids creating a new object for each position.
+     * @param domain The domain of positions to translate
+     * @param targetCrs The CRS to translate into
+     * @throws NullPointerException if {@code domain} is null, if
+     * {@code pos.getCoordinateReferenceSystem()} is null, or if {@code targetCrs} is null.
+     */
+    public static double[] transformDomainCoordinates(Domain<HorizontalPosition> domain,
+            CoordinateReferenceSystem targetCrs)
+    {
         if (domain == null) throw new NullPointerException("Domain cannot be null");
+        CoordinateReferenceSystem sourceCrs = domain.getCoordinateReferenceSystem();
         if (sourceCrs == null) throw new NullPointerException("Position must have a valid CRS");
         if (targetCrs == null) throw new NullPointerException("Target CRS cannot be null");
 
         List<HorizontalPosition> domainObjects = domain.getDomainObjects();
+        logger.debug("Transforming {} points from {} to {}", new Object[]{
+            domainObjects.size(),
+            sourceCrs.getName(),
+            targetCrs.getName()
+        });
 
         // CRS.findMathTransform() caches recently-used transform objects so
         // we should incur no large penalty for multiple invocations
@@ -185,15 +207,11 @@ public final class Utils {
                 i += 2;
             }
             // transform the points in-place
-            transform.transform(points, 0, points, 0, domainObjects.size());
-
-            // Create a new list of horizontal positions in the new CRS
-            List<HorizontalPosition> posList = CollectionUtils.newArrayList();
-            for (i = 0; i < points.length; i += 2)
+            if (!transform.isIdentity())
             {
-                posList.add(new HorizontalPositionImpl(points[i], points[i+1], targetCrs));
+                transform.transform(points, 0, points, 0, domainObjects.size());
             }
-            return Collections.unmodifiableList(posList);
+            return points;
         }
         catch(Exception e)
         {
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.util.Collection;
+
+/**
+ * <p>The disk tier of the {@link TileCache}, which holds the tiles that do not
+ * fit in memory and keeps tiles between restarts of the server.  The size of
+ * the store is limited by a budget in bytes, beyond which least-recently-used
+ * tiles are discarded.</p>
+ * <p>Tiles may be held both in memory and in this store, and adding a tile
+ * that is already in the store does nothing: the data for a given key never
+ * change.  Implementations must be thread-safe.</p>
+ *
+ * @see EhcacheTileStore
+ * @see SharedDirectoryTileStore
+ * @author Jon Blower
+ */
+interface DiskTileStore
+{
+    /**
+     * Receives notifications of the tiles that a store discards of its own
+     * accord, i.e. tiles that have expired or have been evicted to keep the
+     * store within budget.
+     */
+    interface Listener
+    {
+        void tileDiscarded(TileCacheKey key);
+    }
+
+    /**
+     * Returns the keys of the tiles that were in this store when it was
+     * opened and which this node knows about.  This may take a long time for
+     * a large store, so is not called on the thread that starts the server.
+     */
+    Collection<TileCacheKey> getKeys();
+
+    /** Adds the given tile to the store, if it is not already present */
+    void put(TileCacheKey key, CachedTile tile);
+
+    /** Returns the unexpired tile with the given key, or null if there is none */
+    CachedTile get(TileCacheKey key);
+
+    /**
+     * Returns true if this store contains a tile with the given key, without
+     * affecting its recently-used status.  The tile may have expired.
+     */
+    boolean contains(TileCacheKey key);
+
+    /** Removes the tile with the given key, returning true if it was present */
+    boolean remove(TileCacheKey key);
+
+    /** Sets the budget of this store, which may discard tiles straight away */
+    void setMaxBytes(long maxBytes);
+
+    long getMaxBytes();
+
+    /** Returns the (possibly approximate) total size of the tiles in this store */
+    long getNumBytes();
+
+    /** Returns the (possibly approximate) number of tiles in this store */
+    int getNumTiles();
+
+    /** Closes the store, persisting its contents */
+    void shutdown();
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.DiskStoreConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+/**
+ * A {@link DiskTileStore} that uses the disk store of
+ * <a href="http://ehcache.sf.net">EHCache</a>, private to this server.
+ * Ehcache can only count the number of elements on disk, so we account for
+ * the sizes of the tiles ourselves, in a {@link SizedLruMap} that also records
+ * their recently-used status.
+ *
+ * @author Jon Blower
+ */
+final class EhcacheTileStore implements DiskTileStore
+{
+    private static final String CACHE_NAME = "tilecache";
+
+    private final CacheManager cacheManager;
+    private final Cache cache;
+    private final Listener listener;
+
+    /** The sizes of the tiles in the store, in order of use */
+    private final SizedLruMap<TileCacheKey, Boolean> sizes;
+
+    /** The keys of the tiles that were persisted from a previous run */
+    private final List<TileCacheKey> persistedKeys = new ArrayList<TileCacheKey>();
+
+    /**
+     * Opens the store in the given directory.
+     * @param directory The location of the ehcache disk store
+     * @param maxBytes The budget of the store in bytes
+     * @param listener Will be notified when tiles are discarded
+     */
+    EhcacheTileStore(File directory, long maxBytes, Listener listener)
+    {
+        this.listener = listener;
+        this.sizes = new SizedLruMap<TileCacheKey, Boolean>(maxBytes);
+
+        // Setting the location of the disk store programmatically is tedious,
+        // requiring the creation of lots of objects...
+        Configuration tileCacheConfig = new Configuration();
+        DiskStoreConfiguration diskStoreConfig = new DiskStoreConfiguration();
+        diskStoreConfig.setPath(directory.getPath());
+        tileCacheConfig.addDiskStore(diskStoreConfig);
+        tileCacheConfig.addDefaultCache(new CacheConfiguration());
+        this.cacheManager = new CacheManager(tileCacheConfig);
+
+        this.cache = new Cache(
+            CACHE_NAME,                     // Name for the cache
+            1,                              // Elements go straight to disk
+            MemoryStoreEvictionPolicy.LRU,  // evict least-recently-used elements
+            true,                           // Use the disk store
+            "",                             // disk store path (ignored)
+            false,                          // elements are not eternal
+            0,                              // lifetime is set for each element
+            0,                              // Ignore time since last access/modification
+            true,                           // Will persist cache to disk in between JVM restarts
+            1000,                           // number of seconds between clearouts of disk store
+            null,                           // no registered event listeners
+            null,                           // no bootstrap cache loader
+            0                               // The size of the disk store is managed by us
+        );
+        this.cacheManager.addCache(this.cache);
+
+        // Account for the tiles that have been persisted from a previous run
+        for (Object key : this.cache.getKeys())
+        {
+            if (key instanceof TileCacheKey)
+            {
+                TileCacheKey tileKey = (TileCacheKey)key;
+                this.sizes.put(tileKey, Boolean.TRUE, TileCache.getSize(tileKey.getNumPoints()));
+                this.persistedKeys.add(tileKey);
+            }
+        }
+        this.cache.getCacheEventNotificationService().registerListener(new ExpiryListener());
+        // In case the budget has been reduced since the last run
+        this.discard(this.sizes.setMaxBytes(maxBytes));
+    }
+
+    @Override
+    public Collection<TileCacheKey> getKeys()
+    {
+        return this.persistedKeys;
+    }
+
+    @Override
+    public void put(TileCacheKey key, CachedTile tile)
+    {
+        if (this.sizes.containsKey(key)) return;
+        long lifetimeMillis = tile.expiryTime - System.currentTimeMillis();
+        if (lifetimeMillis < 1000) return;
+        this.cache.put(new Element(key, tile.data, Boolean.FALSE,
+            0, (int)Math.min(Integer.MAX_VALUE, lifetimeMillis / 1000)));
+        this.discard(this.sizes.put(key, Boolean.TRUE, TileCache.getSize(tile.data.length)));
+    }
+
+    @Override
+    public CachedTile get(TileCacheKey key)
+    {
+        // Marks the tile as recently used
+        if (this.sizes.get(key) == null) return null;
+        Element el = this.cache.get(key);
+        if (el == null)
+        {
+            // Ehcache has expired the element
+            this.sizes.remove(key);
+            return null;
+        }
+        // Tiles cached by older versions of ncWMS hold arrays of Float objects:
+        // these are discarded
+        if (!(el.getObjectValue() instanceof float[]))
+        {
+            this.remove(key);
+            return null;
+        }
+        return new CachedTile((float[])el.getObjectValue(), el.getExpirationTime());
+    }
+
+    @Override
+    public boolean contains(TileCacheKey key)
+    {
+        return this.sizes.containsKey(key);
+    }
+
+    @Override
+    public boolean remove(TileCacheKey key)
+    {
+        if (this.sizes.remove(key) == null) return false;
+        this.cache.remove(key);
+        return true;
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes)
+    {
+        this.discard(this.sizes.setMaxBytes(maxBytes));
+    }
+
+    @Override
+    public long getMaxBytes()
+    {
+        return this.sizes.getMaxBytes();
+    }
+
+    @Override
+    public long getNumBytes()
+    {
+        return this.sizes.getNumBytes();
+    }
+
+    @Override
+    public int getNumTiles()
+    {
+        return this.sizes.size();
+    }
+
+    @Override
+    public void shutdown()
+    {
+        this.cacheManager.shutdown();
+    }
+
+    /** Removes the given tiles, which have been evicted to keep within budget */
+    private void discard(List<Map.Entry<TileCacheKey, Boolean>> tiles)
+    {
+        for (Map.Entry<TileCacheKey, Boolean> entry : tiles)
+        {
+            this.cache.remove(entry.getKey());
+            this.listener.tileDiscarded(entry.getKey());
+        }
+    }
+
+    /**
+     * Keeps the accounting up to date when ehcache expires tiles on disk.
+     */
+    private final class ExpiryListener implements CacheEventListener
+    {
+        private void expired(Element element)
+        {
+            if (!(element.getObjectKey() instanceof TileCacheKey)) return;
+            TileCacheKey key = (TileCacheKey)element.getObjectKey();
+            if (sizes.remove(key) != null) listener.tileDiscarded(key);
+        }
+
+        @Override
+        public void notifyElementExpired(Ehcache cache, Element element)
+        {
+            this.expired(element);
+        }
+
+        @Override
+        public void notifyElementEvicted(Ehcache cache, Element element)
+        {
+            this.expired(element);
+        }
+
+        // We make all the other changes to the store ourselves
+        @Override
+        public void notifyElementPut(Ehcache cache, Element element) throws CacheException {}
+
+        @Override
+        public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {}
+
+        @Override
+        public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {}
+
+        @Override
+        public void notifyRemoveAll(Ehcache cache) {}
+
+        @Override
+        public void dispose() {}
+
+        @Override
+        public Object clone() throws CloneNotSupportedException
+        {
+            throw new CloneNotSupportedException();
+        }
+    }
+}
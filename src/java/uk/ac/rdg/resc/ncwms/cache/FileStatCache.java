@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+
+/**
+ * <p>Short-lived cache of the last-modified times and sizes of local files.
+ * A {@link TileCacheKey} needs these values to detect changes to the underlying
+ * data, but querying the filesystem on every GetMap request is costly,
+ * particularly on network filesystems.  Each entry in this cache is trusted
+ * for {@link #TTL_MILLIS} milliseconds, after which the file is examined
+ * again.</p>
+ * <p>This means that a change to a data file may not be noticed by the
+ * {@link TileCache} for up to {@link #TTL_MILLIS} milliseconds.  Any
+ * reloading of the parent dataset's metadata will take much longer than this,
+ * so in practice this does not weaken the consistency of the cache.</p>
+ * <p>The same stats identify the version of the data in a local file for
+ * other caches of information about the data (see {@link #getVersion(java.lang.String)}).</p>
+ * <p>Entries that have not been checked for {@link #MAX_AGE_MILLIS}
+ * milliseconds are discarded, so that the cache doesn't grow without limit
+ * as the files of aggregations are added and removed.  OPeNDAP locations are
+ * never examined or cached.</p>
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+public final class FileStatCache
+{
+    /** The length of time for which the stats of a file will be trusted */
+    static final long TTL_MILLIS = 5000;
+
+    /** Entries that have not been checked for this long are discarded */
+    static final long MAX_AGE_MILLIS = 4 * TTL_MILLIS;
+
+    /** Maps file paths to the most recently-observed stats of the file */
+    private static final ConcurrentMap<String, FileStat> STATS =
+        new ConcurrentHashMap<String, FileStat>();
+
+    /** The time at which old entries were last discarded */
+    private static final AtomicLong LAST_PRUNED = new AtomicLong(0);
+
+    /** Prevents direct instantiation */
+    private FileStatCache() { throw new AssertionError(); }
+
+    /**
+     * Gets the stats of the file at the given path, only examining the
+     * filesystem if we don't have recent information about the file.
+     * @return the stats of the file.  If there is no file at this location
+     * on the server (e.g. the path is an OPeNDAP URL) the size and last-modified
+     * time will both be zero.
+     * @throws IllegalArgumentException if the given filepath exists on the server
+     * but does not represent a file (e.g. it is a directory)
+     */
+    static FileStat getStat(String filepath)
+    {
+        if (WmsUtils.isOpendapLocation(filepath)) return FileStat.NONE;
+        long now = System.currentTimeMillis();
+        FileStat stat = STATS.get(filepath);
+        if (stat == null || now - stat.timeChecked > TTL_MILLIS)
+        {
+            stat = FileStat.examine(filepath, now);
+            STATS.put(filepath, stat);
+            // Only one thread prunes the cache at a time, at most once per TTL
+            long lastPruned = LAST_PRUNED.get();
+            if (now - lastPruned > TTL_MILLIS && LAST_PRUNED.compareAndSet(lastPruned, now))
+            {
+                prune(now);
+            }
+        }
+        if (stat.isDirectory)
+        {
+            throw new IllegalArgumentException(filepath +
+                " exists but is not a valid file on this server");
+        }
+        return stat;
+    }
+
+    /**
+     * Returns a number that identifies the current version of the local file
+     * at the given path, which changes when the size or last-modified time of
+     * the file changes.  Like {@link #getStat(java.lang.String)}, this may not
+     * reflect changes that were made less than {@link #TTL_MILLIS} milliseconds ago.
+     * @return a non-negative number identifying the version of the file, or
+     * -1 if there is no file at this location on the server (e.g. the path is
+     * an OPeNDAP URL) or the path is not a file
+     */
+    public static long getVersion(String filepath)
+    {
+        FileStat stat;
+        try
+        {
+            stat = getStat(filepath);
+        }
+        catch (IllegalArgumentException iae)
+        {
+            return -1;
+        }
+        if (stat.lastModified == 0 && stat.size == 0) return -1;
+        // Files are not modified many times per millisecond, so a change
+        // to the file will almost certainly change this number
+        return (stat.lastModified * 1000003 + stat.size) & Long.MAX_VALUE;
+    }
+
+    /**
+     * Forgets all the information about the file at the given path, forcing
+     * the filesystem to be checked on the next call to {@link #getStat(java.lang.String)}.
+     */
+    public static void invalidate(String filepath)
+    {
+        STATS.remove(filepath);
+    }
+
+    /** Discards the entries that have not been checked for {@link #MAX_AGE_MILLIS} */
+    static void prune(long now)
+    {
+        Iterator<Map.Entry<String, FileStat>> it = STATS.entrySet().iterator();
+        while (it.hasNext())
+        {
+            if (now - it.next().getValue().timeChecked > MAX_AGE_MILLIS) it.remove();
+        }
+    }
+
+    /** Returns the number of files in the cache */
+    static int size()
+    {
+        return STATS.size();
+    }
+
+    /** Immutable record of the size and last-modified time of a file. */
+    static final class FileStat
+    {
+        /** The stats of a location that is not a file on this server */
+        static final FileStat NONE = new FileStat(0L, 0L, false, 0L);
+
+        /** Last modified time of the file in milliseconds since the epoch */
+        final long lastModified;
+        /** Size of the file in bytes */
+        final long size;
+        private final boolean isDirectory;
+        private final long timeChecked;
+
+        private FileStat(long lastModified, long size, boolean isDirectory, long timeChecked)
+        {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.isDirectory = isDirectory;
+            this.timeChecked = timeChecked;
+        }
+
+        private static FileStat examine(String filepath, long now)
+        {
+            File f = new File(filepath);
+            if (!f.exists()) return new FileStat(0L, 0L, false, now);
+            if (!f.isFile()) return new FileStat(0L, 0L, true, now);
+            return new FileStat(f.lastModified(), f.length(), false, now);
+        }
+    }
+}
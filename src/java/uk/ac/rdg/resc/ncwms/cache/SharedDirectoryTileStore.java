@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A {@link DiskTileStore} that keeps each tile in its own file in a directory
+ * that can be shared between several ncWMS servers (e.g. on a network
+ * filesystem), so that a tile that has been read by one server can be used by
+ * all of them, and so that a restarted server does not start with an empty
+ * cache.</p>
+ * <p>The files are content-addressed: the name of each file is the SHA-1 hash
+ * of the {@link TileCacheKey}, which identifies the data exactly.  The data
+ * for a given key therefore never change, so no locking is needed between
+ * servers.  Tiles are written to a temporary file that is then renamed, so
+ * readers never see partially-written files, and are read without any locking.
+ * The last-modified time of each file records when it was last used.  The
+ * header of each file holds the full key of the tile, which is checked when
+ * the tile is read and from which the index of the {@link TileCache} is
+ * rebuilt when the server is restarted.</p>
+ * <p>Only tiles from datasets of local files (single files and glob
+ * aggregations) are shared: their keys record the size and last-modified time
+ * of the file, which are the same on every server.  The keys of tiles from
+ * OPeNDAP datasets and NcML aggregations record the time at which this server
+ * loaded the dataset, so no other server will ever request them.  They are
+ * still written to the directory, which is this server's disk store, but are
+ * not read back when the store is reopened (the dataset will have been
+ * reloaded) and are deleted by the sweep once they are no longer used.</p>
+ * <p>The keys are read from the directory only when the store is opened.
+ * Tiles written by other servers after that can be read by this server (since
+ * the name of the file is derived from the key), but are not in the index of
+ * its {@link TileCache}, so they are not used to
+ * {@link TileCache#derive derive} other tiles and are not removed by this
+ * server when their dataset is reloaded or removed.  (They are never used
+ * incorrectly, since their keys hold the size and last-modified time of the
+ * file, and they are deleted by the sweep once they are no longer used.)</p>
+ * <p>A background thread periodically sweeps the directory, deleting files
+ * that have not been used for longer than the lifetime of a tile and then
+ * the least-recently-used files until the directory is within budget.  Each
+ * server sweeps the directory independently: it does not matter if two
+ * servers try to delete the same file.</p>
+ *
+ * @author Jon Blower
+ */
+final class SharedDirectoryTileStore implements DiskTileStore
+{
+    private static final Logger logger = LoggerFactory.getLogger(SharedDirectoryTileStore.class);
+
+    /** Identifies a tile file ("ncTC") */
+    private static final int MAGIC_NUMBER = 0x6e635443;
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String TILE_SUFFIX = ".tile";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    /** Temporary files older than this were left behind by a failed write */
+    private static final long MAX_TEMP_FILE_AGE_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * We only update the last-modified time of a file when it is read if it
+     * has not been updated for this long, to avoid writing to the
+     * filesystem on every read
+     */
+    private static final long TOUCH_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final Listener listener;
+    private volatile long maxBytes;
+    private volatile long maxIdleMillis;
+
+    /** The results of the last sweep, updated as this server adds tiles */
+    private final AtomicLong numBytes = new AtomicLong(0);
+    private final AtomicInteger numTiles = new AtomicInteger(0);
+
+    /**
+     * The keys of the tiles that this server has added or found when the
+     * store was opened, mapped by their hashes, so that we can notify the
+     * listener when they are discarded
+     */
+    private final ConcurrentMap<String, TileCacheKey> localKeys =
+        new ConcurrentHashMap<String, TileCacheKey>();
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     * @param directory The shared directory
+     * @param maxBytes The budget of the store in bytes
+     * @param maxIdleMillis Files that have not been used for this long will be
+     * deleted.  This can be changed with {@link #setMaxIdleMillis(long)}.
+     * @param listener Will be notified when tiles added by this server are discarded
+     * @throws IllegalArgumentException if the directory cannot be created
+     */
+    SharedDirectoryTileStore(File directory, long maxBytes, long maxIdleMillis, Listener listener)
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IllegalArgumentException("Cannot create shared tile cache directory "
+                + directory.getPath());
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxIdleMillis = maxIdleMillis;
+        this.listener = listener;
+        this.sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try
+                {
+                    sweep();
+                }
+                catch (RuntimeException re)
+                {
+                    // Make sure that the sweeper keeps running
+                    logger.error("Error sweeping shared tile cache", re);
+                }
+            }
+        }, 0, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        logger.info("Using shared tile cache in {}", directory.getPath());
+    }
+
+    /**
+     * Reads the keys of the unexpired tiles from local files in the directory
+     * from the headers of the files, deleting files that are expired or
+     * corrupt.  This reads every file in the directory, so stops early
+     * (returning the keys read so far) if the calling thread is interrupted.
+     */
+    @Override
+    public Collection<TileCacheKey> getKeys()
+    {
+        List<TileCacheKey> keys = new ArrayList<TileCacheKey>();
+        long now = System.currentTimeMillis();
+        File[] subdirs = this.directory.listFiles();
+        if (subdirs == null) return keys;
+        for (File subdir : subdirs)
+        {
+            File[] subdirFiles = subdir.listFiles();
+            if (subdirFiles == null) continue;
+            if (Thread.currentThread().isInterrupted()) break;
+            for (File file : subdirFiles)
+            {
+                String name = file.getName();
+                if (!name.endsWith(TILE_SUFFIX)) continue;
+                String hash = name.substring(0, name.length() - TILE_SUFFIX.length());
+                TileCacheKey key;
+                try
+                {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file)));
+                    try
+                    {
+                        if (readExpiryTime(in) < now)
+                        {
+                            file.delete();
+                            continue;
+                        }
+                        key = TileCacheKey.read(in);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    logger.warn("Corrupt file {} in shared tile cache: deleting", file.getPath());
+                    file.delete();
+                    continue;
+                }
+                // Ignore files that have been renamed or copied into the
+                // wrong place
+                if (!hash.equals(hash(key))) continue;
+                // This tile was read for a dataset that has since been reloaded
+                if (key.isKeyedOnDatasetLoad()) continue;
+                this.localKeys.put(hash, key);
+                keys.add(key);
+            }
+        }
+        logger.debug("Read {} keys from shared tile cache", keys.size());
+        return keys;
+    }
+
+    @Override
+    public void put(TileCacheKey key, CachedTile tile)
+    {
+        String hash = hash(key);
+        File file = this.getFile(hash);
+        if (file.exists()) return;
+        if (tile.expiryTime - System.currentTimeMillis() < 1000) return;
+        File dir = file.getParentFile();
+        File tempFile = null;
+        try
+        {
+            if (!dir.isDirectory()) dir.mkdirs();
+            tempFile = File.createTempFile(hash, TEMP_SUFFIX, dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+            try
+            {
+                out.writeInt(MAGIC_NUMBER);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(tile.expiryTime);
+                key.write(out);
+                out.writeInt(tile.data.length);
+                for (float val : tile.data) out.writeFloat(val);
+            }
+            finally
+            {
+                out.close();
+            }
+            // The rename is atomic.  If it fails, another server has
+            // probably written the same tile in the meantime.
+            if (tempFile.renameTo(file))
+            {
+                tempFile = null;
+                this.localKeys.put(hash, key);
+                this.numBytes.addAndGet(file.length());
+                this.numTiles.incrementAndGet();
+            }
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Error writing tile to shared cache: " + ioe.getMessage());
+        }
+        finally
+        {
+            if (tempFile != null) tempFile.delete();
+        }
+    }
+
+    @Override
+    public CachedTile get(TileCacheKey key)
+    {
+        String hash = hash(key);
+        File file = this.getFile(hash);
+        byte[] bytes;
+        try
+        {
+            bytes = readFully(file);
+        }
+        catch (IOException ioe)
+        {
+            // The file does not exist (or has just been deleted)
+            return null;
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            long expiryTime = readExpiryTime(in);
+            TileCacheKey storedKey = TileCacheKey.read(in);
+            int numPoints = in.readInt();
+            if (!storedKey.equals(key))
+            {
+                // A hash collision: vanishingly unlikely
+                return null;
+            }
+            if (System.currentTimeMillis() > expiryTime)
+            {
+                this.remove(key);
+                return null;
+            }
+            float[] data = new float[numPoints];
+            int offset = bytes.length - in.available();
+            ByteBuffer.wrap(bytes, offset, 4 * numPoints).asFloatBuffer().get(data);
+            // Record the fact that the file has been used
+            long now = System.currentTimeMillis();
+            if (now - file.lastModified() > TOUCH_INTERVAL_MILLIS) file.setLastModified(now);
+            return new CachedTile(data, expiryTime);
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Corrupt file {} in shared tile cache: deleting", file.getPath());
+            this.remove(key);
+            return null;
+        }
+        catch (RuntimeException re)
+        {
+            // e.g. a BufferUnderflowException from a truncated file
+            logger.warn("Corrupt file {} in shared tile cache: deleting", file.getPath());
+            this.remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean contains(TileCacheKey key)
+    {
+        return this.getFile(hash(key)).exists();
+    }
+
+    @Override
+    public boolean remove(TileCacheKey key)
+    {
+        String hash = hash(key);
+        this.localKeys.remove(hash);
+        return this.getFile(hash).delete();
+    }
+
+    @Override
+    public void setMaxBytes(long maxBytes)
+    {
+        long oldMaxBytes = this.maxBytes;
+        this.maxBytes = maxBytes;
+        // Sweep straight away if the budget has been reduced
+        if (maxBytes < oldMaxBytes) this.sweeper.submit(new Runnable() {
+            @Override public void run() { sweep(); }
+        });
+    }
+
+    /** Sets the time after which unused files are deleted */
+    void setMaxIdleMillis(long maxIdleMillis)
+    {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    @Override
+    public long getMaxBytes()
+    {
+        return this.maxBytes;
+    }
+
+    @Override
+    public long getNumBytes()
+    {
+        return this.numBytes.get();
+    }
+
+    @Override
+    public int getNumTiles()
+    {
+        return this.numTiles.get();
+    }
+
+    /** Stops the sweeper.  The files stay in the directory. */
+    @Override
+    public void shutdown()
+    {
+        this.sweeper.shutdownNow();
+    }
+
+    /**
+     * Deletes unused and least-recently-used files until the directory is
+     * within budget, and recalculates the size of the store.
+     */
+    synchronized void sweep()
+    {
+        long now = System.currentTimeMillis();
+        List<File> files = new ArrayList<File>();
+        final List<Long> lastModifieds = new ArrayList<Long>();
+        long totalBytes = 0;
+        File[] subdirs = this.directory.listFiles();
+        if (subdirs == null) return;
+        for (File subdir : subdirs)
+        {
+            File[] subdirFiles = subdir.listFiles();
+            if (subdirFiles == null) continue;
+            for (File file : subdirFiles)
+            {
+                long lastModified = file.lastModified();
+                String name = file.getName();
+                if (name.endsWith(TEMP_SUFFIX))
+                {
+                    if (now - lastModified > MAX_TEMP_FILE_AGE_MILLIS) file.delete();
+                }
+                else if (name.endsWith(TILE_SUFFIX))
+                {
+                    if (now - lastModified > this.maxIdleMillis)
+                    {
+                        this.delete(file);
+                    }
+                    else
+                    {
+                        files.add(file);
+                        lastModifieds.add(lastModified);
+                        totalBytes += file.length();
+                    }
+                }
+            }
+        }
+
+        int numFiles = files.size();
+        if (totalBytes > this.maxBytes)
+        {
+            // Sort the files in order of last use, using the times we have
+            // already read (they may change while we sort)
+            List<Integer> order = new ArrayList<Integer>(numFiles);
+            for (int i = 0; i < numFiles; i++) order.add(i);
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override public int compare(Integer i1, Integer i2) {
+                    return lastModifieds.get(i1).compareTo(lastModifieds.get(i2));
+                }
+            });
+            for (int i = 0; i < order.size() && totalBytes > this.maxBytes; i++)
+            {
+                File file = files.get(order.get(i));
+                long length = file.length();
+                if (this.delete(file))
+                {
+                    totalBytes -= length;
+                    numFiles--;
+                }
+            }
+        }
+        this.numBytes.set(totalBytes);
+        this.numTiles.set(numFiles);
+        logger.debug("Swept shared tile cache: {} tiles, {} bytes", numFiles, totalBytes);
+    }
+
+    /** Deletes the given tile file, notifying the listener if we added the tile */
+    private boolean delete(File file)
+    {
+        boolean deleted = file.delete();
+        String name = file.getName();
+        TileCacheKey key = this.localKeys.remove(name.substring(0, name.length() - TILE_SUFFIX.length()));
+        if (key != null) this.listener.tileDiscarded(key);
+        return deleted;
+    }
+
+    /**
+     * Reads the start of the header of a tile file, returning the expiry time
+     * of the tile.  The key of the tile follows.
+     * @throws IOException if the file is not a tile file in the current format
+     */
+    private static long readExpiryTime(DataInputStream in) throws IOException
+    {
+        if (in.readInt() != MAGIC_NUMBER || in.readInt() != FORMAT_VERSION)
+        {
+            throw new IOException("Not a tile file");
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Returns the file for the tile with the given hash.  The files are spread
+     * over 256 subdirectories to keep the directories small.
+     */
+    private File getFile(String hash)
+    {
+        return new File(new File(this.directory, hash.substring(0, 2)), hash + TILE_SUFFIX);
+    }
+
+    /** Returns the SHA-1 hash of the given key as a hexadecimal string */
+    private static String hash(TileCacheKey key)
+    {
+        byte[] digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // Every Java platform must support SHA-1
+            throw new AssertionError(nsae);
+        }
+        catch (IOException ioe)
+        {
+            // Every Java platform must support UTF-8
+            throw new AssertionError(ioe);
+        }
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++)
+        {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static byte[] readFully(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            long length = file.length();
+            byte[] bytes = new byte[(int)length];
+            int offset = 0;
+            while (offset < bytes.length)
+            {
+                int n = in.read(bytes, offset, bytes.length - offset);
+                if (n < 0) throw new IOException("Unexpected end of file");
+                offset += n;
+            }
+            return bytes;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
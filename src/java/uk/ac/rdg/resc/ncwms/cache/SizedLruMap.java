@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A map whose capacity is a number of bytes rather than a number of entries.
+ * Each entry is stored with its size in bytes and, when the total size of the
+ * entries exceeds the budget, the least-recently-used entries are evicted
+ * until the map fits.  The evicted entries are returned to the caller, which
+ * may wish to store them elsewhere (e.g. on disk).</p>
+ * <p>The budget can be changed at any time.  This class is thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+final class SizedLruMap<K, V>
+{
+    /** Entries in order of access, least recently used first */
+    private final LinkedHashMap<K, Sized<V>> entries =
+        new LinkedHashMap<K, Sized<V>>(16, 0.75f, true);
+
+    private long maxBytes;
+    private long numBytes = 0;
+
+    /** Creates a map with the given budget in bytes */
+    SizedLruMap(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the value with the given key, marking it as recently used, or
+     * returns null if there is no such value.
+     */
+    synchronized V get(K key)
+    {
+        Sized<V> entry = this.entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /** Returns true if this map contains the given key, without affecting its status */
+    synchronized boolean containsKey(K key)
+    {
+        return this.entries.containsKey(key);
+    }
+
+    /**
+     * Adds the given value to this map, replacing any existing value with the
+     * same key, then evicts least-recently-used entries until the map is within
+     * budget.  If the entry is larger than the whole budget it is not stored,
+     * and is returned as the only evicted entry.
+     * @return the entries that were evicted, which may include the new entry
+     * (but not an entry that it replaced)
+     */
+    synchronized List<Map.Entry<K, V>> put(K key, V value, long size)
+    {
+        this.remove(key);
+        if (size > this.maxBytes)
+        {
+            return Collections.<Map.Entry<K, V>>singletonList(new Evicted<K, V>(key, value));
+        }
+        this.entries.put(key, new Sized<V>(value, size));
+        this.numBytes += size;
+        return this.evict();
+    }
+
+    /** Removes the entry with the given key, returning its value or null */
+    synchronized V remove(K key)
+    {
+        Sized<V> entry = this.entries.remove(key);
+        if (entry == null) return null;
+        this.numBytes -= entry.size;
+        return entry.value;
+    }
+
+    /**
+     * Sets the budget of this map, evicting least-recently-used entries if
+     * the map no longer fits.
+     * @return the entries that were evicted
+     */
+    synchronized List<Map.Entry<K, V>> setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        return this.evict();
+    }
+
+    /** Evicts the least-recently-used entries until the map is within budget */
+    private List<Map.Entry<K, V>> evict()
+    {
+        if (this.numBytes <= this.maxBytes) return Collections.emptyList();
+        List<Map.Entry<K, V>> evicted = new ArrayList<Map.Entry<K, V>>();
+        Iterator<Map.Entry<K, Sized<V>>> it = this.entries.entrySet().iterator();
+        while (this.numBytes > this.maxBytes && it.hasNext())
+        {
+            Map.Entry<K, Sized<V>> entry = it.next();
+            it.remove();
+            this.numBytes -= entry.getValue().size;
+            evicted.add(new Evicted<K, V>(entry.getKey(), entry.getValue().value));
+        }
+        return evicted;
+    }
+
+    synchronized long getMaxBytes()
+    {
+        return this.maxBytes;
+    }
+
+    /** Returns the total size of the entries in this map in bytes */
+    synchronized long getNumBytes()
+    {
+        return this.numBytes;
+    }
+
+    /** Returns the number of entries in this map */
+    synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    /** Removes all the entries from this map */
+    synchronized void clear()
+    {
+        this.entries.clear();
+        this.numBytes = 0;
+    }
+
+    private static final class Sized<V>
+    {
+        private final V value;
+        private final long size;
+
+        private Sized(V value, long size)
+        {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static final class Evicted<K, V> implements Map.Entry<K, V>
+    {
+        private final K key;
+        private final V value;
+
+        private Evicted(K key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override public K getKey() { return this.key; }
+
+        @Override public V getValue() { return this.value; }
+
+        @Override public V setValue(V value) { throw new UnsupportedOperationException(); }
+    }
+}
@@ -29,22 +29,27 @@
 package uk.ac.rdg.resc.ncwms.cache;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.config.CacheConfiguration;
-import net.sf.ehcache.config.Configuration;
-import net.sf.ehcache.config.DiskStoreConfiguration;
-import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+import java.util.Map;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.edal.cdm.PixelMap;
+import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
 import uk.ac.rdg.resc.ncwms.config.Config;
+import uk.ac.rdg.resc.ncwms.config.Dataset;
 
 /**
- * <p>Uses the <a href="http://ehcache.sf.net">EHCache</a> software to cache
- * arrays of data that have been extracted.  This cache reduces the load on the server
+ * <p>Caches arrays of data that have been extracted.  This cache reduces the load on the server
  * in cases where clients make the same requests for data multiple times.  This 
  * happens commonly when clients use a tiling WMS interface such as OpenLayers or
  * Google Maps.  Since the cache stores data arrays and not images, clients can
@@ -53,6 +58,23 @@ import uk.ac.rdg.resc.ncwms.config.Config;
  * of the Godiva2 website, which allows the user to change the colour scale
  * of an image to increase (or reduce) contrast.</p>
  *
+ * <p>The capacity of the cache is set in megabytes for memory and for disk, so
+ * that the cache has a predictable footprint however large the tiles are.
+ * The data arrays are held in memory as arrays of primitive floats, with
+ * missing values represented as NaNs, and the size of each array is accounted
+ * against the memory budget.  When the budget is exceeded, the least-recently-used
+ * arrays overflow to the {@link DiskTileStore disk store}, which is persisted
+ * between restarts of the server.  The disk store has its own budget, beyond which
+ * least-recently-used arrays are discarded.  Both budgets (and the lifetime of
+ * the arrays) are read from the {@link uk.ac.rdg.resc.ncwms.config.Config Config}
+ * whenever data are added to the cache, so they can be changed through the
+ * administrative interface while the server is running.</p>
+ *
+ * <p>By default the disk store is provided by <a href="http://ehcache.sf.net">EHCache</a>
+ * and is private to this server.  If a shared directory is set in the
+ * configuration, the tiles are instead stored as files in this directory,
+ * which can be shared by several servers (see {@link SharedDirectoryTileStore}).</p>
+ *
  * <p>It is of course important to ensure that the cache remains consistent with
  * the underlying data.  We wish to avoid, as far as possible, the situation where
  * cached data are used incorrectly because the underlying data have changed.
@@ -80,9 +102,21 @@ import uk.ac.rdg.resc.ncwms.config.Config;
  * is still possible but is made less likely by this mechanism.)</li>
  * </ol>
  *
- * <p>Items are never explicitly removed from the cache by the ncWMS code: ehcache
- * does the clean-up in a background thread using a least-recently-used (LRU)
- * algorithm.</p>
+ * <p>These measures ensure that stale data are never used, but the stale data
+ * would still occupy space in the cache until they expire.  Therefore, whenever
+ * a dataset is reloaded, we remove from the cache all the tiles from files that
+ * have changed (or all the tiles from the dataset, for OPeNDAP datasets and
+ * NcML aggregations).  When a dataset is removed from the server, all its
+ * tiles are removed from the cache.  These tiles are found efficiently through
+ * a secondary index of the cache keys, grouped by dataset and file.  The
+ * {@link uk.ac.rdg.resc.ncwms.config.TileSeeder TileSeeder} does this on its
+ * background thread, so that the threads that reload and remove datasets
+ * are not held up by the sweep.</p>
+ *
+ * <p>The index also holds the keys by the field of data that they come from
+ * and their position, so that a requested tile that is not in the cache can
+ * often be {@link #derive derived} from a cached tile that covers the same
+ * area at a finer resolution.</p>
  *
  * @author Jon Blower
  */
@@ -90,10 +124,29 @@ public class TileCache
 {
     private static final Logger logger = LoggerFactory.getLogger(TileCache.class);
     
-    private static final String CACHE_NAME = "tilecache";
-    private static final Float[] EMPTY_FLOAT_ARRAY = new Float[0];
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /**
+     * Approximate number of bytes used by each tile in addition to its data
+     * (the key, the array header and the entries in the stores and the index)
+     */
+    private static final long TILE_OVERHEAD_BYTES = 512;
+
+    /** The maximum number of cached tiles that we try when deriving a tile */
+    private static final int MAX_DERIVATION_CANDIDATES = 3;
+
+    /** The relative difference below which pixels are considered to be the same size */
+    private static final double PIXEL_AREA_TOLERANCE = 1e-9;
 
-    private CacheManager cacheManager;
+    /** The tiles held in memory */
+    private final SizedLruMap<TileCacheKey, CachedTile> memoryStore =
+        new SizedLruMap<TileCacheKey, CachedTile>(0);
+
+    /** The tiles held on disk */
+    private DiskTileStore diskStore;
+
+    /** Index of the keys in the cache, grouped by dataset and file */
+    private final TileCacheIndex index = new TileCacheIndex();
 
     /** The location of the tile cache: will be injected by Spring */
     private File cacheDirectory;
@@ -101,44 +154,84 @@ public class TileCache
     /** The Config object containing the cache configuration: will be injected by Spring */
     private Config ncwmsConfig;
 
+    /** Reads the keys of the tiles in the disk store into the index */
+    private Thread indexer;
+
     /** Creates a TileCache in the given working directory. */
     public void init()
     {
-        // Setting the location of the disk store programmatically is tedious,
-        // requiring the creation of lots of objects...
-        Configuration tileCacheConfig = new Configuration();
-        DiskStoreConfiguration diskStore = new DiskStoreConfiguration();
-        diskStore.setPath(this.cacheDirectory.getPath());
-        tileCacheConfig.addDiskStore(diskStore);
-        tileCacheConfig.addDefaultCache(new CacheConfiguration());
-        this.cacheManager = new CacheManager(tileCacheConfig);
-        
-        Cache tileCache = new Cache(
-            CACHE_NAME,                                      // Name for the cache
-            ncwmsConfig.getCache().getMaxNumItemsInMemory(), // Maximum number of elements in memory
-            MemoryStoreEvictionPolicy.LRU,                   // evict least-recently-used elements
-            ncwmsConfig.getCache().isEnableDiskStore(),      // Use the disk store?
-            "",                                              // disk store path (ignored)
-            false,                                           // elements are not eternal
-            ncwmsConfig.getCache().getElementLifetimeMinutes() * 60, // Elements will last for this number of seconds in the cache
-            0,                                               // Ignore time since last access/modification
-            ncwmsConfig.getCache().isEnableDiskStore(),      // Will persist cache to disk in between JVM restarts
-            1000,                                            // number of seconds between clearouts of disk store
-            null,                                            // no registered event listeners
-            null,                                            // no bootstrap cache loader
-            ncwmsConfig.getCache().getMaxNumItemsOnDisk()    // Maximum number of elements on disk
-        );
-        
-        this.cacheManager.addCache(tileCache);
+        uk.ac.rdg.resc.ncwms.config.Cache cacheConfig = this.ncwmsConfig.getCache();
+        long maxBytesOnDisk = cacheConfig.getMaxMegabytesOnDisk() * BYTES_PER_MEGABYTE;
+        DiskTileStore.Listener listener = new DiskTileStore.Listener() {
+            @Override public void tileDiscarded(TileCacheKey key) {
+                if (!memoryStore.containsKey(key)) index.remove(key);
+            }
+        };
+        String sharedDirectory = cacheConfig.getSharedDirectory();
+        if (sharedDirectory == null || sharedDirectory.trim().equals(""))
+        {
+            this.diskStore = new EhcacheTileStore(this.cacheDirectory, maxBytesOnDisk, listener);
+        }
+        else
+        {
+            this.diskStore = new SharedDirectoryTileStore(new File(sharedDirectory.trim()),
+                maxBytesOnDisk, getLifetimeMillis(cacheConfig), listener);
+        }
+        // Reading the keys of a large disk store can take a long time, so we
+        // don't hold up the starting of the server.  The tiles can be read
+        // from the disk store in the meantime, but can't be used to derive
+        // other tiles or be removed when their datasets are reloaded until
+        // their keys are in the index.
+        this.indexer = new Thread("tile-cache-indexer") {
+            @Override public void run() {
+                try
+                {
+                    int numKeys = 0;
+                    for (TileCacheKey key : diskStore.getKeys())
+                    {
+                        index.add(key);
+                        numKeys++;
+                    }
+                    logger.info("Indexed {} tiles in the disk store", numKeys);
+                }
+                catch (RuntimeException re)
+                {
+                    logger.error("Error indexing the tiles in the disk store", re);
+                }
+            }
+        };
+        this.indexer.setDaemon(true);
+        this.indexer.start();
+        this.applyBudgets();
         logger.info("Tile cache started");
     }
+
+    /**
+     * Waits for the keys of the tiles in the disk store to be read into the
+     * index, returning true if this has been done.
+     */
+    boolean awaitIndex(long timeoutMillis) throws InterruptedException
+    {
+        this.indexer.join(timeoutMillis);
+        return !this.indexer.isAlive();
+    }
     
     /**
-     * Shuts down the cache
+     * Shuts down the cache, moving the tiles in memory to the disk store so
+     * that they persist until the server is restarted.
      */
     public void shutdown()
     {
-        this.cacheManager.shutdown();
+        this.indexer.interrupt();
+        List<Map.Entry<TileCacheKey, CachedTile>> tiles = this.memoryStore.setMaxBytes(0);
+        if (this.ncwmsConfig.getCache().isEnableDiskStore())
+        {
+            for (Map.Entry<TileCacheKey, CachedTile> tile : tiles)
+            {
+                this.diskStore.put(tile.getKey(), tile.getValue());
+            }
+        }
+        this.diskStore.shutdown();
         logger.info("Tile cache shut down");
     }
     
@@ -148,31 +241,364 @@ public class TileCache
      */
     public List<Float> get(TileCacheKey key)
     {
-        Cache cache = this.cacheManager.getCache(CACHE_NAME);
-        Element el = cache.get(key);
-        if (el == null)
+        CachedTile tile = this.getTile(key);
+        if (tile == null)
         {
             logger.debug("Not found in tile cache: {}", key);
             return null;
         }
-        else
+        logger.debug("Found in tile cache");
+        return CdmUtils.wrap(tile.data);
+    }
+
+    /**
+     * Gets the tile with the given key from memory or disk, moving it into
+     * memory if necessary, or returns null if the tile is not in the cache.
+     */
+    private CachedTile getTile(TileCacheKey key)
+    {
+        CachedTile tile = this.memoryStore.get(key);
+        if (tile != null && tile.isExpired())
+        {
+            this.remove(key);
+            tile = null;
+        }
+        if (tile == null && this.ncwmsConfig.getCache().isEnableDiskStore())
         {
-            logger.debug("Found in tile cache");
-            Float[] arr = (Float[])el.getValue();
-            return arr == null ? null : Arrays.asList(arr);
+            tile = this.diskStore.get(key);
+            // Copy the tile into memory, since it is in use
+            if (tile != null) this.putInMemory(key, tile);
+            else if (!this.memoryStore.containsKey(key)) this.index.remove(key);
         }
+        return tile;
+    }
+
+    /**
+     * <p>Derives an array of data for the given key from another tile in the
+     * cache, returning null if this is not possible.  This allows the cache
+     * to be used when clients request overlapping tiles of different sizes,
+     * such as 256x256 and 512x512 tiles, or zoom into a cached tile.</p>
+     * <p>The candidate tiles hold data from the same field, in the same CRS, and
+     * cover the bounding box of the requested tile.  We find the cell of the
+     * source grid that contains each pixel of the requested tile and each pixel
+     * of the candidate tile (which is exactly what the data reader does).  If
+     * every source cell needed by the requested tile is sampled by at least one
+     * pixel of the candidate tile, then the candidate tile holds all the source
+     * values we need, and the result is identical to reading the source data.
+     * The derived data are added to the cache.</p>
+     * <p>Candidate tiles whose pixels are larger than those of the requested
+     * tile are only tried if the source cells are larger still, since otherwise
+     * they can't sample every source cell.  This is checked before the (costly)
+     * pixel maps are built, so that a client zooming into a cached tile
+     * doesn't pay for a derivation that can't succeed.</p>
+     * @param key The key of the tile
+     * @param grid The grid of the tile, from which the key was created
+     * @param sourceGrid The horizontal grid of the source data
+     */
+    public List<Float> derive(TileCacheKey key, RegularGrid grid, HorizontalGrid sourceGrid)
+    {
+        List<TileCacheKey> candidates = new ArrayList<TileCacheKey>();
+        double pixelArea = key.getPixelArea();
+        double sourceCellArea = Double.NaN;
+        for (TileCacheKey cachedKey : this.index.getCoveringKeys(key))
+        {
+            double cachedPixelArea = cachedKey.getPixelArea();
+            if (cachedPixelArea > pixelArea * (1.0 + PIXEL_AREA_TOLERANCE))
+            {
+                if (Double.isNaN(sourceCellArea))
+                {
+                    sourceCellArea = estimateSourceCellArea(key, grid, sourceGrid);
+                }
+                if (cachedPixelArea > sourceCellArea) continue;
+            }
+            candidates.add(cachedKey);
+        }
+        if (candidates.isEmpty()) return null;
+        // The finest tiles are the most likely to sample all the source cells
+        Collections.sort(candidates, new Comparator<TileCacheKey>() {
+            @Override public int compare(TileCacheKey k1, TileCacheKey k2) {
+                return Double.compare(k1.getPixelArea(), k2.getPixelArea());
+            }
+        });
+
+        PixelMap pixelMap = new PixelMap(sourceGrid, grid);
+        for (int i = 0; i < candidates.size() && i < MAX_DERIVATION_CANDIDATES; i++)
+        {
+            TileCacheKey cachedKey = candidates.get(i);
+            // The candidate tile can't sample more source cells than it has pixels
+            if (cachedKey.getNumPoints() < pixelMap.getNumUniqueIJPairs()) continue;
+            CachedTile cachedTile = this.getTile(cachedKey);
+            if (cachedTile == null) continue;
+            PixelMap cachedPixelMap = new PixelMap(sourceGrid,
+                cachedKey.getGrid(grid.getCoordinateReferenceSystem()));
+            float[] data = resample(pixelMap, cachedPixelMap, cachedTile.data, key.getNumPoints());
+            if (data != null)
+            {
+                logger.debug("Derived tile {} from {}", key, cachedKey);
+                long lifetimeMillis = getLifetimeMillis(this.ncwmsConfig.getCache());
+                this.putInMemory(key, new CachedTile(data, System.currentTimeMillis() + lifetimeMillis));
+                return CdmUtils.wrap(data);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Estimates the area of the source cells within the given tile, in the
+     * units of the tile's CRS, from the source cells that contain the pixels
+     * at opposite corners of the tile.  Returns zero if either corner is
+     * outside the source grid.  This is only used to rule out tiles that can't
+     * be used for derivation: the result of the derivation doesn't depend on it.
+     */
+    private static double estimateSourceCellArea(TileCacheKey key, RegularGrid grid,
+        HorizontalGrid sourceGrid)
+    {
+        int width = grid.getXAxis().getSize();
+        int height = grid.getYAxis().getSize();
+        HorizontalPosition corner1 = grid.transformCoordinates(0, 0);
+        HorizontalPosition corner2 = grid.transformCoordinates(width - 1, height - 1);
+        GridCoordinates cell1 = sourceGrid.findNearestGridPoint(corner1);
+        GridCoordinates cell2 = sourceGrid.findNearestGridPoint(corner2);
+        if (cell1 == null || cell2 == null) return 0.0;
+        // The number of source cells in the tile, along each axis of the source grid
+        double ni = Math.abs(cell2.getCoordinateValue(0) - cell1.getCoordinateValue(0)) + 1;
+        double nj = Math.abs(cell2.getCoordinateValue(1) - cell1.getCoordinateValue(1)) + 1;
+        return key.getArea() / (ni * nj);
+    }
+
+    /**
+     * Copies the values of the source cells from the pixels of a cached tile
+     * to the pixels of a new tile, returning null if the cached tile does not
+     * sample all the source cells that the new tile needs.
+     * @param pixelMap Maps source cells to the pixels of the new tile
+     * @param cachedPixelMap Maps source cells to the pixels of the cached tile
+     * @param cachedData The data of the cached tile
+     * @param size The number of pixels in the new tile
+     */
+    private static float[] resample(PixelMap pixelMap, PixelMap cachedPixelMap,
+        float[] cachedData, int size)
+    {
+        float[] data = new float[size];
+        Arrays.fill(data, Float.NaN);
+        // The entries of both pixel maps are sorted by source cell, so we
+        // can step through them together
+        Iterator<PixelMap.PixelMapEntry> cachedEntries = cachedPixelMap.iterator();
+        PixelMap.PixelMapEntry cachedEntry = null;
+        for (PixelMap.PixelMapEntry entry : pixelMap)
+        {
+            while (cachedEntry == null || compareSourceCells(cachedEntry, entry) < 0)
+            {
+                if (!cachedEntries.hasNext()) return null;
+                cachedEntry = cachedEntries.next();
+            }
+            if (compareSourceCells(cachedEntry, entry) != 0) return null;
+            float val = cachedData[cachedEntry.getTargetGridPoints().get(0)];
+            for (int targetIndex : entry.getTargetGridPoints())
+            {
+                data[targetIndex] = val;
+            }
+        }
+        return data;
+    }
+
+    /** Compares the source cells of the given entries in the order used by PixelMap */
+    private static int compareSourceCells(PixelMap.PixelMapEntry e1, PixelMap.PixelMapEntry e2)
+    {
+        int j1 = e1.getSourceGridJIndex(), j2 = e2.getSourceGridJIndex();
+        if (j1 != j2) return j1 < j2 ? -1 : 1;
+        int i1 = e1.getSourceGridIIndex(), i2 = e2.getSourceGridIIndex();
+        return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
     }
     
+    /**
+     * Returns true if this cache contains an unexpired array of data matching
+     * the given key.  Unlike {@link #get(uk.ac.rdg.resc.ncwms.cache.TileCacheKey)},
+     * this does not affect the cache statistics or the recently-used status of
+     * the data.
+     */
+    public boolean contains(TileCacheKey key)
+    {
+        if (this.memoryStore.containsKey(key)) return true;
+        return this.ncwmsConfig.getCache().isEnableDiskStore() &&
+            this.diskStore.contains(key);
+    }
+
     /**
      * Adds an array of data to this cache.
      */
     public void put(TileCacheKey key, List<Float> data)
     {
-        Float[] arr = data.toArray(EMPTY_FLOAT_ARRAY);
-        this.cacheManager.getCache(CACHE_NAME).put(new Element(key, arr));
+        this.applyBudgets();
+        float[] arr = new float[data.size()];
+        int i = 0;
+        for (Float val : data)
+        {
+            arr[i++] = val == null ? Float.NaN : val.floatValue();
+        }
+        long lifetimeMillis = getLifetimeMillis(this.ncwmsConfig.getCache());
+        this.putInMemory(key, new CachedTile(arr, System.currentTimeMillis() + lifetimeMillis));
         logger.debug("Data put into tile cache: {}", key);
     }
 
+    /**
+     * Removes the array of data with the given key from this cache
+     * @return true if the cache contained the array
+     */
+    public boolean remove(TileCacheKey key)
+    {
+        boolean removed = this.memoryStore.remove(key) != null;
+        // Don't short-circuit: the tile may be in both stores
+        removed = this.diskStore.remove(key) | removed;
+        this.index.remove(key);
+        return removed;
+    }
+
+    /** Returns the total size of the data held in memory, in bytes */
+    public long getNumBytesInMemory()
+    {
+        return this.memoryStore.getNumBytes();
+    }
+
+    /** Returns the number of data arrays held in memory */
+    public int getNumTilesInMemory()
+    {
+        return this.memoryStore.size();
+    }
+
+    /** Returns the total size of the data held on disk, in bytes */
+    public long getNumBytesOnDisk()
+    {
+        return this.diskStore.getNumBytes();
+    }
+
+    /** Returns the number of data arrays held on disk */
+    public int getNumTilesOnDisk()
+    {
+        return this.diskStore.getNumTiles();
+    }
+
+    /**
+     * Sets the budgets of the memory and disk stores from the current
+     * configuration, evicting tiles if the budgets have been reduced.  This
+     * is called whenever data are added to the cache, and should be called
+     * when the configuration is changed.
+     */
+    public void applyBudgets()
+    {
+        uk.ac.rdg.resc.ncwms.config.Cache cacheConfig = this.ncwmsConfig.getCache();
+        long maxBytesInMemory = cacheConfig.getMaxMegabytesInMemory() * BYTES_PER_MEGABYTE;
+        long maxBytesOnDisk = cacheConfig.getMaxMegabytesOnDisk() * BYTES_PER_MEGABYTE;
+        if (this.memoryStore.getMaxBytes() != maxBytesInMemory)
+        {
+            this.overflow(this.memoryStore.setMaxBytes(maxBytesInMemory));
+        }
+        if (this.diskStore.getMaxBytes() != maxBytesOnDisk)
+        {
+            this.diskStore.setMaxBytes(maxBytesOnDisk);
+        }
+        if (this.diskStore instanceof SharedDirectoryTileStore)
+        {
+            ((SharedDirectoryTileStore)this.diskStore).setMaxIdleMillis(getLifetimeMillis(cacheConfig));
+        }
+    }
+
+    /** Adds the given tile to the memory store, overflowing others to disk if necessary */
+    private void putInMemory(TileCacheKey key, CachedTile tile)
+    {
+        this.index.add(key);
+        this.overflow(this.memoryStore.put(key, tile, getSize(tile.data.length)));
+    }
+
+    /**
+     * Makes sure that the given tiles, which have been evicted from memory,
+     * are in the disk store, if it is enabled.
+     */
+    private void overflow(List<Map.Entry<TileCacheKey, CachedTile>> tiles)
+    {
+        boolean enableDiskStore = this.ncwmsConfig.getCache().isEnableDiskStore();
+        for (Map.Entry<TileCacheKey, CachedTile> tile : tiles)
+        {
+            if (enableDiskStore && !tile.getValue().isExpired())
+            {
+                this.diskStore.put(tile.getKey(), tile.getValue());
+            }
+            if (!this.diskStore.contains(tile.getKey()))
+            {
+                this.index.remove(tile.getKey());
+            }
+        }
+    }
+
+    private static long getLifetimeMillis(uk.ac.rdg.resc.ncwms.config.Cache cacheConfig)
+    {
+        return cacheConfig.getElementLifetimeMinutes() * 60000L;
+    }
+
+    /** Returns the approximate size in bytes of a tile with the given number of points */
+    static long getSize(int numPoints)
+    {
+        return 4L * numPoints + TILE_OVERHEAD_BYTES;
+    }
+
+    /**
+     * Called when a dataset has been reloaded: removes the tiles that come
+     * from files that have changed since the tiles were cached.
+     */
+    public void removeStaleTiles(Dataset dataset)
+    {
+        this.removeStaleTiles(dataset.getId(), dataset.getLastUpdateTime().getMillis());
+    }
+
+    /**
+     * Removes the tiles of the given dataset that come from files that have
+     * changed since the tiles were cached.
+     * @param datasetLastModified the time at which the dataset was last loaded,
+     * in milliseconds since the epoch
+     */
+    void removeStaleTiles(String datasetId, long datasetLastModified)
+    {
+        int numRemoved = 0;
+        for (Map.Entry<String, Set<TileCacheKey>> entry : this.index.getKeys(datasetId).entrySet())
+        {
+            String filepath = entry.getKey();
+            // Make sure we see the current state of the file
+            FileStatCache.invalidate(filepath);
+            FileStatCache.FileStat stat;
+            try
+            {
+                stat = FileStatCache.getStat(filepath);
+            }
+            catch (IllegalArgumentException iae)
+            {
+                // The file has been replaced by a directory: treat as changed
+                stat = null;
+            }
+            for (TileCacheKey key : entry.getValue())
+            {
+                if (stat == null || !key.isCurrent(stat, datasetLastModified))
+                {
+                    // This will also remove the key from the index
+                    if (this.remove(key)) numRemoved++;
+                }
+            }
+        }
+        logger.debug("Removed {} stale tiles from dataset {}", numRemoved, datasetId);
+    }
+
+    /**
+     * Called when a dataset has been removed, or its ID has changed: removes
+     * all the tiles with the given dataset ID from the cache.
+     */
+    public void removeTiles(String datasetId)
+    {
+        for (Set<TileCacheKey> keys : this.index.getKeys(datasetId).values())
+        {
+            for (TileCacheKey key : keys) this.remove(key);
+        }
+        this.index.removeDataset(datasetId);
+        logger.debug("Removed all tiles from dataset {}", datasetId);
+    }
+
     /** Called by Spring to set the directory for the cached tiles */
     public void setCacheDirectory(File cacheDirectory)
     {
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Secondary index of the keys in the {@link TileCache}, grouped by dataset
+ * and then by file.  This allows all the tiles that come from a particular
+ * dataset or file to be found without scanning the whole cache.</p>
+ * <p>The keys are also indexed by their {@link TileCacheKey#getSource() source}
+ * and position, so that the tiles that hold data from the same field as a
+ * given tile, and that cover it, can be found quickly.  Each key is placed
+ * in a cell of a grid of square cells whose size is the smallest power of two
+ * that is larger than the longest side of the tile, so there is a
+ * separate grid for each scale of tile.  A tile that covers another tile
+ * must contain the other tile's lower-left corner and can't be smaller, so
+ * only four cells need to be examined at each scale that is at least as large
+ * as the other tile.</p>
+ * <p>The index is kept up to date by the {@link TileCache} as tiles enter and
+ * leave the memory and disk stores.  This class is thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+final class TileCacheIndex
+{
+    /** Maps dataset IDs to maps of file paths to the keys of the tiles */
+    private final ConcurrentMap<String, ConcurrentMap<String, Set<TileCacheKey>>> keys =
+        new ConcurrentHashMap<String, ConcurrentMap<String, Set<TileCacheKey>>>();
+
+    /** Maps cells to the keys of the tiles whose lower-left corners are in them */
+    private final ConcurrentMap<Cell, Set<TileCacheKey>> keysByCell =
+        new ConcurrentHashMap<Cell, Set<TileCacheKey>>();
+
+    /**
+     * The largest scale of any cell that has been used.  This never decreases,
+     * which only means that a few more cells are examined than necessary.
+     */
+    private final AtomicInteger maxScale = new AtomicInteger(Integer.MIN_VALUE);
+
+    /** Adds the given key to the index */
+    void add(TileCacheKey key)
+    {
+        ConcurrentMap<String, Set<TileCacheKey>> files = this.keys.get(key.getDatasetId());
+        if (files == null)
+        {
+            ConcurrentMap<String, Set<TileCacheKey>> newFiles =
+                new ConcurrentHashMap<String, Set<TileCacheKey>>();
+            files = this.keys.putIfAbsent(key.getDatasetId(), newFiles);
+            if (files == null) files = newFiles;
+        }
+        addToGroup(files, key.getFilepath(), key);
+        Cell cell = Cell.forKey(key);
+        if (cell != null)
+        {
+            int scale = this.maxScale.get();
+            while (cell.scale > scale && !this.maxScale.compareAndSet(scale, cell.scale))
+            {
+                scale = this.maxScale.get();
+            }
+            addToGroup(this.keysByCell, cell, key);
+        }
+    }
+
+    /**
+     * Adds the given key to the group with the given ID, creating the group
+     * if necessary.
+     */
+    private static <K> void addToGroup(ConcurrentMap<K, Set<TileCacheKey>> groups,
+        K id, TileCacheKey key)
+    {
+        while (true)
+        {
+            Set<TileCacheKey> group = groups.get(id);
+            if (group == null)
+            {
+                Set<TileCacheKey> newGroup =
+                    Collections.newSetFromMap(new ConcurrentHashMap<TileCacheKey, Boolean>());
+                group = groups.putIfAbsent(id, newGroup);
+                if (group == null) group = newGroup;
+            }
+            group.add(key);
+            // If the group was discarded (because it was empty) before we
+            // added the key, we must add the key to a new group
+            if (groups.get(id) == group) return;
+        }
+    }
+
+    /**
+     * Removes the given key from the group with the given ID, discarding the
+     * group if it becomes empty.
+     */
+    private static <K> void removeFromGroup(ConcurrentMap<K, Set<TileCacheKey>> groups,
+        K id, TileCacheKey key)
+    {
+        Set<TileCacheKey> group = groups.get(id);
+        if (group == null) return;
+        group.remove(key);
+        if (group.isEmpty() && groups.remove(id, group))
+        {
+            // Keys may have been added to the group after we found that
+            // it was empty: these go into a new group
+            for (TileCacheKey addedKey : group) addToGroup(groups, id, addedKey);
+        }
+    }
+
+    /** Removes the given key from the index */
+    void remove(TileCacheKey key)
+    {
+        ConcurrentMap<String, Set<TileCacheKey>> files = this.keys.get(key.getDatasetId());
+        if (files != null) removeFromGroup(files, key.getFilepath(), key);
+        // The source changes whenever a file or dataset is reloaded, so
+        // there would be an unbounded number of empty cells if we didn't
+        // discard them
+        Cell cell = Cell.forKey(key);
+        if (cell != null) removeFromGroup(this.keysByCell, cell, key);
+    }
+
+    /**
+     * Returns a live view of the keys for the given dataset, grouped by file
+     * path.  Returns an empty map if there are no keys for this dataset.
+     */
+    Map<String, Set<TileCacheKey>> getKeys(String datasetId)
+    {
+        Map<String, Set<TileCacheKey>> files = this.keys.get(datasetId);
+        if (files == null) return Collections.emptyMap();
+        return Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * Returns the keys of the tiles that have the same source as the given
+     * key and {@link TileCacheKey#covers(uk.ac.rdg.resc.ncwms.cache.TileCacheKey)
+     * cover} it, not including the given key itself.
+     */
+    List<TileCacheKey> getCoveringKeys(TileCacheKey key)
+    {
+        List<TileCacheKey> coveringKeys = new ArrayList<TileCacheKey>();
+        Cell cell = Cell.forKey(key);
+        if (cell == null) return coveringKeys;
+        int maxScale = this.maxScale.get();
+        for (int scale = cell.scale; scale <= maxScale; scale++)
+        {
+            // The lower-left corner of a covering tile is within one cell
+            // below and to the left of the lower-left corner of the key
+            double cellSize = Math.scalb(1.0, scale);
+            long ixMax = (long)Math.floor(key.getMinX() / cellSize);
+            long iyMax = (long)Math.floor(key.getMinY() / cellSize);
+            long ixMin = (long)Math.floor((key.getMinX() - cellSize) / cellSize);
+            long iyMin = (long)Math.floor((key.getMinY() - cellSize) / cellSize);
+            for (long iy = iyMin; iy <= iyMax; iy++)
+            {
+                for (long ix = ixMin; ix <= ixMax; ix++)
+                {
+                    Set<TileCacheKey> group = this.keysByCell.get(
+                        new Cell(key.getSource(), scale, ix, iy));
+                    if (group == null) continue;
+                    for (TileCacheKey cachedKey : group)
+                    {
+                        if (cachedKey.covers(key) && !cachedKey.equals(key))
+                        {
+                            coveringKeys.add(cachedKey);
+                        }
+                    }
+                }
+            }
+        }
+        return coveringKeys;
+    }
+
+    /** Removes all the keys for the given dataset from the index */
+    void removeDataset(String datasetId)
+    {
+        Map<String, Set<TileCacheKey>> files = this.keys.remove(datasetId);
+        if (files == null) return;
+        for (Set<TileCacheKey> fileKeys : files.values())
+        {
+            for (TileCacheKey key : fileKeys)
+            {
+                Cell cell = Cell.forKey(key);
+                if (cell != null) removeFromGroup(this.keysByCell, cell, key);
+            }
+        }
+    }
+
+    /** Returns the number of cells that contain keys */
+    int getNumCells()
+    {
+        return this.keysByCell.size();
+    }
+
+    /**
+     * A square cell of space, for a particular source of data.  The size of
+     * the cell is 2<sup>scale</sup> in the units of the source's CRS.
+     */
+    private static final class Cell
+    {
+        private final TileCacheKey.Source source;
+        private final int scale;
+        private final long ix;
+        private final long iy;
+        private final int hashCode;
+
+        private Cell(TileCacheKey.Source source, int scale, long ix, long iy)
+        {
+            this.source = source;
+            this.scale = scale;
+            this.ix = ix;
+            this.iy = iy;
+            int hash = source.hashCode();
+            hash = 31 * hash + scale;
+            hash = 31 * hash + (int)(ix ^ (ix >>> 32));
+            hash = 31 * hash + (int)(iy ^ (iy >>> 32));
+            this.hashCode = hash;
+        }
+
+        /**
+         * Returns the cell that contains the lower-left corner of the given
+         * key, at the scale of the key.  Returns null if the tile has no area
+         * or crosses the anti-meridian, since such a tile never covers another.
+         */
+        private static Cell forKey(TileCacheKey key)
+        {
+            double width = key.getMaxX() - key.getMinX();
+            double height = key.getMaxY() - key.getMinY();
+            if (!(width > 0.0 && height > 0.0)) return null;
+            // The smallest power of two that is larger than the longest side
+            int scale = Math.getExponent(Math.max(width, height)) + 1;
+            double cellSize = Math.scalb(1.0, scale);
+            return new Cell(key.getSource(), scale,
+                (long)Math.floor(key.getMinX() / cellSize),
+                (long)Math.floor(key.getMinY() / cellSize));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof Cell)) return false;
+            Cell other = (Cell)o;
+            return this.hashCode == other.hashCode &&
+                   this.scale == other.scale &&
+                   this.ix == other.ix &&
+                   this.iy == other.iy &&
+                   this.source.equals(other.source);
+        }
+    }
+}
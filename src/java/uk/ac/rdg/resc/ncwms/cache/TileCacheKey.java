@@ -28,11 +28,14 @@
 
 package uk.ac.rdg.resc.ncwms.cache;
 
-import java.io.File;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Arrays;
 import org.geotoolkit.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.util.Utils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -42,34 +45,31 @@ import uk.ac.rdg.resc.ncwms.util.WmsUtils;
  * Key that is used to identify a particular data array (tile) in a
  * {@link TileCache}.  TileCacheKeys are immutable.
  *
+ * <p>Keys are created for every GetMap request, whether or not the data
+ * are found in the cache, so construction must be cheap.  All the properties
+ * of the key are held as primitives or Strings and the hash code is computed
+ * once, in the constructor.  The properties that identify the field of data
+ * from which the tile comes are held in a separate {@link Source} object,
+ * which is used to find other tiles of the same field.  The size and last-modified time of the
+ * underlying file are obtained through a {@link FileStatCache} rather than
+ * directly from the filesystem.</p>
+ *
  * @see TileCache
  * @author Jon Blower
  */
 public class TileCacheKey implements Serializable
 {
-    private String layerId;               // The unique identifier of this layer
-    private String crsCode;               // The CRS code used for this tile
-    private double[] bbox;                // Bounding box as [minX, minY, maxX, maxY]
-    private int width;                    // Width of tile in pixels
-    private int height;                   // Height of tile in pixels
-    private String filepath;              // Full path to the file containing the data
-    private long lastModified = 0;        // The time at which the file was last modified
-                                          // (used to check for changes to the file).  Not
-                                          // used for OPeNDAP datasets.
-    private long fileSize = 0;            // The size of the file in bytes
-                                          // (used to check for changes to the file)
-                                          // Not used for OPeNDAP datasets.
-    private int tIndex;                   // The t index of this tile in the file
-    private int zIndex;                   // The z index of this tile in the file
-    private long datasetLastModified = 0; // The time (in ms since the epoch) at which
-                                          // the relevant Dataset was modified (not used
-                                          // for local files)
+    private final Source source;          // The field of data from which the tile comes
+    private final double minX;            // Bounding box of the tile
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final int width;              // Width of tile in pixels
+    private final int height;             // Height of tile in pixels
     
-    // TileCacheKeys are immutable so these properties can be stored to save
-    // repeated recomputation:
-    // TODO: make transient or generate dynamically.  Improve algorithms!
-    private String str;        // String representation of this key
-    private int hashCode;      // Hash code for this key
+    // TileCacheKeys are immutable so the hash code can be stored to save
+    // repeated recomputation
+    private final int hashCode;
     
     /**
      * Creates a key for the storing and locating of data arrays in a TileCache.
@@ -87,66 +87,136 @@ public class TileCacheKey implements Serializable
     public TileCacheKey(String filepath, Layer layer, RegularGrid grid,
         int tIndex, int zIndex)
     {
-        this.layerId = layer.getId();
-        this.setGrid(grid);
-        this.filepath = filepath;
-        File f = new File(filepath);
-        if (f.exists())
+        // Set the properties of this Key that relate to the horizontal grid
+        // of the image.  Some CRSs have multiple, equivalent, codes (e.g. CRS:84
+        // and EPSG:4326).  Furthermore, for CRSs with longitude axes, some
+        // apparently-different bounding boxes are functionally equivalent
+        // (e.g. 360 degrees = 0 degrees).  We set the CRS and bbox to standard
+        // values to ensure that data are retrieved accurately and without
+        // unnecessary repetition.
+        this.width = grid.getXAxis().getSize();
+        this.height = grid.getYAxis().getSize();
+        BoundingBox boundingBox = grid.getExtent();
+        this.minY = boundingBox.getMinY();
+        this.maxY = boundingBox.getMaxY();
+        String crsCode;
+        if (Utils.isWgs84LonLat(grid.getCoordinateReferenceSystem()))
         {
-            if (f.isFile())
-            {
-                // This is a local data file or an NcML file
-                this.lastModified = f.lastModified();
-                this.fileSize = f.length();
-            }
-            else
-            {
-                throw new IllegalArgumentException(filepath +
-                    " exists but is not a valid file on this server");
-            }
+            // Make sure we always use the same code for lat-lon projections
+            crsCode = "CRS:841";
+            // Constrain longitudes to range [-180,180] to canonicalise them
+            this.minX = Utils.constrainLongitude180(boundingBox.getMinX());
+            this.maxX = Utils.constrainLongitude180(boundingBox.getMaxX());
         }
+        else
+        {
+            // This should work for all CRS objects we obtain from the Geotoolkit
+            // CRS factories (see http://lists.osgeo.org/pipermail/geotoolkit/2010-April/000347.html)
+            crsCode = CRS.getDeclaredIdentifier(grid.getCoordinateReferenceSystem());
+            this.minX = boundingBox.getMinX();
+            this.maxX = boundingBox.getMaxX();
+        }
+
+        // Size and last-modified time are zero if this is not a local file
+        FileStatCache.FileStat stat = FileStatCache.getStat(filepath);
+
+        long datasetLastModified;
         if (WmsUtils.isOpendapLocation(filepath) || WmsUtils.isNcmlAggregation(filepath))
         {
             // This is an OPeNDAP dataset or NcML aggregation, so we need
             // to store the last-modified time of the relevant Dataset
-            this.datasetLastModified = layer.getDataset().getLastUpdateTime().getMillis();
+            datasetLastModified = layer.getDataset().getLastUpdateTime().getMillis();
         }
-        this.tIndex = tIndex;
-        this.zIndex = zIndex;
-        
-        // Create a String representation of this key
-        StringBuffer buf = new StringBuffer();
-        buf.append(this.layerId);
-        buf.append(",");
-        buf.append(this.crsCode);
-        buf.append(",{");
-        for (double bboxVal : this.bbox)
+        else
         {
-            buf.append(bboxVal);
-            buf.append(",");
+            datasetLastModified = 0;
         }
-        buf.append("},");
-        buf.append(this.width);
-        buf.append(",");
-        buf.append(this.height);
-        buf.append(",");
-        buf.append(this.filepath);
-        buf.append(",");
-        buf.append(this.lastModified);
-        buf.append(",");
-        buf.append(this.fileSize);
-        buf.append(",");
-        buf.append(this.tIndex);
-        buf.append(",");
-        buf.append(this.zIndex);
-        buf.append(",");
-        buf.append(this.datasetLastModified);
-        
-        // Create and store the string representations and hash code for this
-        // key.  The key is immutable so these will not change.
-        // TODO: create the hash code in a better way
-        this.str = buf.toString();
-        this.hashCode = this.str.hashCode();
+
+        this.source = new Source(layer.getDataset().getId(), layer.getId(), crsCode,
+            filepath, stat.lastModified, stat.size, tIndex, zIndex, datasetLastModified);
+        this.hashCode = this.computeHashCode();
+    }
+
+    /**
+     * Creates a key with the given properties, which must already be in
+     * canonical form.  This is used to recreate keys that have been stored
+     * outside the cache.
+     */
+    TileCacheKey(String datasetId, String layerId, String crsCode,
+        double minX, double minY, double maxX, double maxY, int width, int height,
+        String filepath, long lastModified, long fileSize, int tIndex, int zIndex,
+        long datasetLastModified)
+    {
+        this.source = new Source(datasetId, layerId, crsCode, filepath,
+            lastModified, fileSize, tIndex, zIndex, datasetLastModified);
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.width = width;
+        this.height = height;
+        this.hashCode = this.computeHashCode();
+    }
+
+    /**
+     * Writes all the properties of this key to the given output, in a form
+     * that can be read by {@link #read(java.io.DataInput)}.
+     */
+    void write(DataOutput out) throws IOException
+    {
+        out.writeUTF(this.source.datasetId);
+        out.writeUTF(this.source.layerId);
+        out.writeUTF(this.source.crsCode);
+        out.writeDouble(this.minX);
+        out.writeDouble(this.minY);
+        out.writeDouble(this.maxX);
+        out.writeDouble(this.maxY);
+        out.writeInt(this.width);
+        out.writeInt(this.height);
+        out.writeUTF(this.source.filepath);
+        out.writeLong(this.source.lastModified);
+        out.writeLong(this.source.fileSize);
+        out.writeInt(this.source.tIndex);
+        out.writeInt(this.source.zIndex);
+        out.writeLong(this.source.datasetLastModified);
+    }
+
+    /**
+     * Reads a key that has been written by {@link #write(java.io.DataOutput)}.
+     */
+    static TileCacheKey read(DataInput in) throws IOException
+    {
+        return new TileCacheKey(in.readUTF(), in.readUTF(), in.readUTF(),
+            in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+            in.readInt(), in.readInt(), in.readUTF(), in.readLong(), in.readLong(),
+            in.readInt(), in.readInt(), in.readLong());
+    }
+
+    /**
+     * Combines the hash code of the source with the hash codes of the other
+     * properties of this key, using the same algorithm as
+     * {@link java.util.Arrays#hashCode(long[])}.
+     */
+    private int computeHashCode()
+    {
+        int hash = this.source.hashCode;
+        hash = 31 * hash + hashDouble(this.minX);
+        hash = 31 * hash + hashDouble(this.minY);
+        hash = 31 * hash + hashDouble(this.maxX);
+        hash = 31 * hash + hashDouble(this.maxY);
+        hash = 31 * hash + this.width;
+        hash = 31 * hash + this.height;
+        return hash;
+    }
+
+    private static int hashDouble(double d)
+    {
+        return hashLong(Double.doubleToLongBits(d));
+    }
+
+    private static int hashLong(long l)
+    {
+        return (int)(l ^ (l >>> 32));
     }
     
     /**
@@ -163,12 +233,29 @@ public class TileCacheKey implements Serializable
     }
     
     /**
-     * @return a string representation of this key
+     * @return a string representation of this key.  This is only used for
+     * logging so is generated on demand.
      */
     @Override
     public String toString()
     {
-        return this.str;
+        StringBuilder buf = new StringBuilder();
+        buf.append(this.source.datasetId).append('/');
+        buf.append(this.source.layerId).append(',');
+        buf.append(this.source.crsCode).append(",{");
+        buf.append(this.minX).append(',');
+        buf.append(this.minY).append(',');
+        buf.append(this.maxX).append(',');
+        buf.append(this.maxY).append("},");
+        buf.append(this.width).append(',');
+        buf.append(this.height).append(',');
+        buf.append(this.source.filepath).append(',');
+        buf.append(this.source.lastModified).append(',');
+        buf.append(this.source.fileSize).append(',');
+        buf.append(this.source.tIndex).append(',');
+        buf.append(this.source.zIndex).append(',');
+        buf.append(this.source.datasetLastModified);
+        return buf.toString();
     }
     
     /**
@@ -185,51 +272,175 @@ public class TileCacheKey implements Serializable
         
         // For speed we start with the cheap comparisons (i.e. not the string
         // comparisons) and the things that are most likely to be different.
-        return this.tIndex == other.tIndex &&
-               this.zIndex == other.zIndex &&
-               this.fileSize == other.fileSize &&
-               this.lastModified == other.lastModified &&
-               this.datasetLastModified == other.datasetLastModified &&
+        return this.hashCode == other.hashCode &&
                this.width == other.width &&
                this.height == other.height &&
-               this.crsCode.equals(other.crsCode) &&
-               this.filepath.equals(other.filepath) &&
-               this.layerId.equals(other.layerId) &&
-               Arrays.equals(this.bbox, other.bbox);
+               Double.compare(this.minX, other.minX) == 0 &&
+               Double.compare(this.minY, other.minY) == 0 &&
+               Double.compare(this.maxX, other.maxX) == 0 &&
+               Double.compare(this.maxY, other.maxY) == 0 &&
+               this.source.equals(other.source);
     }
-    
+
+    /** Returns the ID of the dataset from which the data in the tile come */
+    String getDatasetId() { return this.source.datasetId; }
+
+    /** Returns the location of the file from which the data in the tile come */
+    String getFilepath() { return this.source.filepath; }
+
+    /** Returns the number of data points in the tile */
+    int getNumPoints() { return this.width * this.height; }
+
     /**
-     * Sets the properties of this Key that relate to the horizontal grid of the image.
-     * Some CRSs have multiple, equivalent, codes (e.g. CRS:84 and EPSG:4326).
-     * Furthermore, for CRSs with longitude axes, some apparently-different
-     * bounding boxes are functionally equivalent (e.g. 360 degrees = 0 degrees).
-     * This method sets the CRS and bbox to standard values to ensure that
-     * data are retrieved accurately and without unnecessary repetition.
+     * Returns the source of the data in the tile, i.e. all the properties
+     * of this key except the bounding box and size of the tile.  Tiles with
+     * the same source hold data from the same two-dimensional field, in the
+     * same CRS.
      */
-    private void setGrid(RegularGrid grid)
+    Source getSource() { return this.source; }
+
+    double getMinX() { return this.minX; }
+
+    double getMinY() { return this.minY; }
+
+    double getMaxX() { return this.maxX; }
+
+    double getMaxY() { return this.maxY; }
+
+    /**
+     * Returns true if the bounding box of this tile contains the bounding box
+     * of the given tile.  Returns false if either bounding box crosses the
+     * anti-meridian (i.e. if its canonical minX is greater than its maxX).
+     */
+    boolean covers(TileCacheKey other)
     {
-        this.width = grid.getXAxis().getSize();
-        this.height = grid.getYAxis().getSize();
-        BoundingBox boundingBox = grid.getExtent();
-        this.bbox = new double[] {
-            boundingBox.getMinX(),
-            boundingBox.getMinY(),
-            boundingBox.getMaxX(),
-            boundingBox.getMaxY()
-        };
-        if (Utils.isWgs84LonLat(grid.getCoordinateReferenceSystem()))
+        return this.minX < this.maxX && other.minX < other.maxX &&
+               this.minX <= other.minX && this.maxX >= other.maxX &&
+               this.minY <= other.minY && this.maxY >= other.maxY;
+    }
+
+    /** Returns the area of each pixel of the tile, in the units of the CRS */
+    double getPixelArea()
+    {
+        return this.getArea() / this.getNumPoints();
+    }
+
+    /** Returns the area of the tile, in the units of the CRS */
+    double getArea()
+    {
+        return (this.maxX - this.minX) * (this.maxY - this.minY);
+    }
+
+    /**
+     * Returns the grid of the tile in the given CRS, which must be the CRS
+     * from which this key was created.
+     */
+    RegularGrid getGrid(CoordinateReferenceSystem crs)
+    {
+        return new RegularGridImpl(this.minX, this.minY, this.maxX, this.maxY,
+            crs, this.width, this.height);
+    }
+
+    /**
+     * Returns true if this key was created for a local file with the given
+     * size and last-modified time, or for a dataset (e.g. OPeNDAP or NcML) that
+     * was last loaded at the given time.
+     */
+    boolean isCurrent(FileStatCache.FileStat stat, long datasetLastModified)
+    {
+        if (this.source.datasetLastModified != 0)
         {
-            // Make sure we always use the same code for lat-lon projections
-            this.crsCode = "CRS:841";
-            // Constrain longitudes to range [-180,180] to canonicalise them
-            this.bbox[0] = Utils.constrainLongitude180(this.bbox[0]);
-            this.bbox[2] = Utils.constrainLongitude180(this.bbox[2]);
+            return this.source.datasetLastModified == datasetLastModified;
         }
-        else
+        return this.source.lastModified == stat.lastModified && this.source.fileSize == stat.size;
+    }
+
+    /**
+     * Returns true if this key identifies its data by the time at which this
+     * server last loaded the dataset (i.e. for OPeNDAP datasets and NcML
+     * aggregations), rather than by the size and last-modified time of a
+     * local file.  Such keys are specific to this server and are never current
+     * once the dataset has been reloaded.
+     */
+    boolean isKeyedOnDatasetLoad()
+    {
+        return this.source.datasetLastModified != 0;
+    }
+
+    /**
+     * Identifies the two-dimensional field of data, in a particular CRS, from
+     * which a tile comes.  Sources are immutable and their hash codes are
+     * computed once, in the constructor, so they can be used as keys in maps
+     * without further cost.
+     */
+    static final class Source implements Serializable
+    {
+        private final String datasetId;       // The unique identifier of the dataset
+        private final String layerId;         // The identifier of this layer within the dataset
+        private final String crsCode;         // The CRS code used for this tile
+        private final String filepath;        // Full path to the file containing the data
+        private final long lastModified;      // The time at which the file was last modified
+                                              // (used to check for changes to the file).  Not
+                                              // used for OPeNDAP datasets.
+        private final long fileSize;          // The size of the file in bytes
+                                              // (used to check for changes to the file)
+                                              // Not used for OPeNDAP datasets.
+        private final int tIndex;             // The t index of this tile in the file
+        private final int zIndex;             // The z index of this tile in the file
+        private final long datasetLastModified; // The time (in ms since the epoch) at which
+                                              // the relevant Dataset was modified (not used
+                                              // for local files)
+        private final int hashCode;
+
+        private Source(String datasetId, String layerId, String crsCode,
+            String filepath, long lastModified, long fileSize, int tIndex,
+            int zIndex, long datasetLastModified)
         {
-            // This should work for all CRS objects we obtain from the Geotoolkit
-            // CRS factories (see http://lists.osgeo.org/pipermail/geotoolkit/2010-April/000347.html)
-            this.crsCode = CRS.getDeclaredIdentifier(grid.getCoordinateReferenceSystem());
+            this.datasetId = datasetId;
+            this.layerId = layerId;
+            this.crsCode = crsCode;
+            this.filepath = filepath;
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.tIndex = tIndex;
+            this.zIndex = zIndex;
+            this.datasetLastModified = datasetLastModified;
+
+            int hash = 17;
+            hash = 31 * hash + this.datasetId.hashCode();
+            hash = 31 * hash + this.layerId.hashCode();
+            hash = 31 * hash + this.crsCode.hashCode();
+            hash = 31 * hash + this.filepath.hashCode();
+            hash = 31 * hash + hashLong(this.lastModified);
+            hash = 31 * hash + hashLong(this.fileSize);
+            hash = 31 * hash + this.tIndex;
+            hash = 31 * hash + this.zIndex;
+            hash = 31 * hash + hashLong(this.datasetLastModified);
+            this.hashCode = hash;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof Source)) return false;
+            Source other = (Source)o;
+            return this.hashCode == other.hashCode &&
+                   this.tIndex == other.tIndex &&
+                   this.zIndex == other.zIndex &&
+                   this.fileSize == other.fileSize &&
+                   this.lastModified == other.lastModified &&
+                   this.datasetLastModified == other.datasetLastModified &&
+                   this.crsCode.equals(other.crsCode) &&
+                   this.filepath.equals(other.filepath) &&
+                   this.layerId.equals(other.layerId) &&
+                   this.datasetId.equals(other.datasetId);
         }
     }
 }
@@ -36,7 +36,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.multiaction.MultiActionController;
+import uk.ac.rdg.resc.ncwms.cache.TileCache;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.graphics.ImageSettings;
 import uk.ac.rdg.resc.ncwms.usagelog.h2.H2UsageLogger;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
@@ -51,6 +53,8 @@ public class AdminController extends MultiActionController
     // These will be injected by Spring
     private Config config;
     private H2UsageLogger usageLogger;
+    private TileSeeder tileSeeder;
+    private TileCache tileCache;
     
     /**
      * Displays the administrative web page
@@ -58,7 +62,11 @@ public class AdminController extends MultiActionController
     public ModelAndView displayAdminPage(HttpServletRequest request,
         HttpServletResponse response) throws Exception
     {
-        return new ModelAndView("admin", "config", this.config);
+        Map<String, Object> models = new HashMap<String, Object>();
+        models.put("config", this.config);
+        models.put("tileSeeder", this.tileSeeder);
+        models.put("tileCache", this.tileCache);
+        return new ModelAndView("admin", models);
     }
     
     /**
@@ -124,9 +132,12 @@ public class AdminController extends MultiActionController
     }
     
     /**
-     * Handles the submission of new configuration information from admin_index.jsp
+     * Handles the submission of new configuration information from admin_index.jsp.
+     * If the image settings or the horizontal indices of the datasets are
+     * invalid, nothing is saved and the admin page is displayed again with an
+     * error message.
      */
-    public void updateConfig(HttpServletRequest request,
+    public ModelAndView updateConfig(HttpServletRequest request,
         HttpServletResponse response) throws Exception
     {
         Contact contact = this.config.getContact();
@@ -134,6 +145,38 @@ public class AdminController extends MultiActionController
 
         if (request.getParameter("contact.name") != null)
         {
+            // Check the image settings and the horizontal indices of the
+            // datasets before we change anything
+            ImageSettings imageSettings;
+            // Maps the prefixes of the dataset parameters to the horizontal indices
+            Map<String, String> horizontalIndices = new HashMap<String, String>();
+            try
+            {
+                imageSettings = new ImageSettings(
+                    parseInt(request, "server.pngcompressionlevel", "PNG compression level"),
+                    parseInt(request, "server.jpegquality", "JPEG quality"),
+                    request.getParameter("server.jpegprogressive") != null);
+                for (Dataset ds : this.config.getAllDatasets().values())
+                {
+                    String prefix = "dataset." + ds.getId();
+                    if (request.getParameter(prefix + ".remove") != null) continue;
+                    horizontalIndices.put(prefix,
+                        getHorizontalIndex(request, prefix, ds.getHorizontalIndex()));
+                }
+                for (int i = 0; request.getParameter("dataset.new" + i + ".id") != null; i++)
+                {
+                    String prefix = "dataset.new" + i;
+                    if (request.getParameter(prefix + ".id").trim().equals("")) continue;
+                    // New datasets keep the default index if none is given
+                    horizontalIndices.put(prefix, getHorizontalIndex(request, prefix, null));
+                }
+            }
+            catch (IllegalArgumentException iae)
+            {
+                return this.displayAdminPage(request, response)
+                    .addObject("formError", iae.getMessage());
+            }
+
             contact.setName(request.getParameter("contact.name"));
             contact.setOrg(request.getParameter("contact.org"));
             contact.setTel(request.getParameter("contact.tel"));
@@ -146,6 +189,7 @@ public class AdminController extends MultiActionController
             server.setUrl(request.getParameter("server.url"));
             server.setMaxImageWidth(Integer.parseInt(request.getParameter("server.maximagewidth")));
             server.setMaxImageHeight(Integer.parseInt(request.getParameter("server.maximageheight")));
+            server.setImageSettings(imageSettings);
             server.setAllowFeatureInfo(request.getParameter("server.allowfeatureinfo") != null);
             server.setAllowGlobalCapabilities(request.getParameter("server.allowglobalcapabilities") != null);
 
@@ -176,6 +220,12 @@ public class AdminController extends MultiActionController
                         refreshDataset = true;
                     }
                     ds.setDataReaderClass(newDataReaderClass);
+                    String newHorizontalIndex = horizontalIndices.get("dataset." + ds.getId());
+                    if (!newHorizontalIndex.equals(ds.getHorizontalIndex()))
+                    {
+                        refreshDataset = true;
+                    }
+                    ds.setHorizontalIndex(newHorizontalIndex);
                     boolean disabled = request.getParameter("dataset." + ds.getId() + ".disabled") != null;
                     if (disabled == false && ds.isDisabled())
                     {
@@ -234,6 +284,8 @@ public class AdminController extends MultiActionController
                     ds.setTitle(request.getParameter("dataset.new" + i + ".title"));
                     ds.setLocation(request.getParameter("dataset.new" + i + ".location"));
                     ds.setDataReaderClass(request.getParameter("dataset.new" + i + ".reader"));
+                    String horizontalIndex = horizontalIndices.get("dataset.new" + i);
+                    if (horizontalIndex != null) ds.setHorizontalIndex(horizontalIndex);
                     ds.setDisabled(request.getParameter("dataset.new" + i + ".disabled") != null);
                     ds.setQueryable(request.getParameter("dataset.new" + i + ".queryable") != null);
                     ds.setUpdateInterval(Integer.parseInt(request.getParameter("dataset.new" + i + ".updateinterval")));
@@ -249,9 +301,17 @@ public class AdminController extends MultiActionController
             // Set the properties of the cache
             config.getCache().setEnabled(request.getParameter("cache.enable") != null);
             config.getCache().setElementLifetimeMinutes(Integer.parseInt(request.getParameter("cache.elementLifetime")));
-            config.getCache().setMaxNumItemsInMemory(Integer.parseInt(request.getParameter("cache.maxNumItemsInMemory")));
+            config.getCache().setMaxMegabytesInMemory(Integer.parseInt(request.getParameter("cache.maxMegabytesInMemory")));
             config.getCache().setEnableDiskStore(request.getParameter("cache.enableDiskStore") != null);
-            config.getCache().setMaxNumItemsOnDisk(Integer.parseInt(request.getParameter("cache.maxNumItemsOnDisk")));
+            config.getCache().setMaxMegabytesOnDisk(Integer.parseInt(request.getParameter("cache.maxMegabytesOnDisk")));
+            config.getCache().setSharedDirectory(request.getParameter("cache.sharedDirectory").trim());
+            config.getCache().setMetatileSize(Integer.parseInt(request.getParameter("cache.metatileSize")));
+            // Resize the cache straight away
+            this.tileCache.applyBudgets();
+            boolean enableSeeding = request.getParameter("cache.enableSeeding") != null;
+            config.getCache().setEnableSeeding(enableSeeding);
+            // Stop any seeding that is in progress
+            if (!enableSeeding) this.tileSeeder.cancelAll();
             
             // Set the location of the THREDDS catalog if it has changed
             String newThreddsCatalogLocation = request.getParameter("thredds.catalog.location");
@@ -269,6 +329,42 @@ public class AdminController extends MultiActionController
         // press refresh in their browser without resubmitting the new config information.
         // TODO: ... although it probably doesn't really matter if they do.  Does it?
         response.sendRedirect("index.jsp");
+        return null;
+    }
+
+    /**
+     * Gets the horizontal index of a dataset from the request
+     * @param prefix The prefix of the parameters of the dataset, e.g. "dataset.new0"
+     * @param defaultValue The horizontal index to use if the parameter is missing
+     * @return the horizontal index, in the canonical (lower) case
+     * @throws IllegalArgumentException if the horizontal index is not recognized
+     */
+    private static String getHorizontalIndex(HttpServletRequest request, String prefix,
+        String defaultValue)
+    {
+        String value = request.getParameter(prefix + ".horizontalindex");
+        if (value == null) return defaultValue;
+        Dataset.getIndexType(value);
+        return value.trim().toLowerCase();
+    }
+
+    /**
+     * Parses the given request parameter as an integer
+     * @param name The name of the setting, for the error message
+     * @throws IllegalArgumentException if the parameter is missing or is not
+     * a whole number
+     */
+    private static int parseInt(HttpServletRequest request, String param, String name)
+    {
+        String value = request.getParameter(param);
+        try
+        {
+            return Integer.parseInt(value == null ? "" : value.trim());
+        }
+        catch (NumberFormatException nfe)
+        {
+            throw new IllegalArgumentException(name + " must be a whole number");
+        }
     }
 
     /**
@@ -352,5 +448,21 @@ public class AdminController extends MultiActionController
     {
         this.usageLogger = usageLogger;
     }
+
+    /**
+     * Called by Spring to inject the tile seeder
+     */
+    public void setTileSeeder(TileSeeder tileSeeder)
+    {
+        this.tileSeeder = tileSeeder;
+    }
+
+    /**
+     * Called by Spring to inject the tile cache
+     */
+    public void setTileCache(TileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
     
 }
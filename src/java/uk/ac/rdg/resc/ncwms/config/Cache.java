@@ -31,6 +31,7 @@ package uk.ac.rdg.resc.ncwms.config;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.Root;
+import org.simpleframework.xml.core.Commit;
 
 /**
  * Configuration for the {@link uk.ac.rdg.resc.ncwms.cache.TileCache TileCache}.
@@ -47,20 +48,76 @@ public class Cache
     private int elementLifetimeMinutes = 60 * 24; // default is one day
     
     /**
-     * The number of items that will be held in memory in the cache
+     * The maximum size of the data held in memory in the cache, in megabytes
      */
-    @Element(name="maxNumItemsInMemory", required=false)
-    private int maxNumItemsInMemory = 200; // Gives around a 50MB memory footprint for 256*256 tiles
+    @Element(name="maxMegabytesInMemory", required=false)
+    private int maxMegabytesInMemory = 50;
     
     @Element(name="enableDiskStore", required=false)
     private boolean enableDiskStore = true;
     
     /**
-     * The number of items that will be held on disk in the cache
+     * The maximum size of the data held on disk in the cache, in megabytes
+     */
+    @Element(name="maxMegabytesOnDisk", required=false)
+    private int maxMegabytesOnDisk = 500;
+
+    /**
+     * If set, the disk store of the cache is kept in this directory, which
+     * can be shared between several servers
+     */
+    @Element(name="sharedDirectory", required=false)
+    private String sharedDirectory = "";
+
+    /**
+     * Item counts from old config files, which are converted to sizes in
+     * megabytes when the config is read and are then discarded
      */
+    @Element(name="maxNumItemsInMemory", required=false)
+    private Integer maxNumItemsInMemory = null;
     @Element(name="maxNumItemsOnDisk", required=false)
-    private int maxNumItemsOnDisk = 2000; // Gives around a 500MB disk footprint for 256*256 tiles
+    private Integer maxNumItemsOnDisk = null;
+
+    /**
+     * Set false to stop all seeding of the cache (see {@link TileSeeder})
+     */
+    @Element(name="enableSeeding", required=false)
+    private boolean enableSeeding = true;
+
+    /**
+     * The time for which the {@link TileSeeder} pauses after reading each tile
+     * from the source data
+     */
+    @Element(name="seedingPauseMillis", required=false)
+    private int seedingPauseMillis = 50;
+
+    /**
+     * The number of tiles along each side of a metatile (see {@link Metatile}).
+     * Values less than 2 switch off metatiling.
+     */
+    @Element(name="metatileSize", required=false)
+    private int metatileSize = 1;
     
+    /**
+     * Converts the item counts of old config files into sizes in megabytes,
+     * assuming that each item is a 256x256 array of 4-byte floats (i.e. a
+     * quarter of a megabyte).
+     */
+    @Commit
+    public void convertItemCounts()
+    {
+        if (this.maxNumItemsInMemory != null)
+        {
+            this.maxMegabytesInMemory = Math.max(1, this.maxNumItemsInMemory / 4);
+            this.maxNumItemsInMemory = null;
+        }
+        if (this.maxNumItemsOnDisk != null)
+        {
+            this.maxMegabytesOnDisk = Math.max(1, this.maxNumItemsOnDisk / 4);
+            this.maxNumItemsOnDisk = null;
+        }
+    }
+
     public boolean isEnabled()
     {
         return this.enabled;
@@ -81,14 +138,14 @@ public class Cache
         this.elementLifetimeMinutes = elementLifetimeMinutes;
     }
 
-    public int getMaxNumItemsInMemory()
+    public int getMaxMegabytesInMemory()
     {
-        return maxNumItemsInMemory;
+        return maxMegabytesInMemory;
     }
 
-    public void setMaxNumItemsInMemory(int maxNumItemsInMemory)
+    public void setMaxMegabytesInMemory(int maxMegabytesInMemory)
     {
-        this.maxNumItemsInMemory = maxNumItemsInMemory;
+        this.maxMegabytesInMemory = maxMegabytesInMemory;
     }
 
     public boolean isEnableDiskStore()
@@ -101,13 +158,53 @@ public class Cache
         this.enableDiskStore = enableDiskStore;
     }
 
-    public int getMaxNumItemsOnDisk()
+    public int getMaxMegabytesOnDisk()
+    {
+        return maxMegabytesOnDisk;
+    }
+
+    public void setMaxMegabytesOnDisk(int maxMegabytesOnDisk)
+    {
+        this.maxMegabytesOnDisk = maxMegabytesOnDisk;
+    }
+
+    public String getSharedDirectory()
+    {
+        return sharedDirectory;
+    }
+
+    public void setSharedDirectory(String sharedDirectory)
+    {
+        this.sharedDirectory = sharedDirectory;
+    }
+
+    public boolean isEnableSeeding()
+    {
+        return enableSeeding;
+    }
+
+    public void setEnableSeeding(boolean enableSeeding)
+    {
+        this.enableSeeding = enableSeeding;
+    }
+
+    public int getSeedingPauseMillis()
+    {
+        return seedingPauseMillis;
+    }
+
+    public void setSeedingPauseMillis(int seedingPauseMillis)
+    {
+        this.seedingPauseMillis = seedingPauseMillis;
+    }
+
+    public int getMetatileSize()
     {
-        return maxNumItemsOnDisk;
+        return metatileSize;
     }
 
-    public void setMaxNumItemsOnDisk(int maxNumItemsOnDisk)
+    public void setMetatileSize(int metatileSize)
     {
-        this.maxNumItemsOnDisk = maxNumItemsOnDisk;
+        this.metatileSize = metatileSize;
     }
 }
@@ -39,6 +39,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -61,6 +62,7 @@ import org.springframework.context.ApplicationContextAware;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.unidata.io.RandomAccessFile;
 import uk.ac.rdg.resc.edal.util.Utils;
+import uk.ac.rdg.resc.ncwms.graphics.ImageSettings;
 import uk.ac.rdg.resc.ncwms.security.Users;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.controller.ServerConfig;
@@ -126,6 +128,9 @@ public class Config implements ServerConfig, ApplicationContextAware
       * Maps dataset Ids to Future objects*/
     private Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
 
+    /** Objects that are notified of changes to datasets */
+    private final List<DatasetListener> datasetListeners = new CopyOnWriteArrayList<DatasetListener>();
+
     /**
      * Private constructor.  This prevents other classes from creating
      * new Config objects directly.
@@ -285,6 +290,55 @@ public class Config implements ServerConfig, ApplicationContextAware
         logger.debug("Scheduled auto-reloading of dataset {}", ds.getId());
     }
 
+    /**
+     * Registers an object to be notified of changes to the datasets on this
+     * server.
+     */
+    public void addDatasetListener(DatasetListener listener)
+    {
+        this.datasetListeners.add(listener);
+    }
+
+    /**
+     * Notifies all the registered {@link DatasetListener}s that the metadata
+     * of the given dataset have been loaded.  Errors in the listeners are
+     * logged, but do not affect the dataset.
+     */
+    void fireLayersLoaded(Dataset ds)
+    {
+        for (DatasetListener listener : this.datasetListeners)
+        {
+            try
+            {
+                listener.layersLoaded(ds);
+            }
+            catch (RuntimeException re)
+            {
+                logger.error("Error notifying listener of reload of dataset " + ds.getId(), re);
+            }
+        }
+    }
+
+    /**
+     * Notifies all the registered {@link DatasetListener}s that the dataset
+     * with the given ID has been removed.  This must not be called while
+     * holding the lock on this object.
+     */
+    private void fireDatasetRemoved(String datasetId)
+    {
+        for (DatasetListener listener : this.datasetListeners)
+        {
+            try
+            {
+                listener.datasetRemoved(datasetId);
+            }
+            catch (RuntimeException re)
+            {
+                logger.error("Error notifying listener of removal of dataset " + datasetId, re);
+            }
+        }
+    }
+
     /**
      * @return the time at which this configuration was last updated
      */
@@ -350,25 +404,37 @@ public class Config implements ServerConfig, ApplicationContextAware
         this.scheduleReloading(ds);
     }
 
-    public synchronized void removeDataset(Dataset ds)
+    public void removeDataset(Dataset ds)
     {
-        this.datasetList.remove(ds);
-        this.datasets.remove(ds.getId());
-        // Cancel the auto-reloading of this dataset
-        ScheduledFuture<?> future = this.futures.remove(ds.getId());
-        // We allow the reloading task to be interrupted
-        if (future != null) future.cancel(true);
+        synchronized(this)
+        {
+            this.datasetList.remove(ds);
+            this.datasets.remove(ds.getId());
+            // Cancel the auto-reloading of this dataset
+            ScheduledFuture<?> future = this.futures.remove(ds.getId());
+            // We allow the reloading task to be interrupted
+            if (future != null) future.cancel(true);
+        }
+        // The listeners are notified outside the lock so that they can't
+        // hold up other changes to the configuration
+        this.fireDatasetRemoved(ds.getId());
     }
 
-    public synchronized void changeDatasetId(Dataset ds, String newId)
+    public void changeDatasetId(Dataset ds, String newId)
     {
-        String oldId = ds.getId();
-        this.datasets.remove(oldId);
-        ScheduledFuture<?> future = this.futures.remove(oldId);
-        ds.setId(newId);
-        this.datasets.put(newId, ds);
-        this.futures.put(newId, future);
+        String oldId;
+        synchronized(this)
+        {
+            oldId = ds.getId();
+            this.datasets.remove(oldId);
+            ScheduledFuture<?> future = this.futures.remove(oldId);
+            ds.setId(newId);
+            this.datasets.put(newId, ds);
+            this.futures.put(newId, future);
+        }
         logger.debug("Changed dataset with ID {} to {}", oldId, newId);
+        // Anything that is keyed by the old dataset ID is now out of date
+        this.fireDatasetRemoved(oldId);
     }
 
     /**
@@ -454,6 +520,11 @@ public class Config implements ServerConfig, ApplicationContextAware
         return this.server.getMaxImageHeight();
     }
 
+    @Override
+    public ImageSettings getImageSettings() {
+        return this.server.getImageSettings();
+    }
+
     @Override
     public Set<String> getKeywords() {
         String[] keysArray = this.server.getKeywords().split(",");
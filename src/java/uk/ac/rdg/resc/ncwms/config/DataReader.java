@@ -118,6 +118,20 @@ public abstract class DataReader
         int tIndex, int zIndex, Domain<HorizontalPosition> domain)
         throws IOException;
 
+    /**
+     * Returns true if {@link #read(java.lang.String, uk.ac.rdg.resc.ncwms.wms.Layer,
+     * int, int, uk.ac.rdg.resc.edal.coverage.domain.Domain) read()} finds the
+     * value for each point in the domain by mapping the domain onto the layer's
+     * {@link Layer#getHorizontalGrid() horizontal grid} with a
+     * {@link uk.ac.rdg.resc.edal.cdm.PixelMap PixelMap}.  If so, the tile
+     * cache can derive new tiles from cached tiles without reading the source
+     * data.  This default implementation returns false.
+     */
+    public boolean usesPixelMap()
+    {
+        return false;
+    }
+
     /**
      * <p>Reads vertical section data from a file.  Reads data for a single timestep only.
      * This method knows
@@ -253,7 +267,7 @@ public abstract class DataReader
     private void updateLayers(String location, Dataset ds, Map<String, LayerImpl> layers)
             throws IOException
     {
-        for (CoverageMetadata lm : this.readLayerMetadata(location))
+        for (CoverageMetadata lm : this.readLayerMetadata(location, ds))
         {
             String layerId = lm.getId();
             LayerImpl layer = layers.get(layerId);
@@ -282,6 +296,21 @@ public abstract class DataReader
     protected abstract Collection<CoverageMetadata> readLayerMetadata(String location)
             throws IOException;
 
+    /**
+     * Reads metadata for each layer in the data at the given location, using
+     * the settings of the given dataset.  This default implementation ignores
+     * the dataset and calls {@link #readLayerMetadata(java.lang.String)}.
+     * @param location Full path to a single file, NcML file or OPENDAP dataset,
+     * ({@literal i.e.} one element resulting from the expansion of a glob
+     * aggregation).
+     * @param ds The dataset from which we're reading data
+     */
+    protected Collection<CoverageMetadata> readLayerMetadata(String location, Dataset ds)
+            throws IOException
+    {
+        return this.readLayerMetadata(location);
+    }
+
     /**
      * Expands a glob expression to give a List of absolute paths to files.  This
      * method recursively searches directories, allowing for glob expressions like
@@ -43,6 +43,7 @@ import org.simpleframework.xml.Root;
 import org.simpleframework.xml.core.Commit;
 import org.simpleframework.xml.core.PersistenceException;
 import org.simpleframework.xml.core.Validate;
+import uk.ac.rdg.resc.edal.cdm.CurvilinearIndex;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -89,6 +90,19 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     @Attribute(name="updateInterval", required=false)
     private int updateInterval = -1; // The update interval in minutes. -1 means "never update automatically"
 
+    // Specifies how the nearest grid points are found in curvilinear grids:
+    // one of "lut", "kdtree", "rtree", "prtree" or "auto"
+    @Attribute(name="horizontalIndex", required=false)
+    private String horizontalIndex = "lut";
+
+    // Resolution of look-up tables relative to the resolution of the grid
+    @Attribute(name="lutResolutionMultiplier", required=false)
+    private double lutResolutionMultiplier = CurvilinearIndex.DEFAULT_LUT_RESOLUTION_MULTIPLIER;
+
+    // Factor by which the search radius of kd-trees is expanded
+    @Attribute(name="kdTreeExpansionFactor", required=false)
+    private double kdTreeExpansionFactor = CurvilinearIndex.DEFAULT_KDTREE_EXPANSION_FACTOR;
+
     // We don't do "private List<Variable> variable..." here because if we do,
     // the config file will contain "<variable class="java.util.ArrayList>",
     // presumably because the definition doesn't clarify what sort of List should
@@ -100,6 +114,11 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
     @ElementList(name="variables", type=Variable.class, required=false)
     private ArrayList<Variable> variableList = new ArrayList<Variable>();
 
+    // Specifies the tiles that will be placed in the tile cache whenever
+    // this dataset is (re)loaded
+    @ElementList(name="seeds", type=TileSeed.class, required=false)
+    private ArrayList<TileSeed> seeds = new ArrayList<TileSeed>();
+
     private Config config;
     
     private State state = State.NEEDS_REFRESH;     // State of this dataset.
@@ -129,11 +148,20 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
 
     /**
      * Checks that the data we have read are valid.  Checks that there are no
-     * duplicate variable IDs.
+     * duplicate variable IDs and that the horizontal index is valid.
      */
     @Validate
     public void validate() throws PersistenceException
     {
+        try
+        {
+            this.getCurvilinearIndex();
+        }
+        catch (IllegalArgumentException iae)
+        {
+            throw new PersistenceException("Invalid horizontal index for dataset %s: %s",
+                this.id, iae.getMessage());
+        }
         List<String> varIds = new ArrayList<String>();
         for (Variable var : this.variableList)
         {
@@ -297,6 +325,53 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.updateInterval = updateInterval;
     }
     
+    /**
+     * @return the type of index used to find the nearest grid points in
+     * curvilinear grids: one of "lut", "kdtree", "rtree", "prtree" or "auto"
+     */
+    public String getHorizontalIndex()
+    {
+        return this.horizontalIndex;
+    }
+
+    /**
+     * Sets the type of index used to find the nearest grid points in
+     * curvilinear grids.  The dataset must be reloaded for this to take effect.
+     * @throws IllegalArgumentException if the type is not recognized
+     */
+    void setHorizontalIndex(String horizontalIndex)
+    {
+        getIndexType(horizontalIndex);
+        this.horizontalIndex = horizontalIndex.trim().toLowerCase();
+    }
+
+    /**
+     * @return the object that specifies how the nearest grid points are found
+     * in curvilinear grids in this dataset
+     * @throws IllegalArgumentException if the parameters of the index are invalid
+     */
+    public CurvilinearIndex getCurvilinearIndex()
+    {
+        return new CurvilinearIndex(getIndexType(this.horizontalIndex),
+            this.lutResolutionMultiplier, this.kdTreeExpansionFactor);
+    }
+
+    /**
+     * @return the type of curvilinear index with the given name
+     * @throws IllegalArgumentException if the type is not recognized
+     */
+    static CurvilinearIndex.Type getIndexType(String horizontalIndex)
+    {
+        try
+        {
+            return CurvilinearIndex.Type.valueOf(horizontalIndex.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException iae)
+        {
+            throw new IllegalArgumentException("Unknown horizontal index: " + horizontalIndex);
+        }
+    }
+
     /**
      * @return a DateTime object representing the time at which this dataset was
      * last updated, or null if the dataset has never been loaded.
@@ -421,6 +496,16 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
         this.variables.put(var.getId(), var);
     }
 
+    /**
+     * Gets the specifications of the tiles that will be placed in the tile
+     * cache whenever this dataset is (re)loaded.
+     * @see TileSeeder
+     */
+    public List<TileSeed> getSeeds()
+    {
+        return Collections.unmodifiableList(this.seeds);
+    }
+
     /**
      * Forces this dataset to be refreshed the next time it has an opportunity
      */
@@ -469,6 +554,9 @@ public class Dataset implements uk.ac.rdg.resc.ncwms.wms.Dataset
             // Update the state of the config object
             this.config.setLastUpdateTime(this.lastSuccessfulUpdateTime);
             this.config.save();
+
+            // Tell interested parties (e.g. the tile seeder) about the new layers
+            this.config.fireLayersLoaded(this);
         }
         catch (Exception e)
         {
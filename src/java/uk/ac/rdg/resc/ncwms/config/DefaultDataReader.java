@@ -31,13 +31,16 @@ package uk.ac.rdg.resc.ncwms.config;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ucar.nc2.dataset.NetcdfDataset;
 import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.edal.cdm.CurvilinearIndex;
 import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
 import uk.ac.rdg.resc.edal.coverage.domain.Domain;
 import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.ncwms.cache.FileStatCache;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
@@ -55,6 +58,23 @@ public class DefaultDataReader extends DataReader
     @Override
     protected Collection<CoverageMetadata> readLayerMetadata(String location)
             throws IOException
+    {
+        return this.readLayerMetadata(location, CurvilinearIndex.DEFAULT);
+    }
+
+    /**
+     * Reads the layer metadata, indexing any curvilinear grids as specified
+     * by the dataset.
+     */
+    @Override
+    protected Collection<CoverageMetadata> readLayerMetadata(String location, Dataset ds)
+            throws IOException
+    {
+        return this.readLayerMetadata(location, ds.getCurvilinearIndex());
+    }
+
+    private Collection<CoverageMetadata> readLayerMetadata(String location,
+            CurvilinearIndex index) throws IOException
     {
         NetcdfDataset nc = null;
         try
@@ -62,7 +82,7 @@ public class DefaultDataReader extends DataReader
             // Open the dataset, using the cache for NcML aggregations
             nc = openDataset(location);
             // Read and return the metadata
-            return CdmUtils.readCoverageMetadata(CdmUtils.getGridDataset(nc));
+            return CdmUtils.readCoverageMetadata(CdmUtils.getGridDataset(nc), index);
         }
         finally
         {
@@ -70,6 +90,34 @@ public class DefaultDataReader extends DataReader
         }
     }
 
+    /**
+     * Returns a number that identifies the version of the data that are read
+     * from the given location, or -1 if this is not known.  For local files
+     * this is derived from the size and last-modified time of the file, so
+     * a file that is rewritten in place gets a new version even if its
+     * dataset is never reloaded.  The contents of OPeNDAP datasets and NcML
+     * aggregations can't be checked like this, so their version is the time
+     * at which the dataset containing the given layer was loaded.
+     * (This follows {@link uk.ac.rdg.resc.ncwms.cache.TileCacheKey}.)
+     */
+    static long getDataVersion(String location, Layer layer)
+    {
+        if (WmsUtils.isOpendapLocation(location) || WmsUtils.isNcmlAggregation(location))
+        {
+            DateTime lastUpdateTime = layer.getDataset() == null ? null
+                : layer.getDataset().getLastUpdateTime();
+            return lastUpdateTime == null ? -1 : lastUpdateTime.getMillis();
+        }
+        return FileStatCache.getVersion(location);
+    }
+
+    /** Returns true: the data are read through a PixelMap */
+    @Override
+    public boolean usesPixelMap()
+    {
+        return true;
+    }
+
     /**
      * Reads data from a NetCDF file.  Reads data for a single timestep only.
      * This method knows
@@ -103,7 +151,8 @@ public class DefaultDataReader extends DataReader
                 layer.getHorizontalGrid(),
                 tIndex,
                 zIndex,
-                domain
+                domain,
+                getDataVersion(filename, layer)
             );
         }
         finally
@@ -146,7 +195,8 @@ public class DefaultDataReader extends DataReader
                 layer.getHorizontalGrid(),
                 tIndex,
                 zIndices,
-                domain
+                domain,
+                getDataVersion(filename, layer)
             );
         }
         finally
@@ -156,6 +156,15 @@ final class LayerImpl extends AbstractTimeAggregatedLayer
         return this.readHorizontalDomain(fti, zIndex, domain);
     }
     
+    /**
+     * Returns true if the data reader finds the data values through a PixelMap
+     * (see {@link DataReader#usesPixelMap()})
+     */
+    boolean usesPixelMap()
+    {
+        return this.dataReader.usesPixelMap();
+    }
+
     /** Reads a set of horizontal posiitions based upon t and z indices rather than natural values */
     List<Float> readHorizontalDomain(FilenameAndTimeIndex fti, int zIndex, Domain<HorizontalPosition> domain)
         throws IOException
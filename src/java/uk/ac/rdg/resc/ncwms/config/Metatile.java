@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import org.geotoolkit.referencing.CRS;
+import org.opengis.geometry.Envelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.util.Utils;
+
+/**
+ * <p>A block of NxN neighbouring tiles that are read from the source data
+ * together, so that the fixed costs of reading data (opening the dataset,
+ * building the {@link uk.ac.rdg.resc.edal.cdm.PixelMap PixelMap} etc) are paid
+ * once for all the tiles.  The tiles are then put in the tile cache, ready
+ * for the requests that tiling clients will soon make for them.</p>
+ * <p>A request can only be part of a metatile if its bounding box is a tile
+ * of a regular tiling scheme with its origin at (0,0), i.e. its corners are
+ * whole multiples of its width and height.  This is true of the common tiling
+ * schemes in lon-lat and Google Mercator projections.  The bounding boxes of
+ * the tiles are recalculated from the tile indices, so that all requests for
+ * the same tile have exactly the same bounding box (and hence the same
+ * {@link uk.ac.rdg.resc.ncwms.cache.TileCacheKey}) whatever rounding errors
+ * are in the client's bounding box.  The pixels of all the tiles are the
+ * pixels of the metatile, so there are no seams between tiles.</p>
+ * <p>Metatiles are clipped to the valid extent of the CRS (e.g. &plusmn;90 degrees
+ * of latitude in lon-lat CRSs), so they may contain fewer than NxN tiles.
+ * Tiles outside the valid extent are not read as part of metatiles.</p>
+ *
+ * @author Jon Blower
+ */
+final class Metatile
+{
+    /** Tolerance for deciding whether a bounding box is aligned with the tiling scheme */
+    private static final double TOLERANCE = 1e-6;
+
+    /** Significant figures to which tile sizes are rounded */
+    private static final MathContext TILE_SIZE_PRECISION = new MathContext(12);
+
+    /** The largest metatile (in pixels along each side) that we will read */
+    private static final int MAX_METATILE_PIXELS = 2048;
+
+    private final CoordinateReferenceSystem crs;
+    private final double tileWidth;
+    private final double tileHeight;
+    private final int tilePixelsX;
+    private final int tilePixelsY;
+    /** Indices of the bottom-left tile of the metatile */
+    private final long minCol;
+    private final long minRow;
+    /** Number of tiles in the metatile in each direction */
+    private final int numCols;
+    private final int numRows;
+    /** Indices of the requested tile within the metatile */
+    private final int tileI;
+    private final int tileJ;
+
+    private Metatile(CoordinateReferenceSystem crs, double tileWidth,
+        double tileHeight, int tilePixelsX, int tilePixelsY, long minCol,
+        long minRow, int numCols, int numRows, long col, long row)
+    {
+        this.crs = crs;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tilePixelsX = tilePixelsX;
+        this.tilePixelsY = tilePixelsY;
+        this.minCol = minCol;
+        this.minRow = minRow;
+        this.numCols = numCols;
+        this.numRows = numRows;
+        this.tileI = (int)(col - minCol);
+        this.tileJ = (int)(row - minRow);
+    }
+
+    /**
+     * Returns the metatile of the given size that contains the given grid,
+     * or null if the grid is not a tile of a regular tiling scheme, the tile
+     * is outside the valid extent of its CRS, or the metatile would be too
+     * large.
+     */
+    static Metatile forTile(RegularGrid grid, int size)
+    {
+        int width = grid.getXAxis().getSize();
+        int height = grid.getYAxis().getSize();
+        if (size < 2 || width * size > MAX_METATILE_PIXELS || height * size > MAX_METATILE_PIXELS)
+        {
+            return null;
+        }
+        BoundingBox bbox = grid.getExtent();
+        double tileWidth = round(bbox.getMaxX() - bbox.getMinX());
+        double tileHeight = round(bbox.getMaxY() - bbox.getMinY());
+        double col = bbox.getMinX() / tileWidth;
+        double row = bbox.getMinY() / tileHeight;
+        if (Math.abs(col - Math.rint(col)) > TOLERANCE ||
+            Math.abs(row - Math.rint(row)) > TOLERANCE)
+        {
+            return null;
+        }
+        long tileCol = (long)Math.rint(col);
+        long tileRow = (long)Math.rint(row);
+        long minCol = floorDiv(tileCol, size) * size;
+        long minRow = floorDiv(tileRow, size) * size;
+        long maxCol = minCol + size - 1;
+        long maxRow = minRow + size - 1;
+
+        // Clip the metatile to the tiles that overlap the valid extent of the CRS
+        CoordinateReferenceSystem crs = grid.getCoordinateReferenceSystem();
+        double[] extent = getValidExtent(crs);
+        if (extent != null)
+        {
+            long firstCol = (long)Math.floor(extent[0] / tileWidth + TOLERANCE);
+            long firstRow = (long)Math.floor(extent[1] / tileHeight + TOLERANCE);
+            long lastCol = (long)Math.ceil(extent[2] / tileWidth - TOLERANCE) - 1;
+            long lastRow = (long)Math.ceil(extent[3] / tileHeight - TOLERANCE) - 1;
+            if (tileCol < firstCol || tileCol > lastCol || tileRow < firstRow || tileRow > lastRow)
+            {
+                return null;
+            }
+            minCol = Math.max(minCol, firstCol);
+            minRow = Math.max(minRow, firstRow);
+            maxCol = Math.min(maxCol, lastCol);
+            maxRow = Math.min(maxRow, lastRow);
+        }
+        return new Metatile(crs, tileWidth, tileHeight, width, height, minCol, minRow,
+            (int)(maxCol - minCol + 1), (int)(maxRow - minRow + 1), tileCol, tileRow);
+    }
+
+    /**
+     * Returns the valid extent of the given CRS as [minX, minY, maxX, maxY],
+     * or null if this is not known
+     */
+    private static double[] getValidExtent(CoordinateReferenceSystem crs)
+    {
+        if (Utils.isWgs84LonLat(crs))
+        {
+            return new double[] {-180.0, -90.0, 180.0, 90.0};
+        }
+        Envelope envelope = CRS.getEnvelope(crs);
+        if (envelope == null || envelope.getDimension() != 2) return null;
+        return new double[] {
+            envelope.getMinimum(0), envelope.getMinimum(1),
+            envelope.getMaximum(0), envelope.getMaximum(1)
+        };
+    }
+
+    /** Returns the grid of the whole metatile */
+    RegularGrid getGrid()
+    {
+        return new RegularGridImpl(
+            this.minCol * this.tileWidth,
+            this.minRow * this.tileHeight,
+            (this.minCol + this.numCols) * this.tileWidth,
+            (this.minRow + this.numRows) * this.tileHeight,
+            this.crs,
+            this.tilePixelsX * this.numCols,
+            this.tilePixelsY * this.numRows
+        );
+    }
+
+    /** Returns the number of columns of tiles in the metatile */
+    int getNumCols()
+    {
+        return this.numCols;
+    }
+
+    /** Returns the number of rows of tiles in the metatile */
+    int getNumRows()
+    {
+        return this.numRows;
+    }
+
+    /**
+     * Returns the grid of the tile with the given indices within the
+     * metatile, counting rows from the bottom
+     */
+    RegularGrid getTileGrid(int i, int j)
+    {
+        return new RegularGridImpl(
+            (this.minCol + i) * this.tileWidth,
+            (this.minRow + j) * this.tileHeight,
+            (this.minCol + i + 1) * this.tileWidth,
+            (this.minRow + j + 1) * this.tileHeight,
+            this.crs,
+            this.tilePixelsX,
+            this.tilePixelsY
+        );
+    }
+
+    /** Returns the grid of the requested tile, with its canonical bounding box */
+    RegularGrid getRequestedTileGrid()
+    {
+        return this.getTileGrid(this.tileI, this.tileJ);
+    }
+
+    /**
+     * Extracts the data for the tile with the given indices from the data
+     * for the whole metatile
+     */
+    List<Float> extractTile(List<Float> metatileData, int i, int j)
+    {
+        int metatileWidth = this.tilePixelsX * this.numCols;
+        float[] data = new float[this.tilePixelsX * this.tilePixelsY];
+        int index = 0;
+        for (int y = 0; y < this.tilePixelsY; y++)
+        {
+            int metatileIndex = (j * this.tilePixelsY + y) * metatileWidth + i * this.tilePixelsX;
+            for (int x = 0; x < this.tilePixelsX; x++)
+            {
+                Float val = metatileData.get(metatileIndex++);
+                data[index++] = val == null ? Float.NaN : val.floatValue();
+            }
+        }
+        return CdmUtils.wrap(data);
+    }
+
+    /**
+     * Extracts the data for the requested tile from the data for the whole
+     * metatile
+     */
+    List<Float> extractRequestedTile(List<Float> metatileData)
+    {
+        return this.extractTile(metatileData, this.tileI, this.tileJ);
+    }
+
+    /**
+     * Rounds the given tile size to a fixed number of significant figures,
+     * to remove the rounding errors in the client's calculations
+     */
+    private static double round(double d)
+    {
+        return new BigDecimal(d).round(TILE_SIZE_PRECISION).doubleValue();
+    }
+
+    private static long floorDiv(long a, int b)
+    {
+        long q = a / b;
+        return (a % b != 0 && (a < 0)) ? q - 1 : q;
+    }
+}
@@ -32,6 +32,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.joda.time.DateTime;
@@ -63,6 +68,10 @@ public final class NcwmsController extends AbstractWmsController
     // Cache of recently-extracted data arrays: will be set by Spring
     private TileCache tileCache;
 
+    /** Metatiles that are currently being read, so that they are only read once */
+    private final ConcurrentMap<TileCacheKey, FutureTask<List<Float>>> metatilesInProgress =
+        new ConcurrentHashMap<TileCacheKey, FutureTask<List<Float>>>();
+
     // Object that extracts layers from the config object, given a layer name
     private final LayerFactory LAYER_FACTORY = new LayerFactory()
     {
@@ -254,6 +263,16 @@ public final class NcwmsController extends AbstractWmsController
         // Find the z index within the file
         int zIndex = layerImpl.findAndCheckElevationIndex(elevation);
 
+        boolean cacheEnabled = this.getConfig().getCache().isEnabled();
+        // See if this request is a tile that can be read as part of a metatile,
+        // in which case we use the canonical bounding box of the tile
+        Metatile metatile = null;
+        if (cacheEnabled)
+        {
+            metatile = Metatile.forTile(grid, this.getConfig().getCache().getMetatileSize());
+            if (metatile != null) grid = metatile.getRequestedTileGrid();
+        }
+
         // Create a key for searching the cache
         TileCacheKey key = new TileCacheKey(
             fti.filename,
@@ -265,13 +284,25 @@ public final class NcwmsController extends AbstractWmsController
 
         List<Float> data = null;
         // Search the cache.  Returns null if key is not found
-        boolean cacheEnabled = this.getConfig().getCache().isEnabled();
-        if (cacheEnabled) data = this.tileCache.get(key);
+        if (cacheEnabled)
+        {
+            data = this.tileCache.get(key);
+            // See if we can derive the data from another tile in the cache
+            if (data == null && layerImpl.usesPixelMap())
+            {
+                data = this.tileCache.derive(key, grid, layer.getHorizontalGrid());
+            }
+        }
 
         // Record whether or not we got a hit in the cache
         usageLogEntry.setUsedCache(data != null);
 
-        if (data == null)
+        if (data == null && metatile != null)
+        {
+            // Read the whole metatile, putting all its tiles in the cache
+            data = this.readMetatile(layerImpl, fti, zIndex, metatile);
+        }
+        else if (data == null)
         {
             // We didn't get any data from the cache, so we have to read from
             // the source data.
@@ -285,6 +316,125 @@ public final class NcwmsController extends AbstractWmsController
         return data;
     }
 
+    /**
+     * Reads the data for a whole metatile from the source data, puts all
+     * its tiles in the tile cache and returns the data for the requested tile.
+     * Tiling clients request neighbouring tiles at the same time, so if another
+     * thread is already reading the same metatile we wait for it to finish
+     * rather than reading the metatile again.
+     */
+    private List<Float> readMetatile(final LayerImpl layer,
+        final LayerImpl.FilenameAndTimeIndex fti, final int zIndex,
+        final Metatile metatile) throws IOException
+    {
+        final RegularGrid metatileGrid = metatile.getGrid();
+        TileCacheKey metatileKey = new TileCacheKey(
+            fti.filename,
+            layer,
+            metatileGrid,
+            fti.tIndexInFile,
+            zIndex
+        );
+        FutureTask<List<Float>> task = new FutureTask<List<Float>>(new Callable<List<Float>>()
+        {
+            @Override
+            public List<Float> call() throws IOException
+            {
+                List<Float> metatileData = layer.readHorizontalDomain(fti, zIndex, metatileGrid);
+                for (int j = 0; j < metatile.getNumRows(); j++)
+                {
+                    for (int i = 0; i < metatile.getNumCols(); i++)
+                    {
+                        TileCacheKey tileKey = new TileCacheKey(
+                            fti.filename,
+                            layer,
+                            metatile.getTileGrid(i, j),
+                            fti.tIndexInFile,
+                            zIndex
+                        );
+                        tileCache.put(tileKey, metatile.extractTile(metatileData, i, j));
+                    }
+                }
+                return metatileData;
+            }
+        });
+
+        FutureTask<List<Float>> existingTask = this.metatilesInProgress.putIfAbsent(metatileKey, task);
+        if (existingTask == null)
+        {
+            // No other thread is reading this metatile, so we read it here
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                this.metatilesInProgress.remove(metatileKey, task);
+            }
+            existingTask = task;
+        }
+
+        try
+        {
+            return metatile.extractRequestedTile(existingTask.get());
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading metatile", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IOException("Error reading metatile", cause);
+        }
+    }
+
+    /**
+     * Reads a grid of data into the tile cache, without returning it.  This
+     * is called by the {@link TileSeeder} to pre-compute tiles, and uses the same
+     * keys as {@link #readDataGrid(uk.ac.rdg.resc.ncwms.wms.ScalarLayer,
+     * org.joda.time.DateTime, double, uk.ac.rdg.resc.edal.coverage.grid.RegularGrid,
+     * uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry) readDataGrid()}.
+     * @return true if the data had to be read from the source data, false
+     * if they were already in the cache (or could be derived from another
+     * tile in the cache) or the cache is disabled.
+     */
+    boolean seedDataGrid(ScalarLayer layer, DateTime dateTime,
+        double elevation, RegularGrid grid)
+        throws InvalidDimensionValueException, IOException
+    {
+        if (!this.getConfig().getCache().isEnabled()) return false;
+
+        LayerImpl layerImpl = (LayerImpl)layer;
+        LayerImpl.FilenameAndTimeIndex fti = layerImpl.findAndCheckFilenameAndTimeIndex(dateTime);
+        int zIndex = layerImpl.findAndCheckElevationIndex(elevation);
+        // Use the canonical bounding box of the tile, as readDataGrid() does,
+        // so that GetMap requests find the seeded tile
+        Metatile metatile = Metatile.forTile(grid, this.getConfig().getCache().getMetatileSize());
+        if (metatile != null) grid = metatile.getRequestedTileGrid();
+        TileCacheKey key = new TileCacheKey(
+            fti.filename,
+            layer,
+            grid,
+            fti.tIndexInFile,
+            zIndex
+        );
+        if (this.tileCache.contains(key)) return false;
+        if (layerImpl.usesPixelMap() &&
+            this.tileCache.derive(key, grid, layer.getHorizontalGrid()) != null)
+        {
+            return false;
+        }
+
+        List<Float> data = layerImpl.readHorizontalDomain(fti, zIndex, grid);
+        this.tileCache.put(key, data);
+        return true;
+    }
+
     /**
      * Called by Spring to shut down the controller.  This shuts down the tile
      * cache.
@@ -96,6 +96,12 @@ public final class PhaveosDataReader extends DataReader {
         }
     }
 
+    /** Returns true: the data are read through a PixelMap */
+    @Override
+    public boolean usesPixelMap() {
+        return true;
+    }
+
     @Override
     public List<Float> read(String filename, Layer layer, int tIndex, int zIndex,
             Domain<HorizontalPosition> targetDomain) throws IOException {
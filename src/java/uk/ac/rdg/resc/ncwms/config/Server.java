@@ -30,6 +30,10 @@ package uk.ac.rdg.resc.ncwms.config;
 
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.Root;
+import org.simpleframework.xml.core.Commit;
+import uk.ac.rdg.resc.ncwms.graphics.ImageSettings;
+import uk.ac.rdg.resc.ncwms.graphics.JpegFormat;
+import uk.ac.rdg.resc.ncwms.graphics.PngFormat;
 
 /**
  * The part of the configuration file that pertains to the server itself.
@@ -60,6 +64,27 @@ public class Server
     private String adminPassword = "ncWMS";
     @Element(name="allowglobalcapabilities", required=false)
     private boolean allowGlobalCapabilities = true;
+    @Element(name="pngCompressionLevel", required=false)
+    private int pngCompressionLevel = PngFormat.DEFAULT_COMPRESSION_LEVEL;
+    @Element(name="jpegQuality", required=false)
+    private int jpegQuality = JpegFormat.DEFAULT_QUALITY;
+    @Element(name="jpegProgressive", required=false)
+    private boolean jpegProgressive = false;
+
+    /** The settings of the image formats, built from the three fields above */
+    private volatile ImageSettings imageSettings = ImageSettings.DEFAULT;
+
+    /**
+     * Checks and builds the settings that are used by the image formats, after
+     * this object has been read from the config file
+     * @throws IllegalArgumentException if the settings are out of range
+     */
+    @Commit
+    public void checkImageSettings()
+    {
+        this.imageSettings = new ImageSettings(this.pngCompressionLevel,
+            this.jpegQuality, this.jpegProgressive);
+    }
     
     public String getTitle()
     {
@@ -109,6 +134,40 @@ public class Server
         this.maxImageHeight = maxImageHeight;
     }
 
+    public int getPngCompressionLevel()
+    {
+        return pngCompressionLevel;
+    }
+
+    public int getJpegQuality()
+    {
+        return jpegQuality;
+    }
+
+    public boolean isJpegProgressive()
+    {
+        return jpegProgressive;
+    }
+
+    /**
+     * Gets the settings with which images are encoded
+     */
+    public ImageSettings getImageSettings()
+    {
+        return this.imageSettings;
+    }
+
+    /**
+     * Sets the settings with which images are encoded
+     */
+    public void setImageSettings(ImageSettings imageSettings)
+    {
+        this.pngCompressionLevel = imageSettings.getPngCompressionLevel();
+        this.jpegQuality = imageSettings.getJpegQuality();
+        this.jpegProgressive = imageSettings.isJpegProgressive();
+        this.imageSettings = imageSettings;
+    }
+
     public String getServerAbstract()
     {
         return abstr;
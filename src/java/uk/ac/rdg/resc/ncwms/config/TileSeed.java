@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.Collections;
+import java.util.List;
+import org.joda.time.DateTime;
+import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.Root;
+import org.simpleframework.xml.core.PersistenceException;
+import org.simpleframework.xml.core.Validate;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+
+/**
+ * <p>Describes a set of tiles that will be computed and placed in the
+ * {@link uk.ac.rdg.resc.ncwms.cache.TileCache TileCache} each time the metadata
+ * of the parent {@link Dataset} are loaded, so that the first users to request
+ * the newest data do not have to wait for the source data to be read.  Seeds are
+ * set in the config file, e.g.:</p>
+ * <pre>
+ * &lt;seed layer="sst" crs="EPSG:4326" minZoom="0" maxZoom="3"
+ *       bbox="-30 30 40 70" latestTimesteps="2"/&gt;
+ * </pre>
+ * <p>Tiles are laid out according to the common tiling schemes used by
+ * OpenLayers, Google Maps and WMTS clients: in lon-lat projections (EPSG:4326,
+ * CRS:84) zoom level 0 consists of two 180-degree tiles, and in the spherical
+ * Mercator projection (EPSG:3857, EPSG:900913) zoom level 0 is a single tile
+ * covering the whole world.  Each subsequent zoom level halves the size of
+ * the tiles.</p>
+ * <p>Note that the tile cache holds data arrays, not images, so the style
+ * of the tiles is irrelevant here: seeded tiles will be used for any style.</p>
+ *
+ * @see TileSeeder
+ * @author Jon Blower
+ */
+@Root(name="seed")
+public class TileSeed
+{
+    /** The half-width of the spherical Mercator projection in metres */
+    private static final double MERCATOR_EXTENT = 20037508.342789244;
+    /** The highest zoom level that we support (prevents integer overflow) */
+    private static final int MAX_ZOOM = 24;
+
+    @Attribute(name="layer")
+    private String layerId;
+
+    @Attribute(name="crs", required=false)
+    private String crsCode = "EPSG:4326";
+
+    @Attribute(name="minZoom", required=false)
+    private int minZoom = 0;
+
+    @Attribute(name="maxZoom", required=false)
+    private int maxZoom = 3;
+
+    @Attribute(name="bbox", required=false)
+    private String bboxStr = null; // space-separated, in the CRS of the tiles
+
+    @Attribute(name="latestTimesteps", required=false)
+    private int latestTimesteps = 1;
+
+    @Attribute(name="tileSize", required=false)
+    private int tileSize = 256;
+
+    // The extent of the tiling scheme as [minx, miny, maxx, maxy]
+    private double[] schemeExtent;
+    // The number of tiles in each direction at zoom level zero
+    private int numTilesX0;
+    private int numTilesY0;
+    // The region to seed, in the CRS of the tiles
+    private double[] bbox;
+
+    /**
+     * Checks that the information in the XML is valid and sets up the tiling
+     * scheme.
+     */
+    @Validate
+    public void validate() throws PersistenceException
+    {
+        if ("EPSG:4326".equalsIgnoreCase(this.crsCode) || "CRS:84".equalsIgnoreCase(this.crsCode))
+        {
+            this.schemeExtent = new double[] {-180.0, -90.0, 180.0, 90.0};
+            this.numTilesX0 = 2;
+            this.numTilesY0 = 1;
+        }
+        else if ("EPSG:3857".equalsIgnoreCase(this.crsCode) || "EPSG:900913".equalsIgnoreCase(this.crsCode))
+        {
+            this.schemeExtent = new double[] {-MERCATOR_EXTENT, -MERCATOR_EXTENT,
+                MERCATOR_EXTENT, MERCATOR_EXTENT};
+            this.numTilesX0 = 1;
+            this.numTilesY0 = 1;
+        }
+        else
+        {
+            throw new PersistenceException("Tiles cannot be seeded in CRS %s", this.crsCode);
+        }
+
+        if (this.minZoom < 0 || this.maxZoom < this.minZoom || this.maxZoom > MAX_ZOOM)
+        {
+            throw new PersistenceException("Invalid zoom levels for seeding layer %s", this.layerId);
+        }
+        if (this.tileSize <= 0 || this.latestTimesteps <= 0)
+        {
+            throw new PersistenceException("Invalid seed specification for layer %s", this.layerId);
+        }
+
+        if (this.bboxStr == null || this.bboxStr.trim().equals(""))
+        {
+            this.bbox = this.schemeExtent;
+        }
+        else
+        {
+            String[] els = this.bboxStr.trim().split("[\\s,]+");
+            if (els.length != 4)
+            {
+                throw new PersistenceException("Invalid bbox for seeding layer %s", this.layerId);
+            }
+            this.bbox = new double[4];
+            try
+            {
+                for (int i = 0; i < 4; i++) this.bbox[i] = Double.parseDouble(els[i]);
+            }
+            catch(NumberFormatException nfe)
+            {
+                throw new PersistenceException("Invalid bbox for seeding layer %s", this.layerId);
+            }
+            if (this.bbox[0] >= this.bbox[2] || this.bbox[1] >= this.bbox[3])
+            {
+                throw new PersistenceException("Invalid bbox for seeding layer %s", this.layerId);
+            }
+        }
+    }
+
+    public String getLayerId() { return this.layerId; }
+
+    public String getCrsCode() { return this.crsCode; }
+
+    public int getMinZoom() { return this.minZoom; }
+
+    public int getMaxZoom() { return this.maxZoom; }
+
+    public int getTileSize() { return this.tileSize; }
+
+    public int getLatestTimesteps() { return this.latestTimesteps; }
+
+    /**
+     * Returns the times of the latest timesteps of the given layer that are
+     * to be seeded, or a List containing a single null value if the layer
+     * has no time axis.
+     */
+    List<DateTime> getTimesteps(Layer layer)
+    {
+        List<DateTime> tValues = layer.getTimeValues();
+        if (tValues.isEmpty()) return Collections.singletonList(null);
+        int n = Math.min(this.latestTimesteps, tValues.size());
+        return tValues.subList(tValues.size() - n, tValues.size());
+    }
+
+    /**
+     * Returns the range of tiles that intersect the region to be seeded
+     * at the given zoom level, as [minCol, minRow, maxCol, maxRow] (inclusive).
+     * Rows are counted from the bottom of the tiling scheme.  If there
+     * are no such tiles, minCol will be greater than maxCol.
+     */
+    int[] getTileRange(int zoom)
+    {
+        double tileWidth = this.getTileWidth(zoom);
+        double tileHeight = this.getTileHeight(zoom);
+        int numX = this.numTilesX0 << zoom;
+        int numY = this.numTilesY0 << zoom;
+        int minCol = (int)Math.floor((this.bbox[0] - this.schemeExtent[0]) / tileWidth);
+        int minRow = (int)Math.floor((this.bbox[1] - this.schemeExtent[1]) / tileHeight);
+        int maxCol = (int)Math.ceil ((this.bbox[2] - this.schemeExtent[0]) / tileWidth) - 1;
+        int maxRow = (int)Math.ceil ((this.bbox[3] - this.schemeExtent[1]) / tileHeight) - 1;
+        return new int[] {
+            Math.max(minCol, 0),
+            Math.max(minRow, 0),
+            Math.min(maxCol, numX - 1),
+            Math.min(maxRow, numY - 1)
+        };
+    }
+
+    /**
+     * Returns the bounding box of the given tile as [minx, miny, maxx, maxy]
+     */
+    double[] getTileBbox(int zoom, int col, int row)
+    {
+        double tileWidth = this.getTileWidth(zoom);
+        double tileHeight = this.getTileHeight(zoom);
+        return new double[] {
+            this.schemeExtent[0] + col * tileWidth,
+            this.schemeExtent[1] + row * tileHeight,
+            this.schemeExtent[0] + (col + 1) * tileWidth,
+            this.schemeExtent[1] + (row + 1) * tileHeight
+        };
+    }
+
+    /**
+     * Returns the total number of tiles (for all zoom levels) in a single
+     * timestep of this seed
+     */
+    long getNumTilesPerTimestep()
+    {
+        long numTiles = 0;
+        for (int zoom = this.minZoom; zoom <= this.maxZoom; zoom++)
+        {
+            int[] range = this.getTileRange(zoom);
+            if (range[0] <= range[2] && range[1] <= range[3])
+            {
+                numTiles += (long)(range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+            }
+        }
+        return numTiles;
+    }
+
+    private double getTileWidth(int zoom)
+    {
+        return (this.schemeExtent[2] - this.schemeExtent[0]) / (this.numTilesX0 << zoom);
+    }
+
+    private double getTileHeight(int zoom)
+    {
+        return (this.schemeExtent[3] - this.schemeExtent[1]) / (this.numTilesY0 << zoom);
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.joda.time.DateTime;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.ncwms.cache.TileCache;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+import uk.ac.rdg.resc.ncwms.wms.ScalarLayer;
+import uk.ac.rdg.resc.ncwms.wms.VectorLayer;
+
+/**
+ * <p>Pre-computes the tiles described by each {@link Dataset}'s {@link TileSeed}s
+ * and places them in the {@link uk.ac.rdg.resc.ncwms.cache.TileCache TileCache}
+ * whenever the metadata of the dataset are (re)loaded.  This means that the
+ * first users to request the newest data find them already in the cache.</p>
+ * <p>Seeding happens on a single background thread, with a pause after every
+ * tile that has to be read from the source data, so that seeding does not
+ * saturate the server's I/O while datasets are being reloaded.  Tiles
+ * that are already in the cache are skipped.  If a dataset is reloaded while
+ * it is being seeded, the old seeding job is cancelled and a new one started.
+ * Seeding can be switched off at any time from the admin application, which
+ * cancels all seeding jobs.</p>
+ * <p>The same background thread removes stale tiles from the cache when a
+ * dataset is reloaded (before the dataset is seeded again) and removes all
+ * the tiles of a dataset when it is removed from the server.</p>
+ * <p>Tiles are read through
+ * {@link NcwmsController#seedDataGrid(uk.ac.rdg.resc.ncwms.wms.ScalarLayer,
+ * org.joda.time.DateTime, double, uk.ac.rdg.resc.edal.coverage.grid.RegularGrid)},
+ * so exactly the same data arrays are cached as would be for a GetMap request.</p>
+ *
+ * @author Jon Blower
+ */
+public class TileSeeder implements DatasetListener
+{
+    private static final Logger logger = LoggerFactory.getLogger(TileSeeder.class);
+
+    // These will be injected by Spring
+    private Config config;
+    private NcwmsController wmsController;
+    private TileCache tileCache;
+
+    /** A single thread, to limit the load that seeding places on the server */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /** Maps dataset IDs to the most recent seeding job for each dataset */
+    private final Map<String, SeedingJob> jobs = new LinkedHashMap<String, SeedingJob>();
+
+    /**
+     * Called by Spring after the dependencies have been injected: registers
+     * this object to receive notifications of dataset reloads.  The Config
+     * object starts loading the datasets as soon as it is created, so some
+     * datasets may already have been loaded before this object was registered:
+     * these are treated as if they had just been loaded.  (A dataset that is
+     * loaded while this method is running may be seeded twice, but the second
+     * seeding job simply replaces the first.)
+     */
+    public void init()
+    {
+        this.config.addDatasetListener(this);
+        for (Dataset dataset : this.config.getAllDatasets().values())
+        {
+            if (dataset.isReady()) this.layersLoaded(dataset);
+        }
+    }
+
+    /**
+     * Called when the metadata of a dataset have been loaded: removes the
+     * dataset's stale tiles from the cache, then starts seeding the tile cache
+     * for the dataset, if the dataset has any seeds and seeding is enabled.
+     */
+    @Override
+    public void layersLoaded(final Dataset dataset)
+    {
+        this.executor.submit(new Runnable() {
+            @Override public void run() {
+                tileCache.removeStaleTiles(dataset);
+            }
+        });
+
+        if (dataset.getSeeds().isEmpty()) return;
+        Cache cacheConfig = this.config.getCache();
+        if (!cacheConfig.isEnabled() || !cacheConfig.isEnableSeeding()) return;
+
+        SeedingJob job = new SeedingJob(dataset);
+        synchronized(this.jobs)
+        {
+            SeedingJob oldJob = this.jobs.put(dataset.getId(), job);
+            if (oldJob != null) oldJob.cancel();
+        }
+        this.executor.submit(job);
+        logger.debug("Scheduled seeding of tile cache for dataset {}", dataset.getId());
+    }
+
+    /**
+     * Called when a dataset has been removed: cancels its seeding and removes
+     * its tiles from the cache
+     */
+    @Override
+    public void datasetRemoved(final String datasetId)
+    {
+        synchronized(this.jobs)
+        {
+            SeedingJob job = this.jobs.remove(datasetId);
+            if (job != null) job.cancel();
+        }
+        this.executor.submit(new Runnable() {
+            @Override public void run() {
+                tileCache.removeTiles(datasetId);
+            }
+        });
+    }
+
+    /**
+     * Cancels all the queued and running seeding jobs
+     */
+    public void cancelAll()
+    {
+        synchronized(this.jobs)
+        {
+            for (SeedingJob job : this.jobs.values()) job.cancel();
+        }
+    }
+
+    /**
+     * Returns the most recent seeding job for each dataset, for display in
+     * the admin application.
+     */
+    public Collection<SeedingJob> getJobs()
+    {
+        synchronized(this.jobs)
+        {
+            return new ArrayList<SeedingJob>(this.jobs.values());
+        }
+    }
+
+    /**
+     * Called by Spring to stop all seeding
+     */
+    public void shutdown()
+    {
+        this.cancelAll();
+        this.executor.shutdownNow();
+        logger.info("Tile seeder shut down");
+    }
+
+    /** Called by Spring to set the Config object */
+    public void setConfig(Config config)
+    {
+        this.config = config;
+    }
+
+    /** Called by Spring to set the controller through which tiles are read */
+    public void setWmsController(NcwmsController wmsController)
+    {
+        this.wmsController = wmsController;
+    }
+
+    /** Called by Spring to set the cache from which stale tiles are removed */
+    public void setTileCache(TileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * The state of a {@link SeedingJob}
+     */
+    public static enum State { QUEUED, RUNNING, FINISHED, CANCELLED, ERROR };
+
+    /**
+     * Seeds the tile cache for a single dataset, keeping track of its progress.
+     */
+    public final class SeedingJob implements Runnable
+    {
+        private final Dataset dataset;
+        private final DateTime creationTime = new DateTime();
+        private volatile State state = State.QUEUED;
+        private volatile long numTiles = 0;
+        private volatile long numTilesDone = 0;
+        private volatile long numTilesRead = 0;
+        private volatile boolean cancelled = false;
+
+        private SeedingJob(Dataset dataset)
+        {
+            this.dataset = dataset;
+        }
+
+        @Override
+        public void run()
+        {
+            if (this.cancelled) return;
+            this.state = State.RUNNING;
+            Thread.currentThread().setName("seed-tiles-" + this.dataset.getId());
+            try
+            {
+                List<TileSeed> seeds = this.dataset.getSeeds();
+                long total = 0;
+                for (TileSeed seed : seeds)
+                {
+                    Layer layer = this.dataset.getLayerById(seed.getLayerId());
+                    if (layer == null) continue;
+                    total += seed.getNumTilesPerTimestep() * seed.getTimesteps(layer).size();
+                }
+                this.numTiles = total;
+
+                for (TileSeed seed : seeds)
+                {
+                    Layer layer = this.dataset.getLayerById(seed.getLayerId());
+                    if (layer == null)
+                    {
+                        logger.warn("Cannot seed layer {}: no such layer in dataset {}",
+                            seed.getLayerId(), this.dataset.getId());
+                        continue;
+                    }
+                    if (!this.seed(layer, seed)) break;
+                }
+                this.state = this.cancelled ? State.CANCELLED : State.FINISHED;
+            }
+            catch (InterruptedException ie)
+            {
+                this.state = State.CANCELLED;
+            }
+            catch (Exception e)
+            {
+                logger.error("Error seeding tile cache for dataset " + this.dataset.getId(), e);
+                this.state = State.ERROR;
+            }
+            logger.debug("Seeding of dataset {} ended with state {}", this.dataset.getId(), this.state);
+        }
+
+        /**
+         * Seeds all the tiles for a single layer.
+         * @return false if the job was cancelled
+         */
+        private boolean seed(Layer layer, TileSeed seed) throws Exception
+        {
+            CoordinateReferenceSystem crs = WmsUtils.getCrs(seed.getCrsCode());
+            double elevation = layer.getElevationValues().isEmpty()
+                ? Double.NaN
+                : layer.getDefaultElevationValue();
+            for (DateTime time : seed.getTimesteps(layer))
+            {
+                for (int zoom = seed.getMinZoom(); zoom <= seed.getMaxZoom(); zoom++)
+                {
+                    int[] range = seed.getTileRange(zoom);
+                    for (int row = range[1]; row <= range[3]; row++)
+                    {
+                        for (int col = range[0]; col <= range[2]; col++)
+                        {
+                            if (this.cancelled || !config.getCache().isEnableSeeding()) return false;
+                            RegularGrid grid = new RegularGridImpl(seed.getTileBbox(zoom, col, row),
+                                crs, seed.getTileSize(), seed.getTileSize());
+                            boolean read = false;
+                            if (layer instanceof ScalarLayer)
+                            {
+                                read = wmsController.seedDataGrid((ScalarLayer)layer, time, elevation, grid);
+                            }
+                            else if (layer instanceof VectorLayer)
+                            {
+                                VectorLayer vecLayer = (VectorLayer)layer;
+                                read = wmsController.seedDataGrid(vecLayer.getEastwardComponent(), time, elevation, grid);
+                                read |= wmsController.seedDataGrid(vecLayer.getNorthwardComponent(), time, elevation, grid);
+                            }
+                            this.numTilesDone++;
+                            if (read)
+                            {
+                                this.numTilesRead++;
+                                // Give other users of the server a chance to
+                                // access the source data
+                                Thread.sleep(config.getCache().getSeedingPauseMillis());
+                            }
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void cancel()
+        {
+            this.cancelled = true;
+            if (this.state == State.QUEUED) this.state = State.CANCELLED;
+        }
+
+        public String getDatasetId() { return this.dataset.getId(); }
+
+        public DateTime getCreationTime() { return this.creationTime; }
+
+        public State getState() { return this.state; }
+
+        /** Returns the total number of tiles to be seeded in this job */
+        public long getNumTiles() { return this.numTiles; }
+
+        /** Returns the number of tiles that have been checked so far */
+        public long getNumTilesDone() { return this.numTilesDone; }
+
+        /** Returns the number of tiles that have had to be read from the source data */
+        public long getNumTilesRead() { return this.numTilesRead; }
+    }
+}
@@ -28,8 +28,10 @@
 package uk.ac.rdg.resc.ncwms.controller;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -38,9 +40,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
@@ -81,9 +88,11 @@ import uk.ac.rdg.resc.ncwms.exceptions.StyleNotDefinedException;
 import uk.ac.rdg.resc.ncwms.exceptions.Wms1_1_1Exception;
 import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
 import uk.ac.rdg.resc.ncwms.graphics.ColorPalette;
+import uk.ac.rdg.resc.ncwms.graphics.DataTileFormat;
 import uk.ac.rdg.resc.ncwms.graphics.ImageFormat;
 import uk.ac.rdg.resc.ncwms.graphics.ImageProducer;
 import uk.ac.rdg.resc.ncwms.graphics.KmzFormat;
+import uk.ac.rdg.resc.ncwms.graphics.SimpleFormat;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
 import uk.ac.rdg.resc.ncwms.usagelog.UsageLogger;
 import uk.ac.rdg.resc.ncwms.util.WmsUtils;
@@ -122,11 +131,19 @@ public abstract class AbstractWmsController extends AbstractController {
     private static final int LAYER_LIMIT = 1;
     private static final String FEATURE_INFO_XML_FORMAT = "text/xml";
     private static final String FEATURE_INFO_PNG_FORMAT = "image/png";
+    /**
+     * The maximum number of rendered frames of an animation that we hold in
+     * memory, waiting to be written to the client
+     */
+    private static final int MAX_PENDING_FRAMES = 2 * Runtime.getRuntime().availableProcessors();
 
     // These objects will be injected by Spring
     protected ServerConfig serverConfig;
     protected UsageLogger usageLogger;
 
+    /** Encoded images of tiles outside the domains of layers */
+    private final BlankTileCache blankTileCache = new BlankTileCache();
+
     /**
      * Called automatically by Spring after all the dependencies have been
      * injected.
@@ -403,7 +420,7 @@ public abstract class AbstractWmsController extends AbstractController {
         // Get the ImageFormat object corresponding with the requested MIME type
         String mimeType = styleRequest.getImageFormat();
         // This throws an InvalidFormatException if the MIME type is not supported
-        ImageFormat imageFormat = ImageFormat.get(mimeType);
+        ImageFormat imageFormat = ImageFormat.get(mimeType, this.serverConfig.getImageSettings());
 
         GetMapDataRequest dr = getMapRequest.getDataRequest();
 
@@ -422,6 +439,14 @@ public abstract class AbstractWmsController extends AbstractController {
         // Get the grid onto which the data will be projected
         RegularGrid grid = WmsUtils.getImageGrid(dr);
 
+        // Data tiles are written without colouring, so we don't need an
+        // ImageProducer
+        if (imageFormat instanceof DataTileFormat) {
+            this.writeDataTile((DataTileFormat)imageFormat, params, layer, dr,
+                grid, httpServletResponse, usageLogEntry);
+            return null;
+        }
+
         // Create an object that will turn data into BufferedImages
         Range<Float> scaleRange = styleRequest.getColorScaleRange();
         if (scaleRange == null) scaleRange = layer.getApproxValueRange();
@@ -488,49 +513,266 @@ public abstract class AbstractWmsController extends AbstractController {
         long beforeExtractData = System.currentTimeMillis();
         // Use a single null time value if the layer has no time axis
         if (timeValues.isEmpty()) timeValues = Arrays.asList((DateTime)null);
-        for (DateTime timeValue : timeValues) {
-            // Only add a label if this is part of an animation
-            String tValueStr = "";
-            if (timeValues.size() > 1 && timeValue != null) {
-                tValueStr = WmsUtils.dateTimeToISO8601(timeValue);
+
+        // If the image lies outside the layer's domain we don't need to read
+        // any data.  If the image has a single frame we can usually send a
+        // blank image that we encoded earlier.
+        List<Float> nullData = null;
+        String blankTileKey = null;
+        if (WmsUtils.isOutsideLayer(layer, zValue, grid)) {
+            nullData = Collections.nCopies((int)grid.size(), (Float)null);
+            if (timeValues.size() == 1 && imageFormat instanceof SimpleFormat) {
+                blankTileKey = BlankTileCache.getKey(dr.getWidth(), dr.getHeight(),
+                    mimeType, styleRequest.getBackgroundColour(),
+                    styleRequest.isTransparent(), styleRequest.getOpacity());
+                byte[] blankTile = this.blankTileCache.get(blankTileKey);
+                if (blankTile != null) {
+                    writeImageBytes(blankTile, mimeType, httpServletResponse);
+                    return null;
+                }
             }
-            tValueStrings.add(tValueStr);
-
-            if (layer instanceof ScalarLayer) {
-                // Note that if the layer doesn't have a time axis, timeValue==null but this
-                // will be ignored by readHorizontalPoints()
-                List<Float> data = this.readDataGrid((ScalarLayer)layer, timeValue, zValue, grid, usageLogEntry);
-                imageProducer.addFrame(data, tValueStr);
-            } else if (layer instanceof VectorLayer) {
-                VectorLayer vecLayer = (VectorLayer)layer;
-                List<Float> eastData  = this.readDataGrid(vecLayer.getEastwardComponent(),  timeValue, zValue, grid, usageLogEntry);
-                List<Float> northData = this.readDataGrid(vecLayer.getNorthwardComponent(), timeValue, zValue, grid, usageLogEntry);
-                imageProducer.addFrame(eastData, northData, tValueStr);
-            } else {
-                throw new IllegalStateException("Unrecognized layer type");
+        }
+
+        // If we know the colour scale, the frames of an animation are rendered
+        // in parallel and written to the client one by one as the data are read
+        boolean streamFrames = timeValues.size() > 1 && imageProducer.isScaleSet();
+        ImageFormat.FrameWriter frameWriter = null;
+        Queue<Future<BufferedImage>> pendingFrames = new LinkedList<Future<BufferedImage>>();
+        int numFramesWritten = 0;
+
+        try {
+            for (DateTime timeValue : timeValues) {
+                // Only add a label if this is part of an animation
+                String tValueStr = "";
+                if (timeValues.size() > 1 && timeValue != null) {
+                    tValueStr = WmsUtils.dateTimeToISO8601(timeValue);
+                }
+                tValueStrings.add(tValueStr);
+
+                List<Float> xData;
+                List<Float> yData = null;
+                if (layer instanceof ScalarLayer) {
+                    // Note that if the layer doesn't have a time axis, timeValue==null but this
+                    // will be ignored by readHorizontalPoints()
+                    xData = nullData != null ? nullData
+                        : this.readDataGrid((ScalarLayer)layer, timeValue, zValue, grid, usageLogEntry);
+                } else if (layer instanceof VectorLayer) {
+                    VectorLayer vecLayer = (VectorLayer)layer;
+                    xData = nullData != null ? nullData
+                        : this.readDataGrid(vecLayer.getEastwardComponent(),  timeValue, zValue, grid, usageLogEntry);
+                    yData = nullData != null ? nullData
+                        : this.readDataGrid(vecLayer.getNorthwardComponent(), timeValue, zValue, grid, usageLogEntry);
+                } else {
+                    throw new IllegalStateException("Unrecognized layer type");
+                }
+
+                if (!streamFrames) {
+                    imageProducer.addFrame(xData, yData, tValueStr);
+                    continue;
+                }
+                pendingFrames.add(imageProducer.renderFrame(xData, yData, tValueStr));
+                if (frameWriter == null) {
+                    // Wait until the first frame has been rendered before
+                    // committing the response, so that errors in reading or
+                    // rendering it can still be reported to the client
+                    ImageProducer.getRenderedFrame(pendingFrames.peek());
+                    BufferedImage legend = imageFormat.requiresLegend() ? imageProducer.getLegend(layer) : null;
+                    setImageHeaders(httpServletResponse, imageFormat, layer);
+                    frameWriter = imageFormat.startImage(httpServletResponse.getOutputStream(),
+                        layer, timeValues.size(), dr.getElevationString(), grid.getExtent(), legend);
+                }
+                numFramesWritten = writeRenderedFrames(frameWriter, pendingFrames,
+                    tValueStrings, numFramesWritten, MAX_PENDING_FRAMES,
+                    httpServletResponse);
+            }
+            if (frameWriter != null) {
+                // Write the remaining frames of the animation
+                writeRenderedFrames(frameWriter, pendingFrames, tValueStrings,
+                    numFramesWritten, 0, httpServletResponse);
+                frameWriter.finish();
             }
+        } catch (Exception e) {
+            cancelFrames(pendingFrames);
+            if (frameWriter != null) {
+                // The response has been committed, so we can't send an
+                // exception report.  The exception will not be resolved to an
+                // error view (see WmsExceptionResolver), so the servlet
+                // container will abort the connection and the client will not
+                // mistake the truncated image for a complete one.
+                log.error("Error after writing " + numFramesWritten + " of " +
+                    timeValues.size() + " frames of an animation of layer " +
+                    layer.getName() + "; aborting the response", e);
+            }
+            throw e;
         }
         long timeToExtractData = System.currentTimeMillis() - beforeExtractData;
         usageLogEntry.setTimeToExtractDataMs(timeToExtractData);
+        if (frameWriter != null) return null;
+
+        if (blankTileKey != null) {
+            // Encode the blank image and keep it for future requests
+            ByteArrayOutputStream blankTile = new ByteArrayOutputStream();
+            ((SimpleFormat)imageFormat).writeImage(imageProducer.getRenderedFrames(), blankTile);
+            this.blankTileCache.put(blankTileKey, blankTile.toByteArray());
+            writeImageBytes(blankTile.toByteArray(), mimeType, httpServletResponse);
+            return null;
+        }
 
         // We only create a legend object if the image format requires it
         BufferedImage legend = imageFormat.requiresLegend() ? imageProducer.getLegend(layer) : null;
 
         // Write the image to the client.
         // First we set the HTTP headers
+        setImageHeaders(httpServletResponse, imageFormat, layer);
+        // Render the images and write to the output stream
+        imageFormat.writeImage(imageProducer.getRenderedFrames(),
+                httpServletResponse.getOutputStream(), layer, tValueStrings,
+                dr.getElevationString(), grid.getExtent(), legend);
+
+        return null;
+    }
+
+    /**
+     * Writes the data values for a GetMap request as a binary data tile.  If
+     * the client sets the DEFLATE parameter to true the tile is compressed,
+     * with a Content-Encoding header so that browsers decompress it
+     * automatically.
+     */
+    private void writeDataTile(DataTileFormat format, RequestParams params,
+            Layer layer, GetMapDataRequest dr, RegularGrid grid,
+            HttpServletResponse httpServletResponse, UsageLogEntry usageLogEntry)
+            throws WmsException, Exception
+    {
+        boolean deflate = params.getBoolean("deflate", false);
+        double zValue = getElevationValue(dr.getElevationString(), layer);
+        List<DateTime> timeValues = getTimeValues(dr.getTimeString(), layer);
+        if (timeValues.size() > 1) {
+            throw new WmsException("The image format " + format.getMimeType() +
+                    " does not support multiple frames");
+        }
+        usageLogEntry.setNumTimeSteps(timeValues.size());
+        // Use a null time value if the layer has no time axis
+        DateTime timeValue = timeValues.isEmpty() ? null : timeValues.get(0);
+
+        List<ScalarLayer> components;
+        if (layer instanceof ScalarLayer) {
+            components = Arrays.asList((ScalarLayer)layer);
+        } else if (layer instanceof VectorLayer) {
+            VectorLayer vecLayer = (VectorLayer)layer;
+            components = Arrays.asList(vecLayer.getEastwardComponent(),
+                    vecLayer.getNorthwardComponent());
+        } else {
+            throw new IllegalStateException("Unrecognized layer type");
+        }
+
+        long beforeExtractData = System.currentTimeMillis();
+        boolean outsideLayer = WmsUtils.isOutsideLayer(layer, zValue, grid);
+        List<List<Float>> bands = new ArrayList<List<Float>>();
+        for (ScalarLayer component : components) {
+            bands.add(outsideLayer
+                ? Collections.nCopies((int)grid.size(), (Float)null)
+                : this.readDataGrid(component, timeValue, zValue, grid, usageLogEntry));
+        }
+        usageLogEntry.setTimeToExtractDataMs(System.currentTimeMillis() - beforeExtractData);
+
         httpServletResponse.setStatus(HttpServletResponse.SC_OK);
-        httpServletResponse.setContentType(mimeType);
+        httpServletResponse.setContentType(format.getMimeType());
+        httpServletResponse.setHeader(DataTileFormat.BANDS_HEADER, String.valueOf(bands.size()));
+        float[] scaling = null;
+        if (format.isQuantised()) {
+            scaling = format.getScaling(bands);
+            httpServletResponse.setHeader(DataTileFormat.OFFSET_HEADER, Float.toString(scaling[0]));
+            httpServletResponse.setHeader(DataTileFormat.SCALE_HEADER, Float.toString(scaling[1]));
+            httpServletResponse.setHeader(DataTileFormat.MISSING_CODE_HEADER,
+                    String.valueOf(format.getMissingCode()));
+        }
+        int width = grid.getXAxis().getSize();
+        OutputStream out = httpServletResponse.getOutputStream();
+        if (deflate) {
+            httpServletResponse.setHeader("Content-Encoding", "deflate");
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater);
+                format.writeData(bands, width, scaling, deflaterOut);
+                deflaterOut.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            httpServletResponse.setContentLength(
+                    (int)format.getNumBytes(grid.size() * bands.size()));
+            format.writeData(bands, width, scaling, out);
+        }
+    }
+
+    /**
+     * Sets the HTTP headers for an image in the given format
+     */
+    private static void setImageHeaders(HttpServletResponse httpServletResponse,
+            ImageFormat imageFormat, Layer layer)
+    {
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        httpServletResponse.setContentType(imageFormat.getMimeType());
         // If this is a KMZ file give it a sensible filename
         if (imageFormat instanceof KmzFormat) {
             httpServletResponse.setHeader("Content-Disposition", "inline; filename=" +
                     layer.getDataset().getId() + "_" + layer.getId() + ".kmz");
         }
-        // Render the images and write to the output stream
-        imageFormat.writeImage(imageProducer.getRenderedFrames(),
-                httpServletResponse.getOutputStream(), layer, tValueStrings,
-                dr.getElevationString(), grid.getExtent(), legend);
+    }
 
-        return null;
+    /**
+     * Writes frames from the head of the given queue to the given FrameWriter
+     * in order, as soon as they have been rendered.  If there are more than
+     * {@code maxPendingFrames} frames in the queue we wait for them to be
+     * rendered, which limits the number of frames held in memory.  If a frame
+     * can't be rendered or written, the frames that are still in the queue
+     * are cancelled, since they will never be written.
+     * @param tValues The time values of all the frames that have been read
+     * @param numFramesWritten The number of frames that have already been written
+     * @return the number of frames that have been written
+     */
+    static int writeRenderedFrames(ImageFormat.FrameWriter frameWriter,
+            Queue<Future<BufferedImage>> pendingFrames, List<String> tValues,
+            int numFramesWritten, int maxPendingFrames,
+            HttpServletResponse httpServletResponse) throws IOException
+    {
+        try {
+            while (!pendingFrames.isEmpty() &&
+                  (pendingFrames.peek().isDone() || pendingFrames.size() > maxPendingFrames)) {
+                BufferedImage frame = ImageProducer.getRenderedFrame(pendingFrames.remove());
+                frameWriter.writeFrame(frame, tValues.get(numFramesWritten));
+                numFramesWritten++;
+                // Send the frame to the client straight away
+                httpServletResponse.getOutputStream().flush();
+            }
+            return numFramesWritten;
+        } catch (IOException ioe) {
+            cancelFrames(pendingFrames);
+            throw ioe;
+        } catch (RuntimeException re) {
+            cancelFrames(pendingFrames);
+            throw re;
+        }
+    }
+
+    /** Cancels the rendering of the given frames, interrupting the rendering threads */
+    private static void cancelFrames(Queue<Future<BufferedImage>> pendingFrames)
+    {
+        for (Future<BufferedImage> pendingFrame : pendingFrames) {
+            pendingFrame.cancel(true);
+        }
+    }
+
+    /**
+     * Writes the given encoded image to the client
+     */
+    private static void writeImageBytes(byte[] image, String mimeType,
+            HttpServletResponse httpServletResponse) throws IOException
+    {
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        httpServletResponse.setContentType(mimeType);
+        httpServletResponse.setContentLength(image.length);
+        httpServletResponse.getOutputStream().write(image);
     }
 
     /**
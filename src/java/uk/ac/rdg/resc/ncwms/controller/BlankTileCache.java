@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.awt.Color;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Holds encoded images of tiles that contain no data, for GetMap requests
+ * that lie outside the domain of the requested layer.  All such tiles with the
+ * same size, format and background look the same, so we can encode them once
+ * and send the same bytes to every client.  Clients that show regional layers
+ * on global maps make a great many of these requests.</p>
+ * <p>The number of tiles held is limited, discarding the least-recently-used
+ * tiles.  This class is thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+final class BlankTileCache
+{
+    private static final int MAX_TILES = 100;
+
+    private final Map<String, byte[]> tiles =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest)
+        {
+            return this.size() > MAX_TILES;
+        }
+    };
+
+    /**
+     * Returns a key that identifies the appearance of a blank tile
+     * @param bgColor The background colour, or null for the default
+     */
+    static String getKey(int width, int height, String mimeType,
+        Color bgColor, boolean transparent, int opacity)
+    {
+        return width + "x" + height + "," + mimeType + ","
+            + (bgColor == null ? "default" : Integer.toHexString(bgColor.getRGB())) + ","
+            + transparent + "," + opacity;
+    }
+
+    /**
+     * Returns the encoded image for the given key, or null if we don't
+     * have one
+     */
+    synchronized byte[] get(String key)
+    {
+        return this.tiles.get(key);
+    }
+
+    /** Stores the encoded image for the given key */
+    synchronized void put(String key, byte[] image)
+    {
+        this.tiles.put(key, image);
+    }
+}
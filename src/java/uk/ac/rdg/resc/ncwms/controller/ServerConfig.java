@@ -32,6 +32,7 @@ import java.io.File;
 import java.util.Set;
 import javax.servlet.ServletContext;
 import org.joda.time.DateTime;
+import uk.ac.rdg.resc.ncwms.graphics.ImageSettings;
 import uk.ac.rdg.resc.ncwms.wms.Dataset;
 
 /**
@@ -58,6 +59,9 @@ public interface ServerConfig
     /** Returns the maximum height that can be requested through GetMap */
     public int getMaxImageHeight();
 
+    /** Returns the settings with which images are encoded */
+    public ImageSettings getImageSettings();
+
     /** Returns a (perhaps-lengthy) description of this server */
     public String getServerAbstract();
 
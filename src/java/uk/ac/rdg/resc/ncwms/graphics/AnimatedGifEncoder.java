@@ -3,6 +3,7 @@ package uk.ac.rdg.resc.ncwms.graphics;
 import java.io.*;
 import java.awt.*;
 import java.awt.image.*;
+import java.util.Arrays;
 
 /**
  * Class AnimatedGifEncoder - Encodes a GIF file consisting of one or
@@ -48,6 +49,8 @@ class AnimatedGifEncoder {
 	protected int dispose = -1; // disposal code (-1 = use default)
 	protected boolean closeStream = false; // close stream when finished
 	protected boolean firstFrame = true;
+	protected byte[] globalColorTab; // palette of the first frame
+	protected boolean localColorTable; // true if the current frame has its own palette
 	protected boolean sizeSet = false; // if false, get size from first frame
 	protected int sample = 10; // default sample interval for quantizer
 
@@ -130,6 +133,48 @@ class AnimatedGifEncoder {
             {
                 throw new IllegalArgumentException("transparentIndex must be less than 256");
             }
+            this.indexedPixels = indexedPixels;
+            this.writeFrameHeaders(bgrPalette, transparentIndex);
+            writePixels(); // encode and write pixel data
+            firstFrame = false;
+        }
+
+        /**
+         * Added by Jon Blower: add a frame whose colour indices have already
+         * been compressed by {@link #encodePixels encodePixels()}, which
+         * allows frames to be compressed in parallel.  The palette is only
+         * written for this frame if it differs from that of the first frame.
+         * @param bgrPalette Array of 256*3 bytes representing the colour palette
+         * of 256 colours in BGR order
+         * @param encodedPixels The compressed pixel indices
+         * @param transparentIndex Index of transparent colour in the palette, or
+         * -1 if no colour is to be transparent
+         * @throws IOException if the frame could not be written
+         * @throws IllegalArgumentException if bgrPalette.length != 256 * 3
+         * or transparentIndex > 255
+         */
+        public void addEncodedFrame(byte[] bgrPalette, byte[] encodedPixels,
+            int transparentIndex) throws IOException
+        {
+            if (bgrPalette.length != 256 * 3)
+            {
+                throw new IllegalArgumentException("Palette must be 256 * 3 bytes long");
+            }
+            if (transparentIndex > 255)
+            {
+                throw new IllegalArgumentException("transparentIndex must be less than 256");
+            }
+            this.writeFrameHeaders(bgrPalette, transparentIndex);
+            out.write(encodedPixels);
+            firstFrame = false;
+        }
+
+        /**
+         * Writes everything for a frame with the given palette except its pixels
+         */
+        private void writeFrameHeaders(byte[] bgrPalette, int transparentIndex)
+            throws IOException
+        {
             if (transparentIndex >= 0)
             {
                 // one colour will be transparent
@@ -137,11 +182,11 @@ class AnimatedGifEncoder {
                 this.transparent = new Color(0); // Just set non-null for benefit of writeGraphicCtrlExt()
             }
             this.colorTab = bgrPalette;
-            this.indexedPixels = indexedPixels;
             if (!sizeSet) this.setSize(width, height); // first frame
             this.colorDepth = 8;
             this.palSize = 7;
             if (firstFrame) {
+                    globalColorTab = bgrPalette;
                     writeLSD(); // logical screen descriptior
                     writePalette(); // global color table
                     if (repeat >= 0) {
@@ -149,14 +194,60 @@ class AnimatedGifEncoder {
                             writeNetscapeExt();
                     }
             }
+            // Frames with the same palette as the first frame use the global
+            // color table
+            localColorTable = !firstFrame && !Arrays.equals(bgrPalette, globalColorTab);
             writeGraphicCtrlExt(); // write graphic control extension
             writeImageDesc(); // image descriptor
-            if (!firstFrame) {
+            if (localColorTable) {
                     writePalette(); // local color table
             }
-            writePixels(); // encode and write pixel data
-            firstFrame = false;
         }
+
+        /**
+         * Added by Jon Blower: compresses the given colour indices into the
+         * data of a GIF image, for {@link #addEncodedFrame addEncodedFrame()}.
+         * This can be called from several threads at once.
+         */
+        public static byte[] encodePixels(int width, int height, byte[] indexedPixels)
+        {
+            if (width * height != indexedPixels.length)
+            {
+                throw new IllegalArgumentException("Image dimensions are " +
+                    "inconsistent with length of array of pixel indices");
+            }
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream(indexedPixels.length / 4 + 64);
+            LZWEncoder encoder = LZW_ENCODERS.get();
+            try
+            {
+                encoder.reset(width, height, indexedPixels, 8);
+                encoder.encode(encoded);
+            }
+            catch (IOException ioe)
+            {
+                // Can't happen when writing to a ByteArrayOutputStream
+                throw new AssertionError(ioe);
+            }
+            finally
+            {
+                // Don't hold on to the pixels
+                encoder.reset(0, 0, null, 8);
+            }
+            return encoded.toByteArray();
+        }
+
+        /**
+         * LZW encoders for each thread, which are reused because they contain
+         * large hash tables
+         */
+        private static final ThreadLocal<LZWEncoder> LZW_ENCODERS = new ThreadLocal<LZWEncoder>()
+        {
+            @Override
+            protected LZWEncoder initialValue()
+            {
+                return new LZWEncoder(0, 0, null, 8);
+            }
+        };
 	
 	/**
 	 * Adds next GIF frame.  The frame is not written immediately, but is
@@ -189,6 +280,7 @@ class AnimatedGifEncoder {
                             writeNetscapeExt();
                     }
             }
+            localColorTable = !firstFrame;
             writeGraphicCtrlExt(); // write graphic control extension
             writeImageDesc(); // image descriptor
             if (!firstFrame) {
@@ -224,6 +316,7 @@ class AnimatedGifEncoder {
 		pixels = null;
 		indexedPixels = null;
 		colorTab = null;
+		globalColorTab = null;
 		closeStream = false;
 		firstFrame = true;
 
@@ -436,7 +529,7 @@ class AnimatedGifEncoder {
 		writeShort(width); // image size
 		writeShort(height);
 		// packed fields
-		if (firstFrame) {
+		if (!localColorTable) {
 			// no LCT  - GCT is used for first (or only) frame
 			out.write(0);
 		} else {
@@ -496,9 +589,13 @@ class AnimatedGifEncoder {
 	 * Encodes and writes pixel data
 	 */
 	protected void writePixels() throws IOException {
-		LZWEncoder encoder =
-			new LZWEncoder(width, height, indexedPixels, colorDepth);
-		encoder.encode(out);
+		LZWEncoder encoder = LZW_ENCODERS.get();
+		try {
+			encoder.reset(width, height, indexedPixels, colorDepth);
+			encoder.encode(out);
+		} finally {
+			encoder.reset(0, 0, null, 8);
+		}
 	}
 	
 	/**
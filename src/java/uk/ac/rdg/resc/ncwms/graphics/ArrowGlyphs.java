@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Pre-rendered arrows for vector plots.  Each arrow consists of a dot at
+ * the data location and a line in the direction of the vector.  Directions are
+ * quantised into a number of bins, and the pixels of the arrow for each bin
+ * are found once with Java2D.  Drawing an arrow then simply sets these pixels
+ * in the image's pixel array, which is much quicker than stroking the shapes
+ * for every arrow in every image.</p>
+ * <p>Instances of this class are immutable and shared between threads.</p>
+ *
+ * @author Jon Blower
+ */
+final class ArrowGlyphs
+{
+    /**
+     * The number of bins into which directions are quantised.  For arrows of
+     * ten pixels, the ends of the arrows are within an eighth of a pixel of
+     * their true positions.
+     */
+    private static final int NUM_DIRECTIONS = 256;
+
+    /** Arrow glyphs, keyed by the length of the arrows in pixels */
+    private static final ConcurrentMap<Float, ArrowGlyphs> GLYPHS =
+        new ConcurrentHashMap<Float, ArrowGlyphs>();
+
+    /**
+     * The offsets of the pixels of each glyph from the data location, indexed
+     * by direction bin then pixel
+     */
+    private final int[][] di = new int[NUM_DIRECTIONS][];
+    private final int[][] dj = new int[NUM_DIRECTIONS][];
+
+    /** Gets the glyphs for arrows of the given length in pixels */
+    static ArrowGlyphs get(float arrowLength)
+    {
+        ArrowGlyphs glyphs = GLYPHS.get(arrowLength);
+        if (glyphs == null)
+        {
+            glyphs = new ArrowGlyphs(arrowLength);
+            // There is usually only one arrow length
+            GLYPHS.put(arrowLength, glyphs);
+        }
+        return glyphs;
+    }
+
+    private ArrowGlyphs(float arrowLength)
+    {
+        int centre = (int)Math.ceil(arrowLength) + 2;
+        int size = 2 * centre + 1;
+        for (int d = 0; d < NUM_DIRECTIONS; d++)
+        {
+            double angle = 2.0 * Math.PI * d / NUM_DIRECTIONS;
+            BufferedImage glyph = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY);
+            Graphics2D g = glyph.createGraphics();
+            g.setColor(Color.WHITE);
+            // Draw a dot representing the data location
+            g.fillOval(centre - 2, centre - 2, 4, 4);
+            // Draw a line representing the vector direction.  Screen
+            // coordinates go down, but north is up, hence the minus sign
+            g.setStroke(new BasicStroke(1));
+            g.drawLine(centre, centre,
+                (int)Math.round(centre + arrowLength * Math.cos(angle)),
+                (int)Math.round(centre - arrowLength * Math.sin(angle)));
+            g.dispose();
+
+            int numPixels = 0;
+            for (int j = 0; j < size; j++)
+            {
+                for (int i = 0; i < size; i++)
+                {
+                    if (glyph.getRaster().getSample(i, j, 0) != 0) numPixels++;
+                }
+            }
+            this.di[d] = new int[numPixels];
+            this.dj[d] = new int[numPixels];
+            int p = 0;
+            for (int j = 0; j < size; j++)
+            {
+                for (int i = 0; i < size; i++)
+                {
+                    if (glyph.getRaster().getSample(i, j, 0) != 0)
+                    {
+                        this.di[d][p] = i - centre;
+                        this.dj[d][p] = j - centre;
+                        p++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws an arrow into the given pixel array of an image.  Parts of the
+     * arrow that lie outside the image are not drawn.
+     * @param pixels The pixels of the image, row by row from the top
+     * @param width The width of the image
+     * @param height The height of the image
+     * @param i The horizontal position of the data location
+     * @param j The vertical position of the data location, from the top
+     * @param angle The direction of the arrow in radians, anticlockwise from east
+     * @param colourIndex The index of the colour of the arrow
+     */
+    void draw(byte[] pixels, int width, int height, int i, int j,
+        double angle, byte colourIndex)
+    {
+        int d = (int)(Math.round(angle * NUM_DIRECTIONS / (2.0 * Math.PI)) % NUM_DIRECTIONS);
+        if (d < 0) d += NUM_DIRECTIONS;
+        int[] glyphI = this.di[d];
+        int[] glyphJ = this.dj[d];
+        for (int p = 0; p < glyphI.length; p++)
+        {
+            int pi = i + glyphI[p];
+            int pj = j + glyphJ[p];
+            if (pi >= 0 && pi < width && pj >= 0 && pj < height)
+            {
+                pixels[pj * width + pi] = colourIndex;
+            }
+        }
+    }
+}
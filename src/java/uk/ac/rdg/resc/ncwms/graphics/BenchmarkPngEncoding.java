@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * Compares the speed and output size of the {@link PngEncoder} with ImageIO,
+ * for a typical 256x256 map tile in indexed and 32-bit colour.
+ * @author Jon Blower
+ */
+public final class BenchmarkPngEncoding
+{
+    private static final int SIZE = 256;
+    private static final int WARMUP_RUNS = 200;
+    private static final int RUNS = 1000;
+
+    public static void main(String[] args) throws Exception
+    {
+        BufferedImage tile = createTile();
+
+        System.out.printf("%-12s %12s %12s%n", "Encoder", "ms/image", "bytes");
+        benchmark("ImageIO", tile, -1, false);
+        for (int level = 1; level <= 9; level += 2)
+        {
+            benchmark("level " + level, tile, level, false);
+        }
+        benchmark("ImageIO 32", tile, -1, true);
+        for (int level = 1; level <= 5; level += 2)
+        {
+            benchmark("level " + level + " 32", tile, level, true);
+        }
+    }
+
+    /** Creates a tile of smoothly-varying data, with some missing values */
+    private static BufferedImage createTile()
+    {
+        ImageProducer ip = new ImageProducer.Builder()
+            .width(SIZE)
+            .height(SIZE)
+            .colourScaleRange(Ranges.newRange(-1.0f, 1.0f))
+            .transparent(true)
+            .build();
+        float[] data = new float[SIZE * SIZE];
+        for (int j = 0; j < SIZE; j++)
+        {
+            for (int i = 0; i < SIZE; i++)
+            {
+                // A "land" region of missing values
+                data[j * SIZE + i] = (i - 64) * (i - 64) + (j - 64) * (j - 64) < 1600
+                    ? Float.NaN
+                    : (float)(Math.sin(i / 20.0) * Math.cos(j / 30.0));
+            }
+        }
+        ip.addFrame(new FloatArrayList(data), null);
+        return ip.getRenderedFrames().get(0);
+    }
+
+    /**
+     * Encodes the given image repeatedly with the PngEncoder at the given
+     * compression level, or with ImageIO if the level is negative.  If rgba
+     * is true the image is encoded in 32-bit colour.
+     */
+    private static void benchmark(String name, BufferedImage image, int level,
+        boolean rgba) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = 0;
+        for (int i = 0; i < WARMUP_RUNS + RUNS; i++)
+        {
+            if (i == WARMUP_RUNS) start = System.nanoTime();
+            out.reset();
+            if (level >= 0)
+            {
+                if (rgba) PngEncoder.writeRGBA(image, out, level);
+                else PngEncoder.write(image, out, level);
+            }
+            else if (rgba)
+            {
+                // This is how 32-bit images were converted before PngEncoder
+                BufferedImage argb = new BufferedImage(image.getWidth(),
+                    image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                new ColorConvertOp(image.getColorModel().getColorSpace(),
+                    argb.getColorModel().getColorSpace(), null).filter(image, argb);
+                ImageIO.write(argb, "png", out);
+            }
+            else
+            {
+                ImageIO.write(image, "png", out);
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1.0e6 / RUNS;
+        System.out.printf("%-12s %12.3f %12d%n", name, millis, out.size());
+    }
+}
@@ -44,6 +44,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -115,9 +117,26 @@ public class ColorPalette
         new Color(175,0,0), new Color(158,0,0), new Color(140,0,0)
     });
     
+    /**
+     * The maximum number of colour models that we cache for each palette.
+     * The background colour is chosen by the client, so the number of possible
+     * colour models is very large: if we reach this limit we clear the cache.
+     */
+    private static final int MAX_CACHED_COLOR_MODELS = 256;
+    
     private final Color[] palette;
     private final String name;
 
+    /**
+     * Versions of this palette with different numbers of colour bands, keyed
+     * by the number of bands.  The arrays must not be modified.
+     */
+    private final ConcurrentMap<Integer, Color[]> palettesByNumBands =
+        new ConcurrentHashMap<Integer, Color[]>();
+    /** Colour models that have been created from this palette */
+    private final ConcurrentMap<String, IndexColorModel> colorModels =
+        new ConcurrentHashMap<String, IndexColorModel>();
+
     static
     {
         palettes.put(DEFAULT_PALETTE_NAME, DEFAULT_PALETTE);
@@ -307,7 +326,9 @@ public class ColorPalette
     }
     
     /**
-     * Creates and returns an IndexColorModel based on this palette.
+     * Returns an IndexColorModel based on this palette.  Colour models are
+     * immutable, so the same instance is returned each time this is called
+     * with the same parameters.
      * @param numColorBands the number of bands of colour to use in the color
      * model (note that the ColorModel will have two more bands than this: one
      * for out-of-range pixels and one for transparent pixels)
@@ -320,9 +341,6 @@ public class ColorPalette
     public IndexColorModel getColorModel(int numColorBands, int opacity,
         Color bgColor, boolean transparent)
     {
-        // Gets an interpolated/subsampled version of this palette with the
-        // given number of colour bands
-        Color[] newPalette = this.getPalette(numColorBands);
         // Compute the alpha value based on the percentage transparency
         int alpha;
         // Here we are playing safe and avoiding rounding errors that might
@@ -331,6 +349,33 @@ public class ColorPalette
         else if (opacity <= 0)  alpha = 0;
         else alpha = (int)(2.55 * opacity);
 
+        String key = numColorBands + "," + alpha + "," +
+            (bgColor.getRGB() & 0xffffff) + "," + transparent;
+        IndexColorModel colorModel = this.colorModels.get(key);
+        if (colorModel == null)
+        {
+            colorModel = this.createColorModel(numColorBands, alpha, bgColor, transparent);
+            if (this.colorModels.size() >= MAX_CACHED_COLOR_MODELS)
+            {
+                this.colorModels.clear();
+            }
+            IndexColorModel existing = this.colorModels.putIfAbsent(key, colorModel);
+            if (existing != null) colorModel = existing;
+        }
+        return colorModel;
+    }
+
+    /**
+     * Creates a new IndexColorModel based on this palette.
+     * @see #getColorModel(int, int, java.awt.Color, boolean)
+     */
+    private IndexColorModel createColorModel(int numColorBands, int alpha,
+        Color bgColor, boolean transparent)
+    {
+        // Gets an interpolated/subsampled version of this palette with the
+        // given number of colour bands
+        Color[] newPalette = this.getPalette(numColorBands);
+
         // Now simply copy the target palette to arrays of r,g,b and a
         byte[] r = new byte[numColorBands + 2];
         byte[] g = new byte[numColorBands + 2];
@@ -357,7 +402,89 @@ public class ColorPalette
         a[numColorBands + 1] = (byte)alpha;
 
         // Now we can create the color model
-        return new IndexColorModel(8, r.length, r, g, b, a);
+        return new PaletteColorModel(r, g, b, a);
+    }
+
+    /**
+     * Gets the colours of the given colour model as an array of 256*3 bytes
+     * (i.e. 256 colours in RGB order), as required for the palettes of GIF and
+     * PNG images.  If the given IndexColorModel contains less than 256 colours
+     * the array is padded with zeroes.  If the colour model was created by
+     * a ColorPalette the array is shared, so it must not be modified.
+     */
+    public static byte[] getRGBPalette(IndexColorModel icm)
+    {
+        if (icm instanceof PaletteColorModel)
+        {
+            return ((PaletteColorModel)icm).rgbPalette;
+        }
+        return createRGBPalette(icm);
+    }
+
+    /**
+     * Gets the colours of the given colour model as an array of 256*4 bytes
+     * (i.e. 256 colours in RGBA order), for expanding colour indices into
+     * 32-bit colours.  If the given IndexColorModel contains less than 256
+     * colours the array is padded with zeroes.  If the colour model was
+     * created by a ColorPalette the array is shared, so it must not be modified.
+     */
+    public static byte[] getRGBAPalette(IndexColorModel icm)
+    {
+        if (icm instanceof PaletteColorModel)
+        {
+            return ((PaletteColorModel)icm).rgbaPalette;
+        }
+        return createRGBAPalette(icm);
+    }
+
+    private static byte[] createRGBAPalette(IndexColorModel icm)
+    {
+        byte[] palette = new byte[256 * 4];
+        for (int i = 0; i < icm.getMapSize(); i++)
+        {
+            int argb = icm.getRGB(i);
+            palette[i * 4]     = (byte)(argb >> 16);
+            palette[i * 4 + 1] = (byte)(argb >> 8);
+            palette[i * 4 + 2] = (byte)argb;
+            palette[i * 4 + 3] = (byte)(argb >>> 24);
+        }
+        return palette;
+    }
+
+    private static byte[] createRGBPalette(IndexColorModel icm)
+    {
+        byte[] reds = new byte[icm.getMapSize()];
+        byte[] greens = new byte[icm.getMapSize()];
+        byte[] blues = new byte[icm.getMapSize()];
+        icm.getReds(reds);
+        icm.getGreens(greens);
+        icm.getBlues(blues);
+        byte[] palette = new byte[256 * 3];
+        for (int i = 0; i < icm.getMapSize(); i++)
+        {
+            palette[i * 3]     = reds[i];
+            palette[i * 3 + 1] = greens[i];
+            palette[i * 3 + 2] = blues[i];
+        }
+        return palette;
+    }
+
+    /**
+     * An IndexColorModel that is created from a ColorPalette, which holds its
+     * colours as RGB and RGBA palettes so that they don't have to be extracted
+     * each time an image is encoded.
+     */
+    private static final class PaletteColorModel extends IndexColorModel
+    {
+        private final byte[] rgbPalette;
+        private final byte[] rgbaPalette;
+
+        private PaletteColorModel(byte[] r, byte[] g, byte[] b, byte[] a)
+        {
+            super(8, r.length, r, g, b, a);
+            this.rgbPalette = createRGBPalette(this);
+            this.rgbaPalette = createRGBAPalette(this);
+        }
     }
     
     /**
@@ -365,11 +492,28 @@ public class ColorPalette
      * either by subsampling or interpolating the existing palette
      * @param numColorBands The number of bands of colour to be used in the new
      * palette
-     * @return An array of Colors, with length numColorBands
+     * @return An array of Colors, with length numColorBands.  This array is
+     * shared and must not be modified.
      * @throws IllegalArgumentException if the requested number of colour bands
      * is less than one or greater than {@link #MAX_NUM_COLOURS}.
      */
     private Color[] getPalette(int numColorBands)
+    {
+        Color[] targetPalette = this.palettesByNumBands.get(numColorBands);
+        if (targetPalette == null)
+        {
+            targetPalette = this.createPalette(numColorBands);
+            // There are at most MAX_NUM_COLOURS entries in this cache
+            this.palettesByNumBands.put(numColorBands, targetPalette);
+        }
+        return targetPalette;
+    }
+
+    /**
+     * Creates a version of this palette with the given number of color bands.
+     * @see #getPalette(int)
+     */
+    private Color[] createPalette(int numColorBands)
     {
         if (numColorBands < 1 || numColorBands > MAX_NUM_COLOURS)
         {
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+
+/**
+ * <p>Writes the data values of a GetMap request as a grid of binary numbers
+ * rather than as a coloured image, for clients that do their own colouring.
+ * The values are written in little-endian order (so that they can be wrapped
+ * directly in a JavaScript typed array), row by row from the top left of the
+ * image.  Vector layers are written as two consecutive grids, holding the
+ * eastward and northward components.</p>
+ * <p>In the {@link #FLOAT32} format the values are written as 32-bit floats,
+ * with NaN representing missing data.  In the quantised {@link #UINT8} and
+ * {@link #UINT16} formats each value is written as an unsigned integer code,
+ * where {@code value = offset + scale * code}.  The offset and scale are
+ * chosen to cover the range of the data in the tile, and the largest code
+ * represents missing data.</p>
+ * <p>These formats don't use {@link #writeImage writeImage()}: the data are
+ * written with {@link #writeData writeData()}.</p>
+ *
+ * @author Jon Blower
+ */
+public class DataTileFormat extends ImageFormat
+{
+    public static final String FLOAT32 = "application/x-ncwms-float32";
+    public static final String UINT8 = "application/x-ncwms-uint8";
+    public static final String UINT16 = "application/x-ncwms-uint16";
+
+    /** HTTP header giving the number of grids (bands) in a data tile */
+    public static final String BANDS_HEADER = "X-ncWMS-Bands";
+    /** HTTP header giving the offset of a quantised data tile */
+    public static final String OFFSET_HEADER = "X-ncWMS-Offset";
+    /** HTTP header giving the scale of a quantised data tile */
+    public static final String SCALE_HEADER = "X-ncWMS-Scale";
+    /** HTTP header giving the code that represents missing data in a quantised data tile */
+    public static final String MISSING_CODE_HEADER = "X-ncWMS-Missing-Code";
+
+    /** The number of values that are written to the output stream at once */
+    private static final int CHUNK_SIZE = 8192;
+
+    private final String mimeType;
+    private final int bytesPerValue;
+    /** The code representing missing data, or zero for floating-point values */
+    private final int missingCode;
+
+    /**
+     * Protected constructor to prevent direct instantiation.
+     * @param bytesPerValue 4 for floating-point values, 1 or 2 for quantised
+     * values.
+     */
+    protected DataTileFormat(String mimeType, int bytesPerValue)
+    {
+        this.mimeType = mimeType;
+        this.bytesPerValue = bytesPerValue;
+        this.missingCode = bytesPerValue == 4 ? 0 : (1 << (8 * bytesPerValue)) - 1;
+    }
+
+    @Override
+    public String getMimeType()
+    {
+        return this.mimeType;
+    }
+
+    @Override
+    public boolean supportsMultipleFrames()
+    {
+        return false;
+    }
+
+    /**
+     * Returns true: there is no colouring so the transparency of the image
+     * is up to the client.
+     */
+    @Override
+    public boolean supportsFullyTransparentPixels()
+    {
+        return true;
+    }
+
+    /**
+     * Returns true: there is no colouring so the transparency of the image
+     * is up to the client.
+     */
+    @Override
+    public boolean supportsPartiallyTransparentPixels()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean requiresLegend()
+    {
+        return false;
+    }
+
+    /**
+     * Returns true if this format writes quantised integer codes rather than
+     * floating-point values
+     */
+    public boolean isQuantised()
+    {
+        return this.bytesPerValue < 4;
+    }
+
+    /**
+     * Returns the code representing missing data in this quantised format
+     */
+    public int getMissingCode()
+    {
+        return this.missingCode;
+    }
+
+    /**
+     * Returns the number of bytes that {@link #writeData writeData()} will
+     * write for the given number of values
+     */
+    public long getNumBytes(long numValues)
+    {
+        return numValues * this.bytesPerValue;
+    }
+
+    /**
+     * Finds the offset and scale that will be used to quantise the given data.
+     * @param bands The data values, one list for each band (i.e. component
+     * of a vector).  Null values and NaNs represent missing data.
+     * @return an array containing the offset and scale, such that
+     * {@code value = offset + scale * code}.  If there is only one distinct
+     * value the scale will be zero.
+     */
+    public float[] getScaling(List<List<Float>> bands)
+    {
+        float min = Float.NaN;
+        float max = Float.NaN;
+        for (List<Float> band : bands)
+        {
+            for (float val : FloatArrayList.toFloatArray(band))
+            {
+                if (Float.isNaN(val)) continue;
+                if (!(val >= min)) min = val;
+                if (!(val <= max)) max = val;
+            }
+        }
+        if (Float.isNaN(min)) return new float[]{0.0f, 0.0f};
+        return new float[]{min, (max - min) / (this.missingCode - 1)};
+    }
+
+    /**
+     * Writes the given data to the given output stream.  The data are held
+     * with the bottom row of the image first (in the order in which they are
+     * read from the layer) and are written with the top row first.
+     * @param bands The data values, one list for each band (i.e. component
+     * of a vector).  Null values and NaNs represent missing data.
+     * @param width The width of the image, i.e. the number of values in each
+     * row of each band
+     * @param scaling The offset and scale, as returned by {@link #getScaling
+     * getScaling()}.  This is ignored, and may be null, if this format is not
+     * quantised.
+     * @param out The output stream to which the data will be written
+     * @throws IOException if there was an error writing to the output stream
+     */
+    public void writeData(List<List<Float>> bands, int width, float[] scaling,
+        OutputStream out) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE * this.bytesPerValue)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        float offset = this.isQuantised() ? scaling[0] : 0.0f;
+        float scale = this.isQuantised() ? scaling[1] : 0.0f;
+        for (List<Float> band : bands)
+        {
+            float[] vals = FloatArrayList.toFloatArray(band);
+            if (vals.length % width != 0)
+            {
+                throw new IllegalArgumentException("Band of " + vals.length +
+                    " values cannot have rows of width " + width);
+            }
+            for (int rowStart = vals.length - width; rowStart >= 0; rowStart -= width)
+            {
+                for (int i = rowStart; i < rowStart + width; i++)
+                {
+                    float val = vals[i];
+                    if (!this.isQuantised())
+                    {
+                        buf.putFloat(val);
+                    }
+                    else
+                    {
+                        int code = this.missingCode;
+                        if (!Float.isNaN(val))
+                        {
+                            code = scale == 0.0f ? 0 : Math.round((val - offset) / scale);
+                            // Guard against rounding errors at the ends of the range
+                            code = Math.max(0, Math.min(this.missingCode - 1, code));
+                        }
+                        if (this.bytesPerValue == 1) buf.put((byte)code);
+                        else buf.putShort((short)code);
+                    }
+                    if (!buf.hasRemaining())
+                    {
+                        out.write(buf.array(), 0, buf.position());
+                        buf.clear();
+                    }
+                }
+            }
+        }
+        out.write(buf.array(), 0, buf.position());
+    }
+
+    /**
+     * Throws UnsupportedOperationException: data tiles are written with
+     * {@link #writeData writeData()}.
+     */
+    @Override
+    public void writeImage(List<BufferedImage> frames, OutputStream out,
+        Layer layer, List<String> tValues, String zValue, BoundingBox bbox,
+        BufferedImage legend) throws IOException
+    {
+        throw new UnsupportedOperationException("Cannot write images in " +
+            this.mimeType + " format");
+    }
+}
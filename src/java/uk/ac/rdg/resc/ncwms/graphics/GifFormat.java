@@ -36,6 +36,8 @@ import java.io.OutputStream;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
  * Creates (possibly animated) GIFs.  Only one instance of this class
@@ -56,64 +58,90 @@ public class GifFormat extends SimpleFormat
     @Override
     public void writeImage(List<BufferedImage> frames,
         OutputStream out) throws IOException
+    {
+        FrameWriter frameWriter = this.startImage(out, frames.size());
+        for (BufferedImage frame : frames)
+        {
+            frameWriter.writeFrame(frame, null);
+        }
+        frameWriter.finish();
+    }
+
+    /**
+     * Writes the frames to the GIF encoder as they arrive.
+     */
+    @Override
+    public FrameWriter startImage(OutputStream out, Layer layer, int numFrames,
+        String zValue, BoundingBox bbox, BufferedImage legend) throws IOException
+    {
+        return this.startImage(out, numFrames);
+    }
+
+    private FrameWriter startImage(OutputStream out, int numFrames) throws IOException
     {
         logger.debug("Writing GIF to output stream ...");
-        AnimatedGifEncoder e = new AnimatedGifEncoder();
+        final AnimatedGifEncoder e = new AnimatedGifEncoder();
         e.start(out);
-        if (frames.size() > 1)
+        if (numFrames > 1)
         {
             logger.debug("Animated GIF ({} frames), setting loop count and delay",
-                frames.size());
+                numFrames);
             // this is an animated GIF.  Set to loop infinitely.
             e.setRepeat(0);
             e.setDelay(150); // delay between frames in milliseconds
         }
-        byte[] rgbPalette = null;
-        IndexColorModel icm = null;
-        for (BufferedImage frame : frames)
+        // The frames are compressed in parallel, and written in order
+        return new ParallelFrameWriter<EncodedFrame>(numFrames)
         {
-            if (rgbPalette == null)
+            @Override
+            protected EncodedFrame encodeFrame(BufferedImage frame)
             {
-                // This is the first frame
-                e.setSize(frame.getWidth(), frame.getHeight());
-                // Get the colour palette.  We assume that we have used an
-                // IndexColorModel that is the same for all frames
-                icm = (IndexColorModel)frame.getColorModel();
-                rgbPalette = getRGBPalette(icm);
+                return new EncodedFrame(frame);
             }
-            // Get the indices of each pixel in the image.  We do this after the
-            // frames have been created because we might have added a label to
-            // the image.
-            byte[] indices = ((DataBufferByte)frame.getRaster().getDataBuffer()).getData();
-            e.addFrame(rgbPalette, indices, icm.getTransparentPixel());
-        }
-        e.finish();
-        logger.debug("  ... written.");
+
+            @Override
+            protected void writeEncodedFrame(EncodedFrame frame, String tValue) throws IOException
+            {
+                // This only has an effect for the first frame
+                e.setSize(frame.width, frame.height);
+                e.addEncodedFrame(frame.rgbPalette, frame.pixels, frame.transparentIndex);
+            }
+
+            @Override
+            protected void finishImage() throws IOException
+            {
+                e.finish();
+                logger.debug("  ... written.");
+            }
+        };
     }
-    
+
     /**
-     * Gets the RGB palette as an array of 256*3 bytes (i.e. 256 colours in
-     * RGB order).  If the given IndexColorModel contains less than 256 colours
-     * the array is padded with zeroes.
+     * A frame whose pixels have been compressed, ready to be written to the GIF
      */
-    private static byte[] getRGBPalette(IndexColorModel icm)
+    private static final class EncodedFrame
     {
-        byte[] reds = new byte[icm.getMapSize()];
-        byte[] greens = new byte[icm.getMapSize()];
-        byte[] blues = new byte[icm.getMapSize()];
-        icm.getReds(reds);
-        icm.getGreens(greens);
-        icm.getBlues(blues);
-        byte[] palette = new byte[256 * 3];
-        for (int i = 0; i < icm.getMapSize(); i++)
+        private final int width;
+        private final int height;
+        private final byte[] rgbPalette;
+        private final int transparentIndex;
+        private final byte[] pixels;
+
+        private EncodedFrame(BufferedImage frame)
         {
-            palette[i * 3]     = reds[i];
-            palette[i * 3 + 1] = greens[i];
-            palette[i * 3 + 2] = blues[i];
+            this.width = frame.getWidth();
+            this.height = frame.getHeight();
+            IndexColorModel icm = (IndexColorModel)frame.getColorModel();
+            this.rgbPalette = ColorPalette.getRGBPalette(icm);
+            this.transparentIndex = icm.getTransparentPixel();
+            // Get the indices of each pixel in the image.  We do this after the
+            // frames have been created because we might have added a label to
+            // the image.
+            byte[] indices = ((DataBufferByte)frame.getRaster().getDataBuffer()).getData();
+            this.pixels = AnimatedGifEncoder.encodePixels(this.width, this.height, indices);
         }
-        return palette;
     }
-
+    
     @Override
     public String getMimeType()
     {
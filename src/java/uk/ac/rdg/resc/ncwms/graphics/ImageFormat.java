@@ -31,6 +31,7 @@ package uk.ac.rdg.resc.ncwms.graphics;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -41,9 +42,11 @@ import uk.ac.rdg.resc.ncwms.exceptions.InvalidFormatException;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
- * Abstract superclass for all image formats.  Only one instance of each subclass
- * will be created so subclasses must be thread safe.  Subclasses should provide
+ * Abstract superclass for all image formats.  Instances are shared between
+ * threads so subclasses must be thread safe.  Subclasses should provide
  * protected default constructors so that they cannot be instantiated directly.
+ * Subclasses whose output depends on the server's {@link ImageSettings} hold
+ * those settings in final fields and override {@link #withSettings}.
  *
  * @author Jon Blower
  */
@@ -61,7 +64,10 @@ public abstract class ImageFormat
         ImageIO.setUseCache(false);
         // We pre-create all the ImageFormat objects
         for (ImageFormat format : new ImageFormat[]{new PngFormat(),
-            new Png32Format(), new GifFormat(), new JpegFormat(), new KmzFormat()})
+            new Png32Format(), new GifFormat(), new JpegFormat(), new KmzFormat(),
+            new DataTileFormat(DataTileFormat.FLOAT32, 4),
+            new DataTileFormat(DataTileFormat.UINT8, 1),
+            new DataTileFormat(DataTileFormat.UINT16, 2)})
         {
             formats.put(format.getMimeType(), format);
         }
@@ -95,6 +101,32 @@ public abstract class ImageFormat
         }
         return format;
     }
+
+    /**
+     * Gets an ImageFormat object corresponding with the given MIME type, which
+     * encodes images with the given settings.  The shared object is returned
+     * if the settings are the same as its own.
+     * @param mimeType The MIME type of the requested format
+     * @param settings The settings with which images will be encoded
+     * @return An ImageFormat object capable of rendering images in the given
+     * MIME type
+     * @throws InvalidFormatException if the given MIME type is not supported
+     */
+    public static ImageFormat get(String mimeType, ImageSettings settings)
+        throws InvalidFormatException
+    {
+        return get(mimeType).withSettings(settings);
+    }
+
+    /**
+     * Returns an ImageFormat of the same type as this one that encodes images
+     * with the given settings.  This default implementation returns this
+     * object, for formats that are not affected by the settings.
+     */
+    protected ImageFormat withSettings(ImageSettings settings)
+    {
+        return this;
+    }
     
     /**
      * Returns the MIME type that is supported by this ImageFormat object.
@@ -144,4 +176,60 @@ public abstract class ImageFormat
     public abstract void writeImage(List<BufferedImage> frames,
         OutputStream out, Layer layer, List<String> tValues,
         String zValue, BoundingBox bbox, BufferedImage legend) throws IOException;
+
+    /**
+     * Writes the frames of an image to an OutputStream one at a time, so that
+     * the first frames of an animation can be sent to the client while later
+     * frames are still being read and rendered.
+     * @see ImageFormat#startImage
+     */
+    public static interface FrameWriter
+    {
+        /**
+         * Writes the next frame of the image
+         * @param frame The frame to write
+         * @param tValue String representing the time value of the frame
+         * @throws IOException if there was an error writing to the output stream
+         */
+        public void writeFrame(BufferedImage frame, String tValue) throws IOException;
+
+        /**
+         * Finishes writing the image, after all the frames have been written
+         * @throws IOException if there was an error writing to the output stream
+         */
+        public void finish() throws IOException;
+    }
+
+    /**
+     * Starts writing an image to the given OutputStream, returning a
+     * {@link FrameWriter} to which the frames must be passed.  The parameters
+     * are the same as those of {@link #writeImage writeImage()}.  This default
+     * implementation collects all the frames and calls
+     * {@link #writeImage writeImage()} when the FrameWriter is finished:
+     * subclasses that can write frames incrementally should override this.
+     * @param numFrames The number of frames that will be written
+     */
+    public FrameWriter startImage(final OutputStream out, final Layer layer,
+        int numFrames, final String zValue, final BoundingBox bbox,
+        final BufferedImage legend) throws IOException
+    {
+        return new FrameWriter()
+        {
+            private final List<BufferedImage> frames = new ArrayList<BufferedImage>();
+            private final List<String> tValues = new ArrayList<String>();
+
+            @Override
+            public void writeFrame(BufferedImage frame, String tValue)
+            {
+                this.frames.add(frame);
+                this.tValues.add(tValue);
+            }
+
+            @Override
+            public void finish() throws IOException
+            {
+                writeImage(this.frames, out, layer, this.tValues, zValue, bbox, legend);
+            }
+        };
+    }
 }
@@ -28,7 +28,6 @@
 
 package uk.ac.rdg.resc.ncwms.graphics;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
@@ -41,11 +40,17 @@ import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
 import uk.ac.rdg.resc.edal.util.Range;
 import uk.ac.rdg.resc.edal.util.Ranges;
-import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
@@ -58,6 +63,23 @@ public final class ImageProducer
 {
     private static final Logger logger = LoggerFactory.getLogger(ImageProducer.class);
 
+    /**
+     * Renders frames of animations in parallel.  This is also used by the
+     * image formats to encode frames in parallel.  The number of threads is
+     * bounded by the number of processors, since this work is CPU-bound.
+     */
+    static final ExecutorService RENDERING_POOL = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "ImageProducer rendering thread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     public static enum Style {BOXFILL, VECTOR};
     
     private Style style;
@@ -78,6 +100,11 @@ public final class ImageProducer
      */
     private Range<Float> scaleRange;
     
+    /**
+     * Maps data values to colour indices, created when the scale range is known
+     */
+    private ColourScale colourScale = null;
+
     /**
      * The length of arrows in pixels, only used for vector plots
      */
@@ -86,25 +113,153 @@ public final class ImageProducer
     // set of rendered images, ready to be turned into a picture
     private List<BufferedImage> renderedFrames = new ArrayList<BufferedImage>();
     
-    // If we need to cache the frame data and associated labels (we do this if
-    // we have to auto-scale the image) this is where we put them.
-    private static final class Components {
-        private final List<Float> x;
-        private final List<Float> y;
-        public Components(List<Float> x, List<Float> y) {
+    /**
+     * If we are auto-scaling the image, the frames are stored here until the
+     * scale is known.  All but the last frame are compacted.
+     */
+    private List<Frame> frames;
+
+    /**
+     * The extremes of the data in the stored frames, which are found as the
+     * frames are added.  These are NaN if no data values have been found.
+     */
+    private float autoScaleMin = Float.NaN;
+    private float autoScaleMax = Float.NaN;
+
+    /**
+     * A frame of data that is waiting to be rendered.  To save memory when
+     * auto-scaling an animation, the frame can be compacted: this quantises
+     * the magnitudes of the data to 16 bits, within the range of the frame's
+     * own data (in logarithmic space for logarithmic colour scales), and
+     * discards the original data.  The extremes of the frame are stored
+     * exactly; other values may change by up to 1/65534 of the frame's range,
+     * i.e. a small fraction of a colour band.
+     */
+    private final class Frame
+    {
+        /** The code for the largest value in a compacted frame */
+        private static final int MAX_CODE = 65534;
+        /** The code for missing data in a compacted frame */
+        private static final char MISSING_CODE = 65535;
+
+        private final String label;
+        // The data, which are discarded when the frame is compacted.  y is
+        // null for scalar data.
+        private List<Float> x;
+        private List<Float> y;
+        // The quantised magnitudes of a compacted frame, and the values that
+        // are needed to restore them
+        private char[] codes = null;
+        private float min;
+        private float max;
+        private double codeMin;
+        private double codeStep;
+        // The components of the vectors at the positions of the arrows, in the
+        // order in which the arrows are drawn (null unless Style.VECTOR)
+        private float[] arrowEast = null;
+        private float[] arrowNorth = null;
+
+        private Frame(List<Float> x, List<Float> y, String label)
+        {
             this.x = x;
             this.y = y;
+            this.label = label;
+            if (style == Style.VECTOR && y != null)
+            {
+                this.arrowEast = getArrowValues(x);
+                this.arrowNorth = getArrowValues(y);
+            }
         }
-        public Components(List<Float> x) {
-            this(x, null);
+
+        /** Returns the magnitudes of the data, with NaNs for missing values */
+        private float[] getMagnitudes()
+        {
+            if (this.codes != null) return this.decode();
+            if (this.y == null) return FloatArrayList.toFloatArray(this.x);
+            float[] east = FloatArrayList.toFloatArray(this.x);
+            float[] north = FloatArrayList.toFloatArray(this.y);
+            if (east.length != north.length) {
+                throw new IllegalArgumentException("east and north data components must be the same length");
+            }
+            float[] mag = new float[east.length];
+            for (int i = 0; i < mag.length; i++) {
+                mag[i] = (float)Math.sqrt(east[i] * east[i] + north[i] * north[i]);
+            }
+            return mag;
         }
-        public List<Float> getMagnitudes() {
-            return this.y == null ? this.x : WmsUtils.getMagnitudes(this.x, this.y);
+
+        /**
+         * Quantises the magnitudes of the data and discards the original data.
+         * Does nothing if the frame is already compacted, or if the data can't
+         * be quantised (e.g. non-positive values on a logarithmic scale).
+         */
+        private void compact()
+        {
+            if (this.codes != null) return;
+            float[] mags = this.getMagnitudes();
+            float frameMin = Float.NaN;
+            float frameMax = Float.NaN;
+            for (float mag : mags)
+            {
+                if (Float.isNaN(mag)) continue;
+                if (!(mag >= frameMin)) frameMin = mag; // true if frameMin is NaN
+                if (!(mag <= frameMax)) frameMax = mag;
+            }
+            double tMin = this.transform(frameMin);
+            double tMax = this.transform(frameMax);
+            boolean allMissing = Float.isNaN(frameMin);
+            if (!allMissing && (Double.isNaN(tMin) || Double.isInfinite(tMin)
+                || Double.isNaN(tMax) || Double.isInfinite(tMax)))
+            {
+                logger.debug("Can't quantise frame with data range {} to {}", frameMin, frameMax);
+                return;
+            }
+            char[] newCodes = new char[mags.length];
+            double step = allMissing ? 0.0 : (tMax - tMin) / MAX_CODE;
+            for (int i = 0; i < mags.length; i++)
+            {
+                if (Float.isNaN(mags[i])) newCodes[i] = MISSING_CODE;
+                else if (mags[i] == frameMin || step == 0.0) newCodes[i] = 0;
+                else if (mags[i] == frameMax) newCodes[i] = MAX_CODE;
+                else newCodes[i] = (char)Math.round((this.transform(mags[i]) - tMin) / step);
+            }
+            this.codes = newCodes;
+            this.min = frameMin;
+            this.max = frameMax;
+            this.codeMin = tMin;
+            this.codeStep = step;
+            this.x = null;
+            this.y = null;
+        }
+
+        /** Restores the magnitudes of a compacted frame */
+        private float[] decode()
+        {
+            float[] mags = new float[this.codes.length];
+            for (int i = 0; i < mags.length; i++)
+            {
+                int code = this.codes[i];
+                if (code == MISSING_CODE) mags[i] = Float.NaN;
+                else if (code == 0) mags[i] = this.min;
+                else if (code == MAX_CODE) mags[i] = this.max;
+                else
+                {
+                    double t = this.codeMin + code * this.codeStep;
+                    float mag = (float)(logarithmic ? Math.exp(t) : t);
+                    // Make sure that rounding errors don't take the value
+                    // outside the range of the frame
+                    mags[i] = Math.min(Math.max(mag, this.min), this.max);
+                }
+            }
+            return mags;
+        }
+
+        /** Transforms the given value into the space of the colour scale */
+        private double transform(float value)
+        {
+            return logarithmic ? Math.log(value) : value;
         }
     }
-    private List<Components> frameData;
-    
-    private List<String> labels;
 
     /** Prevents direct instantiation */
     private ImageProducer() {}
@@ -129,6 +284,48 @@ public final class ImageProducer
     {
         return transparent;
     }
+
+    /**
+     * Returns true if the colour scale range is known, i.e. we are not
+     * auto-scaling or we have already found the scale.  Frames can only be
+     * {@link #renderFrame rendered individually} if the scale is known.
+     */
+    public boolean isScaleSet()
+    {
+        return !this.scaleRange.isEmpty();
+    }
+
+    /**
+     * Renders a frame of scalar or vector data (yData is null for scalar
+     * data) on a background thread, without storing it in this ImageProducer.
+     * This allows frames of animations to be rendered in parallel and written
+     * to the client in order, as soon as they are ready.
+     * @return a Future that gives the rendered image
+     * @throws IllegalStateException if the {@link #isScaleSet() scale is not set}
+     */
+    public Future<BufferedImage> renderFrame(List<Float> xData, List<Float> yData,
+        final String label)
+    {
+        if (!this.isScaleSet())
+        {
+            throw new IllegalStateException("Can't render frames individually when auto-scaling");
+        }
+        return this.renderFrame(new Frame(xData, yData, label));
+    }
+
+    private Future<BufferedImage> renderFrame(final Frame frame)
+    {
+        // Make sure the colour scale is created before we use multiple threads
+        this.getColourScale();
+        return RENDERING_POOL.submit(new Callable<BufferedImage>()
+        {
+            @Override
+            public BufferedImage call()
+            {
+                return createImage(frame);
+            }
+        });
+    }
     
     /**
      * Adds a frame of scalar data to this ImageProducer.  If the data cannot yet be rendered
@@ -146,22 +343,45 @@ public final class ImageProducer
     public void addFrame(List<Float> xData, List<Float> yData, String label)
     {
         logger.debug("Adding frame with label {}", label);
-        Components comps = new Components(xData, yData);
+        Frame frame = new Frame(xData, yData, label);
         if (this.scaleRange.isEmpty())
         {
-            logger.debug("Auto-scaling, so caching frame");
-            if (this.frameData == null)
+            logger.debug("Auto-scaling, so storing frame");
+            // We only use the first component if this is a vector quantity
+            this.updateAutoScaleRange(xData);
+            if (this.frames == null)
             {
-                this.frameData = new ArrayList<Components>();
-                this.labels = new ArrayList<String>();
+                this.frames = new ArrayList<Frame>();
             }
-            this.frameData.add(comps);
-            this.labels.add(label);
+            else
+            {
+                // We keep the data for the last frame only, which means that
+                // a single frame is rendered exactly
+                this.frames.get(this.frames.size() - 1).compact();
+            }
+            this.frames.add(frame);
         }
         else
         {
             logger.debug("Scale is set, so rendering image");
-            this.renderedFrames.add(this.createImage(comps, label));
+            this.renderedFrames.add(this.createImage(frame));
+        }
+    }
+
+    /** Widens the range of the data that we are auto-scaling to include the given data */
+    private void updateAutoScaleRange(List<Float> data)
+    {
+        for (float value : FloatArrayList.toFloatArray(data))
+        {
+            if (Float.isNaN(value)) continue;
+            if (Float.isNaN(this.autoScaleMin) || Float.compare(value, this.autoScaleMin) < 0)
+            {
+                this.autoScaleMin = value;
+            }
+            if (Float.isNaN(this.autoScaleMax) || Float.compare(value, this.autoScaleMax) > 0)
+            {
+                this.autoScaleMax = value;
+            }
         }
     }
 
@@ -179,20 +399,25 @@ public final class ImageProducer
      * Adds the label if one has been set.  The scale must be set before
      * calling this method.
      */
-    private BufferedImage createImage(Components comps, String label)
+    private BufferedImage createImage(Frame frame)
     {
         // Create the pixel array for the frame
         byte[] pixels = new byte[this.picWidth * this.picHeight];
         // We get the magnitude of the input data (takes care of the case
         // in which the data are two components of a vector)
-        List<Float> magnitudes = comps.getMagnitudes();
-        for (int i = 0; i < pixels.length; i++)
+        float[] magnitudes = frame.getMagnitudes();
+        ColourScale scale = this.getColourScale();
+        for (int imageJ = 0; imageJ < this.picHeight; imageJ++)
         {
             // The image coordinate system has the vertical axis increasing
             // downward, but the data's coordinate system has the vertical axis
-            // increasing upwards.  The method below flips the axis
-            int dataIndex = this.getDataIndex(i);
-            pixels[i] = (byte)this.getColourIndex(magnitudes.get(dataIndex));
+            // increasing upwards, so we flip the axis
+            int dataIndex = this.getDataIndex(0, imageJ);
+            int pixelIndex = imageJ * this.picWidth;
+            for (int imageI = 0; imageI < this.picWidth; imageI++)
+            {
+                pixels[pixelIndex++] = (byte)scale.getColourIndex(magnitudes[dataIndex++]);
+            }
         }
         
         // Create a ColorModel for the image
@@ -206,6 +431,7 @@ public final class ImageProducer
         
         // Add the label to the image
         // TODO: colour needs to change with different palettes!
+        String label = frame.label;
         if (label != null && !label.equals(""))
         {
             Graphics2D gfx = (Graphics2D)image.getGraphics();
@@ -215,40 +441,33 @@ public final class ImageProducer
             gfx.drawString(label, 10, image.getHeight() - 5);
         }
         
-        if (this.style == Style.VECTOR)
+        if (frame.arrowEast != null)
         {
-            // We superimpose direction arrows on top of the background
+            // We superimpose direction arrows on top of the background.  We
+            // write them straight into the pixel array, which is shared with
+            // the image.
             // TODO: only do this for lat-lon projections!
-            Graphics2D g = image.createGraphics();
             // TODO: control the colour of the arrows with an attribute
             // Must be part of the colour palette (here we use the colour
             // for out-of-range values)
-            g.setColor(Color.BLACK);
+            byte arrowColourIndex = (byte)(this.numColourBands + 1);
+            ArrowGlyphs glyphs = ArrowGlyphs.get(this.arrowLength);
 
             logger.debug("Drawing vectors, length = {} pixels", this.arrowLength);
-            for (int i = 0; i < this.picWidth; i += Math.ceil(this.arrowLength * 1.2))
+            int arrowSpacing = this.getArrowSpacing();
+            int arrowIndex = 0;
+            for (int i = 0; i < this.picWidth; i += arrowSpacing)
             {
-                for (int j = 0; j < this.picHeight; j += Math.ceil(this.arrowLength * 1.2))
+                for (int j = 0; j < this.picHeight; j += arrowSpacing)
                 {
-                    int dataIndex = this.getDataIndex(i, j);
-                    Float eastVal = comps.x.get(dataIndex);
-                    Float northVal = comps.y.get(dataIndex);
-                    if (eastVal != null && northVal != null)
+                    float eastVal = frame.arrowEast[arrowIndex];
+                    float northVal = frame.arrowNorth[arrowIndex];
+                    arrowIndex++;
+                    if (!Float.isNaN(eastVal) && !Float.isNaN(northVal))
                     {
-                        double angle = Math.atan2(northVal.doubleValue(), eastVal.doubleValue());
-                        // Calculate the end point of the arrow
-                        double iEnd = i + this.arrowLength * Math.cos(angle);
-                        // Screen coordinates go down, but north is up, hence the minus sign
-                        double jEnd = j - this.arrowLength * Math.sin(angle);
-                        //logger.debug("i={}, j={}, dataIndex={}, east={}, north={}",
-                        //    new Object[]{i, j, dataIndex, data[0][dataIndex], data[1][dataIndex]});
-                        // Draw a dot representing the data location
-                        g.fillOval(i - 2, j - 2, 4, 4);
-                        // Draw a line representing the vector direction and magnitude
-                        g.setStroke(new BasicStroke(1));
-                        g.drawLine(i, j, (int)Math.round(iEnd), (int)Math.round(jEnd));
-                        // Draw the arrow on the canvas
-                        //drawArrow(g, i, j, (int)Math.round(iEnd), (int)Math.round(jEnd), 2);
+                        double angle = Math.atan2(northVal, eastVal);
+                        glyphs.draw(pixels, this.picWidth, this.picHeight, i, j,
+                            angle, arrowColourIndex);
                     }
                 }
             }
@@ -257,16 +476,32 @@ public final class ImageProducer
         return image;
     }
 
+    /** Returns the distance between the arrows of vector plots, in pixels */
+    private int getArrowSpacing()
+    {
+        return (int)Math.ceil(this.arrowLength * 1.2);
+    }
+
     /**
-     * Calculates the index of the data point in a data array that corresponds
-     * with the given index in the image array, taking into account that the
-     * vertical axis is flipped.
+     * Returns the given data at the positions of the arrows of a vector plot,
+     * in the order in which the arrows are drawn, with NaNs for missing values
      */
-    private int getDataIndex(int imageIndex)
+    private float[] getArrowValues(List<Float> data)
     {
-        int imageI = imageIndex % this.picWidth;
-        int imageJ = imageIndex / this.picWidth;
-        return this.getDataIndex(imageI, imageJ);
+        int arrowSpacing = this.getArrowSpacing();
+        int numI = (this.picWidth + arrowSpacing - 1) / arrowSpacing;
+        int numJ = (this.picHeight + arrowSpacing - 1) / arrowSpacing;
+        float[] values = new float[numI * numJ];
+        int arrowIndex = 0;
+        for (int i = 0; i < this.picWidth; i += arrowSpacing)
+        {
+            for (int j = 0; j < this.picHeight; j += arrowSpacing)
+            {
+                Float value = data.get(this.getDataIndex(i, j));
+                values[arrowIndex++] = value == null ? Float.NaN : value.floatValue();
+            }
+        }
+        return values;
     }
 
     /**
@@ -286,22 +521,67 @@ public final class ImageProducer
      */
     public int getColourIndex(Float value)
     {
-        if (value == null)
+        return this.getColourScale().getColourIndex(value == null ? Float.NaN : value.floatValue());
+    }
+
+    /**
+     * Returns the object that maps data values to colour indices.  The scale
+     * range must be set before calling this method.
+     */
+    private ColourScale getColourScale()
+    {
+        if (this.colourScale == null)
         {
-            return this.numColourBands; // represents a background pixel
+            this.colourScale = new ColourScale(this.scaleRange, this.logarithmic,
+                this.numColourBands);
         }
-        else if (!this.scaleRange.contains(value))
+        return this.colourScale;
+    }
+
+    /**
+     * Maps data values to colour indices.  The constants of the scale are
+     * calculated once (including the logarithms of the scale limits) so that
+     * mapping each pixel is cheap.
+     */
+    private static final class ColourScale
+    {
+        private final float scaleMin;
+        private final float scaleMax;
+        private final boolean logarithmic;
+        private final double min;
+        private final double range;
+        private final int numColourBands;
+
+        private ColourScale(Range<Float> scaleRange, boolean logarithmic, int numColourBands)
         {
-            return this.numColourBands + 1; // represents an out-of-range pixel
+            // An empty range (e.g. from auto-scaling data with no values) is
+            // represented by NaNs, so that all values are out of range
+            this.scaleMin = scaleRange.isEmpty() ? Float.NaN : scaleRange.getMinimum().floatValue();
+            this.scaleMax = scaleRange.isEmpty() ? Float.NaN : scaleRange.getMaximum().floatValue();
+            this.logarithmic = logarithmic;
+            this.min = logarithmic ? Math.log(this.scaleMin) : this.scaleMin;
+            double max = logarithmic ? Math.log(this.scaleMax) : this.scaleMax;
+            this.range = max - this.min;
+            this.numColourBands = numColourBands;
         }
-        else
+
+        /**
+         * @return the colour index that corresponds to the given value, which
+         * is NaN for missing data
+         */
+        private int getColourIndex(float value)
         {
-            float scaleMin = this.scaleRange.getMinimum().floatValue();
-            float scaleMax = this.scaleRange.getMaximum().floatValue();
-            double min = this.logarithmic ? Math.log(scaleMin) : scaleMin;
-            double max = this.logarithmic ? Math.log(scaleMax) : scaleMax;
+            if (Float.isNaN(value))
+            {
+                return this.numColourBands; // represents a background pixel
+            }
+            // We use Float.compare() to match Range.contains() exactly
+            if (Float.compare(value, this.scaleMin) < 0 || Float.compare(value, this.scaleMax) > 0)
+            {
+                return this.numColourBands + 1; // represents an out-of-range pixel
+            }
             double val = this.logarithmic ? Math.log(value) : value;
-            double frac = (val - min) / (max - min);
+            double frac = (val - this.min) / this.range;
             // Compute and return the index of the corresponding colour
             int index = (int)(frac * this.numColourBands);
             // For values very close to the maximum value in the range, this
@@ -325,50 +605,71 @@ public final class ImageProducer
     {
         this.setScale(); // Make sure the colour scale is set before proceeding
         // We render the frames if we have not done so already
-        if (this.frameData != null)
+        if (this.frames != null)
         {
-            logger.debug("Rendering image frames...");
-            for (int i = 0; i < this.frameData.size(); i++)
+            logger.debug("Rendering {} image frames...", this.frames.size());
+            if (this.frames.size() == 1)
+            {
+                this.renderedFrames.add(this.createImage(this.frames.get(0)));
+            }
+            else
             {
-                logger.debug("    ... rendering frame {}", i);
-                Components comps = this.frameData.get(i);
-                this.renderedFrames.add(this.createImage(comps, this.labels.get(i)));
+                // Render the frames in parallel
+                List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>();
+                for (Frame frame : this.frames)
+                {
+                    futures.add(this.renderFrame(frame));
+                }
+                for (Future<BufferedImage> future : futures)
+                {
+                    this.renderedFrames.add(getRenderedFrame(future));
+                }
             }
+            // We don't need the data any more
+            this.frames = null;
         }
         return this.renderedFrames;
     }
     
     /**
-     * Makes sure that the scale is set: if we are auto-scaling, this reads all
-     * of the data we have stored to find the extremes.  If the scale has
-     * already been set, this does nothing.
+     * Waits for the given frame to be rendered and returns it, rethrowing
+     * any unchecked exception from the rendering thread.
+     */
+    public static BufferedImage getRenderedFrame(Future<BufferedImage> frame)
+    {
+        try
+        {
+            return frame.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while rendering frame", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Makes sure that the scale is set: if we are auto-scaling, this uses the
+     * extremes of the data that we found as the frames were added.  If the
+     * scale has already been set, this does nothing.
      */
     private void setScale()
     {
         if (this.scaleRange.isEmpty())
         {
-            Float scaleMin = null;
-            Float scaleMax = null;
             logger.debug("Setting the scale automatically");
-            // We have a cache of image data, which we use to generate the colour scale
-            for (Components comps : this.frameData)
+            if (!Float.isNaN(this.autoScaleMin))
             {
-                // We only use the first component if this is a vector quantity
-                Range<Float> range = Ranges.findMinMax(comps.x);
-                // TODO: could move this logic to the Range/Ranges class
-                if (!range.isEmpty())
-                {
-                    if (scaleMin == null || range.getMinimum().compareTo(scaleMin) < 0)
-                    {
-                        scaleMin = range.getMinimum();
-                    }
-                    if (scaleMax == null || range.getMaximum().compareTo(scaleMax) > 0)
-                    {
-                        scaleMax = range.getMaximum();
-                    }
-                }
+                this.scaleRange = Ranges.newRange(this.autoScaleMin, this.autoScaleMax);
             }
-            this.scaleRange = Ranges.newRange(scaleMin, scaleMax);
+            this.colourScale = null;
         }
     }
 
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+/**
+ * The server-wide settings that control the encoding of images, which are
+ * passed to the {@link ImageFormat}s through
+ * {@link ImageFormat#get(java.lang.String, uk.ac.rdg.resc.ncwms.graphics.ImageSettings)}.
+ * Instances are immutable.
+ *
+ * @author Jon Blower
+ */
+public final class ImageSettings
+{
+    /** The default settings */
+    public static final ImageSettings DEFAULT = new ImageSettings(
+        PngFormat.DEFAULT_COMPRESSION_LEVEL, JpegFormat.DEFAULT_QUALITY, false);
+
+    private final int pngCompressionLevel;
+    private final int jpegQuality;
+    private final boolean jpegProgressive;
+
+    /**
+     * Creates a new set of image settings.
+     * @param pngCompressionLevel The level of compression of indexed PNG images,
+     * from 0 (no compression) to 9 (best compression).  Lower levels are quicker:
+     * images from {@link ImageProducer} compress well even at level 1, and
+     * at level 3 they are about the same size as those written by ImageIO.
+     * @param jpegQuality The quality of JPEG images, from 1 (smallest images)
+     * to 100 (best quality)
+     * @param jpegProgressive Whether JPEG images are progressive, so that
+     * clients can display a coarse version of a large image before it has all
+     * been received
+     * @throws IllegalArgumentException if the compression level or quality is
+     * out of range
+     */
+    public ImageSettings(int pngCompressionLevel, int jpegQuality, boolean jpegProgressive)
+    {
+        if (pngCompressionLevel < 0 || pngCompressionLevel > 9)
+        {
+            throw new IllegalArgumentException("PNG compression level must be between 0 and 9");
+        }
+        if (jpegQuality < 1 || jpegQuality > 100)
+        {
+            throw new IllegalArgumentException("JPEG quality must be between 1 and 100");
+        }
+        this.pngCompressionLevel = pngCompressionLevel;
+        this.jpegQuality = jpegQuality;
+        this.jpegProgressive = jpegProgressive;
+    }
+
+    public int getPngCompressionLevel()
+    {
+        return this.pngCompressionLevel;
+    }
+
+    public int getJpegQuality()
+    {
+        return this.jpegQuality;
+    }
+
+    public boolean isJpegProgressive()
+    {
+        return this.jpegProgressive;
+    }
+}
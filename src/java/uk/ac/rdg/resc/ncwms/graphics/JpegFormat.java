@@ -29,24 +29,74 @@
 package uk.ac.rdg.resc.ncwms.graphics;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import java.io.OutputStream;
 import java.io.IOException;
 import java.util.List;
 
 /**
- * Writes PNG images using the ImageIO class.  Only one instance of this class
- * will ever be created, so this class contains no member variables to ensure
- * thread safety.
+ * Writes JPEG images using the ImageIO class.  Each thread keeps its own
+ * ImageWriter, which is reused for every image that the thread writes.
+ * Indexed images are expanded to RGB in a buffer that is also reused.  The
+ * quality of the images and whether they are progressive are fixed when an
+ * instance is created, so instances are thread safe.
  * @author jdb
  */
 public class JpegFormat extends SimpleFormat
 {
+    /** The default quality of JPEG images, as a percentage */
+    public static final int DEFAULT_QUALITY = 75;
+
+    private final int quality;
+    private final boolean progressive;
+
+    /** The ImageWriter of each thread, with its parameters */
+    private static final ThreadLocal<Workspace> WRITERS = new ThreadLocal<Workspace>()
+    {
+        @Override protected Workspace initialValue() { return new Workspace(); }
+    };
+
+    private static final class Workspace
+    {
+        private final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        private final ImageWriteParam param = this.writer.getDefaultWriteParam();
+        /** Image into which indexed images are expanded before encoding */
+        private BufferedImage rgbImage = null;
+
+        private Workspace()
+        {
+            this.param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        }
+    }
+
     /**
      * Protected default constructor to prevent direct instantiation.
      */
-    protected JpegFormat() {}
+    protected JpegFormat()
+    {
+        this(DEFAULT_QUALITY, false);
+    }
+
+    /**
+     * Creates a format with the given quality and progressive mode (see
+     * {@link ImageSettings#getJpegQuality()} and
+     * {@link ImageSettings#isJpegProgressive()}).
+     */
+    protected JpegFormat(int quality, boolean progressive)
+    {
+        this.quality = quality;
+        this.progressive = progressive;
+    }
     
     @Override
     public String getMimeType()
@@ -72,6 +122,14 @@ public class JpegFormat extends SimpleFormat
         return false;
     }
 
+    @Override
+    protected ImageFormat withSettings(ImageSettings settings)
+    {
+        if (settings.getJpegQuality() == this.quality
+            && settings.isJpegProgressive() == this.progressive) return this;
+        return new JpegFormat(settings.getJpegQuality(), settings.isJpegProgressive());
+    }
+
     @Override
     public void writeImage(List<BufferedImage> frames, OutputStream out) throws IOException
     {
@@ -79,6 +137,59 @@ public class JpegFormat extends SimpleFormat
         {
             throw new IllegalArgumentException("Cannot render animations in JPEG format");
         }
-        ImageIO.write(frames.get(0), "jpeg", out);
+        Workspace w = WRITERS.get();
+        w.param.setCompressionQuality(this.quality / 100.0f);
+        w.param.setProgressiveMode(this.progressive
+            ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+        try
+        {
+            w.writer.setOutput(ios);
+            w.writer.write(null, new IIOImage(toRGB(frames.get(0), w), null, null), w.param);
+        }
+        finally
+        {
+            // Clears the output so that the writer can be reused
+            w.writer.reset();
+            // Flushes the remaining data, but doesn't close the OutputStream
+            ios.close();
+        }
+    }
+
+    /**
+     * Expands indexed images, such as those produced by {@link ImageProducer},
+     * into the RGB image of the given workspace.  This is quicker than leaving
+     * the conversion to the ImageWriter.  Other images are returned unchanged.
+     */
+    private static BufferedImage toRGB(BufferedImage image, Workspace w)
+    {
+        if (!PngEncoder.canEncode(image)) return image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (w.rgbImage == null || w.rgbImage.getWidth() != width || w.rgbImage.getHeight() != height)
+        {
+            w.rgbImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        }
+        byte[] rgbPalette = ColorPalette.getRGBPalette((IndexColorModel)image.getColorModel());
+        Raster raster = image.getRaster();
+        ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+        byte[] pixels = ((DataBufferByte)raster.getDataBuffer()).getData();
+        int offset = ((DataBufferByte)raster.getDataBuffer()).getOffset()
+            + sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+        int scanlineStride = sm.getScanlineStride();
+        byte[] bgr = ((DataBufferByte)w.rgbImage.getRaster().getDataBuffer()).getData();
+        int k = 0;
+        for (int j = 0; j < height; j++)
+        {
+            int rowStart = offset + j * scanlineStride;
+            for (int i = 0; i < width; i++)
+            {
+                int p = (pixels[rowStart + i] & 0xff) * 3;
+                bgr[k++] = rgbPalette[p + 2];
+                bgr[k++] = rgbPalette[p + 1];
+                bgr[k++] = rgbPalette[p];
+            }
+        }
+        return w.rgbImage;
     }
 }
@@ -29,9 +29,15 @@
 package uk.ac.rdg.resc.ncwms.graphics;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import javax.imageio.ImageIO;
@@ -43,9 +49,9 @@ import uk.ac.rdg.resc.ncwms.util.WmsUtils;
 import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
- * Creates KMZ files for importing into Google Earth.  Only one instance of this class
- * will ever be created, so this class contains no member variables to ensure
- * thread safety.
+ * Creates KMZ files for importing into Google Earth.  The level of compression
+ * of the frames is fixed when an instance is created, so instances are thread
+ * safe.
  * @todo Would this be better handled by a JSP?
  *
  * @author Jon Blower
@@ -61,6 +67,29 @@ public class KmzFormat extends ImageFormat
     private static final String PICEXT  = "png";
     private static final String COLOUR_SCALE_FILENAME = "legend.png";
 
+    /** The level of compression of the PNG frames */
+    private final int pngCompressionLevel;
+
+    /**
+     * Protected default constructor to prevent direct instantiation.
+     */
+    protected KmzFormat()
+    {
+        this(PngFormat.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    private KmzFormat(int pngCompressionLevel)
+    {
+        this.pngCompressionLevel = pngCompressionLevel;
+    }
+
+    @Override
+    protected ImageFormat withSettings(ImageSettings settings)
+    {
+        if (settings.getPngCompressionLevel() == this.pngCompressionLevel) return this;
+        return new KmzFormat(settings.getPngCompressionLevel());
+    }
+
     /**
      * Writes the given list of {@link java.awt.BufferedImage}s to the given
      * OutputStream.
@@ -81,9 +110,113 @@ public class KmzFormat extends ImageFormat
         OutputStream out, Layer layer, List<String> tValues,
         String zValue, BoundingBox bbox, BufferedImage legend) throws IOException
     {
-        StringBuffer kml = new StringBuffer();
-        
+        FrameWriter frameWriter = this.startImage(out, layer, frames.size(),
+            zValue, bbox, legend);
         for (int frameIndex = 0; frameIndex < frames.size(); frameIndex++)
+        {
+            frameWriter.writeFrame(frames.get(frameIndex), tValues.get(frameIndex));
+        }
+        frameWriter.finish();
+    }
+
+    /**
+     * Writes each frame to the KMZ file as it arrives.  The frames are encoded
+     * as PNGs in parallel and stored in the KMZ file in order, without further
+     * compression.  The KML file, which refers to all the frames, is written
+     * at the end.
+     */
+    @Override
+    public FrameWriter startImage(OutputStream out, final Layer layer,
+        int numFrames, final String zValue, final BoundingBox bbox,
+        final BufferedImage legend) throws IOException
+    {
+        final ZipOutputStream zipOut = new ZipOutputStream(out);
+        logger.debug("Writing frames to KMZ file");
+        return new ParallelFrameWriter<EncodedFrame>(numFrames)
+        {
+            private final List<String> tValues = new ArrayList<String>();
+
+            @Override
+            protected EncodedFrame encodeFrame(BufferedImage frame) throws IOException
+            {
+                return new EncodedFrame(frame, pngCompressionLevel);
+            }
+
+            @Override
+            protected void writeEncodedFrame(EncodedFrame frame, String tValue) throws IOException
+            {
+                // PNGs are already compressed, so we store them as they are
+                ZipEntry picEntry = new ZipEntry(getPicFileName(this.tValues.size()));
+                picEntry.setMethod(ZipEntry.STORED);
+                picEntry.setSize(frame.png.length);
+                picEntry.setCompressedSize(frame.png.length);
+                picEntry.setCrc(frame.crc);
+                this.tValues.add(tValue);
+                zipOut.putNextEntry(picEntry);
+                zipOut.write(frame.png);
+            }
+
+            @Override
+            protected void finishImage() throws IOException
+            {
+                // Write the KML file: todo get filename properly
+                logger.debug("Writing KML file to KMZ file");
+                ZipEntry kmlEntry = new ZipEntry(layer.getDataset().getId() + "_" +
+                    layer.getId() + ".kml");
+                kmlEntry.setTime(System.currentTimeMillis());
+                zipOut.putNextEntry(kmlEntry);
+                Writer kml = new BufferedWriter(new OutputStreamWriter(zipOut, "UTF-8"));
+                writeKml(kml, layer, this.tValues, zValue, bbox);
+                // We mustn't close the writer, as this would close the zip stream
+                kml.flush();
+
+                // Finally, write the colour scale
+                logger.debug("Constructing colour scale image");
+                ZipEntry scaleEntry = new ZipEntry(COLOUR_SCALE_FILENAME);
+                zipOut.putNextEntry(scaleEntry);
+                // Write the colour scale bar to the KMZ file
+                logger.debug("Writing colour scale image to KMZ file");
+                ImageIO.write(legend, PICEXT, zipOut);
+
+                zipOut.close();
+            }
+        };
+    }
+
+    /**
+     * A frame that has been encoded as a PNG, ready to be stored in the KMZ file
+     */
+    private static final class EncodedFrame
+    {
+        private final byte[] png;
+        private final long crc;
+
+        private EncodedFrame(BufferedImage frame, int pngCompressionLevel) throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (PngEncoder.canEncode(frame))
+            {
+                PngEncoder.write(frame, out, pngCompressionLevel);
+            }
+            else
+            {
+                ImageIO.write(frame, PICEXT, out);
+            }
+            this.png = out.toByteArray();
+            CRC32 crc32 = new CRC32();
+            crc32.update(this.png);
+            this.crc = crc32.getValue();
+        }
+    }
+
+    /**
+     * Writes the KML document that refers to the frames with the given time
+     * values
+     */
+    private static void writeKml(Writer kml, Layer layer, List<String> tValues,
+        String zValue, BoundingBox bbox) throws IOException
+    {
+        for (int frameIndex = 0; frameIndex < tValues.size(); frameIndex++)
         {
             if (frameIndex == 0)
             {
@@ -93,16 +226,17 @@ public class KmzFormat extends ImageFormat
                 kml.append("<kml xmlns=\"http://earth.google.com/kml/2.0\">");
                 kml.append("<Folder>");
                 kml.append("<visibility>1</visibility>");
-                kml.append("<name>" + layer.getDataset().getId() + ", " +
-                    layer.getId() + "</name>");
-                kml.append("<description>" + layer.getDataset().getTitle() + ", "
-                    + layer.getTitle() + ": " + layer.getLayerAbstract() +
-                    "</description>");
+                kml.append("<name>").append(layer.getDataset().getId())
+                   .append(", ").append(layer.getId()).append("</name>");
+                kml.append("<description>").append(layer.getDataset().getTitle())
+                   .append(", ").append(layer.getTitle())
+                   .append(": ").append(layer.getLayerAbstract())
+                   .append("</description>");
 
                 // Add the screen overlay containing the colour scale
                 kml.append("<ScreenOverlay>");
                 kml.append("<name>Colour scale</name>");
-                kml.append("<Icon><href>" + COLOUR_SCALE_FILENAME + "</href></Icon>");
+                kml.append("<Icon><href>").append(COLOUR_SCALE_FILENAME).append("</href></Icon>");
                 kml.append("<overlayXY x=\"0\" y=\"1\" xunits=\"fraction\" yunits=\"fraction\"/>");
                 kml.append("<screenXY x=\"0\" y=\"1\" xunits=\"fraction\" yunits=\"fraction\"/>");
                 kml.append("<rotationXY x=\"0\" y=\"0\" xunits=\"fraction\" yunits=\"fraction\"/>");
@@ -121,7 +255,7 @@ public class KmzFormat extends ImageFormat
                 // TODO: not sure if this will work for 360-day calendars...
                 DateTime dt = WmsUtils.iso8601ToDateTime(tValues.get(frameIndex), layer.getChronology());
                 timestamp = WmsUtils.dateTimeToISO8601(dt);
-                kml.append("<TimeStamp><when>" + timestamp + "</when></TimeStamp>");
+                kml.append("<TimeStamp><when>").append(timestamp).append("</when></TimeStamp>");
             }
             if (zValue != null && !zValue.equals("") && layer.getElevationValues() != null)
             {
@@ -132,25 +266,25 @@ public class KmzFormat extends ImageFormat
             kml.append("<name>");
             if (timestamp == null && z == null)
             {
-                kml.append("Frame " + frameIndex);
+                kml.append("Frame ").append(String.valueOf(frameIndex));
             }
             else
             {
                 kml.append("<![CDATA[");
-                if (timestamp != null) kml.append("Time: " + timestamp);
+                if (timestamp != null) kml.append("Time: ").append(timestamp);
                 if (z != null) kml.append(z);
                 kml.append("]]>");
             }
             kml.append("</name>");
             kml.append("<visibility>1</visibility>");
 
-            kml.append("<Icon><href>" + getPicFileName(frameIndex) + "</href></Icon>");
+            kml.append("<Icon><href>").append(getPicFileName(frameIndex)).append("</href></Icon>");
 
-            kml.append("<LatLonBox id=\"" + frameIndex + "\">");
-            kml.append("<west>"  + bbox.getMinX() + "</west>");
-            kml.append("<south>" + bbox.getMinY() + "</south>");
-            kml.append("<east>"  + bbox.getMaxX() + "</east>");
-            kml.append("<north>" + bbox.getMaxY() + "</north>");
+            kml.append("<LatLonBox id=\"").append(String.valueOf(frameIndex)).append("\">");
+            kml.append("<west>").append(String.valueOf(bbox.getMinX())).append("</west>");
+            kml.append("<south>").append(String.valueOf(bbox.getMinY())).append("</south>");
+            kml.append("<east>").append(String.valueOf(bbox.getMaxX())).append("</east>");
+            kml.append("<north>").append(String.valueOf(bbox.getMaxY())).append("</north>");
             kml.append("<rotation>0</rotation>");
             kml.append("</LatLonBox>");
             kml.append("</GroundOverlay>");
@@ -159,37 +293,6 @@ public class KmzFormat extends ImageFormat
         // Write the footer of the KML file
         kml.append("</Folder>");
         kml.append("</kml>");
-        
-        ZipOutputStream zipOut = new ZipOutputStream(out);
-        
-        // Write the KML file: todo get filename properly
-        logger.debug("Writing KML file to KMZ file");
-        ZipEntry kmlEntry = new ZipEntry(layer.getDataset().getId() + "_" +
-            layer.getId() + ".kml");
-        kmlEntry.setTime(System.currentTimeMillis());
-        zipOut.putNextEntry(kmlEntry);
-        zipOut.write(kml.toString().getBytes());
-        
-        // Now write all the images
-        int frameIndex = 0;
-        logger.debug("Writing frames to KMZ file");
-        for (BufferedImage frame : frames)
-        {
-            ZipEntry picEntry = new ZipEntry(getPicFileName(frameIndex));
-            frameIndex++;
-            zipOut.putNextEntry(picEntry);
-            ImageIO.write(frame, PICEXT, zipOut);
-        }
-        
-        // Finally, write the colour scale
-        logger.debug("Constructing colour scale image");
-        ZipEntry scaleEntry = new ZipEntry(COLOUR_SCALE_FILENAME);
-        zipOut.putNextEntry(scaleEntry);
-        // Write the colour scale bar to the KMZ file
-        logger.debug("Writing colour scale image to KMZ file");
-        ImageIO.write(legend, PICEXT, zipOut);
-        
-        zipOut.close();
     }
     
     /**
@@ -118,10 +118,19 @@ class LZWEncoder {
 
 	//----------------------------------------------------------------------------
 	LZWEncoder(int width, int height, byte[] pixels, int color_depth) {
+		reset(width, height, pixels, color_depth);
+	}
+
+	// Added by Jon Blower: prepares this encoder to encode another image, so
+	// that the hash tables can be reused
+	void reset(int width, int height, byte[] pixels, int color_depth) {
 		imgW = width;
 		imgH = height;
 		pixAry = pixels;
 		initCodeSize = Math.max(2, color_depth);
+		cur_accum = 0;
+		cur_bits = 0;
+		a_count = 0;
 	}
 	
 	// Add a character to the end of the current packet, and if it is 254
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link ImageFormat.FrameWriter} that encodes the frames of an animation in
+ * parallel, then writes the encoded frames in order as soon as they are ready.
+ * The number of frames that are waiting to be written is bounded, so
+ * {@link #writeFrame writeFrame()} may block until earlier frames have been
+ * encoded.
+ * @param <T> The type of an encoded frame
+ *
+ * @author Jon Blower
+ */
+abstract class ParallelFrameWriter<T> implements ImageFormat.FrameWriter
+{
+    /** The maximum number of encoded frames that wait to be written */
+    private static final int MAX_PENDING_FRAMES = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final boolean parallel;
+    private final Queue<Future<T>> pendingFrames = new LinkedList<Future<T>>();
+    private final Queue<String> pendingTValues = new LinkedList<String>();
+
+    /**
+     * @param numFrames The number of frames in the image.  If this is one,
+     * the frame is encoded on the calling thread.
+     */
+    protected ParallelFrameWriter(int numFrames)
+    {
+        this.parallel = numFrames > 1;
+    }
+
+    @Override
+    public final void writeFrame(final BufferedImage frame, String tValue) throws IOException
+    {
+        if (!this.parallel)
+        {
+            this.writeEncodedFrame(this.encodeFrame(frame), tValue);
+            return;
+        }
+        this.pendingFrames.add(ImageProducer.RENDERING_POOL.submit(new Callable<T>()
+        {
+            @Override
+            public T call() throws IOException
+            {
+                return encodeFrame(frame);
+            }
+        }));
+        this.pendingTValues.add(tValue);
+        this.writeEncodedFrames(MAX_PENDING_FRAMES);
+    }
+
+    @Override
+    public final void finish() throws IOException
+    {
+        this.writeEncodedFrames(0);
+        this.finishImage();
+    }
+
+    /**
+     * Writes the encoded frames from the head of the queue, waiting for them
+     * to be encoded if there are more than maxPendingFrames in the queue.
+     */
+    private void writeEncodedFrames(int maxPendingFrames) throws IOException
+    {
+        while (!this.pendingFrames.isEmpty() &&
+              (this.pendingFrames.peek().isDone() || this.pendingFrames.size() > maxPendingFrames))
+        {
+            T encodedFrame = getEncodedFrame(this.pendingFrames.remove());
+            this.writeEncodedFrame(encodedFrame, this.pendingTValues.remove());
+        }
+    }
+
+    /**
+     * Waits for the given frame to be encoded and returns it, rethrowing any
+     * exception from the encoding thread.
+     */
+    private static <T> T getEncodedFrame(Future<T> frame) throws IOException
+    {
+        try
+        {
+            return frame.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding frame");
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Encodes the given frame.  This will be called on a background thread,
+     * so it must not write to the output stream.
+     */
+    protected abstract T encodeFrame(BufferedImage frame) throws IOException;
+
+    /**
+     * Writes the given encoded frame to the output stream.  This is called on
+     * the thread that writes the frames, in the order of the frames.
+     */
+    protected abstract void writeEncodedFrame(T encodedFrame, String tValue) throws IOException;
+
+    /** Finishes the image, after all the frames have been written */
+    protected abstract void finishImage() throws IOException;
+}
@@ -37,9 +37,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Writes 32-bit (ARGB) PNG images using the ImageIO class.  Only one instance of this class
- * will ever be created, so this class contains no member variables to ensure
- * thread safety.  Some browsers have problems with {@link PngFormat indexed PNGs},
+ * Writes 32-bit (ARGB) PNG images.  Indexed images, such as those produced by
+ * {@link ImageProducer}, are expanded into 32-bit colour as they are encoded:
+ * other images are converted and written using the ImageIO class.  Instances
+ * are thread safe.  Some browsers have problems with {@link PngFormat indexed PNGs},
  * and some clients find it easier to merge 32-bit images with others.
  * @author jdb
  */
@@ -49,6 +50,15 @@ public class Png32Format extends PngFormat
      * Protected default constructor to prevent direct instantiation.
      */
     protected Png32Format() {}
+
+    /**
+     * Creates a format that compresses indexed images at the given level
+     * (see {@link ImageSettings#getPngCompressionLevel()}).
+     */
+    protected Png32Format(int compressionLevel)
+    {
+        super(compressionLevel);
+    }
     
     @Override
     public String getMimeType()
@@ -56,9 +66,21 @@ public class Png32Format extends PngFormat
         return "image/png;mode=32bit";
     }
 
+    @Override
+    protected ImageFormat withSettings(ImageSettings settings)
+    {
+        if (settings.getPngCompressionLevel() == this.getCompressionLevel()) return this;
+        return new Png32Format(settings.getPngCompressionLevel());
+    }
+
     @Override
     public void writeImage(List<BufferedImage> frames, OutputStream out) throws IOException
     {
+        if (frames.size() == 1 && PngEncoder.canEncode(frames.get(0)))
+        {
+            PngEncoder.writeRGBA(frames.get(0), out, this.getCompressionLevel());
+            return;
+        }
         List<BufferedImage> frames32bit = new ArrayList<BufferedImage>(frames.size());
         for (BufferedImage source : frames)
         {
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Writes 8-bit indexed images, such as those produced by
+ * {@link ImageProducer}, as indexed or 32-bit PNGs.  This is much quicker than going through
+ * ImageIO: the palette is written straight from the colour model, rows are
+ * filtered with a single, cheap filter rather than choosing a filter for each
+ * row, and the pixel data are compressed with a {@link Deflater} that is
+ * reused by each thread.</p>
+ * <p>This class is thread-safe.</p>
+ *
+ * @author Jon Blower
+ */
+final class PngEncoder
+{
+    private static final byte[] SIGNATURE = {
+        (byte)137, 80, 78, 71, 13, 10, 26, 10
+    };
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] PLTE = {'P', 'L', 'T', 'E'};
+    private static final byte[] TRNS = {'t', 'R', 'N', 'S'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    private static final byte COLOUR_TYPE_RGBA = 6;
+    private static final byte COLOUR_TYPE_PALETTE = 3;
+
+    /** The filter type that we apply to each row of pixels */
+    private static final byte FILTER_SUB = 1;
+
+    /** The maximum size of the IDAT chunks that we write */
+    private static final int BUFFER_SIZE = 32768;
+
+    /** Buffers and compressors for each thread */
+    private static final ThreadLocal<Workspace> WORKSPACES = new ThreadLocal<Workspace>()
+    {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    private static final class Workspace
+    {
+        private final Deflater deflater = new Deflater();
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        /** The number of bytes of compressed data in the buffer */
+        private int bufferLength = 0;
+        private final byte[] header = new byte[8];
+        private byte[] row = new byte[0];
+    }
+
+    /** Prevents instantiation */
+    private PngEncoder() {}
+
+    /**
+     * Returns true if the given image can be written by
+     * {@link #write(java.awt.image.BufferedImage, java.io.OutputStream, int) write()},
+     * i.e. if it has an 8-bit IndexColorModel and one byte per pixel.
+     */
+    static boolean canEncode(BufferedImage image)
+    {
+        if (!(image.getColorModel() instanceof IndexColorModel)) return false;
+        if (image.getColorModel().getPixelSize() != 8) return false;
+        Raster raster = image.getRaster();
+        return raster.getDataBuffer() instanceof DataBufferByte
+            && raster.getDataBuffer().getNumBanks() == 1
+            && raster.getSampleModel() instanceof ComponentSampleModel
+            && ((ComponentSampleModel)raster.getSampleModel()).getPixelStride() == 1
+            && raster.getNumBands() == 1;
+    }
+
+    /**
+     * Writes the given image to the given stream as an indexed PNG.
+     * @param image The image, for which {@link #canEncode canEncode()} must be true
+     * @param out The stream to which the image will be written
+     * @param compressionLevel The compression level, from 0 (no compression)
+     * to 9 (best compression).
+     * @throws IOException if there was an error writing to the stream
+     */
+    static void write(BufferedImage image, OutputStream out, int compressionLevel)
+        throws IOException
+    {
+        Workspace ws = WORKSPACES.get();
+        IndexColorModel icm = (IndexColorModel)image.getColorModel();
+
+        out.write(SIGNATURE);
+        writeHeader(out, image, COLOUR_TYPE_PALETTE, ws);
+
+        // The palette
+        int mapSize = icm.getMapSize();
+        writeChunk(out, PLTE, ColorPalette.getRGBPalette(icm), 0, mapSize * 3, ws);
+
+        // The transparency of each colour in the palette, up to the last colour
+        // that is not opaque
+        byte[] alphas = new byte[mapSize];
+        icm.getAlphas(alphas);
+        int numAlphas = mapSize;
+        while (numAlphas > 0 && alphas[numAlphas - 1] == (byte)255) numAlphas--;
+        if (numAlphas > 0)
+        {
+            writeChunk(out, TRNS, alphas, 0, numAlphas, ws);
+        }
+
+        writePixels(out, image, null, compressionLevel, ws);
+        writeChunk(out, IEND, ws.buffer, 0, 0, ws);
+    }
+
+    /**
+     * Writes the given indexed image to the given stream as a 32-bit (RGBA)
+     * PNG.  Each colour index is expanded into its red, green, blue and alpha
+     * values as the rows are written, so no intermediate image is created.
+     * @param image The image, for which {@link #canEncode canEncode()} must be true
+     * @param out The stream to which the image will be written
+     * @param compressionLevel The compression level, from 0 (no compression)
+     * to 9 (best compression).
+     * @throws IOException if there was an error writing to the stream
+     */
+    static void writeRGBA(BufferedImage image, OutputStream out, int compressionLevel)
+        throws IOException
+    {
+        Workspace ws = WORKSPACES.get();
+        IndexColorModel icm = (IndexColorModel)image.getColorModel();
+
+        out.write(SIGNATURE);
+        writeHeader(out, image, COLOUR_TYPE_RGBA, ws);
+        writePixels(out, image, ColorPalette.getRGBAPalette(icm), compressionLevel, ws);
+        writeChunk(out, IEND, ws.buffer, 0, 0, ws);
+    }
+
+    /**
+     * Writes the header of a PNG with 8 bits per sample, the default
+     * compression and filter methods and no interlacing
+     */
+    private static void writeHeader(OutputStream out, BufferedImage image,
+        byte colourType, Workspace ws) throws IOException
+    {
+        byte[] ihdr = new byte[13];
+        writeInt(ihdr, 0, image.getWidth());
+        writeInt(ihdr, 4, image.getHeight());
+        ihdr[8] = 8;
+        ihdr[9] = colourType;
+        writeChunk(out, IHDR, ihdr, 0, ihdr.length, ws);
+    }
+
+    /**
+     * Compresses the pixels of the given image and writes them as IDAT chunks.
+     * @param rgbaPalette If this is null, the colour indices are written.
+     * Otherwise, each index is expanded into the four bytes at position
+     * (index * 4) in this array.
+     */
+    private static void writePixels(OutputStream out, BufferedImage image,
+        byte[] rgbaPalette, int compressionLevel, Workspace ws) throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowLength = (rgbaPalette == null ? width : width * 4) + 1;
+
+        // We use the "Sub" filter for every row, i.e. we store the difference
+        // between each byte and the corresponding byte of the pixel to its
+        // left.  Our colour indices increase with the data values, so for
+        // smoothly-varying fields this gives long runs of small numbers, which
+        // compress much better than the unfiltered rows.
+        Raster raster = image.getRaster();
+        ComponentSampleModel sm = (ComponentSampleModel)raster.getSampleModel();
+        byte[] pixels = ((DataBufferByte)raster.getDataBuffer()).getData();
+        int offset = ((DataBufferByte)raster.getDataBuffer()).getOffset()
+            + sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+        int scanlineStride = sm.getScanlineStride();
+        if (ws.row.length < rowLength) ws.row = new byte[rowLength];
+        byte[] row = ws.row;
+        Deflater deflater = ws.deflater;
+        deflater.reset();
+        ws.bufferLength = 0;
+        deflater.setLevel(compressionLevel);
+        for (int j = 0; j < height; j++)
+        {
+            int rowStart = offset + j * scanlineStride;
+            row[0] = FILTER_SUB;
+            if (rgbaPalette == null)
+            {
+                byte left = 0;
+                for (int i = 0; i < width; i++)
+                {
+                    byte pixel = pixels[rowStart + i];
+                    row[i + 1] = (byte)(pixel - left);
+                    left = pixel;
+                }
+            }
+            else
+            {
+                byte leftR = 0, leftG = 0, leftB = 0, leftA = 0;
+                int k = 1;
+                for (int i = 0; i < width; i++)
+                {
+                    int p = (pixels[rowStart + i] & 0xff) * 4;
+                    byte r = rgbaPalette[p];
+                    byte g = rgbaPalette[p + 1];
+                    byte b = rgbaPalette[p + 2];
+                    byte a = rgbaPalette[p + 3];
+                    row[k++] = (byte)(r - leftR);
+                    row[k++] = (byte)(g - leftG);
+                    row[k++] = (byte)(b - leftB);
+                    row[k++] = (byte)(a - leftA);
+                    leftR = r;
+                    leftG = g;
+                    leftB = b;
+                    leftA = a;
+                }
+            }
+            deflater.setInput(row, 0, rowLength);
+            while (!deflater.needsInput())
+            {
+                writeCompressedData(out, ws);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished())
+        {
+            writeCompressedData(out, ws);
+        }
+        if (ws.bufferLength > 0)
+        {
+            writeChunk(out, IDAT, ws.buffer, 0, ws.bufferLength, ws);
+        }
+    }
+
+    /**
+     * Adds compressed data from the Deflater to the buffer, writing the buffer
+     * as an IDAT chunk when it is full
+     */
+    private static void writeCompressedData(OutputStream out, Workspace ws)
+        throws IOException
+    {
+        ws.bufferLength += ws.deflater.deflate(ws.buffer, ws.bufferLength,
+            BUFFER_SIZE - ws.bufferLength);
+        if (ws.bufferLength == BUFFER_SIZE)
+        {
+            writeChunk(out, IDAT, ws.buffer, 0, BUFFER_SIZE, ws);
+            ws.bufferLength = 0;
+        }
+    }
+
+    /** Writes a chunk with the given type and data */
+    private static void writeChunk(OutputStream out, byte[] type, byte[] data,
+        int off, int len, Workspace ws) throws IOException
+    {
+        writeInt(ws.header, 0, len);
+        System.arraycopy(type, 0, ws.header, 4, 4);
+        out.write(ws.header, 0, 8);
+        out.write(data, off, len);
+        ws.crc.reset();
+        ws.crc.update(type);
+        ws.crc.update(data, off, len);
+        writeInt(ws.header, 0, (int)ws.crc.getValue());
+        out.write(ws.header, 0, 4);
+    }
+
+    private static void writeInt(byte[] b, int off, int i)
+    {
+        b[off]     = (byte)(i >>> 24);
+        b[off + 1] = (byte)(i >>> 16);
+        b[off + 2] = (byte)(i >>> 8);
+        b[off + 3] = (byte)i;
+    }
+}
@@ -36,17 +36,35 @@ import java.io.IOException;
 import java.util.List;
 
 /**
- * Writes PNG images using the ImageIO class.  Only one instance of this class
- * will ever be created, so this class contains no member variables to ensure
- * thread safety.
+ * Writes PNG images.  Indexed images, such as those produced by
+ * {@link ImageProducer}, are written by a dedicated encoder: other images are
+ * written using the ImageIO class.  The level of compression is fixed when
+ * an instance is created, so instances are thread safe.
  * @author jdb
  */
 public class PngFormat extends SimpleFormat
 {
+    /** The default compression level for indexed images */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 3;
+
+    private final int compressionLevel;
+
     /**
      * Protected default constructor to prevent direct instantiation.
      */
-    protected PngFormat() {}
+    protected PngFormat()
+    {
+        this(DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Creates a format that compresses indexed images at the given level
+     * (see {@link ImageSettings#getPngCompressionLevel()}).
+     */
+    protected PngFormat(int compressionLevel)
+    {
+        this.compressionLevel = compressionLevel;
+    }
     
     @Override
     public String getMimeType()
@@ -79,6 +97,27 @@ public class PngFormat extends SimpleFormat
         {
             throw new IllegalArgumentException("Cannot render animations in PNG format");
         }
-        ImageIO.write(frames.get(0), "png", out);
+        BufferedImage frame = frames.get(0);
+        if (PngEncoder.canEncode(frame))
+        {
+            PngEncoder.write(frame, out, this.compressionLevel);
+        }
+        else
+        {
+            ImageIO.write(frame, "png", out);
+        }
+    }
+
+    @Override
+    protected ImageFormat withSettings(ImageSettings settings)
+    {
+        if (settings.getPngCompressionLevel() == this.compressionLevel) return this;
+        return new PngFormat(settings.getPngCompressionLevel());
+    }
+
+    /** Gets the level of compression that is used for indexed images */
+    int getCompressionLevel()
+    {
+        return this.compressionLevel;
     }
 }
@@ -51,8 +51,14 @@ import org.joda.time.chrono.ISOChronology;
 import org.joda.time.chrono.JulianChronology;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
 import uk.ac.rdg.resc.edal.cdm.CdmUtils;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
@@ -61,6 +67,7 @@ import uk.ac.rdg.resc.edal.time.AllLeapChronology;
 import uk.ac.rdg.resc.edal.time.NoLeapChronology;
 import uk.ac.rdg.resc.ncwms.controller.GetMapDataRequest;
 import uk.ac.rdg.resc.edal.time.ThreeSixtyDayChronology;
+import uk.ac.rdg.resc.edal.util.Utils;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidCrsException;
 import uk.ac.rdg.resc.ncwms.exceptions.InvalidDimensionValueException;
 import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
@@ -101,6 +108,12 @@ public class WmsUtils
     // Patterns are immutable and therefore thread-safe.
     private static final Pattern MULTIPLE_WHITESPACE = Pattern.compile("\\s+");
 
+    /**
+     * The number of intervals along each side of a grid that are sampled when
+     * finding its longitude-latitude bounding box
+     */
+    private static final int LON_LAT_BBOX_SAMPLES = 8;
+
     /**
      * <p>A {@link Comparator} that compares {@link DateTime} objects based only
      * on their millisecond instant values.  This can be used for
@@ -730,6 +743,166 @@ public class WmsUtils
         return new RegularGridImpl(bbox, dr.getWidth(), dr.getHeight());
     }
 
+    /**
+     * Returns true if the given grid lies outside the domain of the given
+     * layer, so that a GetMap request would contain no data.  Returns false
+     * if the elevation is not one of the layer's elevation values, so that
+     * the request is checked in the normal way.
+     * @param zValue the requested elevation, or NaN if none was requested
+     * @see #isOutsideLayer(uk.ac.rdg.resc.ncwms.wms.Layer, uk.ac.rdg.resc.edal.coverage.grid.RegularGrid)
+     */
+    public static boolean isOutsideLayer(Layer layer, double zValue, RegularGrid grid)
+    {
+        if (!Double.isNaN(zValue) && !layer.getElevationValues().contains(zValue))
+        {
+            return false;
+        }
+        return isOutsideLayer(layer, grid);
+    }
+
+    /**
+     * <p>Returns true if the given grid certainly lies outside the given layer's
+     * {@link Layer#getGeographicBoundingBox() geographic bounding box}, in
+     * which case a GetMap request on the grid would return no data.  This
+     * allows us to avoid reading any data for such requests, which are very
+     * common when clients display regional layers on global maps.</p>
+     * <p>The layer's bounding box is expanded by a couple of grid cells because
+     * it is not always precise.  If we can't be sure that the grid is outside
+     * the bounding box (for example, if the grid's CRS can't be transformed to
+     * longitude-latitude) this returns false.</p>
+     */
+    public static boolean isOutsideLayer(Layer layer, RegularGrid grid)
+    {
+        GeographicBoundingBox layerBbox = layer.getGeographicBoundingBox();
+        if (layerBbox == null) return false;
+        double[] gridBbox = getLonLatBoundingBox(grid);
+        if (gridBbox == null) return false;
+
+        double layerMinLon = layerBbox.getWestBoundLongitude();
+        double layerMaxLon = layerBbox.getEastBoundLongitude();
+        double layerMinLat = layerBbox.getSouthBoundLatitude();
+        double layerMaxLat = layerBbox.getNorthBoundLatitude();
+
+        // Expand the layer's bounding box by two grid cells
+        double margin = 0.0;
+        HorizontalGrid layerGrid = layer.getHorizontalGrid();
+        if (layerGrid != null)
+        {
+            GridEnvelope gridExtent = layerGrid.getGridExtent();
+            margin = 2.0 * Math.max(
+                (layerMaxLon - layerMinLon) / gridExtent.getSpan(0),
+                (layerMaxLat - layerMinLat) / gridExtent.getSpan(1)
+            );
+        }
+        if (Double.isNaN(margin) || Double.isInfinite(margin)) return false;
+
+        if (gridBbox[1] > layerMaxLat + margin || gridBbox[3] < layerMinLat - margin)
+        {
+            return true;
+        }
+        // Longitudes can differ by multiples of 360 degrees
+        if (layerMaxLon - layerMinLon + 2.0 * margin >= 360.0 ||
+            gridBbox[2] - gridBbox[0] >= 360.0)
+        {
+            return false;
+        }
+        for (int k = -2; k <= 2; k++)
+        {
+            double shift = k * 360.0;
+            if (gridBbox[0] <= layerMaxLon + margin + shift &&
+                gridBbox[2] >= layerMinLon - margin + shift)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the longitude-latitude bounding box of the given grid, as an array
+     * of [minLon, minLat, maxLon, maxLat], or returns null if this can't be
+     * found.  For CRSs other than longitude-latitude this transforms a lattice
+     * of points within the grid, and also checks whether the grid contains
+     * either pole (which the lattice would miss).
+     */
+    private static double[] getLonLatBoundingBox(RegularGrid grid)
+    {
+        BoundingBox bbox = grid.getExtent();
+        CoordinateReferenceSystem crs = grid.getCoordinateReferenceSystem();
+        if (Utils.isWgs84LonLat(crs))
+        {
+            return new double[] {bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY()};
+        }
+        try
+        {
+            MathTransform toLonLat = CRS.findMathTransform(crs, DefaultGeographicCRS.WGS84);
+            int n = LON_LAT_BBOX_SAMPLES;
+            double[] points = new double[(n + 1) * (n + 1) * 2];
+            int index = 0;
+            for (int j = 0; j <= n; j++)
+            {
+                for (int i = 0; i <= n; i++)
+                {
+                    points[index++] = bbox.getMinX() + i * (bbox.getMaxX() - bbox.getMinX()) / n;
+                    points[index++] = bbox.getMinY() + j * (bbox.getMaxY() - bbox.getMinY()) / n;
+                }
+            }
+            toLonLat.transform(points, 0, points, 0, points.length / 2);
+            double[] lonLatBbox = new double[] {
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+            };
+            for (int i = 0; i < points.length; i += 2)
+            {
+                double lon = points[i];
+                double lat = points[i + 1];
+                if (Double.isNaN(lon) || Double.isNaN(lat) ||
+                    Double.isInfinite(lon) || Double.isInfinite(lat))
+                {
+                    return null;
+                }
+                lonLatBbox[0] = Math.min(lonLatBbox[0], lon);
+                lonLatBbox[1] = Math.min(lonLatBbox[1], lat);
+                lonLatBbox[2] = Math.max(lonLatBbox[2], lon);
+                lonLatBbox[3] = Math.max(lonLatBbox[3], lat);
+            }
+            // If the grid crosses the date line its longitudes will jump
+            if (lonLatBbox[2] - lonLatBbox[0] > 180.0)
+            {
+                lonLatBbox[0] = -180.0;
+                lonLatBbox[2] = 180.0;
+            }
+            // See if either pole is within the grid
+            MathTransform fromLonLat = toLonLat.inverse();
+            for (double poleLat : new double[] {-90.0, 90.0})
+            {
+                double[] pole = new double[] {0.0, poleLat};
+                try
+                {
+                    fromLonLat.transform(pole, 0, pole, 0, 1);
+                }
+                catch (TransformException te)
+                {
+                    // The pole can't be represented in this CRS
+                    continue;
+                }
+                if (bbox.getMinX() <= pole[0] && pole[0] <= bbox.getMaxX() &&
+                    bbox.getMinY() <= pole[1] && pole[1] <= bbox.getMaxY())
+                {
+                    lonLatBbox[0] = -180.0;
+                    lonLatBbox[2] = 180.0;
+                    lonLatBbox[1] = Math.min(lonLatBbox[1], poleLat);
+                    lonLatBbox[3] = Math.max(lonLatBbox[3], poleLat);
+                }
+            }
+            return lonLatBbox;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
     /**
      * Returns an ArrayList of null values of the given length
      */
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import org.junit.Test;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.geometry.LonLatPosition;
+import uk.ac.rdg.resc.edal.geometry.impl.LonLatPositionImpl;
+
+/**
+ * Test for the {@link CurvilinearGrid} class, which checks that the cells
+ * containing a sequence of points are found by walking across the grid.
+ * @author Jon
+ */
+public class CurvilinearGridTest {
+
+    @Test
+    public void testFindContainingCell() throws Exception {
+        CurvilinearGrid curvGrid = new CurvilinearGrid(LookUpTableTest.createCoordSystem(40, 30));
+        GeographicBoundingBox bbox = curvGrid.getBoundingBox();
+        int size = 30;
+        double[] corners = new double[8];
+        int startIndex = 0;
+        int numInside = 0;
+        for (int y = 0; y < size; y++) {
+            // Start each row from the cell reached at the start of the previous row
+            int rowStartIndex = -1;
+            for (int x = 0; x < size; x++) {
+                double lon = bbox.getWestBoundLongitude() + (x + 0.5) *
+                    (bbox.getEastBoundLongitude() - bbox.getWestBoundLongitude()) / size;
+                double lat = bbox.getSouthBoundLatitude() + (y + 0.5) *
+                    (bbox.getNorthBoundLatitude() - bbox.getSouthBoundLatitude()) / size;
+                int nearbyIndex = curvGrid.findNearbyCell(startIndex % 40, startIndex / 40, lon, lat);
+                int cellIndex = curvGrid.findContainingCell(nearbyIndex, lon, lat, corners);
+                startIndex = nearbyIndex;
+                if (rowStartIndex < 0) rowStartIndex = nearbyIndex;
+
+                // Compare with the result of searching all the cells
+                int expectedIndex = -1;
+                LonLatPosition pos = new LonLatPositionImpl(lon, lat);
+                for (CurvilinearGrid.Cell cell : curvGrid.getCells()) {
+                    if (cell.contains(pos)) {
+                        expectedIndex = cell.getJ() * 40 + cell.getI();
+                        numInside++;
+                        break;
+                    }
+                }
+                assertEquals("Point " + x + "," + y, expectedIndex, cellIndex);
+            }
+            startIndex = rowStartIndex;
+        }
+        // The grid is rotated, so some points in the bounding box are outside it
+        assertTrue(numInside > size * size / 4);
+        assertTrue(numInside < size * size);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import ucar.nc2.dt.GridCoordSystem;
+import uk.ac.rdg.resc.edal.cdm.CurvilinearIndex.Type;
+import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
+import uk.ac.rdg.resc.edal.coverage.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+
+/**
+ * Test for the {@link CurvilinearIndex} class, which checks that the
+ * requested type of index is created.
+ * @author Jon
+ */
+public class CurvilinearIndexTest {
+
+    @Test
+    public void testCreateGrids() throws Exception {
+        GridCoordSystem coordSys = LookUpTableTest.createCoordSystem(40, 30);
+        assertTrue(new CurvilinearIndex(Type.LUT, 3.0, 3.5).createGrid(coordSys) instanceof LookUpTableGrid);
+        HorizontalGrid kdTreeGrid = new CurvilinearIndex(Type.KDTREE, 3.0, 2.0).createGrid(coordSys);
+        assertTrue(kdTreeGrid instanceof KdTreeGrid);
+        assertTrue(CdmUtils.createHorizontalGrid(coordSys,
+            new CurvilinearIndex(Type.RTREE, 3.0, 3.5)) instanceof RTreeGrid);
+
+        // The kd-tree should find the cell that contains each grid point
+        HorizontalPosition pos = kdTreeGrid.transformCoordinates(12, 7);
+        GridCoordinates coords = kdTreeGrid.findNearestGridPoint(pos);
+        assertEquals(12, coords.getCoordinateValue(0));
+        assertEquals(7, coords.getCoordinateValue(1));
+    }
+
+    @Test
+    public void testAutoChoosesByMemoryBudget() throws Exception {
+        CurvilinearGrid curvGrid = new CurvilinearGrid(LookUpTableTest.createCoordSystem(40, 30));
+        CurvilinearIndex auto = new CurvilinearIndex(Type.AUTO, 3.0, 3.5);
+        long lutSize = LookUpTable.getSizeBytes(curvGrid,
+            LookUpTableGrid.getMinResolution(curvGrid, 3.0));
+        try {
+            CurvilinearIndex.setMemoryBudget(lutSize);
+            assertEquals(Type.LUT, auto.chooseType(curvGrid));
+            CurvilinearIndex.setMemoryBudget(lutSize - 1);
+            assertEquals(Type.KDTREE, auto.chooseType(curvGrid));
+            // A finer look-up table needs more memory
+            CurvilinearIndex.setMemoryBudget(lutSize);
+            assertEquals(Type.KDTREE, new CurvilinearIndex(Type.AUTO, 6.0, 3.5).chooseType(curvGrid));
+        } finally {
+            CurvilinearIndex.setMemoryBudget(-1);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidExpansionFactor() {
+        new CurvilinearIndex(Type.KDTREE, 3.0, 1.0);
+    }
+}
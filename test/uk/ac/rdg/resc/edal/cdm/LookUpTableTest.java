@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.awt.geom.Path2D;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import org.junit.Test;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import static org.junit.Assert.*;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridCoordSystem;
+import ucar.nc2.dt.grid.GridDataset;
+import ucar.nc2.ncml.NcMLReader;
+
+/**
+ * Test for the {@link LookUpTable} class, which checks that look-up tables
+ * are saved and read back correctly.
+ * @author Jon
+ */
+public class LookUpTableTest {
+
+    /**
+     * Creates a coordinate system for a curvilinear grid of the given size,
+     * which is rotated with respect to lines of latitude and longitude.
+     */
+    public static GridCoordSystem createCoordSystem(int ni, int nj) throws Exception
+    {
+        StringBuilder lons = new StringBuilder();
+        StringBuilder lats = new StringBuilder();
+        double angle = 0.5;
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                double x = i - ni / 2.0;
+                double y = j - nj / 2.0;
+                lons.append(10.0 + 0.5 * (x * Math.cos(angle) - y * Math.sin(angle))).append(' ');
+                lats.append(20.0 + 0.5 * (x * Math.sin(angle) + y * Math.cos(angle))).append(' ');
+            }
+        }
+        String ncml = "<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\">"
+            + "<dimension name=\"y\" length=\"" + nj + "\"/>"
+            + "<dimension name=\"x\" length=\"" + ni + "\"/>"
+            + "<variable name=\"lon\" shape=\"y x\" type=\"float\">"
+            + "<attribute name=\"units\" value=\"degrees_east\"/>"
+            + "<values>" + lons + "</values></variable>"
+            + "<variable name=\"lat\" shape=\"y x\" type=\"float\">"
+            + "<attribute name=\"units\" value=\"degrees_north\"/>"
+            + "<values>" + lats + "</values></variable>"
+            + "<variable name=\"temp\" shape=\"y x\" type=\"float\">"
+            + "<attribute name=\"coordinates\" value=\"lon lat\"/>"
+            + "<values start=\"0\" increment=\"1\"/></variable>"
+            + "</netcdf>";
+        NetcdfDataset nc = NcMLReader.readNcML(new StringReader(ncml), null);
+        GridDataset gd = new GridDataset(new NetcdfDataset(nc, true));
+        return gd.getGrids().get(0).getCoordinateSystem();
+    }
+
+    private static void assertSameLuts(LookUpTable expected, LookUpTable actual)
+    {
+        assertEquals(expected.getNumLonPoints(), actual.getNumLonPoints());
+        assertEquals(expected.getNumLatPoints(), actual.getNumLatPoints());
+        int numFound = 0;
+        for (double lon = -5.0; lon <= 25.0; lon += 0.1) {
+            for (double lat = 5.0; lat <= 35.0; lat += 0.1) {
+                int[] e = expected.getGridCoordinates(lon, lat);
+                int[] a = actual.getGridCoordinates(lon, lat);
+                if (e == null) {
+                    assertNull(a);
+                } else {
+                    assertArrayEquals(e, a);
+                    numFound++;
+                }
+            }
+        }
+        assertTrue(numFound > 0);
+    }
+
+    /**
+     * Tests that the points of a look-up table lie within the cells that they
+     * refer to, and that every cell that is large enough is found.
+     */
+    @Test
+    public void testLookUpTableGeneration() throws Exception
+    {
+        CurvilinearGrid curvGrid = new CurvilinearGrid(createCoordSystem(60, 50));
+        double resolution = Math.sqrt(curvGrid.getMeanCellArea()) / 3.0;
+        LookUpTable lut = new LookUpTable(curvGrid, resolution);
+        GeographicBoundingBox bbox = curvGrid.getBoundingBox();
+        double lonStride = (bbox.getEastBoundLongitude() - bbox.getWestBoundLongitude())
+            / (lut.getNumLonPoints() - 1);
+        double latStride = (bbox.getNorthBoundLatitude() - bbox.getSouthBoundLatitude())
+            / (lut.getNumLatPoints() - 1);
+        boolean[][] found = new boolean[curvGrid.getNi()][curvGrid.getNj()];
+        int numPoints = 0;
+        int numOutside = 0;
+        for (int y = 0; y < lut.getNumLatPoints(); y++) {
+            for (int x = 0; x < lut.getNumLonPoints(); x++) {
+                double lon = bbox.getWestBoundLongitude() + x * lonStride;
+                double lat = bbox.getSouthBoundLatitude() + y * latStride;
+                int[] coords = lut.getGridCoordinates(lon, lat);
+                if (coords == null) continue;
+                numPoints++;
+                found[coords[0]][coords[1]] = true;
+                Path2D path = curvGrid.getCell(coords[0], coords[1]).getBoundaryPath();
+                if (!path.contains(lon, lat)) {
+                    numOutside++;
+                }
+            }
+        }
+        assertTrue(numPoints > 0);
+        // Allow for points on the boundaries of cells
+        assertTrue(numOutside < numPoints / 200);
+        for (int i = 0; i < curvGrid.getNi(); i++) {
+            for (int j = 0; j < curvGrid.getNj(); j++) {
+                assertTrue(found[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Tests that a look-up table is written to a file and read back, and that
+     * an invalid file is replaced.
+     */
+    @Test
+    public void testPersistedLookUpTable() throws Exception
+    {
+        CurvilinearGrid curvGrid = new CurvilinearGrid(createCoordSystem(40, 30));
+        assertEquals(curvGrid.getFingerprint(),
+            new CurvilinearGrid(createCoordSystem(40, 30)).getFingerprint());
+        assertFalse(curvGrid.getFingerprint().equals(
+            new CurvilinearGrid(createCoordSystem(40, 31)).getFingerprint()));
+
+        double resolution = Math.sqrt(curvGrid.getMeanCellArea()) / 3.0;
+        LookUpTable lut = new LookUpTable(curvGrid, resolution);
+
+        File lutFile = File.createTempFile("lut", ".dat");
+        try {
+            // Write an invalid file, which must be replaced
+            FileOutputStream out = new FileOutputStream(lutFile);
+            out.write(new byte[]{1, 2, 3});
+            out.close();
+            assertSameLuts(lut, new LookUpTable(curvGrid, resolution, lutFile));
+            assertEquals(16 + 4L * lut.getNumLonPoints() * lut.getNumLatPoints(), lutFile.length());
+            // Now the LUT is read from the file
+            long modified = lutFile.lastModified();
+            assertSameLuts(lut, new LookUpTable(curvGrid, resolution, lutFile));
+            assertEquals(modified, lutFile.lastModified());
+        } finally {
+            lutFile.delete();
+        }
+    }
+}
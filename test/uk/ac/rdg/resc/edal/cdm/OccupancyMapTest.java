@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.edal.cdm;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dataset.VariableDS;
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.dt.grid.GridDataset;
+import ucar.nc2.ncml.NcMLReader;
+import uk.ac.rdg.resc.edal.coverage.domain.impl.HorizontalDomain;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.geometry.impl.LonLatPositionImpl;
+
+/**
+ * Test for the {@link OccupancyMap} class, which checks that blocks are only
+ * recorded as empty when all their values have been read and are missing.
+ * @author Jon
+ */
+public class OccupancyMapTest {
+
+    /** The size of the grid, which is divided into 3x3 blocks of 16 cells */
+    private static final int SIZE = 40;
+    private static final float FILL_VALUE = -999.0f;
+
+    /**
+     * Creates a grid of data in which the values with i < 16 (i.e. the first
+     * column of blocks) are missing, except for the value at the given
+     * position (which may be outside the grid).
+     */
+    private static GridDatatype createGrid(int iOccupied, int jOccupied) throws Exception
+    {
+        StringBuilder values = new StringBuilder();
+        for (int j = 0; j < SIZE; j++) {
+            for (int i = 0; i < SIZE; i++) {
+                boolean missing = i < 16 && !(i == iOccupied && j == jOccupied);
+                values.append(missing ? FILL_VALUE : (float)(i + j)).append(' ');
+            }
+        }
+        String ncml = "<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\">"
+            + "<dimension name=\"lat\" length=\"" + SIZE + "\"/>"
+            + "<dimension name=\"lon\" length=\"" + SIZE + "\"/>"
+            + "<variable name=\"lon\" shape=\"lon\" type=\"float\">"
+            + "<attribute name=\"units\" value=\"degrees_east\"/>"
+            + "<values start=\"0.5\" increment=\"1\"/></variable>"
+            + "<variable name=\"lat\" shape=\"lat\" type=\"float\">"
+            + "<attribute name=\"units\" value=\"degrees_north\"/>"
+            + "<values start=\"0.5\" increment=\"1\"/></variable>"
+            + "<variable name=\"temp\" shape=\"lat lon\" type=\"float\">"
+            + "<attribute name=\"_FillValue\" type=\"float\" value=\"" + FILL_VALUE + "\"/>"
+            + "<values>" + values + "</values></variable>"
+            + "</netcdf>";
+        NetcdfDataset nc = NcMLReader.readNcML(new StringReader(ncml), null);
+        GridDataset gd = new GridDataset(new NetcdfDataset(nc, true));
+        return gd.getGrids().get(0);
+    }
+
+    /** Reads the given rows of the grid and records their occupancy */
+    private static void learnRows(OccupancyMap occupancy, GridDatatype grid,
+            int imin, int imax, int jmin, int jmax) throws Exception
+    {
+        RangesList ranges = new RangesList(grid);
+        ranges.setXRange(imin, imax);
+        ranges.setYRange(jmin, jmax);
+        DataChunk chunk = DataChunk.readDataChunk((VariableDS)grid.getVariable(), ranges);
+        occupancy.learn(chunk, ranges, imin, imax, jmin, jmax);
+    }
+
+    @Test
+    public void testLearnEmptyBlocks() throws Exception {
+        GridDatatype grid = createGrid(-1, -1);
+        OccupancyMap occupancy = new OccupancyMap(SIZE, SIZE);
+        assertFalse(occupancy.getSnapshot().hasEmptyBlocks());
+        learnRows(occupancy, grid, 0, SIZE - 1, 0, SIZE - 1);
+
+        OccupancyMap.Snapshot snapshot = occupancy.getSnapshot();
+        assertTrue(snapshot.hasEmptyBlocks());
+        assertTrue(snapshot.isEmpty(0, 0));
+        assertTrue(snapshot.isEmpty(15, SIZE - 1));
+        assertFalse(snapshot.isEmpty(16, 0));
+        assertFalse(snapshot.isEmpty(SIZE - 1, SIZE - 1));
+    }
+
+    /** Tests that a block containing a single value is not empty */
+    @Test
+    public void testOccupiedBlock() throws Exception {
+        GridDatatype grid = createGrid(5, 20);
+        OccupancyMap occupancy = new OccupancyMap(SIZE, SIZE);
+        learnRows(occupancy, grid, 0, SIZE - 1, 0, SIZE - 1);
+
+        OccupancyMap.Snapshot snapshot = occupancy.getSnapshot();
+        assertTrue(snapshot.isEmpty(5, 5));
+        assertFalse(snapshot.isEmpty(0, 16));
+        assertFalse(snapshot.isEmpty(15, 31));
+        assertTrue(snapshot.isEmpty(0, 32));
+    }
+
+    /**
+     * Tests that a block is only known to be empty when all its rows have
+     * been read, and that blocks that are only partly covered by a read are
+     * not recorded at all.
+     */
+    @Test
+    public void testPartialReads() throws Exception {
+        GridDatatype grid = createGrid(-1, -1);
+        OccupancyMap occupancy = new OccupancyMap(SIZE, SIZE);
+
+        // This read covers only part of the first block of each row
+        learnRows(occupancy, grid, 4, SIZE - 1, 0, SIZE - 1);
+        assertFalse(occupancy.getSnapshot().hasEmptyBlocks());
+
+        learnRows(occupancy, grid, 0, SIZE - 1, 0, 7);
+        OccupancyMap.Snapshot before = occupancy.getSnapshot();
+        assertFalse(before.isEmpty(0, 0));
+
+        learnRows(occupancy, grid, 0, SIZE - 1, 8, 15);
+        assertTrue(occupancy.getSnapshot().isEmpty(0, 0));
+        assertFalse(occupancy.getSnapshot().isEmpty(0, 16));
+        // Snapshots don't change once they have been taken
+        assertFalse(before.isEmpty(0, 0));
+    }
+
+    /** Tests that maps are only shared between reads of the same version of the data */
+    @Test
+    public void testVersions() throws Exception {
+        GridDatatype grid = createGrid(-1, -1);
+        NetcdfDataset nc = new NetcdfDataset();
+        assertNull(OccupancyMap.forSlice(nc, grid, 0, 0, -1));
+        OccupancyMap occupancy = OccupancyMap.forSlice(nc, grid, 0, 0, 1000);
+        assertNotNull(occupancy);
+        assertSame(occupancy, OccupancyMap.forSlice(nc, grid, 0, 0, 1000));
+        assertNotSame(occupancy, OccupancyMap.forSlice(nc, grid, 1, 0, 1000));
+        assertNotSame(occupancy, OccupancyMap.forSlice(nc, grid, 0, 0, 2000));
+    }
+
+    /** Tests that the points of a PixelMap in empty blocks are excluded */
+    @Test
+    public void testExcludingEmptyRegions() throws Exception {
+        GridDatatype grid = createGrid(-1, -1);
+        OccupancyMap occupancy = new OccupancyMap(SIZE, SIZE);
+        learnRows(occupancy, grid, 0, SIZE - 1, 0, SIZE - 1);
+
+        RegularGridImpl sourceGrid = new RegularGridImpl(
+            new DefaultGeographicBoundingBox(0.0, SIZE, 0.0, SIZE), SIZE, SIZE);
+        List<HorizontalPosition> points = new ArrayList<HorizontalPosition>();
+        points.add(new LonLatPositionImpl(5.5, 5.5));   // In an empty block
+        points.add(new LonLatPositionImpl(20.5, 5.5));  // In an occupied block
+        points.add(new LonLatPositionImpl(15.5, 30.5)); // In an empty block
+        PixelMap pixelMap = new PixelMap(sourceGrid,
+            new HorizontalDomain(points, DefaultGeographicCRS.WGS84));
+        assertEquals(3, pixelMap.getNumUniqueIJPairs());
+
+        PixelMap subset = pixelMap.excludingEmptyRegions(occupancy.getSnapshot());
+        assertEquals(1, subset.getNumUniqueIJPairs());
+        assertEquals(20, subset.getMinIIndex());
+        assertEquals(5, subset.getMinJIndex());
+
+        // Nothing is excluded if there are no empty blocks
+        assertSame(pixelMap, pixelMap.excludingEmptyRegions(
+            new OccupancyMap(SIZE, SIZE).getSnapshot()));
+    }
+}
@@ -0,0 +1,84 @@
+package uk.ac.rdg.resc.edal.cdm.kdtree;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.cdm.CurvilinearGrid;
+import uk.ac.rdg.resc.edal.cdm.LookUpTableTest;
+
+/**
+ * Test for the {@link KDTree} class, which compares the results of queries
+ * with the results of searching all the points.
+ * @author Jon
+ */
+public class KDTreeTest {
+
+    private static final int NI = 50;
+    private static final int NJ = 40;
+
+    @Test
+    public void testQueries() throws Exception {
+        CurvilinearGrid curvGrid = new CurvilinearGrid(LookUpTableTest.createCoordSystem(NI, NJ));
+        KDTree kdTree = new KDTree(curvGrid);
+        kdTree.buildTree();
+        kdTree.setQueryParameters(3.5, 0.1);
+        assertEquals(NI * NJ, kdTree.size());
+
+        Random random = new Random(42);
+        int[] results = new int[NI * NJ];
+        for (int n = 0; n < 500; n++) {
+            double lon = curvGrid.getBoundingBox().getWestBoundLongitude() - 1.0 + random.nextDouble() *
+                (curvGrid.getBoundingBox().getEastBoundLongitude() - curvGrid.getBoundingBox().getWestBoundLongitude() + 2.0);
+            double lat = curvGrid.getBoundingBox().getSouthBoundLatitude() - 1.0 + random.nextDouble() *
+                (curvGrid.getBoundingBox().getNorthBoundLatitude() - curvGrid.getBoundingBox().getSouthBoundLatitude() + 2.0);
+
+            // Find the nearest point and the points within a box by brute force
+            int nearest = -1;
+            double nearestDistanceSq = Double.MAX_VALUE;
+            int numInBox = 0;
+            for (int j = 0; j < NJ; j++) {
+                for (int i = 0; i < NI; i++) {
+                    double dlon = curvGrid.getMidpointLongitude(i, j) - lon;
+                    double dlat = curvGrid.getMidpointLatitude(i, j) - lat;
+                    double distanceSq = dlon * dlon + dlat * dlat;
+                    if (distanceSq < nearestDistanceSq) {
+                        nearestDistanceSq = distanceSq;
+                        nearest = j * NI + i;
+                    }
+                    if (Math.abs(dlon) <= 0.5 && Math.abs(dlat) <= 0.5) numInBox++;
+                }
+            }
+
+            assertEquals(nearest, kdTree.nearestNeighbour(lat, lon));
+
+            int approxNearest = kdTree.approxNearestNeighbour(lat, lon, 100.0);
+            assertEquals(nearest, approxNearest);
+            // Nothing is found if the search is limited to less than the nearest distance
+            assertEquals(-1, kdTree.approxNearestNeighbour(lat, lon, Math.sqrt(nearestDistanceSq) * 0.7));
+
+            int numFound = kdTree.rangeQuery(lat - 0.5, lat + 0.5, lon - 0.5, lon + 0.5, results);
+            assertEquals(numInBox, numFound);
+            for (int k = 0; k < numFound; k++) {
+                int i = results[k] % NI;
+                int j = results[k] / NI;
+                assertTrue(Math.abs(curvGrid.getMidpointLongitude(i, j) - lon) <= 0.5);
+                assertTrue(Math.abs(curvGrid.getMidpointLatitude(i, j) - lat) <= 0.5);
+            }
+        }
+    }
+
+    @Test
+    public void testRangeQueryWithSmallBuffer() throws Exception {
+        CurvilinearGrid curvGrid = new CurvilinearGrid(LookUpTableTest.createCoordSystem(NI, NJ));
+        KDTree kdTree = new KDTree(curvGrid);
+        kdTree.buildTree();
+        int[] results = new int[3];
+        Arrays.fill(results, -1);
+        // All the points are found, but only the first three are written
+        assertEquals(NI * NJ, kdTree.rangeQuery(-90.0, 90.0, -180.0, 180.0, results));
+        for (int index : results) {
+            assertTrue(index >= 0 && index < NI * NJ);
+        }
+    }
+}
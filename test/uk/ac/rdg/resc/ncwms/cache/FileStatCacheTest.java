@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link FileStatCache}.
+ * @author Jon
+ */
+public final class FileStatCacheTest
+{
+    /** Tests that OPeNDAP locations are neither examined nor cached */
+    @Test
+    public void testOpendapLocation()
+    {
+        FileStatCache.prune(Long.MAX_VALUE);
+        FileStatCache.FileStat stat = FileStatCache.getStat("http://example.com/dods/a.nc");
+        assertEquals(0, stat.lastModified);
+        assertEquals(0, stat.size);
+        assertEquals(-1, FileStatCache.getVersion("dods://example.com/dods/a.nc"));
+        assertEquals(0, FileStatCache.size());
+    }
+
+    /** Tests that entries that have not been checked recently are discarded */
+    @Test
+    public void testPrune() throws Exception
+    {
+        File file = File.createTempFile("filestat", ".nc");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[10]);
+            out.close();
+            FileStatCache.prune(Long.MAX_VALUE);
+            FileStatCache.FileStat stat = FileStatCache.getStat(file.getPath());
+            assertEquals(10, stat.size);
+            assertEquals(1, FileStatCache.size());
+
+            long now = System.currentTimeMillis();
+            FileStatCache.prune(now);
+            assertEquals(1, FileStatCache.size());
+            FileStatCache.prune(now + FileStatCache.MAX_AGE_MILLIS + 1000);
+            assertEquals(0, FileStatCache.size());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
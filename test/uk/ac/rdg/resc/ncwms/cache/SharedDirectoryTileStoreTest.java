@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link SharedDirectoryTileStore}, using a temporary directory.
+ * @author Jon
+ */
+public final class SharedDirectoryTileStoreTest
+{
+    private static final long MAX_IDLE_MILLIS = 60 * 60 * 1000;
+
+    private File dir;
+    private SharedDirectoryTileStore store;
+    private final List<TileCacheKey> discarded = new ArrayList<TileCacheKey>();
+
+    private final DiskTileStore.Listener listener = new DiskTileStore.Listener() {
+        @Override public void tileDiscarded(TileCacheKey key) {
+            synchronized(discarded)
+            {
+                discarded.add(key);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.dir = File.createTempFile("tilestore", "");
+        this.dir.delete();
+        this.store = this.open();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.store.shutdown();
+        TileCacheTest.deleteRecursively(this.dir);
+    }
+
+    private SharedDirectoryTileStore open()
+    {
+        return new SharedDirectoryTileStore(this.dir, Long.MAX_VALUE, MAX_IDLE_MILLIS, this.listener);
+    }
+
+    private static TileCacheKey createKey(double minX)
+    {
+        return TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, minX, 0, minX + 10, 10, 2);
+    }
+
+    private static CachedTile createTile(float val)
+    {
+        return new CachedTile(new float[] {val, Float.NaN, val + 1, val + 2},
+            System.currentTimeMillis() + 60000);
+    }
+
+    /** Returns all the tile files in the store */
+    private List<File> getFiles()
+    {
+        List<File> files = new ArrayList<File>();
+        for (File subdir : this.dir.listFiles())
+        {
+            for (File file : subdir.listFiles())
+            {
+                if (file.getName().endsWith(".tile")) files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static void assertTileEquals(CachedTile expected, CachedTile actual)
+    {
+        assertNotNull(actual);
+        assertEquals(expected.expiryTime, actual.expiryTime);
+        assertEquals(expected.data.length, actual.data.length);
+        for (int i = 0; i < expected.data.length; i++)
+        {
+            assertEquals(expected.data[i], actual.data[i], 0.0f);
+        }
+    }
+
+    @Test
+    public void testPutAndGet()
+    {
+        TileCacheKey key = createKey(0);
+        CachedTile tile = createTile(1.0f);
+        assertFalse(this.store.contains(key));
+        assertNull(this.store.get(key));
+
+        this.store.put(key, tile);
+        assertTrue(this.store.contains(key));
+        assertTileEquals(tile, this.store.get(key));
+        assertFalse(this.store.contains(createKey(10)));
+        assertNull(this.store.get(createKey(10)));
+        assertEquals(1, this.getFiles().size());
+
+        // Adding the same tile again does nothing
+        this.store.put(key, createTile(5.0f));
+        assertTileEquals(tile, this.store.get(key));
+
+        // Tiles that are about to expire are not stored
+        this.store.put(createKey(20), new CachedTile(new float[4], System.currentTimeMillis()));
+        assertFalse(this.store.contains(createKey(20)));
+
+        this.store.sweep();
+        assertEquals(1, this.store.getNumTiles());
+        assertEquals(this.getFiles().get(0).length(), this.store.getNumBytes());
+
+        assertTrue(this.store.remove(key));
+        assertFalse(this.store.contains(key));
+        assertFalse(this.store.remove(key));
+    }
+
+    /** Tests that the keys of the tiles are recovered when the store is reopened */
+    @Test
+    public void testGetKeys() throws Exception
+    {
+        assertTrue(this.store.getKeys().isEmpty());
+        TileCacheKey key1 = createKey(0);
+        TileCacheKey key2 = createKey(10);
+        CachedTile tile1 = createTile(1.0f);
+        this.store.put(key1, tile1);
+        this.store.put(key2, createTile(2.0f));
+        this.store.shutdown();
+
+        // A file from an old version of the store
+        File oldFile = new File(this.getFiles().get(0).getParentFile(), "0123.tile");
+        RandomAccessFile raf = new RandomAccessFile(oldFile, "rw");
+        raf.writeInt(0x6e635443);
+        raf.writeInt(1);
+        raf.close();
+
+        this.store = this.open();
+        Collection<TileCacheKey> keys = this.store.getKeys();
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains(key1));
+        assertTrue(keys.contains(key2));
+        assertFalse(oldFile.exists());
+        assertTileEquals(tile1, this.store.get(key1));
+    }
+
+    /**
+     * Tests that the keys of tiles from OPeNDAP datasets and NcML aggregations,
+     * which hold the time at which the dataset was loaded, are not recovered
+     * when the store is reopened
+     */
+    @Test
+    public void testGetKeysIgnoresDatasetLoadTimes()
+    {
+        TileCacheKey key = createKey(0);
+        TileCacheKey opendapKey = new TileCacheKey("ds", "temp", "CRS:841", 0, 0, 10, 10,
+            2, 2, "http://example.com/dods/a.nc", 0, 0, 0, 0, 12345);
+        this.store.put(key, createTile(1.0f));
+        this.store.put(opendapKey, createTile(2.0f));
+        assertTrue(this.store.contains(opendapKey));
+        this.store.shutdown();
+
+        this.store = this.open();
+        Collection<TileCacheKey> keys = this.store.getKeys();
+        assertEquals(1, keys.size());
+        assertTrue(keys.contains(key));
+    }
+
+    /** Tests that corrupt files are deleted when they are read */
+    @Test
+    public void testCorruptFile() throws Exception
+    {
+        TileCacheKey key = createKey(0);
+        this.store.put(key, createTile(1.0f));
+        File file = this.getFiles().get(0);
+
+        // Truncate the file in the middle of the data
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 2);
+        raf.close();
+        assertNull(this.store.get(key));
+        assertFalse(file.exists());
+        assertFalse(this.store.contains(key));
+
+        // Overwrite the header
+        this.store.put(key, createTile(1.0f));
+        raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.close();
+        assertNull(this.store.get(key));
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Tests that the sweep deletes idle files and then the least-recently-used
+     * files, notifying the listener
+     */
+    @Test
+    public void testSweep()
+    {
+        long now = System.currentTimeMillis();
+        TileCacheKey[] keys = new TileCacheKey[4];
+        File[] files = new File[keys.length];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = createKey(10 * i);
+            files[i] = this.put(keys[i], createTile(i));
+        }
+        long tileSize = files[0].length();
+        // keys[0] is idle; keys[1] was used the longest time ago
+        files[0].setLastModified(now - 2 * MAX_IDLE_MILLIS);
+        files[1].setLastModified(now - 30000);
+        files[2].setLastModified(now - 20000);
+        files[3].setLastModified(now - 10000);
+
+        this.store.sweep();
+        assertFalse(this.store.contains(keys[0]));
+        assertEquals(3, this.store.getNumTiles());
+        assertEquals(3 * tileSize, this.store.getNumBytes());
+
+        this.store.setMaxBytes(2 * tileSize);
+        this.store.sweep();
+        assertFalse(this.store.contains(keys[1]));
+        assertTrue(this.store.contains(keys[2]));
+        assertTrue(this.store.contains(keys[3]));
+        assertEquals(2, this.store.getNumTiles());
+        assertEquals(2 * tileSize, this.store.getNumBytes());
+
+        synchronized(this.discarded)
+        {
+            assertEquals(2, this.discarded.size());
+            assertTrue(this.discarded.contains(keys[0]));
+            assertTrue(this.discarded.contains(keys[1]));
+        }
+    }
+
+    /** Puts the given tile in the store, returning the new file */
+    private File put(TileCacheKey key, CachedTile tile)
+    {
+        List<File> files = this.getFiles();
+        this.store.put(key, tile);
+        List<File> newFiles = this.getFiles();
+        newFiles.removeAll(files);
+        assertEquals(1, newFiles.size());
+        return newFiles.get(0);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link SizedLruMap} class.
+ * @author Jon
+ */
+public final class SizedLruMapTest
+{
+    /**
+     * Tests that least-recently-used entries are evicted when the total size
+     * exceeds the budget
+     */
+    @Test
+    public void testEviction()
+    {
+        SizedLruMap<String, String> map = new SizedLruMap<String, String>(100);
+        assertTrue(map.put("a", "A", 40).isEmpty());
+        assertTrue(map.put("b", "B", 40).isEmpty());
+        // Access "a" so that "b" becomes the least recently used
+        assertEquals("A", map.get("a"));
+        List<Map.Entry<String, String>> evicted = map.put("c", "C", 40);
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0).getKey());
+        assertEquals("B", evicted.get(0).getValue());
+        assertEquals(80, map.getNumBytes());
+        assertEquals(2, map.size());
+        assertNull(map.get("b"));
+    }
+
+    /** Tests that replacing an entry replaces its size */
+    @Test
+    public void testReplace()
+    {
+        SizedLruMap<String, String> map = new SizedLruMap<String, String>(100);
+        map.put("a", "A", 40);
+        assertTrue(map.put("a", "A2", 60).isEmpty());
+        assertEquals(60, map.getNumBytes());
+        assertEquals("A2", map.remove("a"));
+        assertEquals(0, map.getNumBytes());
+        assertNull(map.remove("a"));
+    }
+
+    /** Tests that an entry larger than the whole budget is not stored */
+    @Test
+    public void testOversizedEntry()
+    {
+        SizedLruMap<String, String> map = new SizedLruMap<String, String>(100);
+        map.put("a", "A", 40);
+        List<Map.Entry<String, String>> evicted = map.put("b", "B", 101);
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0).getKey());
+        assertFalse(map.containsKey("b"));
+        assertTrue(map.containsKey("a"));
+    }
+
+    /** Tests that reducing the budget evicts entries straight away */
+    @Test
+    public void testSetMaxBytes()
+    {
+        SizedLruMap<String, String> map = new SizedLruMap<String, String>(100);
+        map.put("a", "A", 30);
+        map.put("b", "B", 30);
+        map.put("c", "C", 30);
+        assertEquals(2, map.setMaxBytes(40).size());
+        assertEquals(30, map.getNumBytes());
+        assertTrue(map.containsKey("c"));
+        assertEquals(1, map.setMaxBytes(0).size());
+        assertEquals(0, map.size());
+    }
+}
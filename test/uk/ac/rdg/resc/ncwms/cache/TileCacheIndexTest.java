@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link TileCacheIndex} class.
+ * @author Jon
+ */
+public final class TileCacheIndexTest
+{
+    /** Creates a key for a tile of a file that was last modified at the given time */
+    static TileCacheKey createKey(String datasetId, String filepath, long lastModified,
+        double minX, double minY, double maxX, double maxY, int size)
+    {
+        return new TileCacheKey(datasetId, "temp", "CRS:841", minX, minY, maxX, maxY,
+            size, size, filepath, lastModified, 1000, 0, 0, 0);
+    }
+
+    /** Tests that keys are grouped by dataset, file, source and position */
+    @Test
+    public void testGroups()
+    {
+        TileCacheIndex index = new TileCacheIndex();
+        TileCacheKey key1 = createKey("ds", "/data/a.nc", 1, 0, 0, 10, 10, 256);
+        TileCacheKey key2 = createKey("ds", "/data/a.nc", 1, 10, 0, 20, 10, 256);
+        TileCacheKey key3 = createKey("ds", "/data/b.nc", 1, 0, 0, 10, 10, 256);
+        TileCacheKey key4 = createKey("other", "/data/a.nc", 1, 0, 0, 10, 10, 256);
+        index.add(key1);
+        index.add(key2);
+        index.add(key3);
+        index.add(key4);
+
+        assertEquals(2, index.getKeys("ds").size());
+        assertEquals(2, index.getKeys("ds").get("/data/a.nc").size());
+        assertEquals(1, index.getKeys("other").size());
+        // key1 and key2 are in the same cell
+        assertEquals(3, index.getNumCells());
+        TileCacheKey inner = createKey("ds", "/data/a.nc", 1, 2, 2, 8, 8, 256);
+        assertEquals(Arrays.asList(key1), index.getCoveringKeys(inner));
+        // A key doesn't cover itself
+        assertTrue(index.getCoveringKeys(key1).isEmpty());
+
+        index.removeDataset("ds");
+        assertTrue(index.getKeys("ds").isEmpty());
+        assertTrue(index.getCoveringKeys(inner).isEmpty());
+        assertEquals(1, index.getNumCells());
+    }
+
+    /**
+     * Tests that the covering keys are found at all scales, by comparing
+     * with a search of all the keys
+     */
+    @Test
+    public void testCoveringKeys()
+    {
+        TileCacheIndex index = new TileCacheIndex();
+        List<TileCacheKey> keys = new ArrayList<TileCacheKey>();
+        // Tiles of a quadtree down to zoom level 5, with a few other sizes
+        for (int zoom = 0; zoom <= 5; zoom++)
+        {
+            int n = 1 << zoom;
+            double size = 360.0 / n;
+            for (int i = 0; i < n; i++)
+            {
+                for (int j = 0; j < n / 2 + 1; j++)
+                {
+                    double minX = -180 + i * size;
+                    double minY = -90 + j * size;
+                    keys.add(createKey("ds", "/data/a.nc", 1, minX, minY,
+                        minX + size, minY + size, 256));
+                    keys.add(createKey("ds", "/data/a.nc", 1, minX + size / 3, minY,
+                        minX + size, minY + size / 2, 256));
+                }
+            }
+        }
+        // A tile that crosses the anti-meridian, and one from another file
+        keys.add(createKey("ds", "/data/a.nc", 1, 170, 0, -170, 10, 256));
+        keys.add(createKey("ds", "/data/b.nc", 1, -180, -90, 180, 90, 256));
+        for (TileCacheKey key : keys) index.add(key);
+
+        Random random = new Random(1234);
+        int numFound = 0;
+        for (int n = 0; n < 500; n++)
+        {
+            double width = 360.0 * Math.pow(2, -8 * random.nextDouble());
+            double height = width * (0.5 + random.nextDouble());
+            double minX = -180 + random.nextDouble() * (360 - width);
+            double minY = -90 + random.nextDouble() * (180 - height);
+            TileCacheKey key = createKey("ds", "/data/a.nc", 1, minX, minY,
+                minX + width, minY + height, 256);
+            Set<TileCacheKey> expected = new HashSet<TileCacheKey>();
+            for (TileCacheKey cachedKey : keys)
+            {
+                if (cachedKey.covers(key) && cachedKey.getSource().equals(key.getSource()))
+                {
+                    expected.add(cachedKey);
+                }
+            }
+            List<TileCacheKey> found = index.getCoveringKeys(key);
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, new HashSet<TileCacheKey>(found));
+            numFound += found.size();
+        }
+        assertTrue(numFound > 500);
+    }
+
+    /**
+     * Tests that groups are discarded when they become empty, so that
+     * reloading a file many times doesn't leave a group for each version of
+     * the file
+     */
+    @Test
+    public void testEmptyGroupsDiscarded()
+    {
+        TileCacheIndex index = new TileCacheIndex();
+        for (long lastModified = 0; lastModified < 100; lastModified++)
+        {
+            TileCacheKey key = createKey("ds", "/data/a.nc", lastModified, 0, 0, 10, 10, 256);
+            index.add(key);
+            assertEquals(1, index.getNumCells());
+            index.remove(key);
+            assertEquals(0, index.getNumCells());
+        }
+        assertTrue(index.getKeys("ds").isEmpty());
+        // Removing a key that isn't in the index does nothing
+        index.remove(createKey("ds", "/data/a.nc", 0, 0, 0, 10, 10, 256));
+        assertEquals(0, index.getNumCells());
+    }
+
+    /**
+     * Tests that keys are not lost when they are added to a group while
+     * another thread is emptying it
+     */
+    @Test
+    public void testConcurrentAddAndRemove() throws Exception
+    {
+        final TileCacheIndex index = new TileCacheIndex();
+        final int numThreads = 4;
+        final List<TileCacheKey> keys = new ArrayList<TileCacheKey>();
+        for (int i = 0; i < numThreads; i++)
+        {
+            keys.add(createKey("ds", "/data/a.nc", 1, i, 0, i + 1, 1, 256));
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++)
+        {
+            final TileCacheKey key = keys.get(i);
+            threads.add(new Thread() {
+                @Override public void run() {
+                    for (int n = 0; n < 10000; n++)
+                    {
+                        index.add(key);
+                        index.remove(key);
+                    }
+                    index.add(key);
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        for (int i = 0; i < numThreads; i++)
+        {
+            assertEquals(Arrays.asList(keys.get(i)), index.getCoveringKeys(
+                createKey("ds", "/data/a.nc", 1, i + 0.25, 0.25, i + 0.75, 0.75, 256)));
+        }
+        assertEquals(numThreads, index.getKeys("ds").get("/data/a.nc").size());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link TileCacheKey} class.
+ * @author Jon
+ */
+public final class TileCacheKeyTest
+{
+    private static TileCacheKey createKey(double minX, double minY, double maxX, double maxY)
+    {
+        return TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, minX, minY, maxX, maxY, 256);
+    }
+
+    /** Tests the detection of tiles that contain other tiles */
+    @Test
+    public void testCovers()
+    {
+        TileCacheKey key = createKey(0, 0, 10, 10);
+        assertTrue(key.covers(key));
+        assertTrue(key.covers(createKey(0, 0, 5, 5)));
+        assertTrue(key.covers(createKey(2.5, 7.5, 5, 10)));
+        assertFalse(key.covers(createKey(5, 5, 15, 10)));
+        assertFalse(key.covers(createKey(-1, 0, 5, 5)));
+        assertFalse(key.covers(createKey(0, 0, 5, 10.5)));
+        assertFalse(createKey(0, 0, 5, 5).covers(key));
+    }
+
+    /** Tests that tiles crossing the anti-meridian are never used */
+    @Test
+    public void testCoversAntiMeridian()
+    {
+        // Canonical longitudes of a tile from 170 to 190 degrees
+        TileCacheKey crossing = createKey(170, 0, -170, 10);
+        assertFalse(crossing.covers(createKey(175, 0, 180, 5)));
+        assertFalse(createKey(-180, -90, 180, 90).covers(crossing));
+    }
+
+    /** Tests that the source doesn't depend on the position or size of the tile */
+    @Test
+    public void testSource()
+    {
+        TileCacheKey key = createKey(0, 0, 10, 10);
+        TileCacheKey.Source source =
+            TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 5, 5, 20, 20, 512).getSource();
+        assertEquals(key.getSource(), source);
+        assertEquals(key.getSource().hashCode(), source.hashCode());
+        assertFalse(key.getSource().equals(
+            TileCacheIndexTest.createKey("ds", "/data/a.nc", 2, 0, 0, 10, 10, 256).getSource()));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.coverage.grid.GridCoordinates;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.ncwms.config.Config;
+
+/**
+ * Test of the {@link TileCache} class, using a temporary directory for the
+ * configuration and the disk store.
+ * @author Jon
+ */
+public final class TileCacheTest
+{
+    private File dir;
+    private Config config;
+    private TileCache cache;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.dir = File.createTempFile("tilecache", "");
+        this.dir.delete();
+        this.dir.mkdir();
+        this.config = Config.readConfig(new File(this.dir, "config.xml"));
+        this.config.getCache().setSharedDirectory(new File(this.dir, "tiles").getPath());
+        this.cache = this.open();
+    }
+
+    private TileCache open()
+    {
+        TileCache tileCache = new TileCache();
+        tileCache.setConfig(this.config);
+        tileCache.setCacheDirectory(this.dir);
+        tileCache.init();
+        return tileCache;
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.cache.shutdown();
+        deleteRecursively(this.dir);
+    }
+
+    static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Returns the values of a field on the given source grid, sampled at the
+     * points of the given grid.  The value of each source cell is i + 10 * j.
+     */
+    private static List<Float> sample(RegularGrid sourceGrid, RegularGrid grid)
+    {
+        List<Float> data = new ArrayList<Float>();
+        for (HorizontalPosition pos : grid.getDomainObjects())
+        {
+            GridCoordinates coords = sourceGrid.findNearestGridPoint(pos);
+            data.add(coords == null ? null
+                : (float)(coords.getCoordinateValue(0) + 10 * coords.getCoordinateValue(1)));
+        }
+        return data;
+    }
+
+    private static RegularGrid createGrid(double minX, double minY, double maxX, double maxY, int size)
+    {
+        return new RegularGridImpl(minX, minY, maxX, maxY, DefaultGeographicCRS.WGS84, size, size);
+    }
+
+    /**
+     * Tests that tiles are derived from cached tiles that cover them, and
+     * that the derived data are the same as the data that would be read
+     */
+    @Test
+    public void testDerive()
+    {
+        RegularGrid sourceGrid = createGrid(0, 0, 4, 4, 2);
+        RegularGrid cachedGrid = createGrid(0, 0, 4, 4, 8);
+        this.cache.put(TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 4, 4, 8),
+            sample(sourceGrid, cachedGrid));
+
+        RegularGrid grid = createGrid(0, 0, 4, 4, 3);
+        TileCacheKey key = TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 4, 4, 3);
+        assertNull(this.cache.get(key));
+        List<Float> derived = this.cache.derive(key, grid, sourceGrid);
+        assertNotNull(derived);
+        assertEquals(sample(sourceGrid, grid), derived);
+        // The derived tile is now in the cache
+        assertEquals(derived, this.cache.get(key));
+
+        // Tiles that aren't covered by the cached tile, or that come from a
+        // different version of the file, can't be derived
+        RegularGrid offsetGrid = createGrid(2, 2, 6, 6, 3);
+        assertNull(this.cache.derive(
+            TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 2, 2, 6, 6, 3), offsetGrid, sourceGrid));
+        assertNull(this.cache.derive(
+            TileCacheIndexTest.createKey("ds", "/data/a.nc", 2, 0, 0, 4, 4, 3), grid, sourceGrid));
+    }
+
+    /**
+     * Tests that a tile is not derived from a cached tile that doesn't sample
+     * every source cell that it needs
+     */
+    @Test
+    public void testDeriveFromCoarseTile()
+    {
+        RegularGrid sourceGrid = createGrid(0, 0, 4, 4, 4);
+        RegularGrid cachedGrid = createGrid(0, 0, 4, 4, 2);
+        this.cache.put(TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 4, 4, 2),
+            sample(sourceGrid, cachedGrid));
+        RegularGrid grid = createGrid(0, 0, 2, 2, 2);
+        assertNull(this.cache.derive(
+            TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 2, 2, 2), grid, sourceGrid));
+    }
+
+    /**
+     * Tests that the index is rebuilt from the disk store in the background
+     * when the cache is restarted, so that tiles can be derived from the
+     * tiles of the last run
+     */
+    @Test
+    public void testIndexRebuiltOnRestart() throws Exception
+    {
+        RegularGrid sourceGrid = createGrid(0, 0, 4, 4, 2);
+        RegularGrid cachedGrid = createGrid(0, 0, 4, 4, 8);
+        this.cache.put(TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 4, 4, 8),
+            sample(sourceGrid, cachedGrid));
+        this.cache.shutdown();
+
+        this.cache = this.open();
+        assertTrue(this.cache.awaitIndex(10000));
+        RegularGrid grid = createGrid(0, 0, 4, 4, 3);
+        assertEquals(sample(sourceGrid, grid), this.cache.derive(
+            TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 4, 4, 3), grid, sourceGrid));
+    }
+
+    /**
+     * Tests that a tile is derived from a cached tile with larger pixels if
+     * the source cells are larger still
+     */
+    @Test
+    public void testDeriveFromCoarseTileOfCoarseSource()
+    {
+        RegularGrid sourceGrid = createGrid(0, 0, 4, 4, 2);
+        RegularGrid cachedGrid = createGrid(0, 0, 4, 4, 4);
+        this.cache.put(TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 4, 4, 4),
+            sample(sourceGrid, cachedGrid));
+        RegularGrid grid = createGrid(0, 0, 2, 2, 4);
+        List<Float> derived = this.cache.derive(
+            TileCacheIndexTest.createKey("ds", "/data/a.nc", 1, 0, 0, 2, 2, 4), grid, sourceGrid);
+        assertNotNull(derived);
+        assertEquals(sample(sourceGrid, grid), derived);
+    }
+
+    private static void writeFile(File file, int numBytes) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(new byte[numBytes]);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Tests that the tiles from a file are removed when the file changes and
+     * its dataset is reloaded, and that all the tiles of a dataset are removed
+     * when the dataset is removed
+     */
+    @Test
+    public void testRemoveStaleTiles() throws Exception
+    {
+        File file = new File(this.dir, "data.nc");
+        writeFile(file, 100);
+        File otherFile = new File(this.dir, "other.nc");
+        writeFile(otherFile, 100);
+        TileCacheKey key = new TileCacheKey("ds", "temp", "CRS:84", 0, 0, 10, 10, 2, 2,
+            file.getPath(), file.lastModified(), file.length(), 0, 0, 0);
+        TileCacheKey otherKey = new TileCacheKey("ds", "temp", "CRS:84", 0, 0, 10, 10, 2, 2,
+            otherFile.getPath(), otherFile.lastModified(), otherFile.length(), 0, 0, 0);
+        List<Float> data = Arrays.asList(1.0f, 2.0f, 3.0f, 4.0f);
+        this.cache.put(key, data);
+        this.cache.put(otherKey, data);
+
+        // Nothing has changed
+        this.cache.removeStaleTiles("ds", 1000);
+        assertEquals(data, this.cache.get(key));
+        assertEquals(data, this.cache.get(otherKey));
+
+        // Now change one of the files and reload the dataset
+        writeFile(file, 200);
+        file.setLastModified(file.lastModified() + 2000);
+        this.cache.removeStaleTiles("ds", 2000);
+        assertFalse(this.cache.contains(key));
+        assertNull(this.cache.get(key));
+        assertEquals(data, this.cache.get(otherKey));
+
+        this.cache.removeTiles("ds");
+        assertFalse(this.cache.contains(otherKey));
+        assertEquals(0, this.cache.getNumTilesInMemory());
+    }
+}
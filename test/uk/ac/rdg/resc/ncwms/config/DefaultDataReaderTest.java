@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.DataType;
+import ucar.nc2.NetcdfFileWriteable;
+import uk.ac.rdg.resc.edal.coverage.domain.impl.HorizontalDomain;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.edal.geometry.impl.LonLatPositionImpl;
+import uk.ac.rdg.resc.ncwms.cache.FileStatCache;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+
+/**
+ * Test of the {@link DefaultDataReader}, which checks that the regions of
+ * missing values that are remembered between reads of a local file are
+ * forgotten when the file changes, even if its dataset is not reloaded.
+ * @author Jon
+ */
+public final class DefaultDataReaderTest
+{
+    private static final int SIZE = 40;
+    private static final float FILL_VALUE = -999.0f;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = File.createTempFile("defaultdatareader", ".nc");
+    }
+
+    @After
+    public void tearDown()
+    {
+        FileStatCache.invalidate(this.file.getPath());
+        this.file.delete();
+    }
+
+    /**
+     * Writes a grid of data to the file.  If {@code leftMissing} is true, the
+     * values with i < 16 (i.e. the first column of blocks of the occupancy map)
+     * are missing.
+     */
+    private void writeFile(boolean leftMissing) throws Exception
+    {
+        NetcdfFileWriteable nc = NetcdfFileWriteable.createNew(this.file.getPath(), false);
+        nc.addDimension("lat", SIZE);
+        nc.addDimension("lon", SIZE);
+        nc.addVariable("lat", DataType.FLOAT, "lat");
+        nc.addVariableAttribute("lat", "units", "degrees_north");
+        nc.addVariable("lon", DataType.FLOAT, "lon");
+        nc.addVariableAttribute("lon", "units", "degrees_east");
+        nc.addVariable("temp", DataType.FLOAT, "lat lon");
+        nc.addVariableAttribute("temp", "_FillValue", FILL_VALUE);
+        nc.create();
+        ArrayFloat.D1 coords = new ArrayFloat.D1(SIZE);
+        for (int i = 0; i < SIZE; i++) coords.set(i, i + 0.5f);
+        nc.write("lat", coords);
+        nc.write("lon", coords);
+        ArrayFloat.D2 values = new ArrayFloat.D2(SIZE, SIZE);
+        for (int j = 0; j < SIZE; j++)
+        {
+            for (int i = 0; i < SIZE; i++)
+            {
+                values.set(j, i, leftMissing && i < 16 ? FILL_VALUE : (float)(i + j));
+            }
+        }
+        nc.write("temp", values);
+        nc.close();
+    }
+
+    private static Layer createLayer()
+    {
+        final RegularGridImpl grid = new RegularGridImpl(
+            new DefaultGeographicBoundingBox(0.0, SIZE, 0.0, SIZE), SIZE, SIZE);
+        return (Layer)Proxy.newProxyInstance(Layer.class.getClassLoader(),
+            new Class<?>[] {Layer.class}, new InvocationHandler() {
+                @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getId")) return "temp";
+                    if (method.getName().equals("getHorizontalGrid")) return grid;
+                    return null;
+                }
+            });
+    }
+
+    /** Returns the centres of all the cells of the grid */
+    private static HorizontalDomain createDomain()
+    {
+        List<HorizontalPosition> points = new ArrayList<HorizontalPosition>();
+        for (int j = 0; j < SIZE; j++)
+        {
+            for (int i = 0; i < SIZE; i++)
+            {
+                points.add(new LonLatPositionImpl(i + 0.5, j + 0.5));
+            }
+        }
+        return new HorizontalDomain(points, DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * Tests that data are read from a file that has been rewritten in place
+     * where the previous version of the file contained only missing values
+     */
+    @Test
+    public void testFileChangedWithoutReload() throws Exception
+    {
+        DefaultDataReader reader = new DefaultDataReader();
+        Layer layer = createLayer();
+        String path = this.file.getPath();
+        writeFile(true);
+        long version = DefaultDataReader.getDataVersion(path, layer);
+        assertTrue(version >= 0);
+
+        // The second read uses the regions of missing values found by the first
+        for (int n = 0; n < 2; n++)
+        {
+            List<Float> data = reader.read(path, layer, -1, -1, createDomain());
+            assertNull(data.get(0));
+            assertNull(data.get(SIZE * SIZE - 1 - (SIZE - 16)));
+            assertEquals(16.0f, data.get(16), 0.0f);
+        }
+
+        // Rewrite the file with the same size.  Make sure that its
+        // last-modified time changes and that the change isn't hidden by the
+        // cache of file stats (as if the stats had expired).
+        long lastModified = this.file.lastModified();
+        writeFile(false);
+        assertTrue(this.file.setLastModified(lastModified + 10000));
+        FileStatCache.invalidate(path);
+        assertTrue(DefaultDataReader.getDataVersion(path, layer) != version);
+
+        List<Float> data = reader.read(path, layer, -1, -1, createDomain());
+        assertEquals(0.0f, data.get(0), 0.0f);
+        assertEquals(15.0f + SIZE - 1, data.get(SIZE * SIZE - 1 - (SIZE - 16)), 0.0f);
+        assertEquals(16.0f, data.get(16), 0.0f);
+    }
+
+    /** Tests that the version of a local file is not taken from its dataset */
+    @Test
+    public void testVersions() throws Exception
+    {
+        Layer layer = createLayer();
+        assertEquals(-1, DefaultDataReader.getDataVersion(
+            new File(this.file.getPath() + ".missing").getPath(), layer));
+        // The layer has no dataset, so the load time is not known
+        assertEquals(-1, DefaultDataReader.getDataVersion("http://example.com/data", layer));
+    }
+}
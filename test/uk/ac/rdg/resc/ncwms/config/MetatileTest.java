@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+
+/**
+ * Test of the {@link Metatile} class.
+ * @author Jon
+ */
+public final class MetatileTest
+{
+    /** Half the width of the world in EPSG:3857 */
+    private static final double MERCATOR_EXTENT = 20037508.342789244;
+
+    private static RegularGrid createGrid(String crsCode, double minX, double minY,
+        double maxX, double maxY, int size) throws Exception
+    {
+        return new RegularGridImpl(minX, minY, maxX, maxY, WmsUtils.getCrs(crsCode), size, size);
+    }
+
+    private static void assertExtent(RegularGrid grid, double minX, double minY,
+        double maxX, double maxY)
+    {
+        BoundingBox bbox = grid.getExtent();
+        double tolerance = 1e-9 * Math.max(maxX - minX, maxY - minY);
+        assertEquals(minX, bbox.getMinX(), tolerance);
+        assertEquals(minY, bbox.getMinY(), tolerance);
+        assertEquals(maxX, bbox.getMaxX(), tolerance);
+        assertEquals(maxY, bbox.getMaxY(), tolerance);
+    }
+
+    /**
+     * Tests the detection of tiles that are aligned with a tiling scheme,
+     * allowing for rounding errors in the client's bounding box
+     */
+    @Test
+    public void testAlignment() throws Exception
+    {
+        Metatile metatile = Metatile.forTile(createGrid("CRS:84", 50, 20, 60, 30, 256), 4);
+        assertNotNull(metatile);
+        assertExtent(metatile.getGrid(), 40, 0, 80, 40);
+        assertExtent(metatile.getRequestedTileGrid(), 50, 20, 60, 30);
+        assertEquals(1024, metatile.getGrid().getXAxis().getSize());
+
+        // Small errors are corrected in the canonical bounding box
+        metatile = Metatile.forTile(createGrid("CRS:84", 50 + 5e-6, 20 - 5e-6,
+            60 + 5e-6, 30 - 5e-6, 256), 4);
+        assertNotNull(metatile);
+        assertEquals(50.0, metatile.getRequestedTileGrid().getExtent().getMinX(), 0.0);
+        assertEquals(20.0, metatile.getRequestedTileGrid().getExtent().getMinY(), 0.0);
+
+        // Larger errors mean that the grid is not a tile
+        assertNull(Metatile.forTile(createGrid("CRS:84", 50.001, 20, 60.001, 30, 256), 4));
+        assertNull(Metatile.forTile(createGrid("CRS:84", 55, 20, 65, 30, 256), 4));
+
+        // Metatiles that are too large, or too small
+        assertNull(Metatile.forTile(createGrid("CRS:84", 50, 20, 60, 30, 1024), 4));
+        assertNull(Metatile.forTile(createGrid("CRS:84", 50, 20, 60, 30, 256), 1));
+    }
+
+    /** Tests tiles with negative column and row indices */
+    @Test
+    public void testNegativeIndices() throws Exception
+    {
+        // Column -3 and row -2 are in the metatile of columns -4 to -1 and
+        // rows -4 to -1
+        Metatile metatile = Metatile.forTile(createGrid("CRS:84", -30, -20, -20, -10, 256), 4);
+        assertNotNull(metatile);
+        assertExtent(metatile.getGrid(), -40, -40, 0, 0);
+        assertExtent(metatile.getRequestedTileGrid(), -30, -20, -20, -10);
+        assertExtent(metatile.getTileGrid(1, 2), -30, -20, -20, -10);
+
+        metatile = Metatile.forTile(createGrid("CRS:84", -10, -10, 0, 0, 256), 4);
+        assertExtent(metatile.getGrid(), -40, -40, 0, 0);
+        metatile = Metatile.forTile(createGrid("CRS:84", -40, -40, -30, -30, 256), 4);
+        assertExtent(metatile.getGrid(), -40, -40, 0, 0);
+    }
+
+    /** Tests that metatiles are clipped to the valid extent of lon-lat CRSs */
+    @Test
+    public void testClipLonLat() throws Exception
+    {
+        Metatile metatile = Metatile.forTile(createGrid("EPSG:4326", 0, 0, 90, 90, 256), 4);
+        assertEquals(2, metatile.getNumCols());
+        assertEquals(1, metatile.getNumRows());
+        assertExtent(metatile.getGrid(), 0, 0, 180, 90);
+        assertEquals(512, metatile.getGrid().getXAxis().getSize());
+        assertEquals(256, metatile.getGrid().getYAxis().getSize());
+
+        metatile = Metatile.forTile(createGrid("CRS:84", -180, -90, -90, 0, 256), 4);
+        assertExtent(metatile.getGrid(), -180, -90, 0, 0);
+        assertExtent(metatile.getRequestedTileGrid(), -180, -90, -90, 0);
+
+        // Tiles that are outside the valid extent are not read as metatiles
+        assertNull(Metatile.forTile(createGrid("CRS:84", 0, 90, 90, 180, 256), 4));
+        assertNull(Metatile.forTile(createGrid("CRS:84", 180, 0, 270, 90, 256), 4));
+    }
+
+    /** Tests that metatiles are clipped to the valid extent of Web Mercator */
+    @Test
+    public void testClipMercator() throws Exception
+    {
+        // The top-right tile at zoom level 2
+        double tileSize = MERCATOR_EXTENT / 2;
+        Metatile metatile = Metatile.forTile(createGrid("EPSG:3857",
+            tileSize, tileSize, 2 * tileSize, 2 * tileSize, 256), 4);
+        assertNotNull(metatile);
+        assertEquals(2, metatile.getNumCols());
+        assertEquals(2, metatile.getNumRows());
+        assertExtent(metatile.getGrid(), 0, 0, MERCATOR_EXTENT, MERCATOR_EXTENT);
+        assertExtent(metatile.getRequestedTileGrid(), tileSize, tileSize, 2 * tileSize, 2 * tileSize);
+
+        // The bottom-left tile
+        metatile = Metatile.forTile(createGrid("EPSG:3857",
+            -2 * tileSize, -2 * tileSize, -tileSize, -tileSize, 256), 4);
+        assertExtent(metatile.getGrid(), -MERCATOR_EXTENT, -MERCATOR_EXTENT, 0, 0);
+    }
+
+    /**
+     * Tests that the grids of the tiles within a metatile correspond with the
+     * data that are extracted for them, with rows counted from the bottom
+     */
+    @Test
+    public void testTileGrids() throws Exception
+    {
+        Metatile metatile = Metatile.forTile(createGrid("CRS:84", 10, 10, 20, 20, 4), 3);
+        RegularGrid metatileGrid = metatile.getGrid();
+        List<HorizontalPosition> positions = metatileGrid.getDomainObjects();
+        // The value of each point of the metatile is its index
+        List<Float> metatileData = new ArrayList<Float>();
+        for (int k = 0; k < positions.size(); k++) metatileData.add((float)k);
+
+        for (int j = 0; j < metatile.getNumRows(); j++)
+        {
+            for (int i = 0; i < metatile.getNumCols(); i++)
+            {
+                RegularGrid tileGrid = metatile.getTileGrid(i, j);
+                assertExtent(tileGrid, 10 * i, 10 * j, 10 * (i + 1), 10 * (j + 1));
+                List<Float> tileData = metatile.extractTile(metatileData, i, j);
+                List<HorizontalPosition> tilePositions = tileGrid.getDomainObjects();
+                assertEquals(tilePositions.size(), tileData.size());
+                for (int k = 0; k < tileData.size(); k++)
+                {
+                    HorizontalPosition expected = tilePositions.get(k);
+                    HorizontalPosition actual = positions.get(tileData.get(k).intValue());
+                    assertEquals(expected.getX(), actual.getX(), 1e-9);
+                    assertEquals(expected.getY(), actual.getY(), 1e-9);
+                }
+            }
+        }
+        assertEquals(metatile.extractTile(metatileData, 1, 1), metatile.extractRequestedTile(metatileData));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.coverage.CoverageMetadata;
+import uk.ac.rdg.resc.edal.coverage.domain.Domain;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.edal.geometry.HorizontalPosition;
+import uk.ac.rdg.resc.ncwms.cache.TileCache;
+import uk.ac.rdg.resc.ncwms.usagelog.UsageLogEntry;
+import uk.ac.rdg.resc.ncwms.util.WmsUtils;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+
+/**
+ * Test of the reading of data through the tile cache by the
+ * {@link NcwmsController}, which checks that seeded tiles are found by
+ * GetMap requests.
+ * @author Jon
+ */
+public final class NcwmsControllerTest
+{
+    /** Half the width of the world in EPSG:3857 */
+    private static final double MERCATOR_EXTENT = 20037508.342789244;
+
+    private File dir;
+    private TileCache cache;
+    private NcwmsController controller;
+    private final AtomicInteger numReads = new AtomicInteger();
+    private LayerImpl layer;
+
+    /** A DataReader that returns the same value everywhere, counting the reads */
+    private final class CountingDataReader extends DataReader
+    {
+        @Override
+        public List<Float> read(String filename, Layer layer, int tIndex, int zIndex,
+            Domain<HorizontalPosition> domain) throws IOException
+        {
+            numReads.incrementAndGet();
+            return Collections.nCopies((int)domain.size(), 1.0f);
+        }
+
+        @Override
+        protected Collection<CoverageMetadata> readLayerMetadata(String location)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.dir = File.createTempFile("ncwmscontroller", "");
+        this.dir.delete();
+        this.dir.mkdir();
+        File dataFile = new File(this.dir, "data.nc");
+        dataFile.createNewFile();
+
+        Config config = Config.readConfig(new File(this.dir, "config.xml"));
+        config.getCache().setSharedDirectory(new File(this.dir, "tiles").getPath());
+        config.getCache().setEnabled(true);
+        config.getCache().setMetatileSize(3);
+        this.cache = new TileCache();
+        this.cache.setConfig(config);
+        this.cache.setCacheDirectory(this.dir);
+        this.cache.init();
+        this.controller = new NcwmsController();
+        this.controller.setServerConfig(config);
+        this.controller.setTileCache(this.cache);
+
+        Dataset ds = new Dataset();
+        ds.setId("ds");
+        ds.setLocation(dataFile.getPath());
+        final RegularGrid sourceGrid = new RegularGridImpl(
+            new DefaultGeographicBoundingBox(-180.0, 180.0, -90.0, 90.0), 360, 180);
+        this.layer = new LayerImpl(createStub(CoverageMetadata.class,
+            "getId", "temp",
+            "getHorizontalGrid", sourceGrid,
+            "getElevationValues", Collections.emptyList()
+        ), ds, new CountingDataReader());
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.cache.shutdown();
+        deleteRecursively(this.dir);
+    }
+
+    private static void deleteRecursively(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    private static <T> T createStub(Class<T> clazz, final Object... methodsAndValues)
+    {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(),
+            new Class<?>[] {clazz}, new InvocationHandler() {
+                @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                    for (int i = 0; i < methodsAndValues.length; i += 2)
+                    {
+                        if (method.getName().equals(methodsAndValues[i])) return methodsAndValues[i + 1];
+                    }
+                    return null;
+                }
+            }));
+    }
+
+    /**
+     * Tests that a tile in EPSG:3857, whose bounding box is not exactly the
+     * canonical bounding box of the tile, is found by a GetMap request after
+     * it has been seeded
+     */
+    @Test
+    public void testSeededMercatorTile() throws Exception
+    {
+        // A tile at zoom level 3, with the bounding box computed by a client
+        double tileWidth = 2 * MERCATOR_EXTENT / 8;
+        RegularGrid grid = new RegularGridImpl(
+            -MERCATOR_EXTENT + 5 * tileWidth, -MERCATOR_EXTENT + 4 * tileWidth,
+            -MERCATOR_EXTENT + 6 * tileWidth, -MERCATOR_EXTENT + 5 * tileWidth,
+            WmsUtils.getCrs("EPSG:3857"), 256, 256);
+
+        assertTrue(this.controller.seedDataGrid(this.layer, null, Double.NaN, grid));
+        assertEquals(1, this.numReads.get());
+        // The tile is now in the cache
+        assertFalse(this.controller.seedDataGrid(this.layer, null, Double.NaN, grid));
+
+        UsageLogEntry entry = new UsageLogEntry(createStub(HttpServletRequest.class));
+        List<Float> data = this.controller.readDataGrid(this.layer, null, Double.NaN,
+            grid, entry);
+        assertTrue(entry.isUsedCache());
+        assertEquals(1, this.numReads.get());
+        assertEquals(256 * 256, data.size());
+        assertEquals(Arrays.asList(1.0f, 1.0f), data.subList(0, 2));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.config;
+
+import org.junit.Test;
+import org.simpleframework.xml.core.Persister;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link TileSeed} class.
+ * @author Jon
+ */
+public final class TileSeedTest
+{
+    private static TileSeed read(String xml) throws Exception
+    {
+        return new Persister().read(TileSeed.class, xml);
+    }
+
+    /**
+     * Tests the tiling scheme for lon-lat projections, which has two tiles
+     * at zoom level zero
+     */
+    @Test
+    public void testLonLatTiles() throws Exception
+    {
+        TileSeed seed = read("<seed layer=\"sst\" minZoom=\"0\" maxZoom=\"2\"/>");
+        assertArrayEquals(new int[] {0, 0, 1, 0}, seed.getTileRange(0));
+        assertArrayEquals(new int[] {0, 0, 3, 1}, seed.getTileRange(1));
+        assertEquals(2 + 8 + 32, seed.getNumTilesPerTimestep());
+
+        double[] bbox = seed.getTileBbox(1, 3, 1);
+        assertEquals(90.0, bbox[0], 0.0);
+        assertEquals(0.0, bbox[1], 0.0);
+        assertEquals(180.0, bbox[2], 0.0);
+        assertEquals(90.0, bbox[3], 0.0);
+    }
+
+    /**
+     * Tests that only tiles intersecting the bounding box are seeded
+     */
+    @Test
+    public void testBoundingBox() throws Exception
+    {
+        TileSeed seed = read("<seed layer=\"sst\" crs=\"CRS:84\" minZoom=\"2\" maxZoom=\"2\" bbox=\"-10 40 50 50\"/>");
+        // Tiles are 45 degrees square at zoom level 2
+        assertArrayEquals(new int[] {3, 2, 5, 3}, seed.getTileRange(2));
+        assertEquals(6, seed.getNumTilesPerTimestep());
+    }
+
+    /**
+     * Tests the spherical Mercator tiling scheme, which has a single tile
+     * at zoom level zero
+     */
+    @Test
+    public void testMercatorTiles() throws Exception
+    {
+        TileSeed seed = read("<seed layer=\"sst\" crs=\"EPSG:3857\" minZoom=\"0\" maxZoom=\"3\"/>");
+        assertArrayEquals(new int[] {0, 0, 0, 0}, seed.getTileRange(0));
+        assertEquals(1 + 4 + 16 + 64, seed.getNumTilesPerTimestep());
+    }
+
+    @Test(expected=Exception.class)
+    public void testUnsupportedCrs() throws Exception
+    {
+        read("<seed layer=\"sst\" crs=\"EPSG:27700\"/>");
+    }
+
+    @Test(expected=Exception.class)
+    public void testInvalidZoomLevels() throws Exception
+    {
+        read("<seed layer=\"sst\" minZoom=\"3\" maxZoom=\"2\"/>");
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.ncwms.graphics.ImageFormat;
+
+/**
+ * Test of the streaming of the frames of an animation to the client as they
+ * are rendered.
+ * @author Jon
+ */
+public final class AbstractWmsControllerTest
+{
+    private static final List<String> T_VALUES = Arrays.asList("t0", "t1", "t2", "t3");
+
+    /** Records the time values of the frames that are written */
+    private final List<String> written = new ArrayList<String>();
+
+    private int numFlushes = 0;
+
+    private final ImageFormat.FrameWriter frameWriter = new ImageFormat.FrameWriter() {
+        @Override public void writeFrame(BufferedImage frame, String tValue) {
+            // Each frame is one pixel wide for each frame before it
+            assertEquals(T_VALUES.indexOf(tValue) + 1, frame.getWidth());
+            written.add(tValue);
+        }
+        @Override public void finish() {}
+    };
+
+    private final HttpServletResponse response = (HttpServletResponse)Proxy.newProxyInstance(
+        HttpServletResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+        new InvocationHandler() {
+            @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                if (!method.getName().equals("getOutputStream")) return null;
+                return new ServletOutputStream() {
+                    @Override public void write(int b) {}
+                    @Override public void flush() { numFlushes++; }
+                };
+            }
+        });
+
+    /** Returns a frame that has not yet been rendered */
+    private static FutureTask<BufferedImage> createFrame(final int index)
+    {
+        return new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+            @Override public BufferedImage call() {
+                return new BufferedImage(index + 1, 1, BufferedImage.TYPE_INT_ARGB);
+            }
+        });
+    }
+
+    /**
+     * Tests that frames that are rendered out of order are written in order,
+     * each as soon as it and all the frames before it have been rendered
+     */
+    @Test
+    public void testFramesWrittenInOrder() throws Exception
+    {
+        List<FutureTask<BufferedImage>> frames = new ArrayList<FutureTask<BufferedImage>>();
+        Queue<Future<BufferedImage>> pendingFrames = new LinkedList<Future<BufferedImage>>();
+        for (int i = 0; i < T_VALUES.size(); i++)
+        {
+            frames.add(createFrame(i));
+            pendingFrames.add(frames.get(i));
+        }
+
+        // The later frames are rendered first, so nothing can be written
+        frames.get(3).run();
+        frames.get(1).run();
+        int numWritten = AbstractWmsController.writeRenderedFrames(this.frameWriter,
+            pendingFrames, T_VALUES, 0, T_VALUES.size(), this.response);
+        assertEquals(0, numWritten);
+        assertTrue(this.written.isEmpty());
+
+        frames.get(0).run();
+        numWritten = AbstractWmsController.writeRenderedFrames(this.frameWriter,
+            pendingFrames, T_VALUES, numWritten, T_VALUES.size(), this.response);
+        assertEquals(2, numWritten);
+        assertEquals(Arrays.asList("t0", "t1"), this.written);
+        assertEquals(2, this.numFlushes);
+
+        frames.get(2).run();
+        numWritten = AbstractWmsController.writeRenderedFrames(this.frameWriter,
+            pendingFrames, T_VALUES, numWritten, T_VALUES.size(), this.response);
+        assertEquals(4, numWritten);
+        assertEquals(T_VALUES, this.written);
+        assertTrue(pendingFrames.isEmpty());
+    }
+
+    /**
+     * Tests that we wait for the frame at the head of the queue when there
+     * are too many frames in the queue
+     */
+    @Test
+    public void testWaitForPendingFrames() throws Exception
+    {
+        final FutureTask<BufferedImage> frame0 = createFrame(0);
+        FutureTask<BufferedImage> frame1 = createFrame(1);
+        frame1.run();
+        Queue<Future<BufferedImage>> pendingFrames = new LinkedList<Future<BufferedImage>>();
+        pendingFrames.add(frame0);
+        pendingFrames.add(frame1);
+
+        Thread renderer = new Thread() {
+            @Override public void run() {
+                try
+                {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException ie)
+                {
+                    // Render the frame straight away
+                }
+                frame0.run();
+            }
+        };
+        renderer.start();
+        // Both frames are written, since frame1 is rendered by the time
+        // frame0 is written
+        int numWritten = AbstractWmsController.writeRenderedFrames(this.frameWriter,
+            pendingFrames, T_VALUES, 0, 1, this.response);
+        assertEquals(2, numWritten);
+        assertEquals(Arrays.asList("t0", "t1"), this.written);
+        renderer.join();
+    }
+
+    /**
+     * Tests that if a frame can't be rendered, the exception is thrown after
+     * the frames before it have been written and the later frames are cancelled
+     */
+    @Test
+    public void testFailedFrameCancelsPendingFrames() throws Exception
+    {
+        FutureTask<BufferedImage> frame0 = createFrame(0);
+        FutureTask<BufferedImage> failedFrame = new FutureTask<BufferedImage>(
+            new Callable<BufferedImage>() {
+                @Override public BufferedImage call() {
+                    throw new IllegalStateException("Can't render frame");
+                }
+            });
+        FutureTask<BufferedImage> frame2 = createFrame(2);
+        FutureTask<BufferedImage> frame3 = createFrame(3);
+        frame0.run();
+        failedFrame.run();
+        frame3.run();
+        Queue<Future<BufferedImage>> pendingFrames = new LinkedList<Future<BufferedImage>>(
+            Arrays.asList(frame0, failedFrame, frame2, frame3));
+
+        try
+        {
+            AbstractWmsController.writeRenderedFrames(this.frameWriter,
+                pendingFrames, T_VALUES, 0, 0, this.response);
+            fail("Expected an exception from the failed frame");
+        }
+        catch (IllegalStateException ise)
+        {
+            assertEquals("Can't render frame", ise.getMessage());
+        }
+        assertEquals(Arrays.asList("t0"), this.written);
+        assertTrue(frame2.isCancelled());
+        // frame3 had already been rendered, so can't be cancelled, but it
+        // must not be written
+        assertFalse(frame3.isCancelled());
+        assertEquals(2, pendingFrames.size());
+    }
+
+    /** Tests that the pending frames are cancelled if a frame can't be written */
+    @Test
+    public void testWriteErrorCancelsPendingFrames() throws Exception
+    {
+        FutureTask<BufferedImage> frame0 = createFrame(0);
+        FutureTask<BufferedImage> frame1 = createFrame(1);
+        frame0.run();
+        Queue<Future<BufferedImage>> pendingFrames = new LinkedList<Future<BufferedImage>>(
+            Arrays.asList(frame0, frame1));
+        ImageFormat.FrameWriter failingWriter = new ImageFormat.FrameWriter() {
+            @Override public void writeFrame(BufferedImage frame, String tValue) throws IOException {
+                throw new IOException("Connection closed");
+            }
+            @Override public void finish() {}
+        };
+        try
+        {
+            AbstractWmsController.writeRenderedFrames(failingWriter,
+                pendingFrames, T_VALUES, 0, 2, this.response);
+            fail("Expected an IOException");
+        }
+        catch (IOException ioe)
+        {
+            assertEquals("Connection closed", ioe.getMessage());
+        }
+        assertTrue(frame1.isCancelled());
+    }
+}
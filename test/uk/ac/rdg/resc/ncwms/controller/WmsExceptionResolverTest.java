@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.controller;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+import org.springframework.web.servlet.ModelAndView;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.ncwms.exceptions.WmsException;
+
+/**
+ * Test of the {@link WmsExceptionResolver}, which must not resolve exceptions
+ * to error views once the response has been committed.
+ * @author Jon
+ */
+public final class WmsExceptionResolverTest
+{
+    private static <T> T createStub(Class<T> clazz, final Object... methodsAndValues)
+    {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(),
+            new Class<?>[] {clazz}, new InvocationHandler() {
+                @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                    for (int i = 0; i < methodsAndValues.length; i += 2)
+                    {
+                        if (method.getName().equals(methodsAndValues[i])) return methodsAndValues[i + 1];
+                    }
+                    return null;
+                }
+            }));
+    }
+
+    private static WmsExceptionResolver createResolver()
+    {
+        WmsExceptionResolver resolver = new WmsExceptionResolver();
+        Properties mappings = new Properties();
+        mappings.setProperty(WmsException.class.getName(), "displayWmsException");
+        resolver.setExceptionMappings(mappings);
+        resolver.setDefaultErrorView("displayDefaultException");
+        return resolver;
+    }
+
+    @Test
+    public void testResolveException()
+    {
+        HttpServletRequest request = createStub(HttpServletRequest.class);
+        HttpServletResponse response = createStub(HttpServletResponse.class,
+            "isCommitted", false);
+        ModelAndView mav = createResolver().resolveException(request, response, null,
+            new WmsException("Invalid request"));
+        assertNotNull(mav);
+        assertEquals("displayWmsException", mav.getViewName());
+        mav = createResolver().resolveException(request, response, null,
+            new IllegalStateException());
+        assertEquals("displayDefaultException", mav.getViewName());
+    }
+
+    /**
+     * Tests that an exception is not resolved once the response has been
+     * committed, e.g. by writing the first frames of an animation
+     */
+    @Test
+    public void testCommittedResponse()
+    {
+        HttpServletRequest request = createStub(HttpServletRequest.class);
+        HttpServletResponse response = createStub(HttpServletResponse.class,
+            "isCommitted", true);
+        assertNull(createResolver().resolveException(request, response, null,
+            new WmsException("Invalid request")));
+        assertNull(createResolver().resolveException(request, response, null,
+            new IllegalStateException()));
+    }
+}
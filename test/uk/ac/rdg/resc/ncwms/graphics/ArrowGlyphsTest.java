@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the {@link ArrowGlyphs} class, which draws arrows straight into
+ * the pixels of an image.
+ * @author Jon
+ */
+public final class ArrowGlyphsTest
+{
+    private static final byte COLOUR = 7;
+
+    /** Draws an arrow into a new image and returns the pixels */
+    private static byte[] draw(int width, int height, int i, int j, double angle)
+    {
+        byte[] pixels = new byte[width * height];
+        ArrowGlyphs.get(10.0f).draw(pixels, width, height, i, j, angle, COLOUR);
+        return pixels;
+    }
+
+    /** Tests the pixels of an arrow pointing east */
+    @Test
+    public void testEast()
+    {
+        int width = 41;
+        byte[] pixels = draw(width, 41, 20, 20, 0.0);
+        // The line runs to the right of the data location
+        for (int i = 20; i <= 30; i++) assertEquals(COLOUR, pixels[20 * width + i]);
+        for (int i = 31; i < width; i++) assertEquals(0, pixels[20 * width + i]);
+        // The dot is at the data location
+        assertEquals(COLOUR, pixels[19 * width + 19]);
+        for (int j = 0; j < 41; j++)
+        {
+            for (int i = 0; i < width; i++)
+            {
+                if (pixels[j * width + i] != 0)
+                {
+                    assertEquals(COLOUR, pixels[j * width + i]);
+                    assertTrue(i >= 17 && i <= 30);
+                    assertTrue(j >= 17 && j <= 22);
+                }
+            }
+        }
+    }
+
+    /** Tests the pixels of an arrow pointing north, i.e. up the image */
+    @Test
+    public void testNorth()
+    {
+        int width = 41;
+        byte[] pixels = draw(width, 41, 20, 20, Math.PI / 2);
+        for (int j = 10; j <= 20; j++) assertEquals(COLOUR, pixels[j * width + 20]);
+        for (int j = 0; j < 10; j++) assertEquals(0, pixels[j * width + 20]);
+        for (int j = 0; j < 41; j++)
+        {
+            for (int i = 0; i < width; i++)
+            {
+                if (pixels[j * width + i] != 0)
+                {
+                    assertTrue(i >= 17 && i <= 22);
+                    assertTrue(j >= 10 && j <= 22);
+                }
+            }
+        }
+        // Angles are taken modulo 2 pi
+        assertArrayEquals(pixels, draw(width, 41, 20, 20, Math.PI / 2 - 4 * Math.PI));
+    }
+
+    /**
+     * Tests that arrows near and beyond the edges of the image are clipped,
+     * by comparing them with the same arrow drawn in the middle of a larger image
+     */
+    @Test
+    public void testClipping()
+    {
+        int border = 20;
+        // A non-square image, to catch confusion of width and height
+        int width = 15;
+        int height = 9;
+        int[][] positions = {
+            {0, 0}, {0, 4}, {7, 0}, {width - 1, height - 1},
+            {-3, 4}, {7, -3}, {width + 3, 4}, {7, height + 3}
+        };
+        double[] angles = {0.0, Math.PI / 2, Math.PI, -Math.PI / 2, 0.7, 4.0};
+        for (int[] pos : positions)
+        {
+            for (double angle : angles)
+            {
+                byte[] pixels = draw(width, height, pos[0], pos[1], angle);
+                int bigWidth = width + 2 * border;
+                byte[] expected = draw(bigWidth, height + 2 * border,
+                    pos[0] + border, pos[1] + border, angle);
+                for (int j = 0; j < height; j++)
+                {
+                    for (int i = 0; i < width; i++)
+                    {
+                        assertEquals("pixel (" + i + "," + j + ") of arrow at (" + pos[0]
+                            + "," + pos[1] + "), angle " + angle,
+                            expected[(j + border) * bigWidth + i + border], pixels[j * width + i]);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Color;
+import java.awt.image.IndexColorModel;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the caching of colour models in {@link ColorPalette}.
+ * @author Jon
+ */
+public final class ColorPaletteTest
+{
+    private final ColorPalette palette = ColorPalette.get(null);
+
+    /** Tests that colour models are shared between identical requests */
+    @Test
+    public void testColorModelsAreShared()
+    {
+        IndexColorModel cm1 = this.palette.getColorModel(50, 100, Color.BLACK, true);
+        IndexColorModel cm2 = this.palette.getColorModel(50, 100, new Color(0, 0, 0), true);
+        assertSame(cm1, cm2);
+        assertNotSame(cm1, this.palette.getColorModel(50, 100, Color.BLACK, false));
+        assertNotSame(cm1, this.palette.getColorModel(50, 99, Color.BLACK, true));
+        assertNotSame(cm1, this.palette.getColorModel(50, 100, Color.WHITE, true));
+        assertNotSame(cm1, this.palette.getColorModel(60, 100, Color.BLACK, true));
+    }
+
+    /** Tests that the RGB palette matches the colours of the colour model */
+    @Test
+    public void testRGBPalette()
+    {
+        IndexColorModel cm = this.palette.getColorModel(20, 100, Color.WHITE, false);
+        byte[] rgb = ColorPalette.getRGBPalette(cm);
+        assertEquals(256 * 3, rgb.length);
+        assertSame(rgb, ColorPalette.getRGBPalette(cm));
+        for (int i = 0; i < cm.getMapSize(); i++)
+        {
+            assertEquals(cm.getRGB(i) & 0xffffff,
+                (rgb[3 * i] & 0xff) << 16 | (rgb[3 * i + 1] & 0xff) << 8 | (rgb[3 * i + 2] & 0xff));
+        }
+        // The background colour comes after the palette colours
+        assertEquals(0xffffff, cm.getRGB(20) & 0xffffff);
+    }
+}
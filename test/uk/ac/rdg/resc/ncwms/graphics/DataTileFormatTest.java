@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Test of the encoding of data tiles by {@link DataTileFormat}.
+ * @author Jon
+ */
+public final class DataTileFormatTest
+{
+    private final List<List<Float>> bands = Arrays.asList(
+        Arrays.asList(1.5f, null, -2.0f, Float.NaN),
+        Arrays.asList(8.0f, 3.0f, null, 0.0f));
+
+    /** Tests that floating-point tiles contain the data values */
+    @Test
+    public void testFloat32() throws Exception
+    {
+        DataTileFormat format = (DataTileFormat)ImageFormat.get(DataTileFormat.FLOAT32);
+        assertFalse(format.isQuantised());
+        ByteBuffer buf = this.write(format, null);
+        assertEquals(format.getNumBytes(8), buf.remaining());
+        for (List<Float> band : this.bands)
+        {
+            for (Float val : band)
+            {
+                float f = buf.getFloat();
+                if (val == null || val.isNaN()) assertTrue(Float.isNaN(f));
+                else assertEquals(val, f, 0.0f);
+            }
+        }
+    }
+
+    /** Tests that quantised tiles cover the range of the data */
+    @Test
+    public void testQuantised() throws Exception
+    {
+        DataTileFormat format = (DataTileFormat)ImageFormat.get(DataTileFormat.UINT16);
+        assertTrue(format.isQuantised());
+        assertEquals(65535, format.getMissingCode());
+        float[] scaling = format.getScaling(this.bands);
+        assertEquals(-2.0f, scaling[0], 0.0f);
+        assertEquals(10.0f / 65534, scaling[1], 1e-9f);
+        ByteBuffer buf = this.write(format, scaling);
+        assertEquals(format.getNumBytes(8), buf.remaining());
+        for (List<Float> band : this.bands)
+        {
+            for (Float val : band)
+            {
+                int code = buf.getShort() & 0xffff;
+                if (val == null || val.isNaN()) assertEquals(65535, code);
+                else assertEquals(val, scaling[0] + scaling[1] * code, scaling[1]);
+            }
+        }
+        // The ends of the range are represented exactly
+        assertEquals(0, buf.getShort(4) & 0xffff);
+        assertEquals(65534, buf.getShort(8) & 0xffff);
+    }
+
+    /** Tests that a tile with no data can be quantised */
+    @Test
+    public void testQuantisedMissingData() throws Exception
+    {
+        DataTileFormat format = (DataTileFormat)ImageFormat.get(DataTileFormat.UINT8);
+        List<List<Float>> missing = Arrays.asList(Arrays.asList((Float)null, Float.NaN));
+        float[] scaling = format.getScaling(missing);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.writeData(missing, 2, scaling, out);
+        assertArrayEquals(new byte[]{(byte)255, (byte)255}, out.toByteArray());
+    }
+
+    /**
+     * Tests that the rows of a grid, which are read with the bottom row first,
+     * are written with the top row first
+     */
+    @Test
+    public void testRowOrder() throws Exception
+    {
+        // A grid of width 2 and height 3, bottom row first
+        List<List<Float>> grid = Arrays.asList(Arrays.asList(
+            0.0f, 1.0f,
+            2.0f, 3.0f,
+            4.0f, 5.0f));
+        DataTileFormat format = (DataTileFormat)ImageFormat.get(DataTileFormat.UINT8);
+        float[] scaling = format.getScaling(grid);
+        assertEquals(0.0f, scaling[0], 0.0f);
+        assertEquals(5.0f / 254, scaling[1], 1e-9f);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.writeData(grid, 2, scaling, out);
+        byte[] bytes = out.toByteArray();
+        assertEquals(6, bytes.length);
+        int[] expectedValues = {4, 5, 2, 3, 0, 1};
+        for (int i = 0; i < bytes.length; i++)
+        {
+            assertEquals(expectedValues[i], scaling[1] * (bytes[i] & 0xff), scaling[1]);
+        }
+
+        format = (DataTileFormat)ImageFormat.get(DataTileFormat.FLOAT32);
+        out = new ByteArrayOutputStream();
+        format.writeData(grid, 2, null, out);
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int expectedValue : expectedValues)
+        {
+            assertEquals(expectedValue, buf.getFloat(), 0.0f);
+        }
+    }
+
+    private ByteBuffer write(DataTileFormat format, float[] scaling) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Each band is a single row
+        format.writeData(this.bands, 4, scaling, out);
+        return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
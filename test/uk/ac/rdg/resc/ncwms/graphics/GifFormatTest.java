@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * Test of animated GIFs, whose frames are compressed in parallel, which
+ * checks that the frames can be read back by ImageIO in order.
+ * @author Jon
+ */
+public final class GifFormatTest
+{
+    private static BufferedImage createFrame(int frameIndex, Color bgColor)
+    {
+        ImageProducer ip = new ImageProducer.Builder()
+            .width(50)
+            .height(40)
+            .colourScaleRange(Ranges.newRange(0.0f, 100.0f))
+            .backgroundColour(bgColor)
+            .build();
+        float[] data = new float[50 * 40];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (i % 13 == 0) ? Float.NaN : (i * (frameIndex + 1)) % 100;
+        }
+        ip.addFrame(new FloatArrayList(data), null);
+        return ip.getRenderedFrames().get(0);
+    }
+
+    private static List<BufferedImage> readFrames(byte[] gif) throws Exception
+    {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(gif));
+        reader.setInput(in);
+        List<BufferedImage> frames = new ArrayList<BufferedImage>();
+        for (int i = 0; i < reader.getNumImages(true); i++)
+        {
+            frames.add(reader.read(i));
+        }
+        in.close();
+        return frames;
+    }
+
+    private static int[] getRGB(BufferedImage image)
+    {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Tests an animation with enough frames to be compressed in parallel,
+     * in which the last frame has a different palette
+     */
+    @Test
+    public void testAnimation() throws Exception
+    {
+        List<BufferedImage> frames = new ArrayList<BufferedImage>();
+        for (int i = 0; i < 20; i++)
+        {
+            frames.add(createFrame(i, i == 19 ? Color.GREEN : Color.WHITE));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((SimpleFormat)ImageFormat.get("image/gif")).writeImage(frames, out);
+
+        List<BufferedImage> read = readFrames(out.toByteArray());
+        assertEquals(frames.size(), read.size());
+        for (int i = 0; i < frames.size(); i++)
+        {
+            assertTrue("frame " + i, Arrays.equals(getRGB(frames.get(i)), getRGB(read.get(i))));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * Test of the mapping of data values to colour indices in {@link ImageProducer}.
+ * @author Jon
+ */
+public final class ImageProducerTest
+{
+    private static ImageProducer createImageProducer(float min, float max, boolean logarithmic)
+    {
+        return new ImageProducer.Builder()
+            .width(1)
+            .height(1)
+            .colourScaleRange(Ranges.newRange(min, max))
+            .logarithmic(logarithmic)
+            .numColourBands(10)
+            .build();
+    }
+
+    /** Tests colour indices on a linear scale */
+    @Test
+    public void testLinearScale()
+    {
+        ImageProducer ip = createImageProducer(0.0f, 10.0f, false);
+        assertEquals(0, ip.getColourIndex(0.0f));
+        assertEquals(4, ip.getColourIndex(4.5f));
+        assertEquals(9, ip.getColourIndex(9.99f));
+        // The maximum value is in the top band, not the background
+        assertEquals(9, ip.getColourIndex(10.0f));
+        // Out-of-range values
+        assertEquals(11, ip.getColourIndex(-0.1f));
+        assertEquals(11, ip.getColourIndex(10.1f));
+        // Missing values are background
+        assertEquals(10, ip.getColourIndex(null));
+    }
+
+    /** Tests colour indices on a logarithmic scale */
+    @Test
+    public void testLogarithmicScale()
+    {
+        ImageProducer ip = createImageProducer(1.0f, 100.0f, true);
+        assertEquals(0, ip.getColourIndex(1.0f));
+        assertEquals(5, ip.getColourIndex(10.0f));
+        assertEquals(9, ip.getColourIndex(100.0f));
+        assertEquals(11, ip.getColourIndex(0.5f));
+    }
+
+    /**
+     * Tests that auto-scaled animations are coloured correctly, including
+     * frames that are compacted while later frames are added
+     */
+    @Test
+    public void testAutoScaledAnimation()
+    {
+        ImageProducer ip = new ImageProducer.Builder()
+            .width(4)
+            .height(1)
+            .numColourBands(10)
+            .build();
+        ip.addFrame(new FloatArrayList(new float[] {0.0f, 3.3f, 7.7f, Float.NaN}), "");
+        ip.addFrame(new FloatArrayList(new float[] {10.0f, 5.5f, 2.0f, 9.95f}), "");
+        List<BufferedImage> frames = ip.getRenderedFrames();
+        assertEquals(2, frames.size());
+        assertPixels(frames.get(0), 0, 3, 7, 10);
+        assertPixels(frames.get(1), 9, 5, 2, 9);
+    }
+
+    private static void assertPixels(BufferedImage image, int... expected)
+    {
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals(expected[i], image.getRaster().getSample(i, 0, 0));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * Test of {@link JpegFormat}, which checks that the pooled writers produce
+ * images that can be read back, and that the quality setting is used.
+ * @author Jon
+ */
+public final class JpegFormatTest
+{
+    private static BufferedImage createImage(int width, int height)
+    {
+        ImageProducer ip = new ImageProducer.Builder()
+            .width(width)
+            .height(height)
+            .colourScaleRange(Ranges.newRange(0.0f, 1.0f))
+            .backgroundColour(Color.BLACK)
+            .build();
+        float[] data = new float[width * height];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (float)(0.5 + 0.5 * Math.sin(i * 0.01));
+        }
+        ip.addFrame(new FloatArrayList(data), null);
+        return ip.getRenderedFrames().get(0);
+    }
+
+    private static byte[] write(BufferedImage image, ImageSettings settings) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((JpegFormat)ImageFormat.get("image/jpeg", settings)).writeImage(Arrays.asList(image), out);
+        return out.toByteArray();
+    }
+
+    /** Tests that images can be written repeatedly with the same writer */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        BufferedImage image = createImage(256, 200);
+        byte[] first = write(image, ImageSettings.DEFAULT);
+        assertArrayEquals(first, write(image, ImageSettings.DEFAULT));
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(first));
+        assertEquals(256, read.getWidth());
+        assertEquals(200, read.getHeight());
+
+        ImageSettings progressive = new ImageSettings(
+            PngFormat.DEFAULT_COMPRESSION_LEVEL, JpegFormat.DEFAULT_QUALITY, true);
+        read = ImageIO.read(new ByteArrayInputStream(write(image, progressive)));
+        assertEquals(256, read.getWidth());
+    }
+
+    /** Tests that lower quality settings give smaller images */
+    @Test
+    public void testQuality() throws Exception
+    {
+        BufferedImage image = createImage(256, 256);
+        int bestSize = write(image, new ImageSettings(3, 95, false)).length;
+        assertTrue(write(image, new ImageSettings(3, 30, false)).length < bestSize);
+    }
+
+    /** Tests that the shared format is used with the default settings */
+    @Test
+    public void testDefaultSettings() throws Exception
+    {
+        assertSame(ImageFormat.get("image/jpeg"),
+            ImageFormat.get("image/jpeg", ImageSettings.DEFAULT));
+        assertNotSame(ImageFormat.get("image/jpeg"),
+            ImageFormat.get("image/jpeg", new ImageSettings(3, 30, false)));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidQuality()
+    {
+        new ImageSettings(3, 0, false);
+    }
+}
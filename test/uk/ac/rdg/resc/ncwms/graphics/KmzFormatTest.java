@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.joda.time.chrono.ISOChronology;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.geometry.impl.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Ranges;
+import uk.ac.rdg.resc.ncwms.wms.Dataset;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
+
+/**
+ * Test of KMZ files, whose frames are encoded in parallel and stored without
+ * compression, which checks that the files can be read back.
+ * @author Jon
+ */
+public final class KmzFormatTest
+{
+    private static BufferedImage createFrame(int frameIndex)
+    {
+        ImageProducer ip = new ImageProducer.Builder()
+            .width(30)
+            .height(20)
+            .colourScaleRange(Ranges.newRange(0.0f, 100.0f))
+            .backgroundColour(Color.WHITE)
+            .transparent(true)
+            .build();
+        float[] data = new float[30 * 20];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = (i % 7 == 0) ? Float.NaN : (i * (frameIndex + 1)) % 100;
+        }
+        ip.addFrame(new FloatArrayList(data), null);
+        return ip.getRenderedFrames().get(0);
+    }
+
+    /**
+     * Creates an object implementing the given interface whose methods
+     * return the given values, or null
+     */
+    private static <T> T createStub(Class<T> clazz, final Object... methodsAndValues)
+    {
+        return clazz.cast(Proxy.newProxyInstance(clazz.getClassLoader(),
+            new Class<?>[] {clazz}, new InvocationHandler() {
+                @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                    for (int i = 0; i < methodsAndValues.length; i += 2)
+                    {
+                        if (method.getName().equals(methodsAndValues[i])) return methodsAndValues[i + 1];
+                    }
+                    return null;
+                }
+            }));
+    }
+
+    private static byte[] readEntry(InputStream in) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static int[] getRGB(BufferedImage image)
+    {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Writes a KMZ file with three frames and checks the entries in the file
+     * and the KML document
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Dataset dataset = createStub(Dataset.class, "getId", "ds", "getTitle", "My dataset");
+        Layer layer = createStub(Layer.class, "getDataset", dataset, "getId", "temp",
+            "getTitle", "Temperature", "getLayerAbstract", "Sea temperature",
+            "getChronology", ISOChronology.getInstanceUTC(),
+            "getElevationValues", Arrays.asList(10.0), "getElevationUnits", "m");
+        List<BufferedImage> frames = new ArrayList<BufferedImage>();
+        for (int i = 0; i < 3; i++) frames.add(createFrame(i));
+        List<String> tValues = Arrays.asList("2010-01-01T00:00:00.000Z",
+            "2010-01-02T00:00:00.000Z", "2010-01-03T00:00:00.000Z");
+        BufferedImage legend = new BufferedImage(10, 50, BufferedImage.TYPE_INT_ARGB);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageFormat.get("application/vnd.google-earth.kmz").writeImage(frames, out, layer,
+            tValues, "10.0", new BoundingBoxImpl(new double[] {-10, 20, 30, 40}), legend);
+
+        ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < frames.size(); i++)
+        {
+            ZipEntry entry = zipIn.getNextEntry();
+            assertEquals("frame" + i + ".png", entry.getName());
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            byte[] png = readEntry(zipIn);
+            assertEquals(entry.getSize(), png.length);
+            CRC32 crc = new CRC32();
+            crc.update(png);
+            assertEquals(entry.getCrc(), crc.getValue());
+            BufferedImage frame = ImageIO.read(new ByteArrayInputStream(png));
+            assertTrue("frame " + i, Arrays.equals(getRGB(frames.get(i)), getRGB(frame)));
+        }
+
+        ZipEntry kmlEntry = zipIn.getNextEntry();
+        assertEquals("ds_temp.kml", kmlEntry.getName());
+        byte[] kmlBytes = readEntry(zipIn);
+        Document kml = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(kmlBytes));
+        assertEquals("ds, temp", kml.getElementsByTagName("name").item(0).getTextContent());
+        NodeList overlays = kml.getElementsByTagName("GroundOverlay");
+        assertEquals(frames.size(), overlays.getLength());
+        NodeList hrefs = kml.getElementsByTagName("href");
+        List<String> hrefList = new ArrayList<String>();
+        for (int i = 0; i < hrefs.getLength(); i++) hrefList.add(hrefs.item(i).getTextContent());
+        assertEquals(Arrays.asList("legend.png", "frame0.png", "frame1.png", "frame2.png"), hrefList);
+        NodeList whens = kml.getElementsByTagName("when");
+        assertEquals(frames.size(), whens.getLength());
+        assertEquals("2010-01-02T00:00:00.000Z", whens.item(1).getTextContent());
+        assertEquals("30.0", kml.getElementsByTagName("east").item(2).getTextContent());
+
+        ZipEntry legendEntry = zipIn.getNextEntry();
+        assertEquals("legend.png", legendEntry.getName());
+        assertNotNull(ImageIO.read(new ByteArrayInputStream(readEntry(zipIn))));
+        assertNull(zipIn.getNextEntry());
+        zipIn.close();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2012 The University of Reading
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package uk.ac.rdg.resc.ncwms.graphics;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.util.FloatArrayList;
+import uk.ac.rdg.resc.edal.util.Ranges;
+
+/**
+ * Test of the {@link PngEncoder}, which checks that indexed and 32-bit images
+ * can be read back by ImageIO with the same colours.
+ * @author Jon
+ */
+public final class PngEncoderTest
+{
+    private static BufferedImage createImage(int width, int height, boolean transparent)
+    {
+        ImageProducer ip = new ImageProducer.Builder()
+            .width(width)
+            .height(height)
+            .colourScaleRange(Ranges.newRange(0.0f, 1.0f))
+            .transparent(transparent)
+            .backgroundColour(Color.RED)
+            .opacity(transparent ? 50 : 100)
+            .build();
+        // Random data, with some missing and out-of-range values, which
+        // don't compress well
+        Random random = new Random(42);
+        float[] data = new float[width * height];
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = random.nextFloat() * 1.2f;
+            if (i % 7 == 0) data[i] = Float.NaN;
+        }
+        ip.addFrame(new FloatArrayList(data), null);
+        return ip.getRenderedFrames().get(0);
+    }
+
+    private static void assertRoundTrip(BufferedImage image) throws Exception
+    {
+        assertRoundTrip(image, false);
+        assertRoundTrip(image, true);
+    }
+
+    private static void assertRoundTrip(BufferedImage image, boolean rgba) throws Exception
+    {
+        assertTrue(PngEncoder.canEncode(image));
+        for (int level = 0; level <= 9; level += 3)
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (rgba) PngEncoder.writeRGBA(image, out, level);
+            else PngEncoder.write(image, out, level);
+            BufferedImage read = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(image.getWidth(), read.getWidth());
+            assertEquals(image.getHeight(), read.getHeight());
+            int[] expected = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+            int[] actual = read.getRGB(0, 0, read.getWidth(), read.getHeight(), null, 0, read.getWidth());
+            assertTrue(Arrays.equals(expected, actual));
+        }
+    }
+
+    /** Tests a small opaque image */
+    @Test
+    public void testOpaqueImage() throws Exception
+    {
+        assertRoundTrip(createImage(3, 2, false));
+    }
+
+    /**
+     * Tests a transparent image that is large enough to need several IDAT
+     * chunks
+     */
+    @Test
+    public void testTransparentImage() throws Exception
+    {
+        assertRoundTrip(createImage(512, 300, true));
+    }
+}
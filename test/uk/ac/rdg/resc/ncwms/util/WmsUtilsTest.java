@@ -28,12 +28,22 @@
 
 package uk.ac.rdg.resc.ncwms.util;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
 import org.junit.Test;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import static org.junit.Assert.*;
+import uk.ac.rdg.resc.edal.coverage.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.coverage.grid.impl.RegularGridImpl;
+import uk.ac.rdg.resc.ncwms.wms.Layer;
 
 /**
  * Test of the {@link WmsUtils} class.
@@ -240,4 +250,116 @@ public final class WmsUtilsTest
         System.out.println(actual);
         assertEquals(expected.toString(), actual);
     }
+
+    /**
+     * Creates a Layer with the given geographic bounding box and elevation
+     * values and no horizontal grid.  The other methods of the layer return
+     * null.
+     */
+    private static Layer createLayer(double west, double south, double east, double north,
+        Double... elevationValues)
+    {
+        final GeographicBoundingBox bbox = new DefaultGeographicBoundingBox(west, east, south, north);
+        final List<Double> zValues = Arrays.asList(elevationValues);
+        return (Layer)Proxy.newProxyInstance(Layer.class.getClassLoader(),
+            new Class<?>[] {Layer.class}, new InvocationHandler() {
+                @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getGeographicBoundingBox")) return bbox;
+                    if (method.getName().equals("getElevationValues")) return zValues;
+                    return null;
+                }
+            });
+    }
+
+    private static RegularGrid createGrid(String crsCode, double minX, double minY,
+        double maxX, double maxY) throws Exception
+    {
+        CoordinateReferenceSystem crs = WmsUtils.getCrs(crsCode);
+        return new RegularGridImpl(minX, minY, maxX, maxY, crs, 256, 256);
+    }
+
+    /** Returns the x coordinate in EPSG:3857 of the given longitude */
+    private static double mercatorX(double lon)
+    {
+        return lon * 20037508.342789244 / 180.0;
+    }
+
+    /** Tests grids in longitude-latitude inside, outside and across the layer's edges */
+    @Test
+    public void testIsOutsideLayerLonLat() throws Exception
+    {
+        Layer layer = createLayer(0, 0, 10, 10);
+        assertFalse(WmsUtils.isOutsideLayer(layer, createGrid("CRS:84", 2, 2, 4, 4)));
+        assertFalse(WmsUtils.isOutsideLayer(layer, createGrid("CRS:84", -5, -5, 0, 0)));
+        assertFalse(WmsUtils.isOutsideLayer(layer, createGrid("CRS:84", 5, 5, 15, 15)));
+        assertTrue(WmsUtils.isOutsideLayer(layer, createGrid("CRS:84", 11, 0, 20, 10)));
+        assertTrue(WmsUtils.isOutsideLayer(layer, createGrid("CRS:84", 0, -20, 10, -11)));
+        // The same area, 360 degrees away
+        assertFalse(WmsUtils.isOutsideLayer(layer, createGrid("CRS:84", 362, 2, 364, 4)));
+    }
+
+    /** Tests grids that cross the anti-meridian */
+    @Test
+    public void testIsOutsideLayerAntiMeridian() throws Exception
+    {
+        Layer eastLayer = createLayer(-180, -10, -170, 10);
+        Layer westLayer = createLayer(175, -10, 180, 10);
+        assertFalse(WmsUtils.isOutsideLayer(eastLayer, createGrid("CRS:84", 170, -5, 190, 5)));
+        assertFalse(WmsUtils.isOutsideLayer(westLayer, createGrid("CRS:84", -185, -5, -175, 5)));
+        assertTrue(WmsUtils.isOutsideLayer(eastLayer, createGrid("CRS:84", 150, -5, 175, 5)));
+
+        // In Mercator, the grid extends beyond the edge of the world
+        RegularGrid grid = createGrid("EPSG:3857", mercatorX(175), 0, mercatorX(185), 500000);
+        assertFalse(WmsUtils.isOutsideLayer(eastLayer, grid));
+        assertFalse(WmsUtils.isOutsideLayer(westLayer, grid));
+    }
+
+    /** Tests grids in Web Mercator at the edge of the layer's bounding box */
+    @Test
+    public void testIsOutsideLayerMercator() throws Exception
+    {
+        Layer layer = createLayer(0, 0, 10, 10);
+        // The grid touches the eastern edge of the layer
+        assertFalse(WmsUtils.isOutsideLayer(layer,
+            createGrid("EPSG:3857", mercatorX(10), 0, mercatorX(20), 500000)));
+        // The grid overlaps the layer's south-western corner
+        assertFalse(WmsUtils.isOutsideLayer(layer,
+            createGrid("EPSG:3857", mercatorX(-5), -500000, mercatorX(0.01), 1000)));
+        assertTrue(WmsUtils.isOutsideLayer(layer,
+            createGrid("EPSG:3857", mercatorX(10.5), 0, mercatorX(20), 500000)));
+    }
+
+    /** Tests a polar stereographic grid that contains the North Pole */
+    @Test
+    public void testIsOutsideLayerPolar() throws Exception
+    {
+        // A small square around the pole in UPS North, whose corners are at
+        // about 89.4 degrees north
+        RegularGrid grid = createGrid("EPSG:32661",
+            2000000 - 50000, 2000000 - 50000, 2000000 + 50000, 2000000 + 50000);
+        // A layer that lies between the corners of the grid and the pole, in
+        // a sector that doesn't contain any of the corners
+        assertFalse(WmsUtils.isOutsideLayer(createLayer(100, 89.8, 110, 90), grid));
+        assertFalse(WmsUtils.isOutsideLayer(createLayer(-180, 60, 180, 90), grid));
+        assertTrue(WmsUtils.isOutsideLayer(createLayer(-180, 60, 180, 85), grid));
+        assertTrue(WmsUtils.isOutsideLayer(createLayer(-180, -90, 180, -60), grid));
+    }
+
+    /** Tests the check of the elevation */
+    @Test
+    public void testIsOutsideLayerElevation() throws Exception
+    {
+        Layer layer = createLayer(0, 0, 10, 10, 0.0, 10.0);
+        RegularGrid outside = createGrid("CRS:84", 20, 20, 30, 30);
+        assertTrue(WmsUtils.isOutsideLayer(layer, Double.NaN, outside));
+        assertTrue(WmsUtils.isOutsideLayer(layer, 10.0, outside));
+        // An elevation between the layer's values is checked by the normal
+        // GetMap code, which reports the error to the client
+        assertFalse(WmsUtils.isOutsideLayer(layer, 5.0, outside));
+        assertFalse(WmsUtils.isOutsideLayer(layer, 5.0, createGrid("CRS:84", 2, 2, 4, 4)));
+
+        Layer noElevations = createLayer(0, 0, 10, 10);
+        assertTrue(WmsUtils.isOutsideLayer(noElevations, Double.NaN, outside));
+        assertFalse(WmsUtils.isOutsideLayer(noElevations, Double.NaN, createGrid("CRS:84", 2, 2, 4, 4)));
+    }
 }
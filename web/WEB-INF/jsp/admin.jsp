@@ -2,6 +2,7 @@
 <%@page pageEncoding="UTF-8"%>
 <%@taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
 <%@taglib uri="http://java.sun.com/jsp/jstl/functions" prefix="fn"%>
+<%@taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt"%>
 <%@taglib uri="/WEB-INF/taglib/wms/wmsUtils" prefix="utils"%> <%-- tag library for useful utility functions --%>
 <%
 response.setHeader("Cache-Control","no-cache"); //HTTP 1.1
@@ -12,7 +13,11 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
    "http://www.w3.org/TR/html4/loose.dtd">
 <%-- Administrative page
      Data (models) passed in to this page:
-         config     = Configuration of this server (uk.ac.rdg.resc.ncwms.config.Config) --%>
+         config     = Configuration of this server (uk.ac.rdg.resc.ncwms.config.Config)
+         tileSeeder = Object that seeds the tile cache (uk.ac.rdg.resc.ncwms.config.TileSeeder)
+         tileCache  = The tile cache (uk.ac.rdg.resc.ncwms.cache.TileCache)
+         formError  = Message explaining why the submitted configuration was
+                      not saved (only present after an invalid submission) --%>
 <html>
     <head>
         <meta http-equiv="Content-Type" content="text/html; charset=UTF-8">
@@ -36,13 +41,17 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
     <p><a href="usage.jsp">Usage monitor</a></p>
     <p><a href="../">ncWMS Front page</a></p>
     
+    <c:if test="${not empty formError}">
+        <p style="color: red"><b>The configuration was not saved: <c:out value="${formError}"/></b></p>
+    </c:if>
+
     <form id="config" action="updateConfig" method="POST">
         
         <input type="submit" value="Save configuration" name="submit1"/>
         
         <h2>Datasets</h2>
         <table border="1">
-        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Remove?</th><th>Data reading class</th><th>Link to more info</th><th>Copyright statement</th></tr>
+        <tr><th>Edit variables</th><th>Unique ID</th><th>Title</th><th>Location</th><th>State</th><th>Last update</th><th>Auto refresh frequency</th><th>Force refresh?</th><th>Disabled?</th><th>Queryable?</th><th>Remove?</th><th>Data reading class</th><th>Curvilinear grid index</th><th>Link to more info</th><th>Copyright statement</th></tr>
 
             <c:forEach var="datasetEntry" items="${config.allDatasets}">
                 <c:set var="dataset" value="${datasetEntry.value}"/>
@@ -88,6 +97,15 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     <td><input type="checkbox" name="dataset.${dataset.id}.queryable"<c:if test="${dataset.queryable}"> checked="checked"</c:if>/></td>
                     <td><input type="checkbox" name="dataset.${dataset.id}.remove"/></td>
                     <td><input type="text" name="dataset.${dataset.id}.reader" value="${dataset.dataReaderClass}"/></td>
+                    <td>
+                        <select name="dataset.${dataset.id}.horizontalindex">
+                            <option value="lut"<c:if test="${dataset.horizontalIndex == 'lut'}"> selected="selected"</c:if>>Look-up table</option>
+                            <option value="kdtree"<c:if test="${dataset.horizontalIndex == 'kdtree'}"> selected="selected"</c:if>>kd-tree</option>
+                            <option value="rtree"<c:if test="${dataset.horizontalIndex == 'rtree'}"> selected="selected"</c:if>>R-tree</option>
+                            <option value="prtree"<c:if test="${dataset.horizontalIndex == 'prtree'}"> selected="selected"</c:if>>Priority R-tree</option>
+                            <option value="auto"<c:if test="${dataset.horizontalIndex == 'auto'}"> selected="selected"</c:if>>Automatic</option>
+                        </select>
+                    </td>
                     <td><input type="text" name="dataset.${dataset.id}.moreinfo" value="${dataset.moreInfoUrl}"/></td>
                     <td><input type="text" name="dataset.${dataset.id}.copyright" value="${dataset.copyrightStatement}"/></td>
                 </tr>
@@ -118,6 +136,15 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     <td><input type="checkbox" name="dataset.new${i}.queryable" checked="checked"/></td>
                     <td>N/A</td>
                     <td><input type="text" name="dataset.new${i}.reader" value=""/></td>
+                    <td>
+                        <select name="dataset.new${i}.horizontalindex">
+                            <option value="lut">Look-up table</option>
+                            <option value="kdtree">kd-tree</option>
+                            <option value="rtree">R-tree</option>
+                            <option value="prtree">Priority R-tree</option>
+                            <option value="auto">Automatic</option>
+                        </select>
+                    </td>
                     <td><input type="text" name="dataset.new${i}.moreinfo" value=""/></td>
                     <td><input type="text" name="dataset.new${i}.copyright" value=""/></td>
                 </tr>
@@ -141,15 +168,15 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                 <th>Lifetime of each cached array (minutes)</th>
                 <td><input type="text" name="cache.elementLifetime" value="${config.cache.elementLifetimeMinutes}"/></td>
                 <td>Data arrays will expire automatically from the cache after this number of minutes.
-                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+                Changes apply to arrays that are added to the cache after the change.</td>
             </tr>
             <tr>
-                <c:set var="memoryFootprintMB" value="${256*256*4*config.cache.maxNumItemsInMemory / (1024*1024)}"/>
-                <th>Maximum number of items to hold in memory</th>
-                <td><input type="text" name="cache.maxNumItemsInMemory" value="${config.cache.maxNumItemsInMemory}"/></td>
-                <td>If each item in the cache is a 256x256 array of 4-byte floating point data then 
-                    this value gives a memory footprint for the cache of <b>${memoryFootprintMB} megabytes</b>.
-                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+                <c:set var="memoryUsageMB" value="${tileCache.numBytesInMemory / (1024*1024)}"/>
+                <th>Maximum size of the cache in memory (megabytes)</th>
+                <td><input type="text" name="cache.maxMegabytesInMemory" value="${config.cache.maxMegabytesInMemory}"/></td>
+                <td>The cache currently holds <b>${tileCache.numTilesInMemory}</b> data arrays in memory,
+                    occupying <b><fmt:formatNumber value="${memoryUsageMB}" maxFractionDigits="1"/> megabytes</b>.
+                <font color="red">This can be changed while the server is running.</font></td>
             </tr>
             <tr>
                 <th>Enable disk store?</th>
@@ -158,17 +185,60 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
                     do not fit into the memory footprint will overflow to disk.  All
                     items in the cache will automatically be written to disk when the
                     server is shut down or restarted.
-                <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
+            <tr>
+                <c:set var="diskUsageMB" value="${tileCache.numBytesOnDisk / (1024*1024)}"/>
+                <th>Maximum size of the cache on disk (megabytes)</th>
+                <td><input type="text" name="cache.maxMegabytesOnDisk" value="${config.cache.maxMegabytesOnDisk}"/></td>
+                <td>The cache currently holds <b>${tileCache.numTilesOnDisk}</b> data arrays on disk,
+                    occupying <b><fmt:formatNumber value="${diskUsageMB}" maxFractionDigits="1"/> megabytes</b>.
+                <font color="red">This can be changed while the server is running.</font></td>
             </tr>
             <tr>
-                <c:set var="diskFootprintMB" value="${256*256*4*config.cache.maxNumItemsOnDisk / (1024*1024)}"/>
-                <th>Maximum number of items to hold on disk</th>
-                <td><input type="text" name="cache.maxNumItemsOnDisk" value="${config.cache.maxNumItemsOnDisk}"/></td>
-                <td>If each item in the cache is a 256x256 array of 4-byte floating point data then 
-                    this value gives a disk footprint for the cache of <b>${diskFootprintMB} megabytes</b>.
+                <th>Shared disk store directory</th>
+                <td><input type="text" name="cache.sharedDirectory" value="${config.cache.sharedDirectory}"/></td>
+                <td>If set, the disk store is kept in this directory instead of the working
+                    directory of this server.  Several servers can share the same directory
+                    (e.g. on a network filesystem), so that tiles read by one server can be
+                    used by all of them.  The maximum size of the disk store then applies to
+                    the whole directory.
                 <font color="red">If you change this value you must restart the server for your change to take effect.</font></td>
             </tr>
+            <tr>
+                <th>Metatile size</th>
+                <td><input type="text" name="cache.metatileSize" value="${config.cache.metatileSize}"/></td>
+                <td>If this is greater than 1, a GetMap request for a tile reads the data for
+                    a block of this many tiles along each side, and puts all of them in the cache,
+                    ready for the requests for the neighbouring tiles.  This makes tiling clients
+                    faster, at the cost of reading some tiles that are never requested.  Only applies
+                    when the cache is enabled.  Changes take effect immediately.</td>
+            </tr>
+            <tr>
+                <th>Enable seeding?</th>
+                <td><input type="checkbox" name="cache.enableSeeding"<c:if test="${config.cache.enableSeeding}"> checked="checked"</c:if>/></td>
+                <td>If checked, the tiles specified by the &lt;seed&gt; elements of each dataset
+                    in the config file will be placed in the cache whenever the dataset is reloaded.
+                    Unchecking this box stops all seeding immediately.
+                <font color="red">This can be changed while the server is running.</font></td>
+            </tr>
         </table>
+
+        <c:if test="${not empty tileSeeder.jobs}">
+            <h3>Cache seeding progress</h3>
+            <table border="1">
+                <tr><th>Dataset</th><th>Started</th><th>State</th><th>Tiles checked</th><th>Tiles read from source data</th></tr>
+                <c:forEach var="job" items="${tileSeeder.jobs}">
+                    <tr>
+                        <td>${job.datasetId}</td>
+                        <td>${utils:dateTimeToISO8601(job.creationTime)}</td>
+                        <td>${job.state}</td>
+                        <td>${job.numTilesDone} of ${job.numTiles}</td>
+                        <td>${job.numTilesRead}</td>
+                    </tr>
+                </c:forEach>
+            </table>
+        </c:if>
         
         <h2>Server settings</h2>
         <table border="1">
@@ -180,6 +250,9 @@ response.setDateHeader ("Expires", 0); //prevents caching at the proxy server
             <!-- TODO: do integer validation on max width and height -->
             <tr><th>Max image width</th><td><input type="text" name="server.maximagewidth" value="${config.server.maxImageWidth}"/></td><td>Maximum width of image that can be requested</td></tr>
             <tr><th>Max image height</th><td><input type="text" name="server.maximageheight" value="${config.server.maxImageHeight}"/></td><td>Maximum width of image that can be requested</td></tr>
+            <tr><th>PNG compression level</th><td><input type="text" name="server.pngcompressionlevel" value="${config.server.pngCompressionLevel}"/></td><td>From 0 (fastest) to 9 (smallest images)</td></tr>
+            <tr><th>JPEG quality</th><td><input type="text" name="server.jpegquality" value="${config.server.jpegQuality}"/></td><td>From 1 (smallest images) to 100 (best quality)</td></tr>
+            <tr><th>Progressive JPEGs</th><td><input type="checkbox" name="server.jpegprogressive"<c:if test="${config.server.jpegProgressive}"> checked="checked"</c:if>/></td><td>Check this box to write JPEG images that can be displayed before they have been fully downloaded</td></tr>
             <tr><th>Allow GetFeatureInfo</th><td><input type="checkbox" name="server.allowfeatureinfo"<c:if test="${config.server.allowFeatureInfo}"> checked="checked"</c:if>/></td><td>Check this box to enable the GetFeatureInfo operation</td></tr>
             <tr><th>Allow global Capabilities</th><td><input type="checkbox" name="server.allowglobalcapabilities"<c:if test="${config.server.allowGlobalCapabilities}"> checked="checked"</c:if>/></td><td>Check this box to allow clients to request a
             WMS Capabilities document including all datasets on this server (not recommended if this server hosts a large number of datasets)</td></tr>